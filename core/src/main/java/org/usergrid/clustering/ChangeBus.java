@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.clustering;
+
+/**
+ * Carries change events to every node so node local caches can drop what
+ * another node changed. Listeners are called on the publishing node too.
+ */
+public interface ChangeBus {
+
+  /**
+   * Tell every node about a change, after it has been written
+   */
+  public void publish(ChangeEvent event);
+
+  public void addListener(ChangeListener listener);
+
+  public void removeListener(ChangeListener listener);
+
+}
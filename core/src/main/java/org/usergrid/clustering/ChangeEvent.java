@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.clustering;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * Says that something a node may have cached has changed. Events only name
+ * what changed, listeners reload it themselves.
+ */
+public class ChangeEvent implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public enum Type {
+    /**
+     * The application entity, or the application itself
+     */
+    APPLICATION,
+    /**
+     * A user, group or role entity was deleted
+     */
+    ENTITY,
+    /**
+     * A token was revoked, or every token of a principal
+     */
+    TOKEN,
+    /**
+     * A role was created or deleted, or its members changed
+     */
+    ROLE,
+    /**
+     * Permissions were granted or revoked
+     */
+    PERMISSION,
+    /**
+     * A user joined or left a group, or a group's roles changed
+     */
+    MEMBERSHIP,
+    /**
+     * A job was scheduled, the key is its fire time. Nothing cached changed
+     */
+    JOB
+  }
+
+  private final Type type;
+  private final UUID applicationId;
+  private final String key;
+
+  /**
+   * @param type
+   * @param applicationId
+   *          the application the change was made in, null for system wide
+   *          changes
+   * @param key
+   *          what changed, such as an entity id or a role name
+   */
+  public ChangeEvent(Type type, UUID applicationId, Object key) {
+    this.type = type;
+    this.applicationId = applicationId;
+    this.key = key == null ? null : key.toString();
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public UUID getApplicationId() {
+    return applicationId;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + applicationId + " " + key;
+  }
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.clustering;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers change events to the listeners in this JVM only, for single node
+ * installs and tests.
+ */
+public class LocalChangeBus implements ChangeBus {
+
+  private static final Logger logger = LoggerFactory.getLogger(LocalChangeBus.class);
+
+  private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+
+  @Override
+  public void publish(ChangeEvent event) {
+    deliver(event);
+  }
+
+  @Override
+  public void addListener(ChangeListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public void removeListener(ChangeListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Hand the event to every listener, one failing listener doesn't keep the
+   * others from hearing about it
+   */
+  protected void deliver(ChangeEvent event) {
+    for (ChangeListener listener : listeners) {
+      try {
+        listener.onChange(event);
+      } catch (RuntimeException e) {
+        logger.error("Listener {} failed on change {}", new Object[] { listener, event, e });
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.clustering.hazelcast;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.usergrid.clustering.ChangeEvent;
+import org.usergrid.clustering.LocalChangeBus;
+
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.ITopic;
+import com.hazelcast.core.MessageListener;
+
+/**
+ * Publishes change events on a Hazelcast topic so every node hears them.
+ * Hazelcast hands topic messages to the publishing member's listeners as
+ * well, so events are delivered locally when they come back off the topic.
+ * Until clustered it behaves as a local bus.
+ */
+public class HazelcastChangeBus extends LocalChangeBus implements MessageListener<ChangeEvent> {
+
+  private static final Logger logger = LoggerFactory.getLogger(HazelcastChangeBus.class);
+
+  public static final String TOPIC = "usergrid.changes";
+
+  private ITopic<ChangeEvent> topic;
+
+  public HazelcastChangeBus() {
+  }
+
+  /**
+   * @param clustered
+   *          publish changes to the other nodes over Hazelcast
+   */
+  public void setClustered(boolean clustered) {
+    if (clustered && topic == null) {
+      topic = Hazelcast.getTopic(TOPIC);
+      topic.addMessageListener(this);
+    }
+  }
+
+  @Override
+  public void publish(ChangeEvent event) {
+    if (topic == null) {
+      deliver(event);
+      return;
+    }
+
+    try {
+      topic.publish(event);
+    } catch (RuntimeException e) {
+      // other nodes keep serving what they cached until it expires
+      logger.error("Unable to publish change {}", event, e);
+      deliver(event);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see com.hazelcast.core.MessageListener#onMessage(java.lang.Object)
+   */
+  @Override
+  public void onMessage(ChangeEvent event) {
+    deliver(event);
+  }
+}
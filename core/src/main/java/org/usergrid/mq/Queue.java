@@ -44,12 +44,16 @@ public class Queue {
 	public static final String QUEUE_MODIFIED = "modified";
 	public static final String QUEUE_NEWEST = "newest";
 	public static final String QUEUE_OLDEST = "oldest";
+	public static final String QUEUE_RETAINED = "retained";
+	public static final String QUEUE_EXPIRED = "expired";
+	public static final String QUEUE_RETENTION = "retention";
 
 	@SuppressWarnings("rawtypes")
 	public static final Map<String, Class> QUEUE_PROPERTIES = hashMap(
 			QUEUE_PATH, (Class) String.class).map(QUEUE_ID, UUID.class)
 			.map(QUEUE_CREATED, Long.class).map(QUEUE_MODIFIED, Long.class)
-			.map(QUEUE_NEWEST, UUID.class).map(QUEUE_OLDEST, UUID.class);
+			.map(QUEUE_NEWEST, UUID.class).map(QUEUE_OLDEST, UUID.class)
+			.map(QUEUE_RETAINED, UUID.class).map(QUEUE_EXPIRED, UUID.class);
 
 	protected Map<String, Object> properties = new TreeMap<String, Object>(
 			String.CASE_INSENSITIVE_ORDER);
@@ -94,6 +98,20 @@ public class Queue {
 		properties.put(QUEUE_MODIFIED, modified);
 	}
 
+	/**
+	 * @return seconds messages posted to the queue are kept, 0 keeps them
+	 *         forever. Message bodies are shared with subscribed queues, so
+	 *         this also bounds how long they can be read from those.
+	 */
+	@JsonIgnore
+	public long getRetention() {
+		return getLongValue(properties, QUEUE_RETENTION);
+	}
+
+	public void setRetention(long retention) {
+		properties.put(QUEUE_RETENTION, retention);
+	}
+
 	public static Queue getDestination(String path) {
 		if (path == null) {
 			return null;
@@ -149,6 +149,14 @@ public interface QueueManager {
    */
   public boolean hasPendingReads(String queuePath, UUID consumerId);
 
+  /**
+   * Drops the shards of the queue that are entirely older than its retention
+   * and moves the start of the queue past them
+   * @param queuePath The path to the queue
+   * @return the number of shards dropped
+   */
+  public int expireMessages(String queuePath);
+
 
 
 }
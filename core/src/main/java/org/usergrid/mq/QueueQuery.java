@@ -38,6 +38,7 @@ public class QueueQuery extends Query {
 	boolean _synchronized;
 	boolean update = true;
 	long timeout;
+	long wait;
 
 	public QueueQuery() {
 	}
@@ -55,6 +56,7 @@ public class QueueQuery extends Query {
 			position = q.position;
 			_synchronized = q._synchronized;
 			update = q.update;
+			wait = q.wait;
 		}
 		
 	}
@@ -132,6 +134,11 @@ public class QueueQuery extends Query {
 		  query.setTimeout(ConversionUtils.getLong(first(params.get("timeout"))));
 		}
 
+		if (params.containsKey("wait")) {
+			query = newQueryIfNull(query);
+			query.setWait(ConversionUtils.getLong(first(params.get("wait"))));
+		}
+
 		if ((query != null) && (consumer != null)) {
 			query.setPositionIfUnset(QueuePosition.CONSUMER);
 		}
@@ -277,5 +284,26 @@ public class QueueQuery extends Query {
     return this;
   }
 
+  /**
+   * @return how long in milliseconds a read of an empty queue waits for a
+   *         message before returning
+   */
+  public long getWait() {
+    return wait;
+  }
+
+  /**
+   * @param wait
+   *          milliseconds to wait for a message when the queue is empty, 0
+   *          to return immediately
+   */
+  public void setWait(long wait) {
+    this.wait = wait;
+  }
+
+  public QueueQuery withWait(long wait) {
+    setWait(wait);
+    return this;
+  }
 
 }
@@ -102,6 +102,15 @@ public class CassandraMQUtils {
   }
 
   public static Mutator<ByteBuffer> addMessageToMutator(Mutator<ByteBuffer> m, Message message, long timestamp) {
+    return addMessageToMutator(m, message, timestamp, 0);
+  }
+
+  /**
+   * Add the message columns to the mutator, expiring them after ttl seconds
+   * unless ttl is 0
+   */
+  public static Mutator<ByteBuffer> addMessageToMutator(Mutator<ByteBuffer> m, Message message, long timestamp,
+      int ttl) {
 
     Map<ByteBuffer, ByteBuffer> columns = serializeMessage(message);
 
@@ -113,6 +122,9 @@ public class CassandraMQUtils {
       if ((column_entry.getValue() != null) && column_entry.getValue().hasRemaining()) {
         HColumn<ByteBuffer, ByteBuffer> column = createColumn(column_entry.getKey(), column_entry.getValue(),
             timestamp, be, be);
+        if (ttl > 0) {
+          column.setTtl(ttl);
+        }
         m.addInsertion(bytebuffer(message.getUuid()), QueuesCF.MESSAGE_PROPERTIES.toString(), column);
       } else {
         m.addDeletion(bytebuffer(message.getUuid()), QueuesCF.MESSAGE_PROPERTIES.toString(), column_entry.getKey(), be,
@@ -151,7 +163,8 @@ public class CassandraMQUtils {
         continue;
       }
       if (Queue.QUEUE_ID.equals(property.getKey()) || QUEUE_NEWEST.equals(property.getKey())
-          || QUEUE_OLDEST.equals(property.getKey())) {
+          || QUEUE_OLDEST.equals(property.getKey()) || Queue.QUEUE_RETAINED.equals(property.getKey())
+          || Queue.QUEUE_EXPIRED.equals(property.getKey())) {
         continue;
       }
       if (QUEUE_PROPERTIES.containsKey(property.getKey())) {
@@ -41,6 +41,7 @@ import me.prettyprint.cassandra.serializers.LongSerializer;
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.cassandra.serializers.UUIDSerializer;
 import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.mutation.Mutator;
 
 import org.usergrid.mq.Message;
@@ -86,6 +87,15 @@ public class MessageIndexUpdate {
 
 	public void addToMutation(Mutator<ByteBuffer> batch, UUID queueId,
 			long shard_ts, long timestamp) {
+		addToMutation(batch, queueId, shard_ts, timestamp, 0);
+	}
+
+	/**
+	 * Add the index entries for the queue's shard, expiring them after ttl
+	 * seconds unless ttl is 0
+	 */
+	public void addToMutation(Mutator<ByteBuffer> batch, UUID queueId,
+			long shard_ts, long timestamp, int ttl) {
 
 		if (propertyEntryList != null) {
 			for (Entry<String, List<Entry<String, Object>>> property : propertyEntryList
@@ -95,18 +105,20 @@ public class MessageIndexUpdate {
 
 					if (validIndexableValue(indexEntry.getValue())) {
 
+						HColumn<DynamicComposite, ByteBuffer> column = createColumn(
+								new DynamicComposite(
+										indexValueCode(indexEntry.getValue()),
+										indexEntry.getValue(), message
+												.getUuid()), ByteBuffer
+										.allocate(0), timestamp, dce, be);
+						if (ttl > 0) {
+							column.setTtl(ttl);
+						}
+
 						batch.addInsertion(
 								bytebuffer(key(queueId, shard_ts,
 										indexEntry.getKey())),
-								PROPERTY_INDEX.getColumnFamily(),
-								createColumn(
-										new DynamicComposite(
-												indexValueCode(indexEntry
-														.getValue()),
-												indexEntry.getValue(), message
-														.getUuid()), ByteBuffer
-												.allocate(0), timestamp, dce,
-										be));
+								PROPERTY_INDEX.getColumnFamily(), column);
 
 						batch.addInsertion(
 								bytebuffer(key(queueId,
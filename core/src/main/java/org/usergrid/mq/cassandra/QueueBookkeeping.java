@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.mq.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static org.usergrid.mq.Queue.QUEUE_MODIFIED;
+import static org.usergrid.mq.Queue.QUEUE_NEWEST;
+import static org.usergrid.mq.cassandra.QueuesCF.QUEUE_PROPERTIES;
+import static org.usergrid.persistence.cassandra.CassandraPersistenceUtils.batchExecute;
+import static org.usergrid.persistence.cassandra.CassandraService.RETRY_COUNT;
+import static org.usergrid.utils.ConversionUtils.bytebuffer;
+import static org.usergrid.utils.UUIDUtils.getTimestampInMicros;
+import static org.usergrid.utils.UUIDUtils.getTimestampInMillis;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
+import me.prettyprint.cassandra.serializers.LongSerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.serializers.UUIDSerializer;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.usergrid.persistence.cassandra.CassandraService;
+import org.usergrid.utils.UUIDUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Keeps the per post bookkeeping of queues off their hot rows. Every post
+ * used to write the root queue's row and the oldest, newest, created and
+ * modified columns of the queue, this decides which of those writes a post
+ * still has to make.
+ * <p>
+ * The root queue entry and created column never change once written, so a
+ * node writes them the first time it posts to a queue. Oldest only moves back,
+ * so a node writes it when a message is older than the oldest it has written.
+ * Newest and modified are written by a post when this node hasn't written a
+ * newest for the queue within the flush interval, otherwise they are kept in
+ * memory and written on the next flush. The newest stored for a queue with
+ * unflushed posts is therefore never more than {@link #NEWEST_WINDOW} behind
+ * them, and reads treat a newest that recent as running up to now.
+ */
+public class QueueBookkeeping {
+
+  private static final Logger logger = LoggerFactory.getLogger(QueueBookkeeping.class);
+
+  /**
+   * Reads of a queue whose newest message is this recent read up to now
+   */
+  public static final long NEWEST_WINDOW = 5000;
+
+  public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+  /**
+   * Longest flush interval that still leaves room in the window for a slow
+   * flush
+   */
+  public static final long MAX_FLUSH_INTERVAL = NEWEST_WINDOW / 4;
+
+  private static final StringSerializer se = new StringSerializer();
+  private static final ByteBufferSerializer be = new ByteBufferSerializer();
+  private static final UUIDSerializer ue = new UUIDSerializer();
+  private static final LongSerializer le = new LongSerializer();
+
+  private final CassandraService cass;
+
+  private final long flushInterval;
+
+  // queues this node has registered under the root queue
+  private final Cache<QueueKey, Boolean> registered = CacheBuilder.newBuilder().maximumSize(100000).build();
+
+  // the oldest message this node has written for each queue
+  private final Cache<QueueKey, UUID> oldest = CacheBuilder.newBuilder().maximumSize(100000).build();
+
+  // time of the newest message this node has written for each queue
+  private final Cache<QueueKey, Long> written = CacheBuilder.newBuilder().maximumSize(100000).build();
+
+  private final ConcurrentMap<QueueKey, Pending> pending = new ConcurrentHashMap<QueueKey, Pending>();
+
+  private final ScheduledExecutorService flusher;
+
+  public QueueBookkeeping(CassandraService cass) {
+    this(cass, DEFAULT_FLUSH_INTERVAL);
+  }
+
+  /**
+   * @param cass
+   * @param flushInterval
+   *          milliseconds between writes of the deferred newest and modified
+   *          columns, at most {@link #MAX_FLUSH_INTERVAL}. 0 writes them on
+   *          every post.
+   */
+  public QueueBookkeeping(CassandraService cass, long flushInterval) {
+    this(cass, flushInterval, true);
+  }
+
+  /**
+   * @param cass
+   * @param flushInterval
+   *          how long a node defers the newest and modified columns after
+   *          writing them, at most {@link #MAX_FLUSH_INTERVAL}. 0 writes them
+   *          on every post.
+   * @param scheduled
+   *          flush every interval, otherwise only when {@link #flush()} is
+   *          called
+   */
+  public QueueBookkeeping(CassandraService cass, long flushInterval, boolean scheduled) {
+    this.cass = cass;
+    this.flushInterval = Math.min(Math.max(flushInterval, 0), MAX_FLUSH_INTERVAL);
+
+    if ((this.flushInterval == 0) || !scheduled) {
+      flusher = null;
+      return;
+    }
+
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "queue-bookkeeping");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (Throwable t) {
+          logger.error("Unable to flush queue bookkeeping", t);
+        }
+      }
+    }, this.flushInterval, this.flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return true the first time this node posts to the queue, when the root
+   *         queue entry and created column need writing
+   */
+  public boolean register(UUID applicationId, UUID queueId) {
+    return registered.asMap().putIfAbsent(new QueueKey(applicationId, queueId), Boolean.TRUE) == null;
+  }
+
+  /**
+   * @return true if the message is older than any this node has written as
+   *         the oldest of the queue
+   */
+  public boolean isOldest(UUID applicationId, UUID queueId, UUID messageId) {
+    QueueKey key = new QueueKey(applicationId, queueId);
+    UUID current = oldest.getIfPresent(key);
+    if ((current != null) && (UUIDUtils.compare(current, messageId) <= 0)) {
+      return false;
+    }
+    oldest.put(key, messageId);
+    return true;
+  }
+
+  /**
+   * Keep the message as the newest of the queue until the next flush if this
+   * node has written a recent enough newest for it
+   * 
+   * @return true if the newest and modified columns were deferred, false if
+   *         the caller has to write them
+   */
+  public boolean deferNewest(UUID applicationId, UUID queueId, UUID messageId, long timestamp) {
+    QueueKey key = new QueueKey(applicationId, queueId);
+    long time = getTimestampInMillis(messageId);
+
+    Long last = written.getIfPresent(key);
+    if ((flushInterval == 0) || (last == null) || (last < System.currentTimeMillis() - flushInterval)) {
+      if ((last == null) || (time > last)) {
+        written.put(key, time);
+      }
+      return false;
+    }
+
+    merge(key, messageId, timestamp);
+    return true;
+  }
+
+  /**
+   * Write the deferred newest and modified columns
+   */
+  public void flush() {
+    Map<UUID, Map<QueueKey, Pending>> applications = new HashMap<UUID, Map<QueueKey, Pending>>();
+
+    for (QueueKey key : pending.keySet()) {
+      Pending p = pending.remove(key);
+      if (p == null) {
+        continue;
+      }
+      synchronized (p) {
+        p.flushed = true;
+      }
+
+      Map<QueueKey, Pending> queues = applications.get(key.applicationId);
+      if (queues == null) {
+        queues = new HashMap<QueueKey, Pending>();
+        applications.put(key.applicationId, queues);
+      }
+      queues.put(key, p);
+    }
+
+    for (Map.Entry<UUID, Map<QueueKey, Pending>> application : applications.entrySet()) {
+      Mutator<ByteBuffer> batch = createMutator(cass.getApplicationKeyspace(application.getKey()), be);
+
+      for (Map.Entry<QueueKey, Pending> queue : application.getValue().entrySet()) {
+        Pending p = queue.getValue();
+        batch.addInsertion(bytebuffer(queue.getKey().queueId), QUEUE_PROPERTIES.getColumnFamily(),
+            createColumn(QUEUE_NEWEST, p.newest, getTimestampInMicros(p.newest), se, ue));
+        batch.addInsertion(bytebuffer(queue.getKey().queueId), QUEUE_PROPERTIES.getColumnFamily(),
+            createColumn(QUEUE_MODIFIED, p.modified / 1000, p.modified, se, le));
+      }
+
+      try {
+        batchExecute(batch, RETRY_COUNT);
+      } catch (RuntimeException e) {
+        logger.error("Unable to flush queue bookkeeping of application {}, retrying on the next flush",
+            application.getKey(), e);
+        for (Map.Entry<QueueKey, Pending> queue : application.getValue().entrySet()) {
+          merge(queue.getKey(), queue.getValue().newest, queue.getValue().modified);
+        }
+        continue;
+      }
+
+      for (Map.Entry<QueueKey, Pending> queue : application.getValue().entrySet()) {
+        long time = getTimestampInMillis(queue.getValue().newest);
+        Long last = written.getIfPresent(queue.getKey());
+        if ((last == null) || (time > last)) {
+          written.put(queue.getKey(), time);
+        }
+      }
+    }
+  }
+
+  private void merge(QueueKey key, UUID newest, long modified) {
+    while (true) {
+      Pending p = pending.get(key);
+      if (p == null) {
+        p = new Pending();
+        Pending existing = pending.putIfAbsent(key, p);
+        if (existing != null) {
+          p = existing;
+        }
+      }
+      if (p.update(newest, modified)) {
+        return;
+      }
+      // flushed while we were updating it, start a new one
+      pending.remove(key, p);
+    }
+  }
+
+  public void shutdown() {
+    if (flusher != null) {
+      flusher.shutdown();
+    }
+    flush();
+  }
+
+  private static class Pending {
+    private UUID newest;
+    private long modified;
+    private boolean flushed;
+
+    synchronized boolean update(UUID messageId, long timestamp) {
+      if (flushed) {
+        return false;
+      }
+      if ((newest == null) || (UUIDUtils.compare(messageId, newest) > 0)) {
+        newest = messageId;
+      }
+      modified = Math.max(modified, timestamp);
+      return true;
+    }
+  }
+}
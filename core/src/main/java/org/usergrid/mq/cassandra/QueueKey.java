@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.mq.cassandra;
+
+import java.util.UUID;
+
+/**
+ * Identifies a queue across applications in the caches shared by every
+ * application's queue manager
+ */
+class QueueKey {
+
+  final UUID applicationId;
+  final UUID queueId;
+
+  QueueKey(UUID applicationId, UUID queueId) {
+    this.applicationId = applicationId;
+    this.queueId = queueId;
+  }
+
+  @Override
+  public int hashCode() {
+    return (31 * applicationId.hashCode()) + queueId.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof QueueKey)) {
+      return false;
+    }
+    QueueKey other = (QueueKey) obj;
+    return applicationId.equals(other.applicationId) && queueId.equals(other.queueId);
+  }
+}
@@ -29,6 +29,7 @@ import org.slf4j.LoggerFactory;
 import org.usergrid.locking.LockManager;
 import org.usergrid.mq.QueueManager;
 import org.usergrid.mq.QueueManagerFactory;
+import org.usergrid.mq.cassandra.io.ConsumerLeases;
 import org.usergrid.persistence.cassandra.CassandraService;
 import org.usergrid.persistence.cassandra.CounterUtils;
 
@@ -42,6 +43,10 @@ public class QueueManagerFactoryImpl implements QueueManagerFactory {
 	private CassandraService cass;
 	private CounterUtils counterUtils;
 	private LockManager lockManager;
+	private ConsumerLeases consumerLeases;
+	private QueueWakeups wakeups;
+	private QueueRetention retention;
+	private QueueBookkeeping bookkeeping;
 
 	public static final StringSerializer se = new StringSerializer();
 	public static final ByteBufferSerializer be = new ByteBufferSerializer();
@@ -65,6 +70,40 @@ public class QueueManagerFactoryImpl implements QueueManagerFactory {
 		this.lockManager = lockManager;
 	}
 
+	/**
+	 * @param consumerLeases
+	 *            the messages prefetched for transactional consumers
+	 */
+	public void setConsumerLeases(ConsumerLeases consumerLeases) {
+		this.consumerLeases = consumerLeases;
+	}
+
+	/**
+	 * @param wakeups
+	 *            wakes readers waiting on empty queues when messages are
+	 *            posted
+	 */
+	public void setWakeups(QueueWakeups wakeups) {
+		this.wakeups = wakeups;
+	}
+
+	/**
+	 * @param retention
+	 *            the cached retention of each queue
+	 */
+	public void setRetention(QueueRetention retention) {
+		this.retention = retention;
+	}
+
+	/**
+	 * @param bookkeeping
+	 *            coalesces the per post writes to the root queue and queue
+	 *            properties
+	 */
+	public void setBookkeeping(QueueBookkeeping bookkeeping) {
+		this.bookkeeping = bookkeeping;
+	}
+
 	@Override
 	public String getImpementationDescription() throws Exception {
 		return IMPLEMENTATION_DESCRIPTION;
@@ -73,7 +112,7 @@ public class QueueManagerFactoryImpl implements QueueManagerFactory {
 	@Override
 	public QueueManager getQueueManager(UUID applicationId) {
 	    QueueManagerImpl qm = new QueueManagerImpl();
-	    qm.init(cass, counterUtils, lockManager, applicationId);
+	    qm.init(cass, counterUtils, lockManager, consumerLeases, wakeups, retention, bookkeeping, applicationId);
 	    return qm;
 		//return applicationContext.getAutowireCapableBeanFactory()
 		//		.createBean(QueueManagerImpl.class)
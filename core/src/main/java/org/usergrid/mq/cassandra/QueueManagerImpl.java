@@ -20,9 +20,11 @@ import static me.prettyprint.hector.api.factory.HFactory.createCounterSliceQuery
 import static me.prettyprint.hector.api.factory.HFactory.createMutator;
 import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
 import static org.usergrid.mq.Queue.QUEUE_CREATED;
+import static org.usergrid.mq.Queue.QUEUE_EXPIRED;
 import static org.usergrid.mq.Queue.QUEUE_MODIFIED;
 import static org.usergrid.mq.Queue.QUEUE_NEWEST;
 import static org.usergrid.mq.Queue.QUEUE_OLDEST;
+import static org.usergrid.mq.Queue.QUEUE_RETAINED;
 import static org.usergrid.mq.Queue.getQueueId;
 import static org.usergrid.mq.Queue.normalizeQueuePath;
 import static org.usergrid.mq.QueuePosition.CONSUMER;
@@ -123,6 +125,16 @@ public class QueueManagerImpl implements QueueManager {
   public static final int QUEUE_SHARD_INTERVAL = 1000 * 60 * 60 * 24;
   public static final int INDEX_ENTRY_LIST_COUNT = 1000;
 
+  /**
+   * Subscriber queues written per mutator when fanning a message out
+   */
+  public static final int FANOUT_BATCH_SIZE = 100;
+
+  /**
+   * Shards older than the last retention pass reached dropped per pass
+   */
+  public static final int EXPIRE_SHARDS_PAGE = 365;
+
   public static final int DEFAULT_SEARCH_COUNT = 10000;
   public static final int ALL_COUNT = 100000000;
 
@@ -130,6 +142,10 @@ public class QueueManagerImpl implements QueueManager {
   private CassandraService cass;
   private CounterUtils counterUtils;
   private LockManager lockManager;
+  private ConsumerLeases consumerLeases;
+  private QueueWakeups wakeups;
+  private QueueRetention retention;
+  private QueueBookkeeping bookkeeping;
 
   public static final StringSerializer se = new StringSerializer();
   public static final ByteBufferSerializer be = new ByteBufferSerializer();
@@ -142,11 +158,15 @@ public class QueueManagerImpl implements QueueManager {
   }
 
   public QueueManagerImpl init(CassandraService cass, CounterUtils counterUtils, LockManager lockManager,
-      UUID applicationId) {
+      ConsumerLeases consumerLeases, QueueWakeups wakeups, QueueRetention retention, QueueBookkeeping bookkeeping, UUID applicationId) {
     this.cass = cass;
     this.counterUtils = counterUtils;
     this.applicationId = applicationId;
     this.lockManager = lockManager;
+    this.consumerLeases = consumerLeases;
+    this.wakeups = wakeups;
+    this.retention = retention;
+    this.bookkeeping = bookkeeping;
     return this;
   }
 
@@ -170,42 +190,137 @@ public class QueueManagerImpl implements QueueManager {
 
     message.sync();
 
-    addMessageToMutator(batch, message, timestamp);
+    int ttl = getTtl(queueId);
+
+    addMessageToMutator(batch, message, timestamp, ttl);
 
     long shard_ts = roundLong(message.getTimestamp(), QUEUE_SHARD_INTERVAL);
 
     logger.debug("Adding message with id '{}' to queue '{}'", message.getUuid(), queueId);
 
     batch.addInsertion(getQueueShardRowKey(queueId, shard_ts), QUEUE_INBOX.getColumnFamily(),
-        createColumn(message.getUuid(), ByteBuffer.allocate(0), timestamp, ue, be));
-
-    long oldest_ts = Long.MAX_VALUE - getTimestampInMicros(message.getUuid());
-    batch.addInsertion(bytebuffer(queueId), QUEUE_PROPERTIES.getColumnFamily(),
-        createColumn(QUEUE_OLDEST, message.getUuid(), oldest_ts, se, ue));
-
-    long newest_ts = getTimestampInMicros(message.getUuid());
-    batch.addInsertion(bytebuffer(queueId), QUEUE_PROPERTIES.getColumnFamily(),
-        createColumn(QUEUE_NEWEST, message.getUuid(), newest_ts, se, ue));
+        createInboxColumn(message, timestamp, ttl));
 
-    batch.addInsertion(bytebuffer(getQueueId("/")), QUEUE_SUBSCRIBERS.getColumnFamily(),
-        createColumn(queuePath, queueId, timestamp, se, ue));
+    batchUpdateQueueBounds(batch, queueId, message, timestamp);
 
-    counterUtils.batchIncrementQueueCounter(batch, getQueueId("/"), queuePath, 1L, timestamp, applicationId);
+    batchCountMessage(batch, queuePath, queueId, message, timestamp);
 
     if (indexUpdate == null) {
       indexUpdate = new MessageIndexUpdate(message);
     }
-    indexUpdate.addToMutation(batch, queueId, shard_ts, timestamp);
+    indexUpdate.addToMutation(batch, queueId, shard_ts, timestamp, ttl);
+
+    return message;
+  }
+
+  /**
+   * Register the queue under the root queue and count the message against
+   * it. The root queue entry and created column only need writing once.
+   */
+  private void batchCountMessage(Mutator<ByteBuffer> batch, String queuePath, UUID queueId, Message message,
+      long timestamp) {
+
+    if ((bookkeeping == null) || bookkeeping.register(applicationId, queueId)) {
+      batch.addInsertion(bytebuffer(getQueueId("/")), QUEUE_SUBSCRIBERS.getColumnFamily(),
+          createColumn(queuePath, queueId, timestamp, se, ue));
+
+      counterUtils.batchAddQueueCounterName(batch, getQueueId("/"), queuePath, timestamp);
+
+      batch.addInsertion(bytebuffer(queueId), QUEUE_PROPERTIES.getColumnFamily(),
+          createColumn(QUEUE_CREATED, timestamp / 1000, Long.MAX_VALUE - timestamp, se, le));
+    }
+
+    counterUtils.batchIncrementQueueCounterValue(batch, getQueueId("/"), queuePath, 1L, applicationId);
 
     counterUtils.addMessageCounterMutations(batch, applicationId, queueId, message, timestamp);
+  }
 
-    batch.addInsertion(bytebuffer(queueId), QUEUE_PROPERTIES.getColumnFamily(),
-        createColumn(QUEUE_CREATED, timestamp / 1000, Long.MAX_VALUE - timestamp, se, le));
+  /**
+   * Move the oldest and newest bounds of the queue out to the message, and
+   * stamp the queue modified. Writes this node already made, or that can wait
+   * for the next bookkeeping flush, are skipped.
+   */
+  private void batchUpdateQueueBounds(Mutator<ByteBuffer> batch, UUID queueId, Message message, long timestamp) {
 
-    batch.addInsertion(bytebuffer(queueId), QUEUE_PROPERTIES.getColumnFamily(),
-        createColumn(QUEUE_MODIFIED, timestamp / 1000, timestamp, se, le));
+    if ((bookkeeping == null) || bookkeeping.isOldest(applicationId, queueId, message.getUuid())) {
+      long oldest_ts = Long.MAX_VALUE - getTimestampInMicros(message.getUuid());
+      batch.addInsertion(bytebuffer(queueId), QUEUE_PROPERTIES.getColumnFamily(),
+          createColumn(QUEUE_OLDEST, message.getUuid(), oldest_ts, se, ue));
+    }
 
-    return message;
+    if ((bookkeeping == null) || !bookkeeping.deferNewest(applicationId, queueId, message.getUuid(), timestamp)) {
+      long newest_ts = getTimestampInMicros(message.getUuid());
+      batch.addInsertion(bytebuffer(queueId), QUEUE_PROPERTIES.getColumnFamily(),
+          createColumn(QUEUE_NEWEST, message.getUuid(), newest_ts, se, ue));
+
+      batch.addInsertion(bytebuffer(queueId), QUEUE_PROPERTIES.getColumnFamily(),
+          createColumn(QUEUE_MODIFIED, timestamp / 1000, timestamp, se, le));
+    }
+  }
+
+  /**
+   * Add a message that has already been written by a post to the publisher
+   * queue to a subscriber queue. The inbox reference, queue bounds, counters
+   * and the queue's own index entries are written, the message body was
+   * written once for the publisher.
+   * 
+   * @param batch
+   * @param queuePath
+   *          the subscriber queue
+   * @param message
+   * @param indexUpdate
+   * @param timestamp
+   * @return seconds the subscriber keeps the message for, 0 if forever
+   */
+  public int batchFanOutToQueue(Mutator<ByteBuffer> batch, String queuePath, Message message,
+      MessageIndexUpdate indexUpdate, long timestamp) {
+
+    queuePath = normalizeQueuePath(queuePath);
+    UUID queueId = getQueueId(queuePath);
+
+    int ttl = getTtl(queueId);
+
+    long shard_ts = roundLong(message.getTimestamp(), QUEUE_SHARD_INTERVAL);
+
+    batch.addInsertion(getQueueShardRowKey(queueId, shard_ts), QUEUE_INBOX.getColumnFamily(),
+        createInboxColumn(message, timestamp, ttl));
+
+    batchUpdateQueueBounds(batch, queueId, message, timestamp);
+
+    batchCountMessage(batch, queuePath, queueId, message, timestamp);
+
+    // index rows are per queue, so filtered reads of the subscriber still work
+    indexUpdate.addToMutation(batch, queueId, shard_ts, timestamp, ttl);
+
+    return ttl;
+  }
+
+  /**
+   * @return seconds the queue's messages are kept, 0 if forever
+   */
+  private int getTtl(UUID queueId) {
+    if (retention == null) {
+      return 0;
+    }
+    return retention.getTtl(applicationId, queueId);
+  }
+
+  /**
+   * @return the longer of the two ttls, where 0 is forever
+   */
+  private static int longerTtl(int ttl, int other) {
+    if ((ttl == 0) || (other == 0)) {
+      return 0;
+    }
+    return Math.max(ttl, other);
+  }
+
+  private static HColumn<UUID, ByteBuffer> createInboxColumn(Message message, long timestamp, int ttl) {
+    HColumn<UUID, ByteBuffer> column = createColumn(message.getUuid(), ByteBuffer.allocate(0), timestamp, ue, be);
+    if (ttl > 0) {
+      column.setTtl(ttl);
+    }
+    return column;
   }
 
   @Override
@@ -220,6 +335,12 @@ public class QueueManagerImpl implements QueueManager {
     batchPostToQueue(batch, queuePath, message, indexUpdate, timestamp);
 
     batchExecute(batch, RETRY_COUNT);
+    signal(queuePath);
+
+    // the body is shared with the subscribers, it has to last as long as the
+    // longest any of them keeps the message
+    int bodyTtl = getTtl(getQueueId(queuePath));
+    int longestTtl = bodyTtl;
 
     String firstSubscriberQueuePath = null;
     while (true) {
@@ -230,19 +351,34 @@ public class QueueManagerImpl implements QueueManager {
         break;
       }
 
-      batch = createMutator(cass.getApplicationKeyspace(applicationId), be);
-      for (QueueInfo q : subscribers.getQueues()) {
-        batchPostToQueue(batch, q.getPath(), message, indexUpdate, timestamp);
+      List<QueueInfo> queues = subscribers.getQueues();
+      for (int i = 0; i < queues.size(); i += FANOUT_BATCH_SIZE) {
+        List<QueueInfo> page = queues.subList(i, Math.min(i + FANOUT_BATCH_SIZE, queues.size()));
 
-        firstSubscriberQueuePath = q.getPath();
+        batch = createMutator(cass.getApplicationKeyspace(applicationId), be);
+        for (QueueInfo q : page) {
+          longestTtl = longerTtl(longestTtl, batchFanOutToQueue(batch, q.getPath(), message, indexUpdate, timestamp));
+        }
+        batchExecute(batch, RETRY_COUNT);
+
+        for (QueueInfo q : page) {
+          signal(q.getPath());
+        }
       }
-      batchExecute(batch, RETRY_COUNT);
+
+      firstSubscriberQueuePath = queues.get(queues.size() - 1).getPath();
 
       if (!subscribers.hasMore()) {
         break;
       }
     }
 
+    if (longestTtl != bodyTtl) {
+      batch = createMutator(cass.getApplicationKeyspace(applicationId), be);
+      addMessageToMutator(batch, message, cass.createTimestamp(), longestTtl);
+      batchExecute(batch, RETRY_COUNT);
+    }
+
     return message;
   }
 
@@ -259,6 +395,17 @@ public class QueueManagerImpl implements QueueManager {
     return messages;
   }
 
+  /**
+   * Wake up readers waiting for messages on the queue
+   * 
+   * @param queuePath
+   */
+  private void signal(String queuePath) {
+    if (wakeups != null) {
+      wakeups.signal(applicationId, normalizeQueuePath(queuePath));
+    }
+  }
+
   static TreeSet<UUID> add(TreeSet<UUID> a, UUID uuid, boolean reversed, int limit) {
 
     if (a == null) {
@@ -356,7 +503,7 @@ public class QueueManagerImpl implements QueueManager {
     
     else if (query.getPosition() == LAST || query.getPosition() == CONSUMER) {
       if (query.getTimeout() > 0) {
-        search = new ConsumerTransaction(applicationId, ko, lockManager, cass);
+        search = new ConsumerTransaction(applicationId, ko, lockManager, consumerLeases, cass);
       } else {
         search = new NoTransactionSearch(ko);
       }
@@ -370,7 +517,39 @@ public class QueueManagerImpl implements QueueManager {
       throw new IllegalArgumentException("You must specify a valid position or query");
     }
 
-    return search.getResults(queuePath, query);
+    // too many reads already hold their threads waiting, answer right away
+    if ((query.getWait() <= 0) || (wakeups == null) || !wakeups.startWait()) {
+      return search.getResults(queuePath, query);
+    }
+
+    try {
+      // wait for a post to the queue rather than have the client poll it
+      queuePath = normalizeQueuePath(queuePath);
+      long deadline = System.currentTimeMillis() + Math.min(query.getWait(), wakeups.getMaxWait());
+
+      // held until we're done waiting so it can't be collected in between
+      QueueWakeups.Signal signal = wakeups.getSignal(applicationId, queuePath);
+
+      while (true) {
+        long version = signal.getVersion();
+
+        QueueResults results = search.getResults(queuePath, query);
+
+        long remaining = deadline - System.currentTimeMillis();
+        if (((results.getMessages() != null) && !results.getMessages().isEmpty()) || (remaining <= 0)) {
+          return results;
+        }
+
+        try {
+          signal.await(version, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return results;
+        }
+      }
+    } finally {
+      wakeups.endWait();
+    }
   }
 
   public void batchSubscribeToQueue(Mutator<ByteBuffer> batch, String publisherQueuePath, UUID publisherQueueId,
@@ -382,6 +561,11 @@ public class QueueManagerImpl implements QueueManager {
     batch.addInsertion(bytebuffer(subscriberQueueId), QUEUE_SUBSCRIPTIONS.getColumnFamily(),
         createColumn(publisherQueuePath, publisherQueueId, timestamp, se, ue));
 
+    // fan out doesn't register the subscriber under the root queue on every
+    // message, so do it once here
+    batch.addInsertion(bytebuffer(getQueueId("/")), QUEUE_SUBSCRIBERS.getColumnFamily(),
+        createColumn(subscriberQueuePath, subscriberQueueId, timestamp, se, ue));
+
   }
 
   @Override
@@ -897,6 +1081,10 @@ public class QueueManagerImpl implements QueueManager {
 
     batchExecute(batch, RETRY_COUNT);
 
+    if (retention != null) {
+      retention.invalidate(applicationId, queue.getUuid());
+    }
+
     return queue;
   }
 
@@ -1284,7 +1472,17 @@ public class QueueManagerImpl implements QueueManager {
     //check our consumer position against the newest message.  If it's equal or larger, we're read to the end of the queue
     //note that this does not take transactions into consideration, just the client pointer relative to the largest
     //message in the queue
-    return UUIDUtils.compare(consumerPosition, bounds.getNewest() ) < 0;
+    if (UUIDUtils.compare(consumerPosition, bounds.getNewest()) < 0) {
+      return true;
+    }
+
+    //the newest message of a busy queue may not be flushed yet, look past it
+    QueueBounds readBounds = search.getReadBounds(bounds);
+    if (readBounds.getNewest().equals(bounds.getNewest())) {
+      return false;
+    }
+
+    return search.hasMessagesAfter(queueId, readBounds, consumerPosition);
 
   }
 
@@ -1292,4 +1490,102 @@ public class QueueManagerImpl implements QueueManager {
   public boolean hasPendingReads(String queuePath, UUID consumerId) {
     return hasOutstandingTransactions(queuePath, consumerId) || hasMessagesInQueue(queuePath, consumerId);
   }
+
+  @Override
+  public int expireMessages(String queuePath) {
+    queuePath = normalizeQueuePath(queuePath);
+    UUID queueId = getQueueId(queuePath);
+
+    Queue queue = getQueue(queuePath, queueId);
+    if ((queue == null) || (queue.getRetention() <= 0)) {
+      return 0;
+    }
+
+    UUID oldest = (UUID) queue.getProperties().get(QUEUE_OLDEST);
+    if (oldest == null) {
+      return 0;
+    }
+
+    // the shard holding the cutoff still has live messages, their columns
+    // expire on their own
+    long cutoff = System.currentTimeMillis() - (queue.getRetention() * 1000);
+    long end_shard = roundLong(cutoff, QUEUE_SHARD_INTERVAL);
+    long oldest_shard = roundLong(UUIDUtils.getTimestampInMillis(oldest), QUEUE_SHARD_INTERVAL);
+
+    // the shards from expired up to retained were dropped by earlier passes
+    UUID retained = (UUID) queue.getProperties().get(QUEUE_RETAINED);
+    UUID expired = (UUID) queue.getProperties().get(QUEUE_EXPIRED);
+    long retained_shard = retained != null ? UUIDUtils.getTimestampInMillis(retained) : end_shard;
+    long expired_shard = expired != null ? UUIDUtils.getTimestampInMillis(expired) : retained_shard;
+
+    Keyspace ko = cass.getApplicationKeyspace(applicationId);
+
+    List<String> indexes = new ArrayList<String>();
+    for (HColumn<String, ByteBuffer> index : cass.getColumnIterator(ko, QUEUE_DICTIONARIES,
+        key(queueId, DICTIONARY_MESSAGE_INDEXES), se, be)) {
+      indexes.add(index.getName());
+    }
+
+    long timestamp = cass.createTimestamp();
+    Mutator<ByteBuffer> batch = createMutator(ko, be);
+
+    int count = 0;
+
+    // the shards that expired since the last pass, starting at the cutoff
+    for (long shard_ts = end_shard - QUEUE_SHARD_INTERVAL; shard_ts >= retained_shard; shard_ts -= QUEUE_SHARD_INTERVAL) {
+      batchDropShard(batch, queueId, shard_ts, indexes, timestamp);
+
+      count++;
+      if ((count % FANOUT_BATCH_SIZE) == 0) {
+        batchExecute(batch, RETRY_COUNT);
+        batch = createMutator(ko, be);
+      }
+    }
+
+    // then a page of the older shards left from before the queue had a
+    // retention, the rest are left for the next passes
+    int dropped = 0;
+    while ((expired_shard > oldest_shard) && (dropped < EXPIRE_SHARDS_PAGE)) {
+      expired_shard -= QUEUE_SHARD_INTERVAL;
+      batchDropShard(batch, queueId, expired_shard, indexes, timestamp);
+
+      dropped++;
+      count++;
+      if ((count % FANOUT_BATCH_SIZE) == 0) {
+        batchExecute(batch, RETRY_COUNT);
+        batch = createMutator(ko, be);
+      }
+    }
+
+    if (count == 0) {
+      return 0;
+    }
+
+    // oldest is written so the oldest message always wins and can't be moved
+    // forward, record where the queue now starts next to it instead
+    batch.addInsertion(bytebuffer(queueId), QUEUE_PROPERTIES.getColumnFamily(),
+        createColumn(QUEUE_RETAINED, UUIDUtils.newTimeUUID(Math.max(end_shard, retained_shard), 0), timestamp, se, ue));
+
+    batch.addInsertion(bytebuffer(queueId), QUEUE_PROPERTIES.getColumnFamily(),
+        createColumn(QUEUE_EXPIRED, UUIDUtils.newTimeUUID(expired_shard, 0), timestamp, se, ue));
+
+    batchExecute(batch, RETRY_COUNT);
+
+    logger.info("Dropped {} expired shards from queue {}", count, queuePath);
+
+    return count;
+  }
+
+  /**
+   * Delete the inbox and index rows of a queue shard
+   */
+  private void batchDropShard(Mutator<ByteBuffer> batch, UUID queueId, long shard_ts, List<String> indexes,
+      long timestamp) {
+    batch.addDeletion(getQueueShardRowKey(queueId, shard_ts), QUEUE_INBOX.getColumnFamily(), null, ue, timestamp);
+
+    for (String index : indexes) {
+      batch.addDeletion(bytebuffer(key(queueId, shard_ts, index)), PROPERTY_INDEX.getColumnFamily(), null, dce,
+          timestamp);
+    }
+  }
 }
\ No newline at end of file
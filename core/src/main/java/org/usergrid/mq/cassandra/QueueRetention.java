@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.mq.cassandra;
+
+import static org.usergrid.mq.cassandra.QueuesCF.QUEUE_PROPERTIES;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import me.prettyprint.hector.api.beans.HColumn;
+
+import org.usergrid.mq.Queue;
+import org.usergrid.persistence.cassandra.CassandraService;
+import org.usergrid.utils.ConversionUtils;
+import org.usergrid.utils.JsonUtils;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Caches the retention of each queue so posts don't read the queue's
+ * properties to find out how long to keep a message. Changes made on another
+ * node are seen once the cached value expires.
+ */
+public class QueueRetention {
+
+  public static final long DEFAULT_CACHE_SECONDS = 60;
+
+  private final CassandraService cass;
+
+  private final LoadingCache<QueueKey, Integer> ttls;
+
+  public QueueRetention(CassandraService cass) {
+    this(cass, DEFAULT_CACHE_SECONDS);
+  }
+
+  public QueueRetention(CassandraService cass, long cacheSeconds) {
+    this.cass = cass;
+    ttls = CacheBuilder.newBuilder().expireAfterWrite(cacheSeconds, TimeUnit.SECONDS).maximumSize(10000)
+        .build(new CacheLoader<QueueKey, Integer>() {
+          @Override
+          public Integer load(QueueKey key) throws Exception {
+            return readTtl(key.applicationId, key.queueId);
+          }
+        });
+  }
+
+  /**
+   * @param applicationId
+   * @param queueId
+   * @return seconds messages posted to the queue live for, 0 if they are
+   *         kept forever
+   */
+  public int getTtl(UUID applicationId, UUID queueId) {
+    return ttls.getUnchecked(new QueueKey(applicationId, queueId));
+  }
+
+  /**
+   * Forget the cached retention of a queue after its properties change
+   */
+  public void invalidate(UUID applicationId, UUID queueId) {
+    ttls.invalidate(new QueueKey(applicationId, queueId));
+  }
+
+  private int readTtl(UUID applicationId, UUID queueId) throws Exception {
+    HColumn<String, ByteBuffer> column = cass.getColumn(cass.getApplicationKeyspace(applicationId),
+        QUEUE_PROPERTIES, queueId, Queue.QUEUE_RETENTION);
+    if (column == null) {
+      return 0;
+    }
+    long retention = ConversionUtils.getLong(JsonUtils.fromByteBuffer(column.getValue()));
+    return (int) Math.max(0, Math.min(retention, Integer.MAX_VALUE));
+  }
+}
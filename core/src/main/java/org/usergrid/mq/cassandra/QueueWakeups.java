@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.mq.cassandra;
+
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.ITopic;
+import com.hazelcast.core.MessageListener;
+
+/**
+ * Lets readers of an empty queue wait for the next post instead of polling.
+ * Posts signal the queue on this node, and when clustered also publish the
+ * queue on a Hazelcast topic so readers waiting on other nodes wake up too.
+ * Every signal bumps a version, a reader holds the queue's {@link Signal} and
+ * takes its version before reading, so a post landing between its read and
+ * its wait isn't missed. Each waiting read holds a request thread, so only a
+ * limited number may wait at once, reads beyond it return straight away.
+ */
+public class QueueWakeups implements MessageListener<String> {
+
+  private static final Logger logger = LoggerFactory.getLogger(QueueWakeups.class);
+
+  public static final String TOPIC = "usergrid.queue.wakeups";
+
+  /**
+   * The longest a single read may wait, in milliseconds
+   */
+  public static final long DEFAULT_MAX_WAIT = 30000;
+
+  /**
+   * The most reads that may wait at once on this node
+   */
+  public static final int DEFAULT_MAX_WAITERS = 200;
+
+  private long maxWait = DEFAULT_MAX_WAIT;
+
+  private Semaphore waiters = new Semaphore(DEFAULT_MAX_WAITERS);
+
+  private ITopic<String> topic;
+
+  // signals are only kept while someone holds them
+  private final LoadingCache<String, Signal> signals = CacheBuilder.newBuilder().weakValues()
+      .build(new CacheLoader<String, Signal>() {
+        @Override
+        public Signal load(String key) {
+          return new Signal();
+        }
+      });
+
+  public QueueWakeups() {
+  }
+
+  /**
+   * @param clustered
+   *          publish wakeups to the other nodes over Hazelcast
+   */
+  public void setClustered(boolean clustered) {
+    if (clustered && topic == null) {
+      topic = Hazelcast.getTopic(TOPIC);
+      topic.addMessageListener(this);
+    }
+  }
+
+  public void setMaxWait(long maxWait) {
+    this.maxWait = maxWait;
+  }
+
+  public long getMaxWait() {
+    return maxWait;
+  }
+
+  /**
+   * @param maxWaiters
+   *          the most reads that may wait at once on this node
+   */
+  public void setMaxWaiters(int maxWaiters) {
+    waiters = new Semaphore(maxWaiters);
+  }
+
+  /**
+   * Take a waiter's place. A reader that gets one must give it back with
+   * {@link #endWait()} when it's done waiting.
+   * 
+   * @return false if as many reads as allowed are already waiting
+   */
+  public boolean startWait() {
+    return waiters.tryAcquire();
+  }
+
+  /**
+   * Give back the place taken by {@link #startWait()}
+   */
+  public void endWait() {
+    waiters.release();
+  }
+
+  /**
+   * Get the queue's signal. Signals are only kept while someone holds them,
+   * so a reader must keep the one it took its version from until it's done
+   * waiting, or a post may signal a new one it never sees.
+   * 
+   * @param applicationId
+   * @param queuePath
+   *          normalized queue path
+   * @return the queue's signal
+   */
+  public Signal getSignal(UUID applicationId, String queuePath) {
+    return signals.getUnchecked(key(applicationId, queuePath));
+  }
+
+  /**
+   * Wake the readers waiting on the queue on every node
+   * 
+   * @param applicationId
+   * @param queuePath
+   *          normalized queue path
+   */
+  public void signal(UUID applicationId, String queuePath) {
+    String key = key(applicationId, queuePath);
+
+    signalLocal(key);
+
+    if (topic != null) {
+      try {
+        topic.publish(key);
+      } catch (RuntimeException e) {
+        // waiting readers on other nodes still time out and read again
+        logger.error("Unable to publish wakeup for queue {}", key, e);
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see com.hazelcast.core.MessageListener#onMessage(java.lang.Object)
+   */
+  @Override
+  public void onMessage(String key) {
+    signalLocal(key);
+  }
+
+  private void signalLocal(String key) {
+    Signal signal = signals.getIfPresent(key);
+    if (signal != null) {
+      signal.signal();
+    }
+  }
+
+  private static String key(UUID applicationId, String queuePath) {
+    return applicationId + ":" + queuePath;
+  }
+
+  /**
+   * Versioned wakeup of a single queue
+   */
+  public static class Signal {
+    private long version;
+
+    /**
+     * @return the current version, taken before checking the queue
+     */
+    public synchronized long getVersion() {
+      return version;
+    }
+
+    synchronized void signal() {
+      version++;
+      notifyAll();
+    }
+
+    /**
+     * Wait until the queue is signalled after the given version
+     * 
+     * @param since
+     *          the version read before checking the queue
+     * @param timeout
+     *          milliseconds to wait at most
+     * @return true if the queue was signalled
+     * @throws InterruptedException
+     */
+    public synchronized boolean await(long since, long timeout) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeout;
+      while (version == since) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        wait(remaining);
+      }
+      return true;
+    }
+  }
+}
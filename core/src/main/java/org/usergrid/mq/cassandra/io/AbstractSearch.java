@@ -21,6 +21,7 @@ import static me.prettyprint.hector.api.factory.HFactory.createMutator;
 import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
 import static org.usergrid.mq.Queue.QUEUE_NEWEST;
 import static org.usergrid.mq.Queue.QUEUE_OLDEST;
+import static org.usergrid.mq.Queue.QUEUE_RETAINED;
 import static org.usergrid.mq.cassandra.CassandraMQUtils.deserializeMessage;
 import static org.usergrid.mq.cassandra.CassandraMQUtils.getQueueShardRowKey;
 import static org.usergrid.mq.cassandra.QueueManagerImpl.ALL_COUNT;
@@ -60,6 +61,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.usergrid.mq.Message;
 import org.usergrid.mq.QueueResults;
+import org.usergrid.mq.cassandra.QueueBookkeeping;
 import org.usergrid.mq.cassandra.io.NoTransactionSearch.SearchParam;
 import org.usergrid.persistence.exceptions.QueueException;
 import org.usergrid.utils.UUIDUtils;
@@ -180,6 +182,12 @@ public abstract class AbstractSearch implements QueueSearch {
       start = params.reversed ? bounds.getNewest() : bounds.getOldest();
     }
 
+    // don't walk the expired shards from an old consumer position
+    if (!params.reversed && (start != null) && (bounds.getOldest() != null)
+        && (UUIDUtils.compare(start, bounds.getOldest()) < 0)) {
+      start = bounds.getOldest();
+    }
+
     if (start == null) {
       logger.error("No first message in queue");
       return results;
@@ -248,6 +256,36 @@ public abstract class AbstractSearch implements QueueSearch {
     return results;
   }
 
+  /**
+   * Get the bounds to read the queue with. The newest message of a queue that
+   * is being posted to may still be held by {@link QueueBookkeeping}, so while
+   * the stored newest is recent the bounds run up to now.
+   *
+   * @param queueId
+   * @return The bounds to read the queue with
+   */
+  public QueueBounds getReadBounds(UUID queueId) {
+    return getReadBounds(getQueueBounds(queueId));
+  }
+
+  /**
+   * @param bounds
+   *          the stored bounds of the queue
+   * @return The bounds to read the queue with
+   */
+  public QueueBounds getReadBounds(QueueBounds bounds) {
+    if (bounds == null) {
+      return null;
+    }
+
+    long now = System.currentTimeMillis();
+    if (getTimestampInMillis(bounds.getNewest()) < now - QueueBookkeeping.NEWEST_WINDOW) {
+      return bounds;
+    }
+
+    return new QueueBounds(bounds.getOldest(), UUIDUtils.max(bounds.getNewest(), UUIDUtils.maxTimeUUID(now)));
+  }
+
   /**
    * Get the bounds for the queue
    *
@@ -257,11 +295,19 @@ public abstract class AbstractSearch implements QueueSearch {
   public QueueBounds getQueueBounds(UUID queueId) {
     try {
       ColumnSlice<String, UUID> result = HFactory.createSliceQuery(ko, ue, se, ue).setKey(queueId)
-          .setColumnNames(QUEUE_NEWEST, QUEUE_OLDEST).setColumnFamily(QUEUE_PROPERTIES.getColumnFamily()).execute()
-          .get();
+          .setColumnNames(QUEUE_NEWEST, QUEUE_OLDEST, QUEUE_RETAINED).setColumnFamily(QUEUE_PROPERTIES.getColumnFamily())
+          .execute().get();
       if (result != null && result.getColumnByName(QUEUE_OLDEST) != null && result.getColumnByName(QUEUE_NEWEST) != null) {
-        return new QueueBounds(result.getColumnByName(QUEUE_OLDEST).getValue(), result.getColumnByName(QUEUE_NEWEST)
-            .getValue());
+        UUID oldest = result.getColumnByName(QUEUE_OLDEST).getValue();
+        UUID newest = result.getColumnByName(QUEUE_NEWEST).getValue();
+
+        // skip the shards dropped once they expired
+        HColumn<String, UUID> retained = result.getColumnByName(QUEUE_RETAINED);
+        if (retained != null) {
+          oldest = UUIDUtils.max(oldest, UUIDUtils.min(retained.getValue(), newest));
+        }
+
+        return new QueueBounds(oldest, newest);
       }
     } catch (Exception e) {
       logger.error("Error getting oldest queue message ID", e);
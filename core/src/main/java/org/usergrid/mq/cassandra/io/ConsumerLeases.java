@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.mq.cassandra.io;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.usergrid.mq.Message;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Messages a node has claimed for its consumers ahead of time. A transactional
+ * read claims a batch of messages under the consumer lock, returns what was
+ * asked for and keeps the rest here, each with the time its transaction
+ * expires. Later reads are served from here without touching the lock until
+ * the batch runs out. Messages whose transaction is about to expire are
+ * dropped, their transaction pointer delivers them again.
+ */
+public class ConsumerLeases {
+
+  /**
+   * Leases closer than this many milliseconds to expiring aren't handed out
+   */
+  public static final long RENEW_MARGIN = 1000;
+
+  public static final int DEFAULT_MAX_CONSUMERS = 10000;
+
+  private final int prefetchSize;
+
+  private final Cache<String, Buffer> buffers;
+
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * @param prefetchSize
+   *          messages claimed beyond each read, 0 disables prefetching
+   */
+  public ConsumerLeases(int prefetchSize) {
+    this(prefetchSize, DEFAULT_MAX_CONSUMERS);
+  }
+
+  /**
+   * @param prefetchSize
+   *          messages claimed beyond each read, 0 disables prefetching
+   * @param maxConsumers
+   *          the most consumers messages are kept for, the leases of evicted
+   *          consumers simply time out
+   */
+  public ConsumerLeases(int prefetchSize, int maxConsumers) {
+    this.prefetchSize = prefetchSize;
+    this.buffers = CacheBuilder.newBuilder().maximumSize(maxConsumers).build();
+    this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "consumer-leases-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  public int getPrefetchSize() {
+    return prefetchSize;
+  }
+
+  /**
+   * Get the buffer of a consumer, creating it if needed
+   * 
+   * @param applicationId
+   * @param queueId
+   * @param consumerId
+   * @return
+   */
+  public Buffer getBuffer(UUID applicationId, UUID queueId, UUID consumerId) {
+    try {
+      return buffers.get(applicationId + "/" + queueId + "/" + consumerId, new Callable<Buffer>() {
+        @Override
+        public Buffer call() {
+          return new Buffer();
+        }
+      });
+    } catch (ExecutionException e) {
+      // creating a buffer can't fail
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Run a lease write in the background
+   * 
+   * @param task
+   */
+  public void execute(Runnable task) {
+    executor.execute(task);
+  }
+
+  /**
+   * Number of lease writes waiting to run
+   * 
+   * @return
+   */
+  public int getPendingWrites() {
+    return executor.getQueue().size();
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * A message and the time its transaction expires
+   */
+  public static class Lease {
+    private final Message message;
+    private final long expiration;
+
+    public Lease(Message message, long expiration) {
+      this.message = message;
+      this.expiration = expiration;
+    }
+
+    public Message getMessage() {
+      return message;
+    }
+
+    public long getExpiration() {
+      return expiration;
+    }
+  }
+
+  /**
+   * The leased messages of a single consumer, in queue order
+   */
+  public static class Buffer {
+    private final Deque<Lease> leases = new ArrayDeque<Lease>();
+
+    /**
+     * Take up to count leases, dropping any that expire before the given time
+     * 
+     * @param count
+     * @param minExpiration
+     * @return
+     */
+    public synchronized List<Lease> take(int count, long minExpiration) {
+      List<Lease> taken = new ArrayList<Lease>(Math.min(count, leases.size()));
+      while (taken.size() < count && !leases.isEmpty()) {
+        Lease lease = leases.poll();
+        if (lease.getExpiration() >= minExpiration) {
+          taken.add(lease);
+        }
+      }
+      return taken;
+    }
+
+    public synchronized void add(List<Lease> added) {
+      leases.addAll(added);
+    }
+
+    public synchronized int size() {
+      return leases.size();
+    }
+  }
+}
@@ -58,6 +58,7 @@ public class ConsumerTransaction extends NoTransactionSearch {
   private static final Logger logger = LoggerFactory.getLogger(ConsumerTransaction.class);
   private static final int MAX_READ = 10000;
   private LockManager lockManager;
+  private ConsumerLeases leases;
   private UUID applicationId;
   protected CassandraService cass;
 
@@ -65,9 +66,24 @@ public class ConsumerTransaction extends NoTransactionSearch {
    * @param ko
    */
   public ConsumerTransaction(UUID applicationId, Keyspace ko, LockManager lockManager, CassandraService cass) {
+    this(applicationId, ko, lockManager, null, cass);
+  }
+
+  /**
+   * @param applicationId
+   * @param ko
+   * @param lockManager
+   * @param leases
+   *          the messages prefetched for consumers on this node, null to read
+   *          every request under the lock
+   * @param cass
+   */
+  public ConsumerTransaction(UUID applicationId, Keyspace ko, LockManager lockManager, ConsumerLeases leases,
+      CassandraService cass) {
     super(ko);
     this.applicationId = applicationId;
     this.lockManager = lockManager;
+    this.leases = leases;
     this.cass = cass;
   }
 
@@ -185,7 +201,126 @@ public class ConsumerTransaction extends NoTransactionSearch {
           query.getLimit(DEFAULT_READ), MAX_READ));
     }
 
-    QueueResults results = null;
+    if (leases != null && leases.getPrefetchSize() > 0) {
+      return getLeasedResults(queuePath, queueId, consumerId, query);
+    }
+
+    List<Message> messages = claimMessages(queuePath, queueId, consumerId, query, query.getLimit(DEFAULT_READ),
+        System.currentTimeMillis());
+
+    return createResults(messages, queuePath, queueId, consumerId);
+  }
+
+  /**
+   * Serve the read from the messages this node already leased for the
+   * consumer, only taking the lock to claim another batch once they run out.
+   * Leases handed out are extended to the requested timeout in the
+   * background.
+   * 
+   * @param queuePath
+   * @param queueId
+   * @param consumerId
+   * @param query
+   * @return
+   */
+  protected QueueResults getLeasedResults(String queuePath, UUID queueId, UUID consumerId, QueueQuery query) {
+
+    long now = System.currentTimeMillis();
+    int limit = query.getLimit(DEFAULT_READ);
+
+    ConsumerLeases.Buffer buffer = leases.getBuffer(applicationId, queueId, consumerId);
+
+    List<ConsumerLeases.Lease> taken = buffer.take(limit, now + ConsumerLeases.RENEW_MARGIN);
+
+    List<Message> messages = new ArrayList<Message>(limit);
+
+    if (!taken.isEmpty()) {
+      renewLeases(taken, now + query.getTimeout(), queueId, consumerId);
+
+      for (ConsumerLeases.Lease lease : taken) {
+        messages.add(lease.getMessage());
+      }
+    }
+
+    int needed = limit - messages.size();
+
+    if (needed > 0) {
+      long startTime = System.currentTimeMillis();
+      int claim = Math.min(needed + leases.getPrefetchSize(), MAX_READ);
+
+      List<Message> claimed = claimMessages(queuePath, queueId, consumerId, query, claim, startTime);
+
+      int returned = Math.min(needed, claimed.size());
+      messages.addAll(claimed.subList(0, returned));
+
+      List<ConsumerLeases.Lease> prefetched = new ArrayList<ConsumerLeases.Lease>(claimed.size() - returned);
+      for (Message message : claimed.subList(returned, claimed.size())) {
+        prefetched.add(new ConsumerLeases.Lease(message, startTime + query.getTimeout()));
+      }
+      buffer.add(prefetched);
+    }
+
+    return createResults(messages, queuePath, queueId, consumerId);
+  }
+
+  /**
+   * Move the transactions of the leases to the new timeout. The new
+   * transaction ids are set on the messages right away and written in the
+   * background, if the write is lost the old transaction times out and the
+   * message is delivered again.
+   * 
+   * @param taken
+   * @param futureTimeout
+   * @param queueId
+   * @param consumerId
+   */
+  protected void renewLeases(List<ConsumerLeases.Lease> taken, long futureTimeout, UUID queueId, UUID consumerId) {
+
+    final Mutator<ByteBuffer> mutator = createMutator(ko, be);
+    ByteBuffer key = getQueueClientTransactionKey(queueId, consumerId);
+
+    long time = cass.createTimestamp();
+    int counter = 0;
+
+    for (ConsumerLeases.Lease lease : taken) {
+      Message message = lease.getMessage();
+      UUID expirationId = UUIDUtils.newTimeUUID(futureTimeout, counter++);
+
+      mutator.addInsertion(key, CONSUMER_QUEUE_TIMEOUTS.getColumnFamily(),
+          createColumn(expirationId, message.getUuid(), time, ue, ue));
+      mutator.addDeletion(key, CONSUMER_QUEUE_TIMEOUTS.getColumnFamily(), message.getTransaction(), ue, time);
+
+      message.setTransaction(expirationId);
+    }
+
+    leases.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mutator.execute();
+        } catch (Exception e) {
+          logger.error("Unable to renew leased transactions", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Read the next messages for the consumer and start a transaction for each
+   * of them. Holds the consumer lock for the whole read.
+   * 
+   * @param queuePath
+   * @param queueId
+   * @param consumerId
+   * @param query
+   * @param limit
+   *          the most messages to claim
+   * @param startTime
+   *          the time the transactions start at
+   * @return the claimed messages
+   */
+  protected List<Message> claimMessages(String queuePath, UUID queueId, UUID consumerId, QueueQuery query,
+      int limit, long startTime) {
 
     Lock lock = lockManager.createLock(applicationId, queueId.toString(), consumerId.toString());
 
@@ -193,15 +328,13 @@ public class ConsumerTransaction extends NoTransactionSearch {
 
       lock.lock();
 
-      long startTime = System.currentTimeMillis();
-
       UUID startTimeUUID = UUIDUtils.newTimeUUID(startTime, 0);
 
       QueueBounds bounds = getQueueBounds(queueId);
       
       //queue has never been written to
       if(bounds == null){
-        return createResults(new ArrayList<Message>(0), queuePath, queueId, consumerId);
+        return new ArrayList<Message>(0);
       }
 
       // with transactional reads, we can't read into the future, set the bounds
@@ -209,6 +342,7 @@ public class ConsumerTransaction extends NoTransactionSearch {
       bounds = new QueueBounds(bounds.getOldest(), startTimeUUID);
 
       SearchParam params = getParams(queueId, consumerId, query);
+      params = new SearchParam(params.startId, params.reversed, params.skipFirst, limit);
 
       List<UUID> ids = getQueueRange(queueId, bounds, params);
 
@@ -256,9 +390,6 @@ public class ConsumerTransaction extends NoTransactionSearch {
       // remove all read transaction pointers
       deleteTransactionPointers(pointers, lastTransactionIndex + 1, queueId, consumerId);
 
-      // return the results
-      results = createResults(messages, queuePath, queueId, consumerId);
-
       UUID lastReadTransactionPointer = lastTransactionIndex == -1 ? null
           : pointers.get(lastTransactionIndex).expiration;
 
@@ -271,6 +402,8 @@ public class ConsumerTransaction extends NoTransactionSearch {
 
       writeClientPointer(queueId, consumerId, lastReadId);
 
+      return messages;
+
     } catch (UGLockException e) {
       logger.error("Unable to acquire lock", e);
       throw new QueueException("Unable to acquire lock", e);
@@ -283,8 +416,6 @@ public class ConsumerTransaction extends NoTransactionSearch {
       }
     }
 
-    return results;
-
   }
 
   /**
@@ -83,7 +83,7 @@ public class FilterSearch extends NoTransactionSearch {
 
     UUID queueId = getQueueId(queuePath);
     UUID consumerId = getConsumerId(queueId, query);
-    QueueBounds bounds = getQueueBounds(queueId);
+    QueueBounds bounds = getReadBounds(queueId);
 
     UUIDComparator comparator = query.isReversed() ? new ReverseUUIDComparator() : new UUIDComparator();
 
@@ -60,7 +60,7 @@ public class NoTransactionSearch extends AbstractSearch {
 
     UUID queueId = getQueueId(queuePath);
     UUID consumerId = getConsumerId(queueId, query);
-    QueueBounds bounds = getQueueBounds(queueId);
+    QueueBounds bounds = getReadBounds(queueId);
     SearchParam params =  getParams(queueId, consumerId, query);
 
     List<UUID> ids = getIds(queueId, consumerId, bounds, params);
@@ -107,6 +107,18 @@ public class NoTransactionSearch extends AbstractSearch {
     return getQueueRange(queueId, bounds, params);
   }
 
+  /**
+   * @param queueId
+   * @param bounds
+   *          the bounds to read with
+   * @param position
+   *          the last message read
+   * @return true if the queue has a message after the position
+   */
+  public boolean hasMessagesAfter(UUID queueId, QueueBounds bounds, UUID position) {
+    return !getQueueRange(queueId, bounds, new SearchParam(position, false, true, 1)).isEmpty();
+  }
+
   protected static class SearchParam {
 
     /**
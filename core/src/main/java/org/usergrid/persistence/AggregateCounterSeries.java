@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * A read only list of aggregate counters backed by primitive arrays. Padded
+ * series only store their values, the timestamps are derived from the start
+ * time and the resolution interval. {@link AggregateCounter} instances are
+ * only created as the list is read.
+ */
+public class AggregateCounterSeries extends AbstractList<AggregateCounter> {
+
+	public static final AggregateCounterSeries EMPTY = new AggregateCounterSeries(
+			new long[0], new long[0]);
+
+	private final long[] timestamps;
+	private final long[] values;
+	private final long start;
+	private final long interval;
+
+	/**
+	 * Create a sparse series. Timestamps must be in ascending order
+	 *
+	 * @param timestamps
+	 * @param values
+	 */
+	public AggregateCounterSeries(long[] timestamps, long[] values) {
+		if (timestamps.length != values.length) {
+			throw new IllegalArgumentException(
+					"Timestamps and values must be the same length");
+		}
+		this.timestamps = timestamps;
+		this.values = values;
+		this.start = 0;
+		this.interval = 0;
+	}
+
+	private AggregateCounterSeries(long start, long interval, long[] values) {
+		this.timestamps = null;
+		this.values = values;
+		this.start = start;
+		this.interval = interval;
+	}
+
+	@Override
+	public AggregateCounter get(int index) {
+		return new AggregateCounter(getTimestamp(index), getValue(index));
+	}
+
+	@Override
+	public int size() {
+		return values.length;
+	}
+
+	public long getTimestamp(int index) {
+		if (timestamps != null) {
+			return timestamps[index];
+		}
+		if ((index < 0) || (index >= values.length)) {
+			throw new IndexOutOfBoundsException("Invalid index " + index);
+		}
+		return start + (index * interval);
+	}
+
+	public long getValue(int index) {
+		return values[index];
+	}
+
+	/**
+	 * @param timestamp
+	 * @return the index of the first counter at or after the timestamp
+	 */
+	public int indexOf(long timestamp) {
+		if (timestamps == null) {
+			if (timestamp <= start) {
+				return 0;
+			}
+			return (int) Math.min(values.length,
+					(timestamp - start + interval - 1) / interval);
+		}
+		int index = Arrays.binarySearch(timestamps, timestamp);
+		return index < 0 ? -(index + 1) : index;
+	}
+
+	/**
+	 * @param from
+	 *            first timestamp, inclusive
+	 * @param to
+	 *            last timestamp, exclusive
+	 * @return the counters between the two times as a sparse series
+	 */
+	public AggregateCounterSeries range(long from, long to) {
+		int first = indexOf(from);
+		int last = indexOf(to);
+		if (first >= last) {
+			return EMPTY;
+		}
+		long[] t = new long[last - first];
+		for (int i = 0; i < t.length; i++) {
+			t[i] = getTimestamp(first + i);
+		}
+		return new AggregateCounterSeries(t, Arrays.copyOfRange(values, first,
+				last));
+	}
+
+	/**
+	 * @param next
+	 *            counters that all come after the last counter of this series
+	 * @return a sparse series of both
+	 */
+	public AggregateCounterSeries append(AggregateCounterSeries next) {
+		if (next.size() == 0) {
+			return this;
+		}
+		if (size() == 0) {
+			return next;
+		}
+		int size = size() + next.size();
+		long[] t = new long[size];
+		long[] v = new long[size];
+		for (int i = 0; i < size; i++) {
+			AggregateCounterSeries s = i < size() ? this : next;
+			int j = i < size() ? i : i - size();
+			t[i] = s.getTimestamp(j);
+			v[i] = s.getValue(j);
+		}
+		return new AggregateCounterSeries(t, v);
+	}
+
+	/**
+	 * Fill in a zero for every empty bucket of the resolution between start
+	 * and finish
+	 *
+	 * @param resolution
+	 * @param start
+	 *            rounded start time
+	 * @param finish
+	 *            rounded finish time, inclusive
+	 * @return an evenly spaced series
+	 */
+	public AggregateCounterSeries pad(CounterResolution resolution, long start,
+			long finish) {
+		long interval = resolution.interval();
+		if ((interval == 0) || (finish < start)) {
+			return this;
+		}
+		long[] padded = new long[(int) ((finish - start) / interval) + 1];
+		for (int i = 0; i < values.length; i++) {
+			long timestamp = getTimestamp(i);
+			if ((timestamp < start) || (timestamp > finish)) {
+				continue;
+			}
+			padded[(int) ((timestamp - start) / interval)] += values[i];
+		}
+		return new AggregateCounterSeries(start, interval, padded);
+	}
+
+}
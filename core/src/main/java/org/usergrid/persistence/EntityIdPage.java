@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A page of entity ids kept as primitive arrays. A page can be reused for
+ * every page of a scan so walking a large set of ids only ever holds one
+ * page in memory. The cursor, when set, continues the scan after the last id
+ * of the page.
+ */
+public class EntityIdPage {
+
+	private long[] mostSigBits;
+	private long[] leastSigBits;
+	private int size;
+	private String cursor;
+
+	public EntityIdPage() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of ids the page holds before growing
+	 */
+	public EntityIdPage(int capacity) {
+		mostSigBits = new long[Math.max(capacity, 1)];
+		leastSigBits = new long[mostSigBits.length];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public UUID getId(int index) {
+		if ((index < 0) || (index >= size)) {
+			throw new IndexOutOfBoundsException("Invalid index " + index);
+		}
+		return new UUID(mostSigBits[index], leastSigBits[index]);
+	}
+
+	/**
+	 * @return a copy of the ids as a list
+	 */
+	public List<UUID> getIds() {
+		List<UUID> ids = new ArrayList<UUID>(size);
+		for (int i = 0; i < size; i++) {
+			ids.add(new UUID(mostSigBits[i], leastSigBits[i]));
+		}
+		return ids;
+	}
+
+	/**
+	 * @param entityType
+	 * @return a copy of the ids as refs of the entity type
+	 */
+	public List<EntityRef> getRefs(String entityType) {
+		List<EntityRef> refs = new ArrayList<EntityRef>(size);
+		for (int i = 0; i < size; i++) {
+			refs.add(new SimpleEntityRef(entityType, new UUID(mostSigBits[i],
+					leastSigBits[i])));
+		}
+		return refs;
+	}
+
+	public void add(UUID id) {
+		if (size == mostSigBits.length) {
+			mostSigBits = Arrays.copyOf(mostSigBits, size * 2);
+			leastSigBits = Arrays.copyOf(leastSigBits, size * 2);
+		}
+		mostSigBits[size] = id.getMostSignificantBits();
+		leastSigBits[size] = id.getLeastSignificantBits();
+		size++;
+	}
+
+	/**
+	 * Empty the page so it can be filled again, keeping its arrays
+	 */
+	public void clear() {
+		size = 0;
+		cursor = null;
+	}
+
+	/**
+	 * @return the cursor to read the next page with, or null if this is the
+	 *         last page
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+
+	public boolean hasCursor() {
+		return cursor != null;
+	}
+
+}
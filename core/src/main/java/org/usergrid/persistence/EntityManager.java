@@ -56,6 +56,15 @@ public interface EntityManager {
      */
     public Set<String> getApplicationCollections() throws Exception;
 
+    /**
+     * Recount the collections whose size was read before they were ever
+     * reconciled, see {@link RelationManager#getCollectionSize(String)}
+     * 
+     * @return the number of collections recounted
+     * @throws Exception
+     */
+    public int reconcileCollectionSizes() throws Exception;
+
     public Map<String, Object> getApplicationCollectionMetadata()
             throws Exception;
 
@@ -665,6 +674,29 @@ public interface EntityManager {
             String connectedEntityType, Results.Level resultsLevel)
             throws Exception;
 
+    /**
+     * Gets a page of the ids of the entities connecting to the specified
+     * entity, read straight from the connection index. Use the cursor of each
+     * page to walk large sets of connections a page at a time.
+     * 
+     * @param entityId
+     *            an entity reference
+     * @param connectionType
+     *            type of connection.
+     * @param connectingEntityType
+     *            type of entity or null.
+     * @param cursor
+     *            cursor of the previous page or null.
+     * @param count
+     *            the most ids to return.
+     * @return the page of ids, with a cursor if there are more.
+     * @throws Exception
+     *             the exception
+     */
+    public EntityIdPage getConnectingEntityIds(UUID entityId,
+            String connectionType, String connectingEntityType,
+            String cursor, int count) throws Exception;
+
     public List<ConnectedEntityRef> getConnections(UUID entityId, Query query)
             throws Exception;
 
@@ -792,6 +824,17 @@ public interface EntityManager {
 
     public Set<String> getRolePermissions(String roleName) throws Exception;
 
+    /**
+     * Permissions of several roles read in a single round trip, keyed by the
+     * lower cased role name. Roles without permissions map to an empty set.
+     * 
+     * @param roleNames
+     * @return
+     * @throws Exception
+     */
+    public Map<String, Set<String>> getRolesPermissions(Set<String> roleNames)
+            throws Exception;
+
     public void deleteRole(String roleName) throws Exception;
 
     // Group roles
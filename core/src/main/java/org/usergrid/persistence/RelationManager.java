@@ -115,6 +115,25 @@ public interface RelationManager {
 			String connectedEntityType, Results.Level resultsLevel)
 			throws Exception;
 
+	/**
+	 * Gets a page of the ids of the entities connecting to this one, without
+	 * loading connections or entities.
+	 * 
+	 * @param connectionType
+	 *            type of connection
+	 * @param connectingEntityType
+	 *            type of entity or null.
+	 * @param cursor
+	 *            cursor of the previous page or null.
+	 * @param count
+	 *            the most ids to return.
+	 * @return the page of ids, with a cursor if there are more.
+	 * @throws Exception
+	 */
+	public EntityIdPage getConnectingEntityIds(String connectionType,
+			String connectingEntityType, String cursor, int count)
+			throws Exception;
+
 	public List<ConnectedEntityRef> getConnections(Query query)
 			throws Exception;
 
@@ -140,7 +159,26 @@ public interface RelationManager {
 	public void setAssociatedProperty(AssociatedEntityRef associatedEntityRef,
 			String propertyName, Object propertyValue) throws Exception;
 
+	/**
+	 * Read the size counter of a collection. Adds and removes aren't checked
+	 * against the current members, so the counter is only exact once the
+	 * collection has been reconciled. A collection that never was is queued
+	 * for {@link EntityManager#reconcileCollectionSizes()}
+	 * 
+	 * @param collectionName
+	 * @return the counted size
+	 * @throws Exception
+	 */
 	public long getCollectionSize(String collectionName) throws Exception;
 
+	/**
+	 * Recount the members of a collection and correct its size counter
+	 * 
+	 * @param collectionName
+	 * @return the number of members counted
+	 * @throws Exception
+	 */
+	public long reconcileCollectionSize(String collectionName) throws Exception;
+
 
 }
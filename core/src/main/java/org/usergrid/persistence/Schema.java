@@ -156,6 +156,8 @@ public class Schema {
     public static final String DICTIONARY_PERMISSIONS = "permissions";
     public static final String DICTIONARY_ID_SETS = "id_sets";
     public static final String DICTIONARY_COUNTERS = "counters";
+    public static final String DICTIONARY_COLLECTION_SIZES = "collection_sizes";
+    public static final String DICTIONARY_UNRECONCILED_COLLECTIONS = "unreconciled_collections";
     public static final String DICTIONARY_GEOCELL = "geocell";
 
     private static List<String> entitiesPackage = new ArrayList<String>();
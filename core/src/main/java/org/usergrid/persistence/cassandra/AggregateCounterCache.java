@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import me.prettyprint.hector.api.beans.HCounterColumn;
+
+import org.usergrid.persistence.AggregateCounterSeries;
+import org.usergrid.persistence.CounterResolution;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches the completed buckets of aggregate counter rows. A bucket is complete
+ * once it ended more than the settle time ago, after which only late events can
+ * change it. Queries are answered from the cached buckets and only the buckets
+ * after them are read from Cassandra. Entries expire so late events eventually
+ * show up.
+ */
+public class AggregateCounterCache {
+
+  /**
+   * Loads the counter columns of rows from Cassandra
+   */
+  public interface Loader {
+
+    /**
+     * @param rows
+     *          row keys to load
+     * @param start
+     *          first column, inclusive
+     * @param finish
+     *          last column, inclusive
+     * @return the columns of each row
+     * @throws IncompleteLoadException
+     *           if only some of the counts could be read
+     * @throws Exception
+     */
+    Map<String, List<HCounterColumn<Long>>> load(Collection<String> rows, long start, long finish)
+        throws Exception;
+  }
+
+  /**
+   * Thrown by a {@link Loader} that could only read some of the counts, the
+   * ones it has are returned but not cached
+   */
+  public static class IncompleteLoadException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, List<HCounterColumn<Long>>> columns;
+
+    public IncompleteLoadException(Map<String, List<HCounterColumn<Long>>> columns, Throwable cause) {
+      super(cause);
+      this.columns = columns;
+    }
+
+    public Map<String, List<HCounterColumn<Long>>> getColumns() {
+      return columns;
+    }
+  }
+
+  public static final int DEFAULT_MAX_SIZE = 10000;
+  public static final long DEFAULT_EXPIRATION = 10 * 60 * 1000;
+  public static final int DEFAULT_MAX_BUCKETS = 1000;
+
+  private final CounterUtils counterUtils;
+
+  private int maxBuckets = DEFAULT_MAX_BUCKETS;
+
+  private Cache<String, CachedRow> cache;
+
+  public AggregateCounterCache(CounterUtils counterUtils) {
+    this(counterUtils, DEFAULT_MAX_SIZE, DEFAULT_EXPIRATION);
+  }
+
+  /**
+   * @param counterUtils
+   * @param maxSize
+   *          max number of rows to cache, 0 disables the cache
+   * @param expiration
+   *          milliseconds a row is cached for
+   */
+  public AggregateCounterCache(CounterUtils counterUtils, int maxSize, long expiration) {
+    this.counterUtils = counterUtils;
+    this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(expiration, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * @param maxBuckets
+   *          the most buckets cached for a single row
+   */
+  public void setMaxBuckets(int maxBuckets) {
+    this.maxBuckets = maxBuckets;
+  }
+
+  /**
+   * Get the counters of the rows between start and finish, reading only the
+   * buckets which aren't cached
+   *
+   * @param applicationId
+   * @param resolution
+   * @param rows
+   * @param start
+   *          rounded start time
+   * @param finish
+   *          rounded finish time, inclusive
+   * @param loader
+   * @return the sparse counter series of every row
+   * @throws Exception
+   */
+  public Map<String, AggregateCounterSeries> get(UUID applicationId, CounterResolution resolution,
+      Collection<String> rows, long start, long finish, Loader loader) throws Exception {
+
+    // buckets starting before this are complete
+    long completed = resolution.round(System.currentTimeMillis() - (2 * counterUtils.getRollupDelay()));
+    boolean cacheable = resolution != CounterResolution.ALL;
+
+    Map<String, AggregateCounterSeries> results = new LinkedHashMap<String, AggregateCounterSeries>();
+    Map<Long, List<String>> reads = new TreeMap<Long, List<String>>();
+    Map<String, CachedRow> hits = new LinkedHashMap<String, CachedRow>();
+
+    for (String row : rows) {
+      CachedRow cached = cacheable ? cache.getIfPresent(key(applicationId, row)) : null;
+      long from = start;
+
+      if (cached != null && cached.start <= start && cached.end > start) {
+        hits.put(row, cached);
+        from = cached.end;
+      }
+
+      results.put(row, AggregateCounterSeries.EMPTY);
+
+      if (from > finish) {
+        continue;
+      }
+
+      List<String> read = reads.get(from);
+      if (read == null) {
+        read = new ArrayList<String>();
+        reads.put(from, read);
+      }
+      read.add(row);
+    }
+
+    Map<String, AggregateCounterSeries> loaded = new LinkedHashMap<String, AggregateCounterSeries>();
+    for (Entry<Long, List<String>> read : reads.entrySet()) {
+      Map<String, List<HCounterColumn<Long>>> columns;
+      try {
+        columns = loader.load(read.getValue(), read.getKey(), finish);
+      } catch (IncompleteLoadException e) {
+        columns = e.getColumns();
+        cacheable = false;
+      }
+      for (Entry<String, List<HCounterColumn<Long>>> row : columns.entrySet()) {
+        loaded.put(row.getKey(), toSeries(row.getValue()));
+      }
+    }
+
+    for (String row : rows) {
+      CachedRow cached = hits.get(row);
+      AggregateCounterSeries series = loaded.containsKey(row) ? loaded.get(row) : AggregateCounterSeries.EMPTY;
+
+      if (cached != null) {
+        series = cached.series.range(start, finish + 1).append(series);
+      }
+
+      results.put(row, series);
+
+      if (!cacheable) {
+        continue;
+      }
+
+      // cache everything we know about the completed buckets
+      long cachedStart = cached != null ? cached.start : start;
+      long cachedEnd = Math.min(completed, finish + 1);
+
+      if (cachedEnd <= cachedStart || (cached != null && cachedEnd <= cached.end)) {
+        continue;
+      }
+
+      if ((cachedEnd - cachedStart) / resolution.interval() > maxBuckets) {
+        continue;
+      }
+
+      AggregateCounterSeries complete = cached != null ? cached.series.append(series.range(cached.end, cachedEnd))
+          : series.range(start, cachedEnd);
+
+      cache.put(key(applicationId, row), new CachedRow(cachedStart, cachedEnd, complete));
+    }
+
+    return results;
+  }
+
+  /**
+   * Drop every cached row
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  private static String key(UUID applicationId, String row) {
+    return applicationId + "/" + row;
+  }
+
+  private static AggregateCounterSeries toSeries(List<HCounterColumn<Long>> columns) {
+    if (columns == null || columns.isEmpty()) {
+      return AggregateCounterSeries.EMPTY;
+    }
+
+    long[] timestamps = new long[columns.size()];
+    long[] values = new long[columns.size()];
+
+    for (int i = 0; i < timestamps.length; i++) {
+      HCounterColumn<Long> column = columns.get(i);
+      timestamps[i] = column.getName();
+      values[i] = column.getValue();
+    }
+
+    return new AggregateCounterSeries(timestamps, values);
+  }
+
+  /**
+   * The counters of a row between start (inclusive) and end (exclusive)
+   */
+  private static class CachedRow {
+    private final long start;
+    private final long end;
+    private final AggregateCounterSeries series;
+
+    private CachedRow(long start, long end, AggregateCounterSeries series) {
+      this.start = start;
+      this.end = end;
+      this.series = series;
+    }
+  }
+}
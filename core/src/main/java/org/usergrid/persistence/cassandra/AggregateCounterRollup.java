@@ -0,0 +1,490 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createCounterColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createCounterSliceQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceCounterQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static org.usergrid.persistence.cassandra.ApplicationCF.APPLICATION_AGGREGATE_COUNTERS;
+import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COMPOSITE_DICTIONARIES;
+import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_DICTIONARIES;
+import static org.usergrid.persistence.cassandra.CassandraPersistenceUtils.addDeleteToMutator;
+import static org.usergrid.persistence.cassandra.CassandraPersistenceUtils.addInsertToMutator;
+import static org.usergrid.persistence.cassandra.CassandraPersistenceUtils.batchExecute;
+import static org.usergrid.persistence.cassandra.CassandraPersistenceUtils.key;
+import static org.usergrid.persistence.cassandra.CassandraService.RETRY_COUNT;
+import static org.usergrid.persistence.cassandra.CounterUtils.DICTIONARY_COUNTER_ROLLUPS;
+import static org.usergrid.persistence.cassandra.CounterUtils.ROLLUP_SOURCE;
+import static org.usergrid.persistence.cassandra.CounterUtils.getRolledUpRow;
+import static org.usergrid.utils.ConversionUtils.bytebuffer;
+import static org.usergrid.utils.ConversionUtils.getLong;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
+import me.prettyprint.cassandra.serializers.LongSerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.CounterRow;
+import me.prettyprint.hector.api.beans.CounterRows;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.HCounterColumn;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.MultigetSliceCounterQuery;
+import me.prettyprint.hector.api.query.SliceCounterQuery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.usergrid.persistence.CounterResolution;
+
+/**
+ * Produces the coarse aggregate counter resolutions from the
+ * {@link CounterUtils#ROLLUP_SOURCE} rows when {@link CounterUtils#isRollup()}
+ * is enabled.
+ *
+ * Writers leave a marker of (hour, source row) for every row they touch. A
+ * rollup pass goes through the markers of every hour that is closed for writes
+ * in order. For each row it records what it is about to roll up in a
+ * checkpoint, adds what the source columns gained since the previous
+ * checkpoint to the coarser rows and removes the marker. Late events mark their
+ * hour again, and the next pass adds just their counts. As the checkpoint is
+ * written first, a pass that fails part way can lose a row's increment but
+ * never counts it twice.
+ *
+ * The application's watermark is advanced up to the first hour that still has
+ * a marker waiting. Readers use the rolled rows before the watermark and
+ * aggregate the raw source columns after it, so a rollup job that is behind
+ * doesn't hide recent counts. Late events in hours before the watermark only
+ * show up once a pass has rolled them up.
+ */
+public class AggregateCounterRollup {
+
+  private static final Logger logger = LoggerFactory.getLogger(AggregateCounterRollup.class);
+
+  private static final String WATERMARK = "watermark";
+
+  private static final String CHECKPOINTS = "checkpoints";
+
+  private static final int PAGE_SIZE = 1000;
+
+  /** Source columns read per row and query when merging */
+  static final int SOURCE_PAGE_SIZE = 10000;
+
+  public static final StringSerializer se = new StringSerializer();
+  public static final ByteBufferSerializer be = new ByteBufferSerializer();
+  public static final LongSerializer le = new LongSerializer();
+
+  private final CassandraService cass;
+  private final CounterUtils counterUtils;
+
+  public AggregateCounterRollup(CassandraService cass, CounterUtils counterUtils) {
+    this.cass = cass;
+    this.counterUtils = counterUtils;
+  }
+
+  /**
+   * Get the time before which every hour of the application has been rolled
+   * up. 0 if no pass has completed
+   *
+   * @param applicationId
+   * @return
+   * @throws Exception
+   */
+  public long getWatermark(UUID applicationId) throws Exception {
+    HColumn<String, ByteBuffer> column = cass.getColumn(cass.getApplicationKeyspace(applicationId),
+        ENTITY_DICTIONARIES, key(applicationId, DICTIONARY_COUNTER_ROLLUPS), WATERMARK);
+
+    if (column == null) {
+      return 0;
+    }
+
+    return getLong(column.getValue());
+  }
+
+  /**
+   * Roll up every closed hour for the application and advance its watermark
+   *
+   * @param applicationId
+   * @return the number of source rows rolled up
+   * @throws Exception
+   */
+  public int rollup(UUID applicationId) throws Exception {
+    Keyspace ko = cass.getApplicationKeyspace(applicationId);
+    Object markerKey = key(applicationId, DICTIONARY_COUNTER_ROLLUPS);
+
+    // twice the delay so batched counts still in flight for the hour have landed
+    long target = CounterResolution.HOUR.round(System.currentTimeMillis() - (2 * counterUtils.getRollupDelay()));
+
+    // markers are removed as of before their rows are read, so a late event
+    // marking the row again while it's rolled up keeps its marker
+    long timestamp = cass.createTimestamp();
+
+    // a late event's batched count may not have landed yet, its marker waits
+    // for the next pass
+    long settled = timestamp - (counterUtils.getRollupDelay() * 1000);
+
+    long watermark = getWatermark(applicationId);
+
+    DynamicComposite finish = new DynamicComposite(target);
+    Object start = null;
+    int rolled = 0;
+
+    // the watermark can't pass an hour whose marker was left for later
+    long waiting = target;
+
+    while (true) {
+      List<HColumn<ByteBuffer, ByteBuffer>> markers = cass.getColumns(ko, ENTITY_COMPOSITE_DICTIONARIES, markerKey,
+          start, finish, PAGE_SIZE + 1, false);
+
+      // group the page by hour so each hour is a single multiget
+      Map<Long, Map<String, ByteBuffer>> hours = new TreeMap<Long, Map<String, ByteBuffer>>();
+
+      int count = 0;
+      for (HColumn<ByteBuffer, ByteBuffer> marker : markers) {
+        if (count++ == PAGE_SIZE) {
+          break;
+        }
+
+        DynamicComposite name = DynamicComposite.fromByteBuffer(marker.getName().duplicate());
+        Long hour = (Long) name.get(0);
+        String row = (String) name.get(1);
+
+        if (marker.getClock() > settled) {
+          waiting = Math.min(waiting, hour);
+          continue;
+        }
+
+        Map<String, ByteBuffer> rows = hours.get(hour);
+        if (rows == null) {
+          rows = new HashMap<String, ByteBuffer>();
+          hours.put(hour, rows);
+        }
+        rows.put(row, marker.getName());
+      }
+
+      for (Entry<Long, Map<String, ByteBuffer>> hour : hours.entrySet()) {
+        rolled += rollupHour(ko, applicationId, markerKey, hour.getKey(), hour.getValue(), timestamp);
+      }
+
+      if (markers.size() <= PAGE_SIZE) {
+        break;
+      }
+
+      start = markers.get(PAGE_SIZE).getName();
+
+      // every hour before the next page's first is done
+      long next = (Long) DynamicComposite.fromByteBuffer(markers.get(PAGE_SIZE).getName().duplicate()).get(0);
+      watermark = advanceWatermark(ko, markerKey, watermark, Math.min(next, waiting));
+    }
+
+    advanceWatermark(ko, markerKey, watermark, waiting);
+
+    logger.info("Rolled up {} aggregate counter rows for application {} up to {}", new Object[] { rolled,
+        applicationId, target });
+
+    return rolled;
+  }
+
+  private long advanceWatermark(Keyspace ko, Object markerKey, long watermark, long to) {
+    if (to <= watermark) {
+      return watermark;
+    }
+
+    Mutator<ByteBuffer> m = createMutator(ko, be);
+    addInsertToMutator(m, ENTITY_DICTIONARIES, markerKey, WATERMARK, to, cass.createTimestamp());
+    batchExecute(m, RETRY_COUNT);
+
+    return to;
+  }
+
+  /**
+   * Add what the source columns of each row gained in the hour since it was
+   * last rolled up to the rolled up rows. The new checkpoint is written before
+   * the increments, so a row is only ever counted once: if the increments
+   * fail, the next pass finds nothing gained since the checkpoint
+   */
+  private int rollupHour(Keyspace ko, UUID applicationId, Object markerKey, long hour,
+      Map<String, ByteBuffer> markers, long timestamp) throws Exception {
+    MultigetSliceCounterQuery<String, Long> q = createMultigetSliceCounterQuery(ko, se, le);
+    q.setColumnFamily(APPLICATION_AGGREGATE_COUNTERS.toString());
+    q.setKeys(markers.keySet());
+    q.setRange(hour, CounterResolution.HOUR.next(hour) - 1, false, SOURCE_PAGE_SIZE);
+    CounterRows<String, Long> rows = q.execute().get();
+
+    Object checkpointKey = key(applicationId, DICTIONARY_COUNTER_ROLLUPS, CHECKPOINTS, hour);
+
+    Map<String, Map<Long, Long>> checkpoints = new HashMap<String, Map<Long, Long>>();
+    for (HColumn<String, ByteBuffer> checkpoint : cass.<String, ByteBuffer> getColumns(ko, ENTITY_DICTIONARIES,
+        checkpointKey, markers.keySet(), se, be)) {
+      checkpoints.put(checkpoint.getName(), decodeCheckpoint(checkpoint.getValue()));
+    }
+
+    // outlive the marker of the latest event that can still be rolled up
+    int ttl = (int) Math.min(Integer.MAX_VALUE, (2 * counterUtils.getLateAfter()) / 1000);
+
+    int rolled = 0;
+
+    for (CounterRow<String, Long> row : rows) {
+      Map<Long, Long> current = aggregate(row.getColumnSlice().getColumns(), null);
+      Map<Long, Long> gained = subtract(current, checkpoints.get(row.getKey()));
+
+      // written, and retried, before anything is counted
+      HColumn<String, ByteBuffer> checkpoint = createColumn(row.getKey(), encodeCheckpoint(current),
+          timestamp, se, be);
+      checkpoint.setTtl(ttl);
+      Mutator<ByteBuffer> m = createMutator(ko, be);
+      m.addInsertion(bytebuffer(checkpointKey), ENTITY_DICTIONARIES.toString(), checkpoint);
+      batchExecute(m, RETRY_COUNT);
+
+      m = createMutator(ko, be);
+
+      for (CounterResolution resolution : CounterResolution.values()) {
+        if (!counterUtils.isRolledUp(resolution)) {
+          continue;
+        }
+
+        ByteBuffer rolledKey = bytebuffer(getRolledUpRow(row.getKey(), resolution));
+
+        for (Entry<Long, Long> bucket : aggregate(gained, resolution).entrySet()) {
+          if (bucket.getValue() != 0) {
+            m.addCounter(rolledKey, APPLICATION_AGGREGATE_COUNTERS.toString(),
+                createCounterColumn(bucket.getKey(), bucket.getValue(), le));
+          }
+        }
+      }
+
+      addDeleteToMutator(m, ENTITY_COMPOSITE_DICTIONARIES, markerKey, markers.get(row.getKey()), timestamp);
+
+      // not retried, the counters may have been applied by an attempt that
+      // timed out. A marker left behind finds nothing gained on the next pass
+      try {
+        m.execute();
+      } catch (RuntimeException e) {
+        logger.error("Unable to roll up aggregate counter row {} for hour {}, its counts are lost: {}",
+            new Object[] { row.getKey(), hour, gained, e });
+        continue;
+      }
+
+      rolled++;
+    }
+
+    return rolled;
+  }
+
+  /**
+   * Add the source counts after the application's watermark to rows read at a
+   * rolled up resolution. Rows are keyed by their row key at that resolution
+   * and are replaced with the merged, time ordered columns
+   *
+   * @param applicationId
+   * @param resolution
+   * @param start
+   *          the rounded start time of the query
+   * @param finish
+   *          the rounded finish time of the query
+   * @param rows
+   * @return
+   * @throws Exception
+   */
+  public Map<String, List<HCounterColumn<Long>>> merge(UUID applicationId, CounterResolution resolution, long start,
+      long finish, Map<String, List<HCounterColumn<Long>>> rows) throws Exception {
+
+    if (!counterUtils.isRolledUp(resolution) || rows.isEmpty()) {
+      return rows;
+    }
+
+    long rawStart = Math.max(start, getWatermark(applicationId));
+    long rawFinish = finish + resolution.interval() - 1;
+
+    if (rawStart > rawFinish) {
+      return rows;
+    }
+
+    Map<String, String> sourceRows = new HashMap<String, String>();
+    for (String row : rows.keySet()) {
+      sourceRows.put(getSourceRow(row, resolution), row);
+    }
+
+    Map<String, Map<Long, Long>> raw = readSource(cass.getApplicationKeyspace(applicationId), sourceRows.keySet(),
+        rawStart, rawFinish, resolution);
+
+    Map<String, List<HCounterColumn<Long>>> results = new LinkedHashMap<String, List<HCounterColumn<Long>>>();
+
+    for (Entry<String, Map<Long, Long>> row : raw.entrySet()) {
+      String rolledRow = sourceRows.get(row.getKey());
+
+      Map<Long, Long> buckets = aggregate(rows.get(rolledRow), null);
+
+      for (Entry<Long, Long> bucket : row.getValue().entrySet()) {
+        Long value = buckets.get(bucket.getKey());
+        buckets.put(bucket.getKey(), value == null ? bucket.getValue() : value + bucket.getValue());
+      }
+
+      List<HCounterColumn<Long>> columns = new ArrayList<HCounterColumn<Long>>(buckets.size());
+      for (Entry<Long, Long> bucket : buckets.entrySet()) {
+        columns.add(createCounterColumn(bucket.getKey(), bucket.getValue(), le));
+      }
+
+      results.put(rolledRow, columns);
+    }
+
+    for (Entry<String, List<HCounterColumn<Long>>> row : rows.entrySet()) {
+      if (!results.containsKey(row.getKey())) {
+        results.put(row.getKey(), row.getValue());
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Sum the source columns of the rows between start and finish into the
+   * buckets of the resolution, a page at a time so a watermark far behind
+   * doesn't cut the range short
+   */
+  private Map<String, Map<Long, Long>> readSource(Keyspace ko, Collection<String> keys, long start, long finish,
+      CounterResolution resolution) {
+
+    Map<String, Map<Long, Long>> results = new LinkedHashMap<String, Map<Long, Long>>();
+
+    MultigetSliceCounterQuery<String, Long> q = createMultigetSliceCounterQuery(ko, se, le);
+    q.setColumnFamily(APPLICATION_AGGREGATE_COUNTERS.toString());
+    q.setKeys(keys);
+    q.setRange(start, finish, false, SOURCE_PAGE_SIZE);
+
+    for (CounterRow<String, Long> row : q.execute().get()) {
+      List<HCounterColumn<Long>> columns = row.getColumnSlice().getColumns();
+      Map<Long, Long> buckets = new TreeMap<Long, Long>();
+      results.put(row.getKey(), buckets);
+
+      // only rows with a full page have more to read
+      while (true) {
+        addTo(buckets, columns, resolution);
+
+        if (columns.size() < SOURCE_PAGE_SIZE) {
+          break;
+        }
+
+        SliceCounterQuery<String, Long> next = createCounterSliceQuery(ko, se, le);
+        next.setColumnFamily(APPLICATION_AGGREGATE_COUNTERS.toString());
+        next.setKey(row.getKey());
+        next.setRange(columns.get(columns.size() - 1).getName() + 1, finish, false, SOURCE_PAGE_SIZE);
+        columns = next.execute().get().getColumns();
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Sum columns into the buckets of the resolution. A null resolution keeps
+   * the column names as they are
+   */
+  private static Map<Long, Long> aggregate(List<HCounterColumn<Long>> columns, CounterResolution resolution) {
+    Map<Long, Long> buckets = new TreeMap<Long, Long>();
+    addTo(buckets, columns, resolution);
+    return buckets;
+  }
+
+  private static void addTo(Map<Long, Long> buckets, List<HCounterColumn<Long>> columns,
+      CounterResolution resolution) {
+    if (columns == null) {
+      return;
+    }
+
+    for (HCounterColumn<Long> column : columns) {
+      add(buckets, resolution == null ? column.getName() : resolution.round(column.getName()), column.getValue());
+    }
+  }
+
+  /**
+   * Sum counts keyed by time into the buckets of the resolution
+   */
+  static Map<Long, Long> aggregate(Map<Long, Long> counts, CounterResolution resolution) {
+    Map<Long, Long> buckets = new TreeMap<Long, Long>();
+
+    for (Entry<Long, Long> count : counts.entrySet()) {
+      add(buckets, resolution.round(count.getKey()), count.getValue());
+    }
+
+    return buckets;
+  }
+
+  /**
+   * @return what each column of current gained over the column of the
+   *         checkpoint, null if there is no checkpoint
+   */
+  static Map<Long, Long> subtract(Map<Long, Long> current, Map<Long, Long> checkpoint) {
+    Map<Long, Long> gained = new TreeMap<Long, Long>(current);
+
+    if (checkpoint != null) {
+      for (Entry<Long, Long> column : checkpoint.entrySet()) {
+        add(gained, column.getKey(), -column.getValue());
+      }
+    }
+
+    return gained;
+  }
+
+  private static void add(Map<Long, Long> buckets, Long bucket, long value) {
+    Long total = buckets.get(bucket);
+    buckets.put(bucket, total == null ? value : total + value);
+  }
+
+  /**
+   * The source columns of a row's hour as of its last rollup, as pairs of
+   * longs
+   */
+  static ByteBuffer encodeCheckpoint(Map<Long, Long> columns) {
+    ByteBuffer bytes = ByteBuffer.allocate(columns.size() * 16);
+
+    for (Entry<Long, Long> column : columns.entrySet()) {
+      bytes.putLong(column.getKey());
+      bytes.putLong(column.getValue());
+    }
+
+    bytes.flip();
+    return bytes;
+  }
+
+  static Map<Long, Long> decodeCheckpoint(ByteBuffer bytes) {
+    Map<Long, Long> columns = new TreeMap<Long, Long>();
+
+    bytes = bytes.duplicate();
+    while (bytes.remaining() >= 16) {
+      columns.put(bytes.getLong(), bytes.getLong());
+    }
+
+    return columns;
+  }
+
+  private static String getSourceRow(String row, CounterResolution resolution) {
+    return row.substring(0, row.length() - resolution.name().length()) + ROLLUP_SOURCE.name();
+  }
+
+}
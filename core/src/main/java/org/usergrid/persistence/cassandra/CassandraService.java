@@ -19,8 +19,6 @@ import static me.prettyprint.cassandra.service.FailoverPolicy.ON_FAIL_TRY_ALL_AV
 import static me.prettyprint.hector.api.factory.HFactory.createColumn;
 import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createMutator;
-import static me.prettyprint.hector.api.factory.HFactory.createRangeSlicesQuery;
-import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createVirtualKeyspace;
 import static org.apache.commons.collections.MapUtils.getIntValue;
 import static org.apache.commons.collections.MapUtils.getString;
@@ -36,16 +34,20 @@ import static org.usergrid.utils.MapUtils.filter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import me.prettyprint.cassandra.connection.HConnectionManager;
@@ -66,18 +68,13 @@ import me.prettyprint.hector.api.Serializer;
 import me.prettyprint.hector.api.beans.ColumnSlice;
 import me.prettyprint.hector.api.beans.DynamicComposite;
 import me.prettyprint.hector.api.beans.HColumn;
-import me.prettyprint.hector.api.beans.OrderedRows;
-import me.prettyprint.hector.api.beans.Row;
 import me.prettyprint.hector.api.beans.Rows;
 import me.prettyprint.hector.api.ddl.ColumnFamilyDefinition;
 import me.prettyprint.hector.api.ddl.KeyspaceDefinition;
 import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.mutation.Mutator;
-import me.prettyprint.hector.api.query.ColumnQuery;
-import me.prettyprint.hector.api.query.CountQuery;
 import me.prettyprint.hector.api.query.MultigetSliceQuery;
 import me.prettyprint.hector.api.query.QueryResult;
-import me.prettyprint.hector.api.query.RangeSlicesQuery;
 import me.prettyprint.hector.api.query.SliceQuery;
 
 import org.slf4j.Logger;
@@ -88,6 +85,10 @@ import org.usergrid.persistence.IndexBucketLocator.IndexType;
 import org.usergrid.persistence.cassandra.index.IndexBucketScanner;
 import org.usergrid.persistence.cassandra.index.IndexScanner;
 
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+
 public class CassandraService {
 
   public static String SYSTEM_KEYSPACE = "Usergrid";
@@ -105,6 +106,8 @@ public class CassandraService {
   public static final int ALL_COUNT = 100000;
   public static final int INDEX_ENTRY_LIST_COUNT = 1000;
   public static final int DEFAULT_SEARCH_COUNT = 10000;
+  public static final int DEFAULT_COLUMN_PAGE_SIZE = 1000;
+  public static final int DEFAULT_ROW_PAGE_SIZE = 1000;
 
   public static final int RETRY_COUNT = 5;
 
@@ -131,6 +134,28 @@ public class CassandraService {
 
   private Map<String, String> accessMap;
 
+  private int columnPageSize = DEFAULT_COLUMN_PAGE_SIZE;
+
+  private int maxRowColumns = ALL_COUNT;
+
+  private int rowPageSize = DEFAULT_ROW_PAGE_SIZE;
+
+  private ColumnStore columnStore = new HectorColumnStore();
+
+  // reads the next page of wide rows and row key scans ahead of the caller
+  private final ExecutorService pageExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "cassandra-pages");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private final Histogram rowWidths = Metrics.newHistogram(CassandraService.class, "row_width");
+
+  private final Counter truncatedRows = Metrics.newCounter(CassandraService.class, "rows_truncated");
+
   public static final StringSerializer se = new StringSerializer();
   public static final ByteBufferSerializer be = new ByteBufferSerializer();
   public static final UUIDSerializer ue = new UUIDSerializer();
@@ -161,6 +186,7 @@ public class CassandraService {
     accessMap.put("password", properties.getProperty("cassandra.password"));
     systemKeyspace = HFactory.createKeyspace(SYSTEM_KEYSPACE, cluster, consistencyLevelPolicy,
         ON_FAIL_TRY_ALL_AVAILABLE, accessMap);
+    columnStore.register(systemKeyspace, SYSTEM_KEYSPACE, null);
   }
 
   public Cluster getCluster() {
@@ -194,6 +220,44 @@ public class CassandraService {
     return null;
   }
 
+  /**
+   * @param columnPageSize
+   *          the number of columns read at a time from wide rows
+   */
+  public void setColumnPageSize(int columnPageSize) {
+    this.columnPageSize = columnPageSize;
+  }
+
+  /**
+   * @param maxRowColumns
+   *          the most columns getAllColumns returns from a row
+   */
+  public void setMaxRowColumns(int maxRowColumns) {
+    this.maxRowColumns = maxRowColumns;
+  }
+
+  /**
+   * @param rowPageSize
+   *          the number of row keys read at a time when a column family is
+   *          scanned
+   */
+  public void setRowPageSize(int rowPageSize) {
+    this.rowPageSize = rowPageSize;
+  }
+
+  public ColumnStore getColumnStore() {
+    return columnStore;
+  }
+
+  /**
+   * @param columnStore
+   *          where column family reads and writes go, the cluster unless an
+   *          in-memory store is set for tests and benchmarks
+   */
+  public void setColumnStore(ColumnStore columnStore) {
+    this.columnStore = columnStore;
+  }
+
   public LockManager getLockManager() {
     return lockManager;
   }
@@ -238,6 +302,7 @@ public class CassandraService {
     } else {
       ko = HFactory.createKeyspace(keyspace, cluster, consistencyLevelPolicy, ON_FAIL_TRY_ALL_AVAILABLE, accessMap);
     }
+    columnStore.register(ko, keyspace, USE_VIRTUAL_KEYSPACES ? prefix : null);
     return ko;
   }
 
@@ -416,25 +481,50 @@ public class CassandraService {
       db_logger.info("getColumns cf={} key={}", columnFamily, key);
     }
 
-    SliceQuery<ByteBuffer, N, V> q = createSliceQuery(ko, be, nameSerializer, valueSerializer);
-    q.setColumnFamily(columnFamily.toString());
-    q.setKey(bytebuffer(key));
-    q.setRange(null, null, false, ALL_COUNT);
-    QueryResult<ColumnSlice<N, V>> r = q.execute();
-    ColumnSlice<N, V> slice = r.get();
-    List<HColumn<N, V>> results = slice.getColumns();
+    ColumnIterator<N, V> columns = getColumnIterator(ko, columnFamily, key, nameSerializer, valueSerializer);
+
+    List<HColumn<N, V>> results = new ArrayList<HColumn<N, V>>();
+    while (columns.hasNext() && (results.size() < maxRowColumns)) {
+      results.add(columns.next());
+    }
+
+    if (columns.hasNext()) {
+      truncatedRows.inc();
+      logger.warn("Row {} of {} has more than {} columns, only the first {} were read", new Object[] { key,
+          columnFamily, maxRowColumns, maxRowColumns });
+    }
+
+    rowWidths.update(results.size());
 
     if (db_logger.isInfoEnabled()) {
-      if (results == null) {
-        db_logger.info("getColumns returned null");
-      } else {
-        db_logger.info("getColumns returned {} columns", results.size());
-      }
+      db_logger.info("getColumns returned {} columns", results.size());
     }
 
     return results;
   }
 
+  /**
+   * Gets an iterator that pages through every column of a row
+   * 
+   * @param ko
+   *          the keyspace
+   * @param columnFamily
+   *          the column family
+   * @param key
+   *          the key
+   * @return the columns
+   */
+  public <N, V> ColumnIterator<N, V> getColumnIterator(Keyspace ko, Object columnFamily, Object key,
+      Serializer<N> nameSerializer, Serializer<V> valueSerializer) {
+
+    if (db_logger.isInfoEnabled()) {
+      db_logger.info("getColumnIterator cf={} key={}", columnFamily, key);
+    }
+
+    return new ColumnIterator<N, V>(columnStore, ko, columnFamily, key, nameSerializer, valueSerializer,
+        columnPageSize, pageExecutor);
+  }
+
   public List<HColumn<String, ByteBuffer>> getAllColumns(Keyspace ko, Object columnFamily, Object key) throws Exception {
     return getAllColumns(ko, columnFamily, key, se, be);
   }
@@ -477,10 +567,6 @@ public class CassandraService {
           + " count=" + count + " reversed=" + reversed);
     }
 
-    SliceQuery<ByteBuffer, ByteBuffer, ByteBuffer> q = createSliceQuery(ko, be, be, be);
-    q.setColumnFamily(columnFamily.toString());
-    q.setKey(bytebuffer(key));
-
     ByteBuffer start_bytes = null;
     if (start instanceof DynamicComposite) {
       start_bytes = ((DynamicComposite) start).serialize();
@@ -503,10 +589,8 @@ public class CassandraService {
      * if (reversed) { q.setRange(finish_bytes, start_bytes, reversed, count); }
      * else { q.setRange(start_bytes, finish_bytes, reversed, count); }
      */
-    q.setRange(start_bytes, finish_bytes, reversed, count);
-    QueryResult<ColumnSlice<ByteBuffer, ByteBuffer>> r = q.execute();
-    ColumnSlice<ByteBuffer, ByteBuffer> slice = r.get();
-    List<HColumn<ByteBuffer, ByteBuffer>> results = slice.getColumns();
+    List<HColumn<ByteBuffer, ByteBuffer>> results = columnStore.getSlice(ko, columnFamily.toString(),
+        bytebuffer(key), start_bytes, finish_bytes, count, reversed, be, be);
 
     if (db_logger.isDebugEnabled()) {
       if (results == null) {
@@ -527,10 +611,6 @@ public class CassandraService {
           + " count=" + count + " reversed=" + reversed);
     }
 
-    MultigetSliceQuery<ByteBuffer, ByteBuffer, ByteBuffer> q = createMultigetSliceQuery(ko, be, be, be);
-    q.setColumnFamily(columnFamily.toString());
-    q.setKeys(bytebuffers(keys));
-
     ByteBuffer start_bytes = null;
     if (start instanceof DynamicComposite) {
       start_bytes = ((DynamicComposite) start).serialize();
@@ -549,16 +629,23 @@ public class CassandraService {
       finish_bytes = bytebuffer(finish);
     }
 
-    q.setRange(start_bytes, finish_bytes, reversed, count);
-    QueryResult<Rows<ByteBuffer, ByteBuffer, ByteBuffer>> r = q.execute();
-    Rows<ByteBuffer, ByteBuffer, ByteBuffer> rows = r.get();
-
-    Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> results = new LinkedHashMap<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>>();
-    for (Row<ByteBuffer, ByteBuffer, ByteBuffer> row : rows) {
-      results.put(row.getKey(), row.getColumnSlice().getColumns());
-    }
+    return columnStore.multigetSlice(ko, columnFamily.toString(), bytebuffers(keys), start_bytes, finish_bytes,
+        count, reversed, be, be, be);
+  }
 
-    return results;
+  /**
+   * Same as multiGetColumns but runs on the page executor, so independent
+   * groups of rows can be read from different coordinators at the same time.
+   */
+  public Future<Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>>> multiGetColumnsAsync(final Keyspace ko,
+      final Object columnFamily, final List<?> keys, final Object start, final Object finish, final int count,
+      final boolean reversed) {
+    return pageExecutor.submit(new Callable<Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>>>() {
+      @Override
+      public Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> call() throws Exception {
+        return multiGetColumns(ko, columnFamily, keys, start, finish, count, reversed);
+      }
+    });
   }
 
   /**
@@ -614,7 +701,6 @@ public class CassandraService {
    * @throws Exception
    *           the exception
    */
-  @SuppressWarnings("unchecked")
   public <N, V> List<HColumn<N, V>> getColumns(Keyspace ko, Object columnFamily, Object key, Set<String> columnNames,
       Serializer<N> nameSerializer, Serializer<V> valueSerializer) throws Exception {
 
@@ -622,15 +708,9 @@ public class CassandraService {
       db_logger.debug("getColumns cf=" + columnFamily + " key=" + key + " names=" + columnNames);
     }
 
-    SliceQuery<ByteBuffer, N, V> q = createSliceQuery(ko, be, nameSerializer, valueSerializer);
-    q.setColumnFamily(columnFamily.toString());
-    q.setKey(bytebuffer(key));
-    // q.setColumnNames(columnNames.toArray(new String[0]));
-    q.setColumnNames((N[]) nameSerializer.fromBytesSet(se.toBytesSet(new ArrayList<String>(columnNames))).toArray());
-
-    QueryResult<ColumnSlice<N, V>> r = q.execute();
-    ColumnSlice<N, V> slice = r.get();
-    List<HColumn<N, V>> results = slice.getColumns();
+    List<HColumn<N, V>> results = columnStore.getColumns(ko, columnFamily.toString(), bytebuffer(key),
+        nameSerializer.fromBytesSet(se.toBytesSet(new ArrayList<String>(columnNames))), nameSerializer,
+        valueSerializer);
 
     if (db_logger.isInfoEnabled()) {
       if (results == null) {
@@ -712,10 +792,9 @@ public class CassandraService {
      * { column_bytes = bytebuffer(column); }
      */
 
-    ColumnQuery<ByteBuffer, N, V> q = HFactory.createColumnQuery(ko, be, nameSerializer, valueSerializer);
-    QueryResult<HColumn<N, V>> r = q.setKey(bytebuffer(key)).setName(column).setColumnFamily(columnFamily.toString())
-        .execute();
-    HColumn<N, V> result = r.get();
+    List<HColumn<N, V>> columns = columnStore.getColumns(ko, columnFamily.toString(), bytebuffer(key),
+        Collections.singletonList(column), nameSerializer, valueSerializer);
+    HColumn<N, V> result = columns.isEmpty() ? null : columns.get(0);
 
     if (db_logger.isInfoEnabled()) {
       if (result == null) {
@@ -788,8 +867,7 @@ public class CassandraService {
     if (ttl != 0) {
       col.setTtl(ttl);
     }
-    Mutator<ByteBuffer> m = createMutator(ko, be);
-    m.insert(bytebuffer(key), columnFamily.toString(), col);
+    columnStore.insert(ko, columnFamily.toString(), bytebuffer(key), Collections.singletonList(col));
 
   }
 
@@ -818,7 +896,7 @@ public class CassandraService {
           .debug("setColumns cf=" + columnFamily + " key=" + key + " map=" + map + (ttl != 0 ? " ttl=" + ttl : ""));
     }
 
-    Mutator<ByteBuffer> m = createMutator(ko, be);
+    List<HColumn<ByteBuffer, ByteBuffer>> columns = new ArrayList<HColumn<ByteBuffer, ByteBuffer>>();
     long timestamp = createTimestamp();
 
     for (Object name : map.keySet()) {
@@ -843,12 +921,11 @@ public class CassandraService {
         if (ttl != 0) {
           col.setTtl(ttl);
         }
-        m.addInsertion(bytebuffer(key), columnFamily.toString(),
-            createColumn(name_bytes, value_bytes, timestamp, be, be));
+        columns.add(col);
 
       }
     }
-    batchExecute(m, CassandraService.RETRY_COUNT);
+    columnStore.insert(ko, columnFamily.toString(), bytebuffer(key), columns);
   }
 
   /**
@@ -880,8 +957,7 @@ public class CassandraService {
       db_logger.debug("deleteColumn cf=" + columnFamily + " key=" + key + " name=" + column);
     }
 
-    Mutator<ByteBuffer> m = createMutator(ko, be);
-    m.delete(bytebuffer(key), columnFamily.toString(), bytebuffer(column), be);
+    columnStore.deleteColumn(ko, columnFamily.toString(), bytebuffer(key), bytebuffer(column), ko.createClock());
   }
 
   /**
@@ -901,17 +977,8 @@ public class CassandraService {
       db_logger.debug("getRowKeys cf=" + columnFamily);
     }
 
-    RangeSlicesQuery<K, ByteBuffer, ByteBuffer> q = createRangeSlicesQuery(ko, keySerializer, be, be);
-    q.setColumnFamily(columnFamily.toString());
-    q.setKeys(null, null);
-    q.setColumnNames(new ByteBuffer[0]);
-    QueryResult<OrderedRows<K, ByteBuffer, ByteBuffer>> r = q.execute();
-    OrderedRows<K, ByteBuffer, ByteBuffer> rows = r.get();
-
     Set<K> results = new LinkedHashSet<K>();
-    for (Row<K, ByteBuffer, ByteBuffer> row : rows) {
-      results.add(row.getKey());
-    }
+    columnStore.getRowKeys(ko, columnFamily.toString(), keySerializer, rowPageSize, pageExecutor, results);
 
     if (db_logger.isDebugEnabled()) {
       {
@@ -935,25 +1002,42 @@ public class CassandraService {
    */
   public <K> List<K> getRowKeyList(Keyspace ko, Object columnFamily, Serializer<K> keySerializer) throws Exception {
 
-    RangeSlicesQuery<K, ByteBuffer, ByteBuffer> q = createRangeSlicesQuery(ko, keySerializer, be, be);
-    q.setColumnFamily(columnFamily.toString());
-    q.setKeys(null, null);
-    q.setColumnNames(new ByteBuffer[0]);
-    QueryResult<OrderedRows<K, ByteBuffer, ByteBuffer>> r = q.execute();
-    OrderedRows<K, ByteBuffer, ByteBuffer> rows = r.get();
-
     List<K> list = new ArrayList<K>();
-    for (Row<K, ByteBuffer, ByteBuffer> row : rows) {
-      list.add(row.getKey());
-      // K uuid = row.getKey();
-      // if (uuid != UUIDUtils.zeroUUID) {
-      // list.add(uuid);
-      // }
-    }
+    columnStore.getRowKeys(ko, columnFamily.toString(), keySerializer, rowPageSize, pageExecutor, list);
 
     return list;
   }
 
+  /**
+   * Gets an iterator that pages through every row of a column family, use
+   * this rather than getRowKeySet or getRowKeyList when the column family may
+   * be large. Rows are always read from the cluster.
+   * 
+   * @param ko
+   *          the keyspace
+   * @param columnFamily
+   *          the column family
+   * @param keySerializer
+   *          the key serializer
+   * @param nameSerializer
+   *          the column name serializer
+   * @param valueSerializer
+   *          the column value serializer
+   * @param columnNames
+   *          the columns to read from each row, none to read only the keys
+   * @return the rows
+   */
+  public <K, N, V> RowIterator<K, N, V> getRowIterator(Keyspace ko, Object columnFamily,
+      Serializer<K> keySerializer, Serializer<N> nameSerializer, Serializer<V> valueSerializer, N... columnNames) {
+
+    if (db_logger.isInfoEnabled()) {
+      db_logger.info("getRowIterator cf={}", columnFamily);
+    }
+
+    return new RowIterator<K, N, V>(ko, columnFamily, keySerializer, nameSerializer, valueSerializer, columnNames,
+        rowPageSize, pageExecutor);
+  }
+
   /**
    * Delete row.
    * 
@@ -972,7 +1056,7 @@ public class CassandraService {
       db_logger.debug("deleteRow cf=" + columnFamily + " key=" + key);
     }
 
-    createMutator(ko, be).addDeletion(bytebuffer(key), columnFamily.toString()).execute();
+    columnStore.deleteRow(ko, columnFamily.toString(), bytebuffer(key), ko.createClock());
   }
 
   public void deleteRow(Keyspace ko, final Object columnFamily, final String key) throws Exception {
@@ -981,7 +1065,7 @@ public class CassandraService {
       db_logger.debug("deleteRow cf=" + columnFamily + " key=" + key);
     }
 
-    createMutator(ko, se).addDeletion(key, columnFamily.toString()).execute();
+    columnStore.deleteRow(ko, columnFamily.toString(), se.toByteBuffer(key), ko.createClock());
   }
 
   /**
@@ -1005,7 +1089,7 @@ public class CassandraService {
       db_logger.debug("deleteRow cf=" + columnFamily + " key=" + key + " timestamp=" + timestamp);
     }
 
-    createMutator(ko, be).addDeletion(bytebuffer(key), columnFamily.toString(), timestamp).execute();
+    columnStore.deleteRow(ko, columnFamily.toString(), bytebuffer(key), timestamp);
   }
 
   /**
@@ -1059,15 +1143,7 @@ public class CassandraService {
   public int countColumns(Keyspace ko, Object columnFamily, Object key) throws Exception {
 
 
-    CountQuery<ByteBuffer, ByteBuffer> cq = HFactory.createCountQuery(ko, be, be);
-    cq.setColumnFamily(columnFamily.toString());
-    cq.setKey(bytebuffer(key));
-    cq.setRange(ByteBuffer.allocate(0), ByteBuffer.allocate(0), 100000000);
-    QueryResult<Integer> r = cq.execute();
-    if (r == null) {
-      return 0;
-    }
-    return r.get();
+    return columnStore.countColumns(ko, columnFamily.toString(), bytebuffer(key));
   }
 
   /**
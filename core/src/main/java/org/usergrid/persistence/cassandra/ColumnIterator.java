@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import static org.usergrid.utils.ConversionUtils.bytebuffer;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.HColumn;
+
+/**
+ * Iterates over every column of a row a page at a time, so a wide row is never
+ * pulled into memory in one response. While a page is being consumed the next
+ * one is read on the executor.
+ * 
+ * @param <N>
+ *          the column name type
+ * @param <V>
+ *          the column value type
+ */
+public class ColumnIterator<N, V> implements Iterator<HColumn<N, V>>, Iterable<HColumn<N, V>> {
+
+  private final ColumnStore store;
+  private final Keyspace ko;
+  private final String columnFamily;
+  private final ByteBuffer key;
+  private final Serializer<N> nameSerializer;
+  private final Serializer<V> valueSerializer;
+  private final int pageSize;
+  private final Executor executor;
+
+  private Iterator<HColumn<N, V>> current;
+  private FutureTask<Page> next;
+  private int count;
+
+  /**
+   * @param store
+   *          the column store the row is read from
+   * @param ko
+   * @param columnFamily
+   * @param key
+   * @param nameSerializer
+   * @param valueSerializer
+   * @param pageSize
+   *          the number of columns to read at a time
+   * @param executor
+   *          reads the next page ahead, null to read pages when they are
+   *          reached
+   */
+  public ColumnIterator(ColumnStore store, Keyspace ko, Object columnFamily, Object key,
+      Serializer<N> nameSerializer, Serializer<V> valueSerializer, int pageSize, Executor executor) {
+    this.store = store;
+    this.ko = ko;
+    this.columnFamily = columnFamily.toString();
+    this.key = bytebuffer(key);
+    this.nameSerializer = nameSerializer;
+    this.valueSerializer = valueSerializer;
+    this.pageSize = pageSize;
+    this.executor = executor;
+
+    next = read(null);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Iterable#iterator()
+   */
+  @Override
+  public Iterator<HColumn<N, V>> iterator() {
+    return this;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.util.Iterator#hasNext()
+   */
+  @Override
+  public boolean hasNext() {
+    while ((current == null) || !current.hasNext()) {
+      if (next == null) {
+        return false;
+      }
+
+      Page page = await(next);
+      next = null;
+      current = page.columns.iterator();
+
+      if (page.more && !page.columns.isEmpty()) {
+        next = read(page.columns.get(page.columns.size() - 1).getName());
+      }
+    }
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.util.Iterator#next()
+   */
+  @Override
+  public HColumn<N, V> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    count++;
+    return current.next();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.util.Iterator#remove()
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("You can't remove from a column iterator");
+  }
+
+  /**
+   * @return the number of columns returned so far
+   */
+  public int getCount() {
+    return count;
+  }
+
+  private FutureTask<Page> read(N start) {
+    // callers may consume a byte buffer name before the page is read, so
+    // hold on to a copy of its position
+    final ByteBuffer startBytes = start == null ? null : nameSerializer.toByteBuffer(start).duplicate();
+
+    FutureTask<Page> task = new FutureTask<Page>(new Callable<Page>() {
+      @Override
+      public Page call() throws Exception {
+        return load(startBytes);
+      }
+    });
+
+    // the first page is needed straight away
+    if ((startBytes == null) || (executor == null)) {
+      task.run();
+    } else {
+      executor.execute(task);
+    }
+
+    return task;
+  }
+
+  private Page load(ByteBuffer startBytes) throws Exception {
+    N start = startBytes == null ? null : nameSerializer.fromByteBuffer(startBytes.duplicate());
+
+    // the start column was the last one of the previous page
+    int limit = start == null ? pageSize : pageSize + 1;
+
+    List<HColumn<N, V>> columns = store.getSlice(ko, columnFamily, key, start, null, limit, false, nameSerializer,
+        valueSerializer);
+
+    boolean more = columns.size() >= limit;
+
+    if ((start != null) && !columns.isEmpty()
+        && startBytes.equals(nameSerializer.toByteBuffer(columns.get(0).getName()))) {
+      columns = columns.subList(1, columns.size());
+    }
+
+    return new Page(columns, more);
+  }
+
+  private Page await(FutureTask<Page> task) {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted reading columns of " + columnFamily, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException("Unable to read columns of " + columnFamily, e.getCause());
+    }
+  }
+
+  private class Page {
+    private final List<HColumn<N, V>> columns;
+    private final boolean more;
+
+    Page(List<HColumn<N, V>> columns, boolean more) {
+      this.columns = columns;
+      this.more = more;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.HColumn;
+
+/**
+ * The column family operations CassandraService performs on a keyspace. The
+ * default store goes to the cluster through Hector, an in-memory store lets
+ * code built on CassandraService be run and profiled without a cluster.
+ * 
+ * Keyspace handles are only used to say which keyspace, and for virtual
+ * keyspaces which application, an operation is against.
+ */
+public interface ColumnStore {
+
+  /**
+   * Called for every keyspace handle CassandraService hands out.
+   * 
+   * @param ko
+   *          the keyspace handle
+   * @param keyspace
+   *          the keyspace name
+   * @param prefix
+   *          the key prefix of a virtual keyspace, null otherwise
+   */
+  public void register(Keyspace ko, String keyspace, UUID prefix);
+
+  /**
+   * Reads a range of columns from a row.
+   * 
+   * @param start
+   *          the first column, or the last if reversed, null to start at the
+   *          end of the row
+   * @param finish
+   *          the last column, or the first if reversed, null to read to the
+   *          end of the row
+   * @return the columns in comparator order
+   */
+  public <N, V> List<HColumn<N, V>> getSlice(Keyspace ko, String columnFamily, ByteBuffer key, N start, N finish,
+      int count, boolean reversed, Serializer<N> nameSerializer, Serializer<V> valueSerializer) throws Exception;
+
+  /**
+   * Reads the same range of columns from several rows.
+   * 
+   * @return the columns of each row, keyed in the order the keys were given
+   */
+  public <K, N, V> Map<K, List<HColumn<N, V>>> multigetSlice(Keyspace ko, String columnFamily, List<K> keys,
+      N start, N finish, int count, boolean reversed, Serializer<K> keySerializer, Serializer<N> nameSerializer,
+      Serializer<V> valueSerializer) throws Exception;
+
+  /**
+   * Reads the named columns of a row, missing columns are left out.
+   */
+  public <N, V> List<HColumn<N, V>> getColumns(Keyspace ko, String columnFamily, ByteBuffer key,
+      Collection<N> names, Serializer<N> nameSerializer, Serializer<V> valueSerializer) throws Exception;
+
+  /**
+   * Counts the live columns of a row.
+   */
+  public int countColumns(Keyspace ko, String columnFamily, ByteBuffer key) throws Exception;
+
+  /**
+   * Writes columns to a row with their own timestamps and ttls.
+   */
+  public <N, V> void insert(Keyspace ko, String columnFamily, ByteBuffer key, List<HColumn<N, V>> columns)
+      throws Exception;
+
+  /**
+   * Deletes a column written before the timestamp.
+   */
+  public void deleteColumn(Keyspace ko, String columnFamily, ByteBuffer key, ByteBuffer name, long timestamp)
+      throws Exception;
+
+  /**
+   * Deletes every column of a row written before the timestamp.
+   */
+  public void deleteRow(Keyspace ko, String columnFamily, ByteBuffer key, long timestamp) throws Exception;
+
+  /**
+   * Adds the keys of every row in a column family to a collection.
+   * 
+   * @param pageSize
+   *          the number of keys to read at a time, if the store pages
+   * @param executor
+   *          reads the next page while the caller takes the current one, may
+   *          be null to read each page when it's needed
+   * @param keys
+   *          the collection the keys are added to
+   */
+  public <K> void getRowKeys(Keyspace ko, String columnFamily, Serializer<K> keySerializer, int pageSize,
+      Executor executor, Collection<K> keys) throws Exception;
+
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import static org.apache.commons.codec.binary.Base64.decodeBase64;
+import static org.apache.commons.codec.binary.Base64.encodeBase64URLSafeString;
+import static org.usergrid.persistence.Schema.DICTIONARY_CONNECTING_ENTITIES;
+import static org.usergrid.persistence.Schema.TYPE_CONNECTION;
+import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COMPOSITE_DICTIONARIES;
+import static org.usergrid.persistence.cassandra.CassandraPersistenceUtils.key;
+import static org.usergrid.utils.CompositeUtils.setGreaterThanEqualityFlag;
+import static org.usergrid.utils.ConversionUtils.bytes;
+import static org.usergrid.utils.ConversionUtils.uuid;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+
+import org.usergrid.persistence.EntityIdPage;
+
+/**
+ * Walks the entities connecting to an entity straight from its
+ * connecting_entities dictionary row, in id order, one page of ids at a time.
+ * No connection refs or entities are loaded, so follower sets of any size can
+ * be streamed through a single reused {@link EntityIdPage}.
+ */
+public class ConnectingEntityScanner {
+
+  private final CassandraService cass;
+  private final UUID applicationId;
+  private final Object rowKey;
+  private final String connectingEntityType;
+  private final int pageSize;
+
+  private UUID last;
+  private boolean done;
+
+  /**
+   * @param cass
+   * @param applicationId
+   * @param connectedEntityId
+   *          the entity being connected to
+   * @param connectionType
+   *          the type of connection
+   * @param connectingEntityType
+   *          only return entities of this type, or null for all types
+   * @param cursor
+   *          the cursor of a previous page, or null to start at the beginning
+   * @param pageSize
+   *          the most ids returned in a page
+   */
+  public ConnectingEntityScanner(CassandraService cass, UUID applicationId, UUID connectedEntityId,
+      String connectionType, String connectingEntityType, String cursor, int pageSize) {
+    if (connectionType == null) {
+      throw new IllegalArgumentException("A connection type is required");
+    }
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("Page size must be at least 1");
+    }
+    this.cass = cass;
+    this.applicationId = applicationId;
+    this.rowKey = key(connectedEntityId, DICTIONARY_CONNECTING_ENTITIES, connectionType);
+    this.connectingEntityType = connectingEntityType;
+    this.pageSize = pageSize;
+    this.last = cursor != null ? uuid(decodeBase64(cursor)) : null;
+  }
+
+  /**
+   * Fill the page with the next ids, replacing whatever it held
+   * 
+   * @param page
+   * @return false once there are no more ids
+   * @throws Exception
+   */
+  public boolean next(EntityIdPage page) throws Exception {
+    page.clear();
+
+    Keyspace ko = cass.getApplicationKeyspace(applicationId);
+
+    while (!done && (page.size() < pageSize)) {
+      // start past every column of the last id read
+      Object start = last != null ? setGreaterThanEqualityFlag(new DynamicComposite(last)) : null;
+      int count = pageSize - page.size();
+
+      List<HColumn<ByteBuffer, ByteBuffer>> columns = cass.getColumns(ko, ENTITY_COMPOSITE_DICTIONARIES, rowKey,
+          start, null, count, false);
+
+      if (columns.size() < count) {
+        done = true;
+      }
+
+      for (HColumn<ByteBuffer, ByteBuffer> column : columns) {
+        DynamicComposite composite = DynamicComposite.fromByteBuffer(column.getName().duplicate());
+        last = (UUID) composite.get(0);
+        String entityType = (String) composite.get(1);
+
+        // we're checking a loopback, skip it
+        if (TYPE_CONNECTION.equalsIgnoreCase(entityType)) {
+          continue;
+        }
+        if ((connectingEntityType != null) && !connectingEntityType.equalsIgnoreCase(entityType)) {
+          continue;
+        }
+        page.add(last);
+      }
+    }
+
+    if (!done && (last != null)) {
+      page.setCursor(encodeBase64URLSafeString(bytes(last)));
+    }
+
+    return !page.isEmpty();
+  }
+
+}
@@ -19,6 +19,7 @@ import static me.prettyprint.hector.api.factory.HFactory.createColumn;
 import static me.prettyprint.hector.api.factory.HFactory.createCounterColumn;
 import static org.usergrid.persistence.Schema.DICTIONARY_COUNTERS;
 import static org.usergrid.persistence.cassandra.ApplicationCF.APPLICATION_AGGREGATE_COUNTERS;
+import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COMPOSITE_DICTIONARIES;
 import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COUNTERS;
 import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_DICTIONARIES;
 import static org.usergrid.persistence.cassandra.CassandraPersistenceUtils.addInsertToMutator;
@@ -27,6 +28,7 @@ import static org.usergrid.utils.ConversionUtils.bytebuffer;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -62,10 +64,40 @@ public class CounterUtils {
 	public static final ByteBufferSerializer be = new ByteBufferSerializer();
 	public static final UUIDSerializer ue = new UUIDSerializer();
 
+	/**
+	 * Dictionary holding the rollup markers and watermark for an application
+	 */
+	public static final String DICTIONARY_COUNTER_ROLLUPS = "counter_rollups";
+
+	/**
+	 * The resolution written at event time when rollups are enabled. All
+	 * coarser resolutions are derived from it by {@link AggregateCounterRollup}
+	 */
+	public static final CounterResolution ROLLUP_SOURCE = CounterResolution.MINUTE;
+
+	/**
+	 * Default time after the end of an hour before it is rolled up. Must
+	 * exceed the batcher flush interval
+	 */
+	public static final long DEFAULT_ROLLUP_DELAY = 5 * 60 * 1000;
+
+	/**
+	 * Default time after the end of an hour during which events for it are
+	 * still written at the {@link #ROLLUP_SOURCE} resolution and rolled up
+	 * again
+	 */
+	public static final long DEFAULT_LATE_AFTER = 7 * 24 * 60 * 60 * 1000L;
+
 	private String counterType = "o";
 
 	private Batcher batcher;
 
+	private boolean rollup = false;
+
+	private long rollupDelay = DEFAULT_ROLLUP_DELAY;
+
+	private long lateAfter = DEFAULT_LATE_AFTER;
+
 	public void setBatcher(Batcher batcher) {
 		this.batcher = batcher;
 	}
@@ -90,6 +122,81 @@ public class CounterUtils {
 		return "n".equals(counterType);
 	}
 
+	/**
+	 * When true, aggregate counters are only written at the
+	 * {@link #ROLLUP_SOURCE} resolution (plus ALL) and the coarser resolutions
+	 * are produced by the rollup job
+	 * 
+	 * @param rollup
+	 */
+	public void setRollup(boolean rollup) {
+		this.rollup = rollup;
+	}
+
+	public boolean isRollup() {
+		return rollup;
+	}
+
+	/**
+	 * @param rollupDelay
+	 *            milliseconds after the end of an hour before it is rolled
+	 *            up, and after an event is marked before its row is
+	 */
+	public void setRollupDelay(long rollupDelay) {
+		this.rollupDelay = rollupDelay;
+	}
+
+	public long getRollupDelay() {
+		return rollupDelay;
+	}
+
+	/**
+	 * @param lateAfter
+	 *            milliseconds after the end of an hour during which events
+	 *            for that hour are still written raw-only and rolled up
+	 *            again. Older events are written at every resolution
+	 */
+	public void setLateAfter(long lateAfter) {
+		this.lateAfter = lateAfter;
+	}
+
+	public long getLateAfter() {
+		return lateAfter;
+	}
+
+	/**
+	 * @param resolution
+	 * @return true if this resolution is produced by the rollup job rather
+	 *         than written at event time
+	 */
+	public boolean isRolledUp(CounterResolution resolution) {
+		return rollup && (resolution.interval() > ROLLUP_SOURCE.interval());
+	}
+
+	/**
+	 * @param counterTimestamp
+	 * @return true if the hour containing the timestamp is too old to be
+	 *         rolled up again, so the event has to be written at every
+	 *         resolution
+	 */
+	public boolean isLate(long counterTimestamp) {
+		return System.currentTimeMillis() >= CounterResolution.HOUR
+				.next(counterTimestamp) + lateAfter;
+	}
+
+	/**
+	 * @param sourceRow
+	 *            a row key at the {@link #ROLLUP_SOURCE} resolution
+	 * @param resolution
+	 * @return the same selection's row key at the given resolution
+	 */
+	public static String getRolledUpRow(String sourceRow,
+			CounterResolution resolution) {
+		return sourceRow.substring(0, sourceRow.length()
+				- ROLLUP_SOURCE.name().length())
+				+ resolution.name();
+	}
+
 	public static class AggregateCounterSelection {
         public static final String COLON = ":";
         public static final String STAR = "*";
@@ -223,11 +330,19 @@ public class CounterUtils {
 			UUID applicationId, UUID userId, UUID groupId, UUID queueId,
 			String category, String name, long value, long counterTimestamp,
 			long cassandraTimestamp) {
+		// events too old to be rolled up again skip the source resolution, a
+		// rollup of their hour without a checkpoint would count them twice
+		boolean late = rollup && isLate(counterTimestamp);
 		for (CounterResolution resolution : CounterResolution.values()) {
+			if (late ? resolution == ROLLUP_SOURCE
+					: isRolledUp(resolution)) {
+				continue;
+			}
 			logger.debug("BIAC for resolution {}", resolution);
 			batchIncrementAggregateCounters(m, userId, groupId, queueId,
 					category, resolution, name, value, counterTimestamp,
-					applicationId);
+					applicationId, !late && rollup
+							&& resolution == ROLLUP_SOURCE, cassandraTimestamp);
 			logger.debug("DONE BIAC for resolution {}", resolution);
 		}
 		batchIncrementEntityCounter(m, applicationId, name, value,
@@ -245,9 +360,11 @@ public class CounterUtils {
 	private void batchIncrementAggregateCounters(Mutator<ByteBuffer> m,
 			UUID userId, UUID groupId, UUID queueId, String category,
 			CounterResolution resolution, String name, long value,
-			long counterTimestamp, UUID applicationId) {
+			long counterTimestamp, UUID applicationId, boolean markRollup,
+			long cassandraTimestamp) {
 
 		String[] segments = StringUtils.split(name, '.');
+		String currentRow = null;
 		for (int j = 0; j < segments.length; j++) {
 			name = StringUtils.join(segments, '.', 0, j + 1);
 			// skip system counter
@@ -256,12 +373,14 @@ public class CounterUtils {
 			}
 
 			// *:*:*:*
-			handleAggregateCounterRow(
-					m,
-					AggregateCounterSelection.rowBuilder(name, null, null, null, null,
-							resolution), resolution.round(counterTimestamp),
-					value, applicationId);
-			String currentRow = null;
+			currentRow = AggregateCounterSelection.rowBuilder(name, null,
+					null, null, null, resolution);
+			handleAggregateCounterRow(m, currentRow,
+					resolution.round(counterTimestamp), value, applicationId);
+			if (markRollup) {
+				addRollupMarker(m, applicationId, currentRow,
+						counterTimestamp, cassandraTimestamp);
+			}
 			HashSet<String> rowSet = new HashSet<String>(16);
 			for (int i = 0; i < 16; i++) {
 
@@ -289,6 +408,10 @@ public class CounterUtils {
 					handleAggregateCounterRow(m, currentRow,
 							resolution.round(counterTimestamp), value,
 							applicationId);
+					if (markRollup) {
+						addRollupMarker(m, applicationId, currentRow,
+								counterTimestamp, cassandraTimestamp);
+					}
 				}
 
 			}
@@ -318,6 +441,22 @@ public class CounterUtils {
 		}
 	}
 
+	/**
+	 * Record that the source row has counts in the hour of counterTimestamp
+	 * which still need to be rolled up. Markers are composite columns of (hour,
+	 * row) so the rollup job can slice every closed hour in order.
+	 */
+	private void addRollupMarker(Mutator<ByteBuffer> m, UUID applicationId,
+			String row, long counterTimestamp, long cassandraTimestamp) {
+		if (m == null) {
+			return;
+		}
+		addInsertToMutator(m, ENTITY_COMPOSITE_DICTIONARIES,
+				key(applicationId, DICTIONARY_COUNTER_ROLLUPS),
+				Arrays.asList(CounterResolution.HOUR.round(counterTimestamp),
+						row), null, cassandraTimestamp);
+	}
+
 	public AggregateCounterSelection getAggregateCounterSelection(String name,
 			UUID userId, UUID groupId, UUID queueId, String category) {
 		return new AggregateCounterSelection(name, userId, groupId, queueId,
@@ -373,10 +512,29 @@ public class CounterUtils {
 					"BIQC: Incrementing property {} of queue {} by value {}",
 					new Object[] { name, queueId, value });
 		}
+		batchAddQueueCounterName(m, queueId, name, timestamp);
+		return batchIncrementQueueCounterValue(m, queueId, name, value,
+				applicationId);
+	}
+
+	/**
+	 * Record the counter in the queue's counter names without incrementing it
+	 */
+	public Mutator<ByteBuffer> batchAddQueueCounterName(Mutator<ByteBuffer> m,
+			UUID queueId, String name, long timestamp) {
 		m.addInsertion(
 				bytebuffer(key(queueId, DICTIONARY_COUNTERS).toString()),
 				QueuesCF.QUEUE_DICTIONARIES.toString(),
 				createColumn(name, ByteBuffer.allocate(0), timestamp, se, be));
+		return m;
+	}
+
+	/**
+	 * Increment a queue counter whose name has already been recorded
+	 */
+	public Mutator<ByteBuffer> batchIncrementQueueCounterValue(
+			Mutator<ByteBuffer> m, UUID queueId, String name, long value,
+			UUID applicationId) {
 		if ("o".equals(counterType) || "p".equals(counterType)) {
 			HCounterColumn<String> c = createCounterColumn(name, value);
 			ByteBuffer keybytes = bytebuffer(queueId);
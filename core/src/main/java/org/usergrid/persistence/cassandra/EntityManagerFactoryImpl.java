@@ -17,7 +17,6 @@ package org.usergrid.persistence.cassandra;
 
 import static java.lang.String.CASE_INSENSITIVE_ORDER;
 import static me.prettyprint.hector.api.factory.HFactory.createMutator;
-import static me.prettyprint.hector.api.factory.HFactory.createRangeSlicesQuery;
 import static org.usergrid.persistence.Schema.PROPERTY_NAME;
 import static org.usergrid.persistence.Schema.PROPERTY_UUID;
 import static org.usergrid.persistence.Schema.TYPE_APPLICATION;
@@ -41,14 +40,9 @@ import me.prettyprint.cassandra.serializers.LongSerializer;
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.cassandra.serializers.UUIDSerializer;
 import me.prettyprint.hector.api.Keyspace;
-import me.prettyprint.hector.api.beans.ColumnSlice;
 import me.prettyprint.hector.api.beans.HColumn;
-import me.prettyprint.hector.api.beans.OrderedRows;
 import me.prettyprint.hector.api.beans.Row;
-import me.prettyprint.hector.api.beans.Rows;
 import me.prettyprint.hector.api.mutation.Mutator;
-import me.prettyprint.hector.api.query.QueryResult;
-import me.prettyprint.hector.api.query.RangeSlicesQuery;
 
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -56,6 +50,9 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.usergrid.clustering.ChangeBus;
+import org.usergrid.clustering.ChangeEvent;
+import org.usergrid.clustering.ChangeListener;
 import org.usergrid.persistence.DynamicEntity;
 import org.usergrid.persistence.EntityManager;
 import org.usergrid.persistence.EntityManagerFactory;
@@ -98,6 +95,8 @@ ApplicationContextAware {
 
     private boolean skipAggregateCounters;
 
+    private ChangeBus changeBus;
+
     private LoadingCache<UUID, EntityManager> entityManagers = CacheBuilder.newBuilder()
             .maximumSize(100)
             .build(
@@ -329,18 +328,16 @@ ApplicationContextAware {
         Map<String, UUID> applications = new TreeMap<String, UUID>(
                 CASE_INSENSITIVE_ORDER);
         Keyspace ko = cass.getSystemKeyspace();
-        RangeSlicesQuery<String, String, UUID> q = createRangeSlicesQuery(ko,
-                se, se, ue);
-        q.setKeys("", "\uFFFF");
-        q.setColumnFamily(APPLICATIONS_CF);
-        q.setColumnNames(PROPERTY_UUID);
-        q.setRowCount(10000);
-        QueryResult<OrderedRows<String, String, UUID>> r = q.execute();
-        Rows<String, String, UUID> rows = r.get();
-        for (Row<String, String, UUID> row : rows) {
-            ColumnSlice<String, UUID> slice = row.getColumnSlice();
-            HColumn<String, UUID> column = slice.getColumnByName(PROPERTY_UUID);
-            applications.put(row.getKey(), column.getValue());
+        // page through the applications rather than reading up to a fixed
+        // row count in one query
+        for (Row<String, String, UUID> row : cass.getRowIterator(ko,
+                APPLICATIONS_CF, se, se, ue, PROPERTY_UUID)) {
+            HColumn<String, UUID> column = row.getColumnSlice()
+                    .getColumnByName(PROPERTY_UUID);
+            // deleted rows come back from range scans without columns
+            if (column != null) {
+                applications.put(row.getKey(), column.getValue());
+            }
         }
         return applications;
     }
@@ -406,4 +403,27 @@ ApplicationContextAware {
         this.counterUtils = counterUtils;
     }
 
+    /**
+     * Drops the cached entity manager of an application, and the application
+     * entity it holds, when any node changes the application
+     * 
+     * @param changeBus
+     */
+    public void setChangeBus(ChangeBus changeBus) {
+        this.changeBus = changeBus;
+        changeBus.addListener(new ChangeListener() {
+            @Override
+            public void onChange(ChangeEvent event) {
+                if ((event.getType() == ChangeEvent.Type.APPLICATION)
+                        && (event.getApplicationId() != null)) {
+                    entityManagers.invalidate(event.getApplicationId());
+                }
+            }
+        });
+    }
+
+    public ChangeBus getChangeBus() {
+        return changeBus;
+    }
+
 }
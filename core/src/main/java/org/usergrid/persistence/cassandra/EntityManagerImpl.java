@@ -25,6 +25,7 @@ import static org.apache.commons.lang.StringUtils.isBlank;
 import static org.usergrid.locking.LockHelper.getUniqueUpdateLock;
 import static org.usergrid.persistence.Results.fromEntities;
 import static org.usergrid.persistence.Results.Level.REFS;
+import static org.usergrid.persistence.Schema.COLLECTION_GROUPS;
 import static org.usergrid.persistence.Schema.COLLECTION_ROLES;
 import static org.usergrid.persistence.Schema.COLLECTION_USERS;
 import static org.usergrid.persistence.Schema.DICTIONARY_COLLECTIONS;
@@ -33,6 +34,7 @@ import static org.usergrid.persistence.Schema.DICTIONARY_PROPERTIES;
 import static org.usergrid.persistence.Schema.DICTIONARY_ROLENAMES;
 import static org.usergrid.persistence.Schema.DICTIONARY_ROLETIMES;
 import static org.usergrid.persistence.Schema.DICTIONARY_SETS;
+import static org.usergrid.persistence.Schema.DICTIONARY_UNRECONCILED_COLLECTIONS;
 import static org.usergrid.persistence.Schema.PROPERTY_ASSOCIATED;
 import static org.usergrid.persistence.Schema.PROPERTY_CREATED;
 import static org.usergrid.persistence.Schema.PROPERTY_INACTIVITY;
@@ -87,10 +89,12 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -123,11 +127,13 @@ import me.prettyprint.hector.api.query.SliceCounterQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
+import org.usergrid.clustering.ChangeBus;
+import org.usergrid.clustering.ChangeEvent;
 import org.usergrid.locking.Lock;
 import org.usergrid.mq.Message;
 import org.usergrid.mq.QueueManager;
 import org.usergrid.mq.cassandra.QueueManagerFactoryImpl;
-import org.usergrid.persistence.AggregateCounter;
+import org.usergrid.persistence.AggregateCounterSeries;
 import org.usergrid.persistence.AggregateCounterSet;
 import org.usergrid.persistence.AssociatedEntityRef;
 import org.usergrid.persistence.CollectionRef;
@@ -137,6 +143,7 @@ import org.usergrid.persistence.CounterResolution;
 import org.usergrid.persistence.DynamicEntity;
 import org.usergrid.persistence.Entity;
 import org.usergrid.persistence.EntityFactory;
+import org.usergrid.persistence.EntityIdPage;
 import org.usergrid.persistence.EntityManager;
 import org.usergrid.persistence.EntityRef;
 import org.usergrid.persistence.Identifier;
@@ -200,6 +207,12 @@ public class EntityManagerImpl implements EntityManager {
 	private CassandraService cass;
     @Resource
 	private CounterUtils counterUtils;
+    @Resource
+	private AggregateCounterRollup aggregateCounterRollup;
+    @Resource
+	private AggregateCounterCache aggregateCounterCache;
+    @Resource
+	private ChangeBus changeBus;
 
     private boolean skipAggregateCounters;
 
@@ -208,6 +221,14 @@ public class EntityManagerImpl implements EntityManager {
 	public static final UUIDSerializer ue = new UUIDSerializer();
 	public static final LongSerializer le = new LongSerializer();
 
+	/** Entity types other nodes may hold in their auth caches */
+	private static final Set<String> AUTH_ENTITY_TYPES = new HashSet<String>(
+			Arrays.asList(User.ENTITY_TYPE, Group.ENTITY_TYPE, TYPE_ROLE));
+
+	// collections between users, groups and roles that authorization reads
+	private static final Set<String> AUTH_COLLECTIONS = new HashSet<String>(
+			Arrays.asList(COLLECTION_USERS, COLLECTION_GROUPS, COLLECTION_ROLES));
+
 	public EntityManagerImpl() {
 	}
 
@@ -234,6 +255,23 @@ public class EntityManagerImpl implements EntityManager {
         this.applicationId = applicationId;
     }
 
+	/**
+	 * Tells every node a change was written so they can drop what they cached
+	 */
+	private void publishChange(ChangeEvent.Type type, Object key) {
+		if (changeBus != null) {
+			changeBus.publish(new ChangeEvent(type, applicationId, key));
+		}
+	}
+
+	private void publishMembershipChange(EntityRef ownerRef,
+			String collectionName) {
+		if (AUTH_ENTITY_TYPES.contains(ownerRef.getType())
+				&& AUTH_COLLECTIONS.contains(collectionName)) {
+			publishChange(ChangeEvent.Type.MEMBERSHIP, ownerRef.getUuid());
+		}
+	}
+
     public ApplicationContext getApplicationContext() {
         return emf.applicationContext;
     }
@@ -255,6 +293,7 @@ public class EntityManagerImpl implements EntityManager {
 	public void updateApplication(Application app) throws Exception {
 		update(app);
         this.application = app;
+		publishChange(ChangeEvent.Type.APPLICATION, applicationId);
 	}
 
 	@Override
@@ -262,6 +301,7 @@ public class EntityManagerImpl implements EntityManager {
 			throws Exception {
 		this.updateProperties(applicationId, properties);
         this.application = get(applicationId, Application.class);
+		publishChange(ChangeEvent.Type.APPLICATION, applicationId);
 	}
 
 	@Override
@@ -305,6 +345,21 @@ public class EntityManagerImpl implements EntityManager {
 	public Mutator<ByteBuffer> batchSetProperty(Mutator<ByteBuffer> batch,
 			EntityRef entity, String propertyName, Object propertyValue,
 			boolean force, boolean noRead, UUID timestampUuid) throws Exception {
+		return batchSetProperty(batch, entity, propertyName, propertyValue,
+				force, noRead, false, timestampUuid);
+	}
+
+	/**
+	 * Set a property in the batch. When <code>bulk</code> is set the entity
+	 * is being loaded into an application that doesn't hold it yet, and the
+	 * uniqueness, alias and unique index reads that clean up after a previous
+	 * value are skipped, {@link #batchLoad} having written the alias and unique
+	 * index already.
+	 */
+	private Mutator<ByteBuffer> batchSetProperty(Mutator<ByteBuffer> batch,
+			EntityRef entity, String propertyName, Object propertyValue,
+			boolean force, boolean noRead, boolean bulk, UUID timestampUuid)
+			throws Exception {
 
 		long timestamp = getTimestampInMicros(timestampUuid);
 
@@ -347,13 +402,21 @@ public class EntityManagerImpl implements EntityManager {
 				}
 			}
 
-			if (!isPropertyValueUniqueForEntity(entity.getUuid(),
+			if (!bulk && !isPropertyValueUniqueForEntity(entity.getUuid(),
 					entity.getType(), propertyName, propertyValue)) {
 				throw new DuplicateUniquePropertyExistsException(
 						entity.getType(), propertyName, propertyValue);
 			}
 
-			if (propertyName.equals(defaultSchema.aliasProperty(
+			if (bulk) {
+				// batchLoad wrote the alias of everything but associated types
+				if (propertyName.equals(defaultSchema.aliasProperty(
+						entity.getType()))
+						&& Schema.isAssociatedEntityType(entity.getType())) {
+					createAlias(batch, applicationId, entity, entity.getType(),
+							string(propertyValue), timestamp);
+				}
+			} else if (propertyName.equals(defaultSchema.aliasProperty(
 					entity.getType()))) {
 			  Lock lock = getUniqueUpdateLock(cass.getLockManager(), applicationId, propertyValue, entity.getType(), propertyName);
 			  
@@ -370,7 +433,7 @@ public class EntityManagerImpl implements EntityManager {
 			/**
 			 * Unique property, load the old value and remove it, check if it's not a duplicate
 			 */
-			if(defaultSchema.getEntityInfo(entity.getType()).isPropertyUnique(propertyName)){
+			if(!bulk && defaultSchema.getEntityInfo(entity.getType()).isPropertyUnique(propertyName)){
 			  
 			    Lock lock = getUniqueUpdateLock(cass.getLockManager(),applicationId, propertyValue,
                         entity.getType(), propertyName);
@@ -929,12 +992,49 @@ public class EntityManagerImpl implements EntityManager {
 		return entity;
 	}
 
-	@SuppressWarnings("unchecked")
   @Metered(group = "core", name = "EntityManager_batchCreate")
 	public <A extends Entity> A batchCreate(Mutator<ByteBuffer> m,
 			String entityType, Class<A> entityClass,
 			Map<String, Object> properties, UUID importId, UUID timestampUuid)
 			throws Exception {
+		return batchCreate(m, entityType, entityClass, properties, importId,
+				timestampUuid, false);
+	}
+
+	/**
+	 * Adds an entity to the batch for a bulk load into an application that
+	 * doesn't hold any of the loaded entities yet. Nothing is read while
+	 * building the mutations: values aren't checked for uniqueness, no
+	 * previous aliases or index entries are looked up to be removed, and the
+	 * aggregate collection counters aren't incremented, it's up to the loader
+	 * to set them once it's done.
+	 *
+	 * @param m
+	 *            the batch
+	 * @param entityType
+	 *            the entity type
+	 * @param properties
+	 *            the properties
+	 * @param importId
+	 *            the id of the entity
+	 * @param timestampUuid
+	 *            the timestamp of the mutations
+	 * @return the entity
+	 * @throws Exception
+	 */
+  @Metered(group = "core", name = "EntityManager_batchLoad")
+	public Entity batchLoad(Mutator<ByteBuffer> m, String entityType,
+			Map<String, Object> properties, UUID importId, UUID timestampUuid)
+			throws Exception {
+		return batchCreate(m, entityType, null, properties, importId,
+				timestampUuid, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <A extends Entity> A batchCreate(Mutator<ByteBuffer> m,
+			String entityType, Class<A> entityClass,
+			Map<String, Object> properties, UUID importId, UUID timestampUuid,
+			boolean bulk) throws Exception {
 
 		String eType = Schema.normalizeEntityType(entityType);
 
@@ -1025,6 +1125,15 @@ public class EntityManagerImpl implements EntityManager {
 			collection = schema.getCollection(TYPE_APPLICATION,
 					collection_name);
 			if(!emptyPropertyMap) {
+				// an import may name an entity that's already a member
+				if ((importId == null)
+						|| bulk
+						|| (cass.getColumn(
+								cass.getApplicationKeyspace(applicationId),
+								ENTITY_ID_SETS, collection_key, itemId, ue, be) == null)) {
+					RelationManagerImpl.batchIncrementCollectionSize(m,
+							applicationId, collection_name, 1);
+				}
 				addInsertToMutator(m, ENTITY_ID_SETS, collection_key, itemId, null,
 					timestamp);
 			}
@@ -1086,7 +1195,9 @@ public class EntityManagerImpl implements EntityManager {
 				}
 			}
 			Message message = storeEventAsMessage(m, event, timestamp);
-			incrementEntityCollection("events", timestamp);
+			if (!bulk) {
+				incrementEntityCollection("events", timestamp);
+			}
 
 			entity.setUuid(message.getUuid());
 			return entity;
@@ -1102,7 +1213,7 @@ public class EntityManagerImpl implements EntityManager {
 				continue;
 			}
 
-			if (!is_application
+			if (!is_application && !bulk
 					&& !isPropertyValueUniqueForEntity(applicationId,
 							entityType, prop_name, propertyValue)) {
 				throw new DuplicateUniquePropertyExistsException(entityType,
@@ -1127,7 +1238,10 @@ public class EntityManagerImpl implements EntityManager {
 			 /**
        * Unique property, load the old value and remove it, check if it's not a duplicate
        */
-      if (schema.getEntityInfo(entity.getType()).isPropertyUnique(prop_name)) {
+      if (bulk && schema.getEntityInfo(entity.getType()).isPropertyUnique(prop_name)) {
+        // nothing to race with while the application is being loaded
+        uniquePropertyWrite(m, Schema.defaultCollectionName(entityType), prop_name, propertyValue, itemId, timestamp);
+      } else if (schema.getEntityInfo(entity.getType()).isPropertyUnique(prop_name)) {
         /**
          * Only lock on the target values. We don't want lock contention if
          * another node is trying to set the property do a different value
@@ -1150,11 +1264,11 @@ public class EntityManagerImpl implements EntityManager {
 			entity.setProperty(prop_name, propertyValue);
 
 			batchSetProperty(m, entity, prop_name, propertyValue, true, true,
-					timestampUuid);
+					bulk, timestampUuid);
 
 		}
 
-		if (!is_application) {
+		if (!is_application && !bulk) {
 			incrementEntityCollection(collection_name, timestamp);
 		}
 
@@ -1633,7 +1747,8 @@ public class EntityManagerImpl implements EntityManager {
 				entity.getType(), dictionaryName);
 		boolean coTypeIsBasic = ClassUtils.isBasicType(setCoType);
 
-		List<HColumn<ByteBuffer, ByteBuffer>> results = cass.getAllColumns(
+		// dictionaries can be wide, read them a page at a time
+		Iterable<HColumn<ByteBuffer, ByteBuffer>> results = cass.getColumnIterator(
 				cass.getApplicationKeyspace(applicationId), dictionaryCf,
 				key(entity.getUuid(), dictionaryName), be, be);
 		for (HColumn<ByteBuffer, ByteBuffer> result : results) {
@@ -1730,14 +1845,22 @@ public class EntityManagerImpl implements EntityManager {
 			}
 		}
 
-		// delete any core dictionaries and dynamic dictionaries associated with
-		// this entity
+		// remove the index entries of the core dictionaries associated with
+		// this entity, the dictionary rows themselves are deleted below
 		Set<String> dictionaries = getDictionaryNames(entity);
 		if (dictionaries != null) {
 			for (String dictionary : dictionaries) {
-				Set<Object> values = getDictionaryAsSet(entity, dictionary);
-				if (values != null) {
-					for (Object value : values) {
+				if (!getDefaultSchema().hasDictionary(entity.getType(),
+						dictionary)) {
+					continue;
+				}
+				Class<?> setType = getDefaultSchema().getDictionaryKeyType(
+						entity.getType(), dictionary);
+				for (HColumn<ByteBuffer, ByteBuffer> column : cass
+						.getColumnIterator(ko, ENTITY_DICTIONARIES,
+								key(entity.getUuid(), dictionary), be, be)) {
+					Object value = object(setType, column.getName());
+					if (value != null) {
 						batchUpdateDictionary(m, entity, dictionary, value,
 								true, timestampUuid);
 					}
@@ -1774,6 +1897,10 @@ public class EntityManagerImpl implements EntityManager {
 
 		batchExecute(m, CassandraService.RETRY_COUNT);
 
+		if (AUTH_ENTITY_TYPES.contains(entity.getType())) {
+			publishChange(ChangeEvent.Type.ENTITY, entityId);
+		}
+
 	}
 
 	@Override
@@ -1896,32 +2023,21 @@ public class EntityManagerImpl implements EntityManager {
 			CounterResolution resolution, long start, long finish, boolean pad) {
 		start = resolution.round(start);
 		finish = resolution.round(finish);
-		long expected_time = start;
-		Keyspace ko = cass.getApplicationKeyspace(applicationId);
-		SliceCounterQuery<String, Long> q = createCounterSliceQuery(ko, se, le);
-		q.setColumnFamily(APPLICATION_AGGREGATE_COUNTERS.toString());
-		q.setRange(start, finish, false, ALL_COUNT);
-		QueryResult<CounterSlice<Long>> r = q.setKey(
-				counterUtils.getAggregateCounterRow(counterName, userId,
-						groupId, queueId, category, resolution)).execute();
-		List<AggregateCounter> counters = new ArrayList<AggregateCounter>();
-		for (HCounterColumn<Long> column : r.get().getColumns()) {
-			AggregateCounter count = new AggregateCounter(column.getName(),
-					column.getValue());
-			if (pad && !(resolution == CounterResolution.ALL)) {
-				while (count.getTimestamp() != expected_time) {
-					counters.add(new AggregateCounter(expected_time, 0));
-					expected_time = resolution.next(expected_time);
-				}
-				expected_time = resolution.next(expected_time);
-			}
-			counters.add(count);
+		String row = counterUtils.getAggregateCounterRow(counterName, userId,
+				groupId, queueId, category, resolution);
+		AggregateCounterSeries counters;
+		try {
+			counters = aggregateCounterCache.get(applicationId, resolution,
+					Collections.singletonList(row), start, finish,
+					getAggregateCounterLoader(resolution)).get(row);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to read aggregate counters for "
+					+ row, e);
 		}
-		if (pad && !(resolution == CounterResolution.ALL)) {
-			while (expected_time <= finish) {
-				counters.add(new AggregateCounter(expected_time, 0));
-				expected_time = resolution.next(expected_time);
-			}
+		if (pad) {
+			counters = counters.pad(resolution, start, finish);
 		}
 		return Results.fromCounters(new AggregateCounterSet(counterName,
 				userId, groupId, category, counters));
@@ -1945,7 +2061,6 @@ public class EntityManagerImpl implements EntityManager {
 		}
 		start = resolution.round(start);
 		finish = resolution.round(finish);
-		long expected_time = start;
 
 		if (pad && (resolution != CounterResolution.ALL)) {
 			long max_counters = (finish - start) / resolution.interval();
@@ -1960,7 +2075,6 @@ public class EntityManagerImpl implements EntityManager {
 			return null;
 		}
 		Map<String, AggregateCounterSelection> selections = new HashMap<String, AggregateCounterSelection>();
-		Keyspace ko = cass.getApplicationKeyspace(applicationId);
 
 		for (CounterFilterPredicate filter : filters) {
 			AggregateCounterSelection selection = new AggregateCounterSelection(
@@ -1972,34 +2086,15 @@ public class EntityManagerImpl implements EntityManager {
 			selections.put(selection.getRow(resolution), selection);
 		}
 
-		MultigetSliceCounterQuery<String, Long> q = HFactory
-				.createMultigetSliceCounterQuery(ko, se, le);
-		q.setColumnFamily(APPLICATION_AGGREGATE_COUNTERS.toString());
-		q.setRange(start, finish, false, ALL_COUNT);
-		QueryResult<CounterRows<String, Long>> rows = q.setKeys(
-				selections.keySet()).execute();
+		Map<String, AggregateCounterSeries> rows = aggregateCounterCache.get(
+				applicationId, resolution, selections.keySet(), start, finish,
+				getAggregateCounterLoader(resolution));
 
 		List<AggregateCounterSet> countSets = new ArrayList<AggregateCounterSet>();
-		for (CounterRow<String, Long> r : rows.get()) {
-			expected_time = start;
-			List<AggregateCounter> counters = new ArrayList<AggregateCounter>();
-			for (HCounterColumn<Long> column : r.getColumnSlice().getColumns()) {
-				AggregateCounter count = new AggregateCounter(column.getName(),
-						column.getValue());
-				if (pad && (resolution != CounterResolution.ALL)) {
-					while (count.getTimestamp() != expected_time) {
-						counters.add(new AggregateCounter(expected_time, 0));
-						expected_time = resolution.next(expected_time);
-					}
-					expected_time = resolution.next(expected_time);
-				}
-				counters.add(count);
-			}
-			if (pad && (resolution != CounterResolution.ALL)) {
-				while (expected_time <= finish) {
-					counters.add(new AggregateCounter(expected_time, 0));
-					expected_time = resolution.next(expected_time);
-				}
+		for (Entry<String, AggregateCounterSeries> r : rows.entrySet()) {
+			AggregateCounterSeries counters = r.getValue();
+			if (pad) {
+				counters = counters.pad(resolution, start, finish);
 			}
 			AggregateCounterSelection selection = selections.get(r.getKey());
 			countSets.add(new AggregateCounterSet(selection.getName(),
@@ -2018,6 +2113,46 @@ public class EntityManagerImpl implements EntityManager {
 		return Results.fromCounters(countSets);
 	}
 
+	/**
+	 * Reads aggregate counter rows at the resolution, merging in the counts
+	 * that haven't been rolled up yet. If they can't be merged only the rolled
+	 * up counts are returned, and aren't cached.
+	 * 
+	 * @param resolution
+	 */
+	private AggregateCounterCache.Loader getAggregateCounterLoader(
+			final CounterResolution resolution) {
+		return new AggregateCounterCache.Loader() {
+			@Override
+			public Map<String, List<HCounterColumn<Long>>> load(
+					Collection<String> keys, long start, long finish)
+					throws Exception {
+				MultigetSliceCounterQuery<String, Long> q = HFactory
+						.createMultigetSliceCounterQuery(
+								cass.getApplicationKeyspace(applicationId), se,
+								le);
+				q.setColumnFamily(APPLICATION_AGGREGATE_COUNTERS.toString());
+				q.setRange(start, finish, false, ALL_COUNT);
+				QueryResult<CounterRows<String, Long>> rows = q.setKeys(keys)
+						.execute();
+
+				Map<String, List<HCounterColumn<Long>>> columns = new LinkedHashMap<String, List<HCounterColumn<Long>>>();
+				for (CounterRow<String, Long> r : rows.get()) {
+					columns.put(r.getKey(), r.getColumnSlice().getColumns());
+				}
+				try {
+					return aggregateCounterRollup.merge(applicationId,
+							resolution, start, finish, columns);
+				} catch (Exception e) {
+					logger.error("Unable to merge unrolled counts for " + keys,
+							e);
+					throw new AggregateCounterCache.IncompleteLoadException(
+							columns, e);
+				}
+			}
+		};
+	}
+
 	@Override
   @Metered(group="core",name="EntityManager_getEntityCounters")
 	public Map<String, Long> getEntityCounters(UUID entityId) throws Exception {
@@ -2489,6 +2624,33 @@ public class EntityManagerImpl implements EntityManager {
 		return collections;
 	}
 
+	@Override
+	public int reconcileCollectionSizes() throws Exception {
+		Keyspace ko = cass.getApplicationKeyspace(applicationId);
+		Object pendingKey = key(applicationId,
+				DICTIONARY_UNRECONCILED_COLLECTIONS);
+		int count = 0;
+		for (HColumn<DynamicComposite, ByteBuffer> column : cass
+				.getColumnIterator(ko, ENTITY_COMPOSITE_DICTIONARIES,
+						pendingKey, EntityManagerFactoryImpl.dce, be)) {
+			DynamicComposite composite = column.getName();
+			String ownerType = (String) composite.get(0);
+			UUID ownerId = (UUID) composite.get(1);
+			String collectionName = (String) composite.get(2);
+			getRelationManager(ref(ownerType, ownerId))
+					.reconcileCollectionSize(collectionName);
+
+			// delete at the read timestamp so a newer request isn't lost
+			Mutator<ByteBuffer> m = createMutator(ko, be);
+			addDeleteToMutator(m, ENTITY_COMPOSITE_DICTIONARIES, pendingKey,
+					asList(ownerType, ownerId, collectionName),
+					column.getClock());
+			batchExecute(m, CassandraService.RETRY_COUNT);
+			count++;
+		}
+		return count;
+	}
+
 	@Override
 	public long getApplicationCollectionSize(String collectionName)
 			throws Exception {
@@ -2639,6 +2801,7 @@ public class EntityManagerImpl implements EntityManager {
 				getRolePermissionsKey(roleName), permission,
 				ByteBuffer.allocate(0), timestamp);
 		batchExecute(batch, CassandraService.RETRY_COUNT);
+		publishChange(ChangeEvent.Type.PERMISSION, roleName);
 	}
 
 	@Override
@@ -2655,6 +2818,7 @@ public class EntityManagerImpl implements EntityManager {
 					ByteBuffer.allocate(0), timestamp);
 		}
 		batchExecute(batch, CassandraService.RETRY_COUNT);
+		publishChange(ChangeEvent.Type.PERMISSION, roleName);
 	}
 
 	@Override
@@ -2669,6 +2833,7 @@ public class EntityManagerImpl implements EntityManager {
 				ApplicationCF.ENTITY_DICTIONARIES,
 				getRolePermissionsKey(roleName), permission, timestamp);
 		batchExecute(batch, CassandraService.RETRY_COUNT);
+		publishChange(ChangeEvent.Type.PERMISSION, roleName);
 	}
 
 	@Override
@@ -2680,6 +2845,43 @@ public class EntityManagerImpl implements EntityManager {
 				getRolePermissionsKey(roleName));
 	}
 
+	@Override
+	public Map<String, Set<String>> getRolesPermissions(Set<String> roleNames)
+			throws Exception {
+		Map<String, Set<String>> permissions = new HashMap<String, Set<String>>();
+		if ((roleNames == null) || roleNames.isEmpty()) {
+			return permissions;
+		}
+
+		// read every role's permission row in one multiget
+		Map<ByteBuffer, String> keys = new HashMap<ByteBuffer, String>();
+		for (String roleName : roleNames) {
+			roleName = roleName.toLowerCase();
+			keys.put(bytebuffer(getRolePermissionsKey(roleName)), roleName);
+			permissions.put(roleName, new LinkedHashSet<String>());
+		}
+
+		Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> rows = cass
+				.multiGetColumns(cass.getApplicationKeyspace(applicationId),
+						ApplicationCF.ENTITY_DICTIONARIES,
+						new ArrayList<ByteBuffer>(keys.keySet()), null, null,
+						ALL_COUNT, false);
+
+		for (Map.Entry<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> row : rows
+				.entrySet()) {
+			String roleName = keys.get(row.getKey());
+			if (roleName == null) {
+				continue;
+			}
+			Set<String> rolePermissions = permissions.get(roleName);
+			for (HColumn<ByteBuffer, ByteBuffer> column : row.getValue()) {
+				rolePermissions.add(se.fromByteBuffer(column.getName()));
+			}
+		}
+
+		return permissions;
+	}
+
 	@Override
 	public void deleteRole(String roleName) throws Exception {
 		roleName = roleName.toLowerCase();
@@ -2688,6 +2890,7 @@ public class EntityManagerImpl implements EntityManager {
 		removeFromDictionary(getApplicationRef(), DICTIONARY_ROLETIMES,
 				roleName);
 		delete(roleRef(roleName));
+		publishChange(ChangeEvent.Type.ROLE, roleName);
 	}
 
 	public CollectionRef memberRef(UUID groupId, UUID userId) {
@@ -2724,6 +2927,7 @@ public class EntityManagerImpl implements EntityManager {
 				getRolePermissionsKey(groupId, roleName), permission,
 				ByteBuffer.allocate(0), timestamp);
 		batchExecute(batch, CassandraService.RETRY_COUNT);
+		publishChange(ChangeEvent.Type.PERMISSION, roleName);
 	}
 
 	@Override
@@ -2739,6 +2943,7 @@ public class EntityManagerImpl implements EntityManager {
 						getRolePermissionsKey(groupId, roleName), permission,
 						timestamp);
 		batchExecute(batch, CassandraService.RETRY_COUNT);
+		publishChange(ChangeEvent.Type.PERMISSION, roleName);
 	}
 
 	@Override
@@ -2758,6 +2963,7 @@ public class EntityManagerImpl implements EntityManager {
 		cass.deleteRow(cass.getApplicationKeyspace(applicationId),
 				ApplicationCF.ENTITY_DICTIONARIES,
 				getIdForGroupIdAndRoleName(groupId, roleName));
+		publishChange(ChangeEvent.Type.ROLE, roleName);
 	}
 
 	@Override
@@ -2781,6 +2987,7 @@ public class EntityManagerImpl implements EntityManager {
 		addToCollection(userRef(userId), COLLECTION_ROLES, roleRef(roleName));
 		// addToCollection(roleRef(roleName), COLLECTION_USERS,
 		// userRef(userId));
+		publishChange(ChangeEvent.Type.ROLE, roleName);
 	}
 
 	@Override
@@ -2792,6 +2999,7 @@ public class EntityManagerImpl implements EntityManager {
 				roleRef(roleName));
 		// removeFromCollection(roleRef(roleName), COLLECTION_USERS,
 		// userRef(userId));
+		publishChange(ChangeEvent.Type.ROLE, roleName);
 	}
 
 	@Override
@@ -2805,6 +3013,7 @@ public class EntityManagerImpl implements EntityManager {
 			throws Exception {
 		permission = permission.toLowerCase();
 		addToDictionary(userRef(userId), DICTIONARY_PERMISSIONS, permission);
+		publishChange(ChangeEvent.Type.PERMISSION, userId);
 	}
 
 	@Override
@@ -2813,6 +3022,7 @@ public class EntityManagerImpl implements EntityManager {
 		permission = permission.toLowerCase();
 		removeFromDictionary(userRef(userId), DICTIONARY_PERMISSIONS,
 				permission);
+		publishChange(ChangeEvent.Type.PERMISSION, userId);
 	}
 
 	@Override
@@ -2832,6 +3042,7 @@ public class EntityManagerImpl implements EntityManager {
 		addToDictionary(memberRef, DICTIONARY_ROLENAMES, roleName, roleName);
 		addToCollection(memberRef, COLLECTION_ROLES, roleRef);
 		addToCollection(roleRef, COLLECTION_USERS, userRef(userId));
+		publishChange(ChangeEvent.Type.ROLE, roleName);
 	}
 
 	@Override
@@ -2843,6 +3054,7 @@ public class EntityManagerImpl implements EntityManager {
 		removeFromDictionary(memberRef, DICTIONARY_ROLENAMES, roleName);
 		removeFromCollection(memberRef, COLLECTION_ROLES, roleRef);
 		removeFromCollection(roleRef, COLLECTION_USERS, userRef(userId));
+		publishChange(ChangeEvent.Type.ROLE, roleName);
 	}
 
 	@Override
@@ -2955,15 +3167,21 @@ public class EntityManagerImpl implements EntityManager {
 	@Override
 	public Entity addToCollection(EntityRef entityRef, String collectionName,
 			EntityRef itemRef) throws Exception {
-		return getRelationManager(entityRef).addToCollection(collectionName,
-				itemRef);
+		Entity entity = getRelationManager(entityRef).addToCollection(
+				collectionName, itemRef);
+		publishMembershipChange(entityRef, collectionName);
+		return entity;
 	}
 
 	@Override
 	public Entity addToCollections(List<EntityRef> ownerEntities,
 			String collectionName, EntityRef itemRef) throws Exception {
-		return getRelationManager(itemRef).addToCollections(ownerEntities,
-				collectionName);
+		Entity entity = getRelationManager(itemRef).addToCollections(
+				ownerEntities, collectionName);
+		for (EntityRef ownerRef : ownerEntities) {
+			publishMembershipChange(ownerRef, collectionName);
+		}
+		return entity;
 	}
 
 	@Override
@@ -2979,6 +3197,7 @@ public class EntityManagerImpl implements EntityManager {
 			String collectionName, EntityRef itemRef) throws Exception {
 		getRelationManager(entityRef).removeFromCollection(collectionName,
 				itemRef);
+		publishMembershipChange(entityRef, collectionName);
 	}
 
 	@Override
@@ -3101,6 +3320,14 @@ public class EntityManagerImpl implements EntityManager {
 				connectionType, connectedEntityType, resultsLevel);
 	}
 
+	@Override
+	public EntityIdPage getConnectingEntityIds(UUID entityId,
+			String connectionType, String connectingEntityType,
+			String cursor, int count) throws Exception {
+		return getRelationManager(ref(entityId)).getConnectingEntityIds(
+				connectionType, connectingEntityType, cursor, count);
+	}
+
 	@Override
 	public List<ConnectedEntityRef> getConnections(UUID entityId, Query query)
 			throws Exception {
@@ -3239,6 +3466,7 @@ public class EntityManagerImpl implements EntityManager {
     roleName = roleName.toLowerCase();
     addToDictionary(groupRef(groupId), DICTIONARY_ROLENAMES, roleName, roleName);
     addToCollection(groupRef(groupId), COLLECTION_ROLES, roleRef(roleName));
+    publishChange(ChangeEvent.Type.ROLE, roleName);
   }
 
   @Override
@@ -3246,6 +3474,7 @@ public class EntityManagerImpl implements EntityManager {
     roleName = roleName.toLowerCase();
     removeFromDictionary(groupRef(groupId), DICTIONARY_ROLENAMES, roleName);
     removeFromCollection(groupRef(groupId), COLLECTION_ROLES, roleRef(roleName));
+    publishChange(ChangeEvent.Type.ROLE, roleName);
   }
 
   @Override
@@ -3257,12 +3486,14 @@ public class EntityManagerImpl implements EntityManager {
   public void grantGroupPermission(UUID groupId, String permission) throws Exception {
     permission = permission.toLowerCase();
     addToDictionary(groupRef(groupId), DICTIONARY_PERMISSIONS, permission);
+    publishChange(ChangeEvent.Type.PERMISSION, groupId);
   }
 
   @Override
   public void revokeGroupPermission(UUID groupId, String permission) throws Exception {
     permission = permission.toLowerCase();
     removeFromDictionary(groupRef(groupId), DICTIONARY_PERMISSIONS, permission);
+    publishChange(ChangeEvent.Type.PERMISSION, groupId);
   }
 
 }
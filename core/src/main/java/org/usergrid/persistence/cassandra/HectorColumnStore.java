@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createCountQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+import static org.usergrid.persistence.cassandra.CassandraPersistenceUtils.batchExecute;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.beans.Rows;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.CountQuery;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
+import me.prettyprint.hector.api.query.QueryResult;
+import me.prettyprint.hector.api.query.SliceQuery;
+
+/**
+ * The column store backed by the cluster, every operation is a Hector query or
+ * mutation.
+ */
+public class HectorColumnStore implements ColumnStore {
+
+  private static final ByteBufferSerializer be = new ByteBufferSerializer();
+
+  @Override
+  public void register(Keyspace ko, String keyspace, UUID prefix) {
+    // hector keyspaces already carry their name and prefix
+  }
+
+  @Override
+  public <N, V> List<HColumn<N, V>> getSlice(Keyspace ko, String columnFamily, ByteBuffer key, N start, N finish,
+      int count, boolean reversed, Serializer<N> nameSerializer, Serializer<V> valueSerializer) throws Exception {
+
+    SliceQuery<ByteBuffer, N, V> q = createSliceQuery(ko, be, nameSerializer, valueSerializer);
+    q.setColumnFamily(columnFamily);
+    q.setKey(key);
+    q.setRange(start, finish, reversed, count);
+    return q.execute().get().getColumns();
+  }
+
+  @Override
+  public <K, N, V> Map<K, List<HColumn<N, V>>> multigetSlice(Keyspace ko, String columnFamily, List<K> keys,
+      N start, N finish, int count, boolean reversed, Serializer<K> keySerializer, Serializer<N> nameSerializer,
+      Serializer<V> valueSerializer) throws Exception {
+
+    MultigetSliceQuery<K, N, V> q = createMultigetSliceQuery(ko, keySerializer, nameSerializer, valueSerializer);
+    q.setColumnFamily(columnFamily);
+    q.setKeys(keys);
+    q.setRange(start, finish, reversed, count);
+    QueryResult<Rows<K, N, V>> r = q.execute();
+
+    Map<K, List<HColumn<N, V>>> results = new LinkedHashMap<K, List<HColumn<N, V>>>();
+    for (Row<K, N, V> row : r.get()) {
+      results.put(row.getKey(), row.getColumnSlice().getColumns());
+    }
+    return results;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <N, V> List<HColumn<N, V>> getColumns(Keyspace ko, String columnFamily, ByteBuffer key,
+      Collection<N> names, Serializer<N> nameSerializer, Serializer<V> valueSerializer) throws Exception {
+
+    SliceQuery<ByteBuffer, N, V> q = createSliceQuery(ko, be, nameSerializer, valueSerializer);
+    q.setColumnFamily(columnFamily);
+    q.setKey(key);
+    q.setColumnNames((N[]) new ArrayList<N>(names).toArray());
+    return q.execute().get().getColumns();
+  }
+
+  @Override
+  public int countColumns(Keyspace ko, String columnFamily, ByteBuffer key) throws Exception {
+
+    CountQuery<ByteBuffer, ByteBuffer> cq = createCountQuery(ko, be, be);
+    cq.setColumnFamily(columnFamily);
+    cq.setKey(key);
+    cq.setRange(ByteBuffer.allocate(0), ByteBuffer.allocate(0), 100000000);
+    QueryResult<Integer> r = cq.execute();
+    if (r == null) {
+      return 0;
+    }
+    return r.get();
+  }
+
+  @Override
+  public <N, V> void insert(Keyspace ko, String columnFamily, ByteBuffer key, List<HColumn<N, V>> columns)
+      throws Exception {
+
+    Mutator<ByteBuffer> m = createMutator(ko, be);
+    for (HColumn<N, V> column : columns) {
+      m.addInsertion(key, columnFamily, column);
+    }
+    batchExecute(m, CassandraService.RETRY_COUNT);
+  }
+
+  @Override
+  public void deleteColumn(Keyspace ko, String columnFamily, ByteBuffer key, ByteBuffer name, long timestamp)
+      throws Exception {
+    createMutator(ko, be).addDeletion(key, columnFamily, name, be, timestamp).execute();
+  }
+
+  @Override
+  public void deleteRow(Keyspace ko, String columnFamily, ByteBuffer key, long timestamp) throws Exception {
+    createMutator(ko, be).addDeletion(key, columnFamily, timestamp).execute();
+  }
+
+  @Override
+  public <K> void getRowKeys(Keyspace ko, String columnFamily, Serializer<K> keySerializer, int pageSize,
+      Executor executor, Collection<K> keys) throws Exception {
+
+    for (Row<K, ByteBuffer, ByteBuffer> row : new RowIterator<K, ByteBuffer, ByteBuffer>(ko, columnFamily,
+        keySerializer, be, be, new ByteBuffer[0], pageSize, executor)) {
+      keys.add(row.getKey());
+    }
+  }
+
+}
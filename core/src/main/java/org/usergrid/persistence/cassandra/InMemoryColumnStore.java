@@ -0,0 +1,358 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static org.usergrid.persistence.cassandra.CassandraService.PRINCIPAL_TOKEN_CF;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.HColumn;
+
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.db.marshal.TypeParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.usergrid.mq.cassandra.QueuesCF;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * A column store held in memory for tests and benchmarks. Columns are kept
+ * sorted with the same comparators the column families are created with, so
+ * DynamicComposite and UUID columns slice in the order Cassandra would return
+ * them. Timestamps, row deletions and ttls are honoured, nothing is
+ * persisted.
+ */
+public class InMemoryColumnStore implements ColumnStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(InMemoryColumnStore.class);
+
+  // weak keys compare by identity, so each handle maps to its own keyspace
+  private final Map<Keyspace, String> scopes = new MapMaker().weakKeys().makeMap();
+
+  private final Map<String, Comparator<ByteBuffer>> comparators = new ConcurrentHashMap<String, Comparator<ByteBuffer>>();
+
+  private final ConcurrentMap<String, ConcurrentMap<ByteBuffer, MemoryRow>> families = new ConcurrentHashMap<String, ConcurrentMap<ByteBuffer, MemoryRow>>();
+
+  public InMemoryColumnStore() {
+    setComparators(ApplicationCF.values());
+    setComparators(QueuesCF.values());
+    setComparator(PRINCIPAL_TOKEN_CF, "UUIDType");
+  }
+
+  /**
+   * Sorts the columns of each of the column families with its comparator
+   */
+  public void setComparators(CFEnum[] columnFamilies) {
+    for (CFEnum cf : columnFamilies) {
+      setComparator(cf.getColumnFamily(), cf.getComparator());
+    }
+  }
+
+  /**
+   * Sorts the columns of a column family, column families without a
+   * comparator are sorted as bytes
+   * 
+   * @param columnFamily
+   * @param comparator
+   *          the Cassandra comparator type, as given when the column family
+   *          is created
+   */
+  public void setComparator(String columnFamily, String comparator) {
+    try {
+      comparators.put(columnFamily, TypeParser.parse(comparator));
+    } catch (Exception e) {
+      logger.warn("Unable to parse comparator {} of {}, sorting as bytes", comparator, columnFamily);
+      comparators.put(columnFamily, BytesType.instance);
+    }
+  }
+
+  /**
+   * Drops every row of every keyspace
+   */
+  public void clear() {
+    families.clear();
+  }
+
+  @Override
+  public void register(Keyspace ko, String keyspace, UUID prefix) {
+    scopes.put(ko, prefix == null ? keyspace : keyspace + "/" + prefix);
+  }
+
+  @Override
+  public <N, V> List<HColumn<N, V>> getSlice(Keyspace ko, String columnFamily, ByteBuffer key, N start, N finish,
+      int count, boolean reversed, Serializer<N> nameSerializer, Serializer<V> valueSerializer) {
+
+    MemoryRow row = getRow(ko, columnFamily, key, false);
+    if (row == null) {
+      return new ArrayList<HColumn<N, V>>();
+    }
+
+    ByteBuffer startBytes = start == null ? null : nameSerializer.toByteBuffer(start);
+    ByteBuffer finishBytes = finish == null ? null : nameSerializer.toByteBuffer(finish);
+
+    return toColumns(row.slice(startBytes, finishBytes, count, reversed, now()), nameSerializer, valueSerializer);
+  }
+
+  @Override
+  public <K, N, V> Map<K, List<HColumn<N, V>>> multigetSlice(Keyspace ko, String columnFamily, List<K> keys,
+      N start, N finish, int count, boolean reversed, Serializer<K> keySerializer, Serializer<N> nameSerializer,
+      Serializer<V> valueSerializer) {
+
+    Map<K, List<HColumn<N, V>>> results = new LinkedHashMap<K, List<HColumn<N, V>>>();
+    for (K key : keys) {
+      results.put(key, getSlice(ko, columnFamily, keySerializer.toByteBuffer(key), start, finish, count, reversed,
+          nameSerializer, valueSerializer));
+    }
+    return results;
+  }
+
+  @Override
+  public <N, V> List<HColumn<N, V>> getColumns(Keyspace ko, String columnFamily, ByteBuffer key,
+      Collection<N> names, Serializer<N> nameSerializer, Serializer<V> valueSerializer) {
+
+    MemoryRow row = getRow(ko, columnFamily, key, false);
+    if (row == null) {
+      return new ArrayList<HColumn<N, V>>();
+    }
+
+    long now = now();
+    TreeMap<ByteBuffer, Cell> found = new TreeMap<ByteBuffer, Cell>(row.cells.comparator());
+    for (N name : names) {
+      ByteBuffer nameBytes = copy(nameSerializer.toByteBuffer(name));
+      Cell cell = row.cells.get(nameBytes);
+      if ((cell != null) && cell.isLive(now)) {
+        found.put(nameBytes, cell);
+      }
+    }
+
+    return toColumns(found.entrySet(), nameSerializer, valueSerializer);
+  }
+
+  @Override
+  public int countColumns(Keyspace ko, String columnFamily, ByteBuffer key) {
+    MemoryRow row = getRow(ko, columnFamily, key, false);
+    if (row == null) {
+      return 0;
+    }
+    return row.slice(null, null, Integer.MAX_VALUE, false, now()).size();
+  }
+
+  @Override
+  public <N, V> void insert(Keyspace ko, String columnFamily, ByteBuffer key, List<HColumn<N, V>> columns) {
+    MemoryRow row = getRow(ko, columnFamily, key, true);
+    long now = now();
+    for (HColumn<N, V> column : columns) {
+      long expires = column.getTtl() > 0 ? now + (column.getTtl() * 1000L) : 0;
+      row.write(copy(column.getNameBytes()),
+          new Cell(copy(column.getValueBytes()), column.getClock(), column.getTtl(), expires));
+    }
+  }
+
+  @Override
+  public void deleteColumn(Keyspace ko, String columnFamily, ByteBuffer key, ByteBuffer name, long timestamp) {
+    getRow(ko, columnFamily, key, true).write(copy(name), new Cell(null, timestamp, 0, 0));
+  }
+
+  @Override
+  public void deleteRow(Keyspace ko, String columnFamily, ByteBuffer key, long timestamp) {
+    getRow(ko, columnFamily, key, true).delete(timestamp);
+  }
+
+  @Override
+  public <K> void getRowKeys(Keyspace ko, String columnFamily, Serializer<K> keySerializer, int pageSize,
+      Executor executor, Collection<K> keys) {
+    Map<ByteBuffer, MemoryRow> rows = families.get(scope(ko) + "/" + columnFamily);
+    if (rows == null) {
+      return;
+    }
+
+    long now = now();
+    for (Entry<ByteBuffer, MemoryRow> entry : rows.entrySet()) {
+      if (!entry.getValue().slice(null, null, 1, false, now).isEmpty()) {
+        keys.add(keySerializer.fromByteBuffer(entry.getKey().duplicate()));
+      }
+    }
+  }
+
+  private String scope(Keyspace ko) {
+    String scope = scopes.get(ko);
+    return scope != null ? scope : ko.getKeyspaceName();
+  }
+
+  private MemoryRow getRow(Keyspace ko, String columnFamily, ByteBuffer key, boolean create) {
+    String family = scope(ko) + "/" + columnFamily;
+
+    ConcurrentMap<ByteBuffer, MemoryRow> rows = families.get(family);
+    if (rows == null) {
+      if (!create) {
+        return null;
+      }
+      rows = new ConcurrentHashMap<ByteBuffer, MemoryRow>();
+      ConcurrentMap<ByteBuffer, MemoryRow> existing = families.putIfAbsent(family, rows);
+      if (existing != null) {
+        rows = existing;
+      }
+    }
+
+    ByteBuffer keyBytes = copy(key);
+    MemoryRow row = rows.get(keyBytes);
+    if ((row == null) && create) {
+      row = new MemoryRow(getComparator(columnFamily));
+      MemoryRow existing = rows.putIfAbsent(keyBytes, row);
+      if (existing != null) {
+        row = existing;
+      }
+    }
+    return row;
+  }
+
+  private Comparator<ByteBuffer> getComparator(String columnFamily) {
+    Comparator<ByteBuffer> comparator = comparators.get(columnFamily);
+    return comparator != null ? comparator : BytesType.instance;
+  }
+
+  private static <N, V> List<HColumn<N, V>> toColumns(Collection<Entry<ByteBuffer, Cell>> cells,
+      Serializer<N> nameSerializer, Serializer<V> valueSerializer) {
+
+    List<HColumn<N, V>> columns = new ArrayList<HColumn<N, V>>(cells.size());
+    for (Entry<ByteBuffer, Cell> entry : cells) {
+      Cell cell = entry.getValue();
+      HColumn<N, V> column = createColumn(nameSerializer.fromByteBuffer(entry.getKey().duplicate()),
+          valueSerializer.fromByteBuffer(cell.value.duplicate()), cell.timestamp, nameSerializer, valueSerializer);
+      if (cell.ttl > 0) {
+        column.setTtl(cell.ttl);
+      }
+      columns.add(column);
+    }
+    return columns;
+  }
+
+  private static ByteBuffer copy(ByteBuffer bytes) {
+    if (bytes == null) {
+      return ByteBuffer.allocate(0);
+    }
+    ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+    copy.put(bytes.duplicate());
+    copy.flip();
+    return copy;
+  }
+
+  private static long now() {
+    return System.currentTimeMillis();
+  }
+
+  private static boolean isBound(ByteBuffer bytes) {
+    return (bytes != null) && bytes.hasRemaining();
+  }
+
+  /**
+   * A column value, or a tombstone when the value is null
+   */
+  private static class Cell {
+    private final ByteBuffer value;
+    private final long timestamp;
+    private final int ttl;
+    private final long expires;
+
+    Cell(ByteBuffer value, long timestamp, int ttl, long expires) {
+      this.value = value;
+      this.timestamp = timestamp;
+      this.ttl = ttl;
+      this.expires = expires;
+    }
+
+    boolean isLive(long now) {
+      return (value != null) && ((expires == 0) || (expires > now));
+    }
+  }
+
+  private static class MemoryRow {
+    private final ConcurrentSkipListMap<ByteBuffer, Cell> cells;
+
+    // columns written at or before this were removed with the row
+    private long deleted = Long.MIN_VALUE;
+
+    MemoryRow(Comparator<ByteBuffer> comparator) {
+      cells = new ConcurrentSkipListMap<ByteBuffer, Cell>(comparator);
+    }
+
+    synchronized void write(ByteBuffer name, Cell cell) {
+      if (cell.timestamp <= deleted) {
+        return;
+      }
+      Cell current = cells.get(name);
+      // as in Cassandra, the newer write wins and a tombstone wins a tie
+      if ((current == null) || (cell.timestamp > current.timestamp)
+          || ((cell.timestamp == current.timestamp) && (cell.value == null))) {
+        cells.put(name, cell);
+      }
+    }
+
+    synchronized void delete(long timestamp) {
+      deleted = Math.max(deleted, timestamp);
+      for (Iterator<Cell> i = cells.values().iterator(); i.hasNext();) {
+        if (i.next().timestamp <= timestamp) {
+          i.remove();
+        }
+      }
+    }
+
+    List<Entry<ByteBuffer, Cell>> slice(ByteBuffer start, ByteBuffer finish, int count, boolean reversed, long now) {
+      NavigableMap<ByteBuffer, Cell> range = reversed ? cells.descendingMap() : cells;
+      if (isBound(start) && isBound(finish)) {
+        if (range.comparator().compare(start, finish) > 0) {
+          // a range that ends before it starts is empty
+          return new ArrayList<Entry<ByteBuffer, Cell>>();
+        }
+        range = range.subMap(start, true, finish, true);
+      } else if (isBound(start)) {
+        range = range.tailMap(start, true);
+      } else if (isBound(finish)) {
+        range = range.headMap(finish, true);
+      }
+
+      List<Entry<ByteBuffer, Cell>> live = new ArrayList<Entry<ByteBuffer, Cell>>();
+      for (Entry<ByteBuffer, Cell> entry : range.entrySet()) {
+        if (live.size() >= count) {
+          break;
+        }
+        if (entry.getValue().isLive(now)) {
+          live.add(entry);
+        }
+      }
+      return live;
+    }
+  }
+}
@@ -17,6 +17,8 @@ package org.usergrid.persistence.cassandra;
 
 import static java.lang.String.CASE_INSENSITIVE_ORDER;
 import static java.util.Arrays.asList;
+import static me.prettyprint.hector.api.factory.HFactory.createCounterColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createCounterColumnQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createIndexedSlicesQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createMutator;
@@ -31,6 +33,7 @@ import static org.usergrid.persistence.Results.Level.IDS;
 import static org.usergrid.persistence.Results.Level.REFS;
 import static org.usergrid.persistence.Schema.COLLECTION_ROLES;
 import static org.usergrid.persistence.Schema.DICTIONARY_COLLECTIONS;
+import static org.usergrid.persistence.Schema.DICTIONARY_COLLECTION_SIZES;
 import static org.usergrid.persistence.Schema.DICTIONARY_CONNECTED_ENTITIES;
 import static org.usergrid.persistence.Schema.DICTIONARY_CONNECTED_TYPES;
 import static org.usergrid.persistence.Schema.DICTIONARY_CONNECTING_ENTITIES;
@@ -56,6 +59,7 @@ import static org.usergrid.persistence.Schema.getDefaultSchema;
 import static org.usergrid.persistence.SimpleEntityRef.ref;
 import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COMPOSITE_DICTIONARIES;
 import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_CONNECTIONS;
+import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COUNTERS;
 import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_DICTIONARIES;
 import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_ID_SETS;
 import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_INDEX;
@@ -108,10 +112,12 @@ import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.beans.AbstractComposite.ComponentEquality;
 import me.prettyprint.hector.api.beans.DynamicComposite;
 import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.HCounterColumn;
 import me.prettyprint.hector.api.beans.OrderedRows;
 import me.prettyprint.hector.api.beans.Row;
 import me.prettyprint.hector.api.beans.Rows;
 import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.CounterQuery;
 import me.prettyprint.hector.api.query.MultigetSliceQuery;
 import me.prettyprint.hector.api.query.QueryResult;
 
@@ -170,6 +176,9 @@ public class RelationManagerImpl implements RelationManager {
   public static final LongSerializer le = new LongSerializer();
   private static final UUID NULL_ID = new UUID(0, 0);
 
+  /** Counts of a collection made before giving up on reconciling it */
+  private static final int RECONCILE_ATTEMPTS = 3;
+
   public RelationManagerImpl() {
   }
 
@@ -559,6 +568,11 @@ public class RelationManagerImpl implements RelationManager {
 
       Object collections_key = key(ownerId, Schema.DICTIONARY_COLLECTIONS, collectionName, bucketId);
 
+      // Count the member without checking it's new, a re-added member is
+      // corrected by the next reconcile
+
+      batchIncrementCollectionSize(batch, ownerId, collectionName, 1);
+
       // Insert in main collection
 
       addInsertToMutator(batch, ENTITY_ID_SETS, collections_key, entity.getUuid(), membershipRef.getUuid(), timestamp);
@@ -702,6 +716,9 @@ public class RelationManagerImpl implements RelationManager {
 
     // Delete actual property
 
+    // like adds, removing a non member is corrected by the next reconcile
+    batchIncrementCollectionSize(batch, headEntity.getUuid(), collectionName, -1);
+
     addDeleteToMutator(batch, ENTITY_ID_SETS, collections_key, entity.getUuid(), timestamp);
 
     addDeleteToMutator(batch, ENTITY_COMPOSITE_DICTIONARIES,
@@ -1811,15 +1828,88 @@ public class RelationManagerImpl implements RelationManager {
   @Override
   @Metered(group = "core", name = "RelationManager_getCollectionSize")
   public long getCollectionSize(String collectionName) throws Exception {
-    long result = 0;
 
-    for (String bucketId : indexBucketLocator.getBuckets(applicationId, IndexType.COLLECTION, collectionName)) {
+    Keyspace ko = cass.getApplicationKeyspace(applicationId);
+
+    // a collection that was never reconciled may have members from before the
+    // counter, ask the reconcile job to recount it rather than count it here
+    HColumn<String, ByteBuffer> reconciled = cass.getColumn(ko, ENTITY_DICTIONARIES,
+        key(headEntity.getUuid(), DICTIONARY_COLLECTION_SIZES), collectionName);
 
-      result += cass.countColumns(cass.getApplicationKeyspace(applicationId), ENTITY_ID_SETS,
-          key(headEntity.getUuid(), DICTIONARY_COLLECTIONS, collectionName, bucketId));
+    if (reconciled == null) {
+      Mutator<ByteBuffer> m = createMutator(ko, be);
+      addInsertToMutator(m, ENTITY_COMPOSITE_DICTIONARIES, key(applicationId, DICTIONARY_UNRECONCILED_COLLECTIONS),
+          asList(headEntity.getType(), headEntity.getUuid(), collectionName), null, cass.createTimestamp());
+      batchExecute(m, CassandraService.RETRY_COUNT);
     }
 
-    return result;
+    return getCollectionSizeCounter(ko, collectionName);
+  }
+
+  @Override
+  @Metered(group = "core", name = "RelationManager_reconcileCollectionSize")
+  public long reconcileCollectionSize(String collectionName) throws Exception {
+
+    Keyspace ko = cass.getApplicationKeyspace(applicationId);
+
+    // members added or removed while counting move the counter too, so the
+    // correction is only applied when the counter didn't move during the count
+    for (int attempt = 0; attempt < RECONCILE_ATTEMPTS; attempt++) {
+
+      long before = getCollectionSizeCounter(ko, collectionName);
+
+      long result = 0;
+
+      for (String bucketId : indexBucketLocator.getBuckets(applicationId, IndexType.COLLECTION, collectionName)) {
+
+        result += cass.countColumns(ko, ENTITY_ID_SETS,
+            key(headEntity.getUuid(), DICTIONARY_COLLECTIONS, collectionName, bucketId));
+      }
+
+      long counted = getCollectionSizeCounter(ko, collectionName);
+
+      if (counted != before) {
+        continue;
+      }
+
+      Mutator<ByteBuffer> m = createMutator(ko, be);
+
+      // applied as an increment, writes made since the counter was read add
+      // to the corrected value rather than being overwritten
+      if (counted != result) {
+        logger.info("Correcting size of collection {} of {} from {} to {}", new Object[] { collectionName,
+            headEntity.getUuid(), counted, result });
+        batchIncrementCollectionSize(m, headEntity.getUuid(), collectionName, result - counted);
+      }
+
+      addInsertToMutator(m, ENTITY_DICTIONARIES, key(headEntity.getUuid(), DICTIONARY_COLLECTION_SIZES),
+          collectionName, System.currentTimeMillis(), cass.createTimestamp());
+
+      batchExecute(m, CassandraService.RETRY_COUNT);
+
+      return result;
+    }
+
+    // too busy to count reliably, leave the counter for the next pass
+    logger.info("Collection {} of {} changed while being counted, not reconciled", collectionName,
+        headEntity.getUuid());
+
+    return getCollectionSizeCounter(ko, collectionName);
+  }
+
+  private long getCollectionSizeCounter(Keyspace ko, String collectionName) {
+    CounterQuery<ByteBuffer, String> q = createCounterColumnQuery(ko, be, se);
+    q.setColumnFamily(ENTITY_COUNTERS.toString());
+    q.setKey(bytebuffer(key(headEntity.getUuid(), DICTIONARY_COLLECTION_SIZES)));
+    q.setName(collectionName);
+    HCounterColumn<String> column = q.execute().get();
+    return column != null ? column.getValue() : 0;
+  }
+
+  static void batchIncrementCollectionSize(Mutator<ByteBuffer> batch, UUID ownerId, String collectionName,
+      long value) {
+    batch.addCounter(bytebuffer(key(ownerId, DICTIONARY_COLLECTION_SIZES)), ENTITY_COUNTERS.toString(),
+        createCounterColumn(collectionName, value));
   }
 
   @Override
@@ -2226,6 +2316,17 @@ public class RelationManagerImpl implements RelationManager {
     return results;
   }
 
+  @Override
+  @Metered(group = "core", name = "RelationManager_getConnectingEntityIds")
+  public EntityIdPage getConnectingEntityIds(String connectionType, String connectingEntityType, String cursor,
+      int count) throws Exception {
+
+    EntityIdPage page = new EntityIdPage(count);
+    new ConnectingEntityScanner(cass, applicationId, headEntity.getUuid(), connectionType, connectingEntityType,
+        cursor, count).next(page);
+    return page;
+  }
+
   @Override
   public List<ConnectedEntityRef> getConnections(Query query) throws Exception {
 
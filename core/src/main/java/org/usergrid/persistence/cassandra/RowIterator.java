@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createRangeSlicesQuery;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.query.RangeSlicesQuery;
+
+/**
+ * Iterates over every row of a column family a page of keys at a time, so a
+ * full scan never holds more than two pages in memory. Each row carries only
+ * the requested columns, none if no names are given. While a page is being
+ * consumed the next one is read on the executor.
+ * 
+ * Rows come back in partitioner order, so each page starts at the last key of
+ * the one before it.
+ * 
+ * @param <K>
+ *          the row key type
+ * @param <N>
+ *          the column name type
+ * @param <V>
+ *          the column value type
+ */
+public class RowIterator<K, N, V> implements Iterator<Row<K, N, V>>, Iterable<Row<K, N, V>> {
+
+  private final Keyspace ko;
+  private final String columnFamily;
+  private final Serializer<K> keySerializer;
+  private final Serializer<N> nameSerializer;
+  private final Serializer<V> valueSerializer;
+  private final N[] columnNames;
+  private final int pageSize;
+  private final Executor executor;
+
+  private Iterator<Row<K, N, V>> current;
+  private FutureTask<Page> next;
+  private int count;
+
+  /**
+   * @param ko
+   * @param columnFamily
+   * @param keySerializer
+   * @param nameSerializer
+   * @param valueSerializer
+   * @param columnNames
+   *          the columns to read from each row
+   * @param pageSize
+   *          the number of rows to read at a time
+   * @param executor
+   *          reads the next page ahead, null to read pages when they are
+   *          reached
+   */
+  public RowIterator(Keyspace ko, Object columnFamily, Serializer<K> keySerializer, Serializer<N> nameSerializer,
+      Serializer<V> valueSerializer, N[] columnNames, int pageSize, Executor executor) {
+    this.ko = ko;
+    this.columnFamily = columnFamily.toString();
+    this.keySerializer = keySerializer;
+    this.nameSerializer = nameSerializer;
+    this.valueSerializer = valueSerializer;
+    this.columnNames = columnNames;
+    this.pageSize = pageSize;
+    this.executor = executor;
+
+    next = read(null);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Iterable#iterator()
+   */
+  @Override
+  public Iterator<Row<K, N, V>> iterator() {
+    return this;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.util.Iterator#hasNext()
+   */
+  @Override
+  public boolean hasNext() {
+    while ((current == null) || !current.hasNext()) {
+      if (next == null) {
+        return false;
+      }
+
+      Page page = await(next);
+      next = null;
+      current = page.rows.iterator();
+
+      if (page.more) {
+        next = read(page.last);
+      }
+    }
+    return true;
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.util.Iterator#next()
+   */
+  @Override
+  public Row<K, N, V> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    count++;
+    return current.next();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.util.Iterator#remove()
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("You can't remove from a row iterator");
+  }
+
+  /**
+   * @return the number of rows returned so far
+   */
+  public int getCount() {
+    return count;
+  }
+
+  private FutureTask<Page> read(K start) {
+    // callers may consume a byte buffer key before the page is read, so hold
+    // on to a copy of its position
+    final ByteBuffer startBytes = start == null ? null : keySerializer.toByteBuffer(start).duplicate();
+
+    FutureTask<Page> task = new FutureTask<Page>(new Callable<Page>() {
+      @Override
+      public Page call() throws Exception {
+        return load(startBytes);
+      }
+    });
+
+    // the first page is needed straight away
+    if ((startBytes == null) || (executor == null)) {
+      task.run();
+    } else {
+      executor.execute(task);
+    }
+
+    return task;
+  }
+
+  private Page load(ByteBuffer startBytes) {
+    K start = startBytes == null ? null : keySerializer.fromByteBuffer(startBytes.duplicate());
+
+    // the start row was the last one of the previous page
+    int limit = start == null ? pageSize : pageSize + 1;
+
+    RangeSlicesQuery<K, N, V> q = createRangeSlicesQuery(ko, keySerializer, nameSerializer, valueSerializer);
+    q.setColumnFamily(columnFamily);
+    q.setKeys(start, null);
+    q.setColumnNames(columnNames);
+    q.setRowCount(limit);
+    List<Row<K, N, V>> rows = q.execute().get().getList();
+
+    boolean more = rows.size() >= limit;
+    K last = rows.isEmpty() ? null : rows.get(rows.size() - 1).getKey();
+
+    if ((start != null) && !rows.isEmpty() && startBytes.equals(keySerializer.toByteBuffer(rows.get(0).getKey()))) {
+      rows = rows.subList(1, rows.size());
+    }
+
+    return new Page(rows, more && (last != null), last);
+  }
+
+  private Page await(FutureTask<Page> task) {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted reading rows of " + columnFamily, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException("Unable to read rows of " + columnFamily, e.getCause());
+    }
+  }
+
+  private class Page {
+    private final List<Row<K, N, V>> rows;
+    private final boolean more;
+    private final K last;
+
+    Page(List<Row<K, N, V>> rows, boolean more, K last) {
+      this.rows = rows;
+      this.more = more;
+      this.last = last;
+    }
+  }
+}
@@ -16,12 +16,15 @@
 package org.usergrid.persistence.cassandra.index;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.cassandra.config.ConfigurationException;
 import org.apache.cassandra.db.marshal.AbstractType;
@@ -30,6 +33,7 @@ import org.apache.cassandra.thrift.CassandraServer;
 import org.usergrid.persistence.cassandra.ApplicationCF;
 import org.usergrid.persistence.cassandra.CassandraService;
 
+import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.beans.DynamicComposite;
 import me.prettyprint.hector.api.beans.HColumn;
 
@@ -65,10 +69,68 @@ public class IndexMultiBucketSetLoader {
     Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> results = cass.multiGetColumns(
         cass.getApplicationKeyspace(applicationId), columnFamily, rowKeys, start, finish, resultSize, reversed);
 
+    TreeSet<HColumn<ByteBuffer, ByteBuffer>> resultsTree = createTree(columnFamily, reversed);
+
+    merge(resultsTree, results, resultSize);
+
+    return resultsTree;
+  }
+
+  /**
+   * Same as load, but each group of row keys is read with its own multiget and
+   * the groups are read concurrently. Used when the keys span independent
+   * index rows (e.g. one group per geocell) so the slowest group bounds the
+   * latency instead of the sum of them all.
+   * @param cass
+   * @param columnFamily
+   * @param applicationId
+   * @param rowKeyGroups
+   * @param start
+   * @param finish
+   * @param resultSize
+   * @param reversed
+   * @return
+   * @throws Exception
+   */
+  public static TreeSet<HColumn<ByteBuffer, ByteBuffer>> loadParallel(CassandraService cass, ApplicationCF columnFamily, UUID applicationId, List<List<Object>> rowKeyGroups, Object start, Object finish, int resultSize, boolean reversed) throws Exception {
+    if (rowKeyGroups.size() == 1) {
+      return load(cass, columnFamily, applicationId, rowKeyGroups.get(0), start, finish, resultSize, reversed);
+    }
+
+    Keyspace ko = cass.getApplicationKeyspace(applicationId);
+
+    List<Future<Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>>>> futures = new ArrayList<Future<Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>>>>(
+        rowKeyGroups.size());
+
+    for (List<Object> rowKeys : rowKeyGroups) {
+      futures.add(cass.multiGetColumnsAsync(ko, columnFamily, rowKeys, start, finish, resultSize, reversed));
+    }
+
+    TreeSet<HColumn<ByteBuffer, ByteBuffer>> resultsTree = createTree(columnFamily, reversed);
+
+    try {
+      for (Future<Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>>> future : futures) {
+        merge(resultsTree, future.get(), resultSize);
+      }
+    } catch (ExecutionException e) {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+
+    return resultsTree;
+  }
+
+  private static TreeSet<HColumn<ByteBuffer, ByteBuffer>> createTree(ApplicationCF columnFamily, boolean reversed) {
     final Comparator<ByteBuffer> comparator = reversed ? new DynamicCompositeReverseComparator(columnFamily)
         : new DynamicCompositeForwardComparator(columnFamily);
 
-    TreeSet<HColumn<ByteBuffer, ByteBuffer>> resultsTree = new TreeSet<HColumn<ByteBuffer, ByteBuffer>>(
+    return new TreeSet<HColumn<ByteBuffer, ByteBuffer>>(
         new Comparator<HColumn<ByteBuffer, ByteBuffer>>() {
 
           @Override
@@ -78,7 +140,10 @@ public class IndexMultiBucketSetLoader {
           }
 
         });
+  }
 
+  private static void merge(TreeSet<HColumn<ByteBuffer, ByteBuffer>> resultsTree,
+      Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> results, int resultSize) {
     for (List<HColumn<ByteBuffer, ByteBuffer>> cols : results.values()) {
 
       for (HColumn<ByteBuffer, ByteBuffer> col : cols) {
@@ -91,8 +156,6 @@ public class IndexMultiBucketSetLoader {
       }
 
     }
-    
-    return resultsTree;
   }
   
 
@@ -8,7 +8,6 @@ import static org.usergrid.utils.CompositeUtils.setEqualityFlag;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -92,7 +91,8 @@ public abstract class GeoIndexSearcher {
       Point searchPoint, String propertyName,
       double minDistance, double maxDistance, final int maxResults) throws Exception {
 
-    List<EntityLocationRef> entityLocations = new ArrayList<EntityLocationRef>(maxResults);
+    // bounded, distance ordered set of the closest matches seen so far
+    TreeSet<EntityLocationRef> entityLocations = new TreeSet<EntityLocationRef>(COMP);
 
     List<String> curGeocells = new ArrayList<String>();
     String curContainingGeocell = null;
@@ -190,31 +190,23 @@ public abstract class GeoIndexSearcher {
             continue;
           }
 
-          int index = Collections.binarySearch(entityLocations, entityLocation, COMP);
-
-          // already in the index
-          if (index > -1) {
+          // full and this one is no closer than the farthest we're keeping, no
+          // point in adding it
+          if (entityLocations.size() >= maxResults && COMP.compare(entityLocation, entityLocations.last()) >= 0) {
             continue;
           }
 
-          // set the insert index
-          index = (index + 1) * -1;
-
-          // no point in adding it
-          if (index >= maxResults) {
+          // already in the set if it's a duplicate
+          if (!entityLocations.add(entityLocation)) {
             continue;
           }
 
-          // results.add(index, entity);
-          // distances.add(index, distance);
-          entityLocations.add(index, entityLocation);
-
           /**
-           * Discard an additional entries as we iterate to avoid holding them
-           * all in ram
+           * Discard the farthest entry as we iterate to avoid holding them all
+           * in ram
            */
-          while (entityLocations.size() > maxResults) {
-            entityLocations.remove(entityLocations.size() - 1);
+          if (entityLocations.size() > maxResults) {
+            entityLocations.pollLast();
           }
 
         }
@@ -314,7 +306,7 @@ public abstract class GeoIndexSearcher {
 
     // now we have our final sets, construct the results
 
-    return new SearchResults(entityLocations, curGeocells);
+    return new SearchResults(new ArrayList<EntityLocationRef>(entityLocations), curGeocells);
   }
 
   protected TreeSet<HColumn<ByteBuffer, ByteBuffer>> query(Object key, List<String> curGeocellsUnique,
@@ -322,17 +314,22 @@ public abstract class GeoIndexSearcher {
       int count)
       throws Exception {
 
-    List<Object> keys = new ArrayList<Object>();
+    List<List<Object>> keys = new ArrayList<List<Object>>(curGeocellsUnique.size());
 
     UUID appId = em.getApplicationRef().getUuid();
 
     for (String geoCell : curGeocellsUnique) {
 
-      // add buckets for each geoCell
+      // add buckets for each geoCell, each cell is read on its own so adjacent
+      // cells are fetched in parallel
+
+      List<Object> cellKeys = new ArrayList<Object>();
 
       for (String indexBucket : locator.getBuckets(appId, IndexType.GEO, geoCell)) {
-        keys.add(key(key, DICTIONARY_GEOCELL, geoCell, indexBucket));
+        cellKeys.add(key(key, DICTIONARY_GEOCELL, geoCell, indexBucket));
       }
+
+      keys.add(cellKeys);
     }
 
     DynamicComposite start = null;
@@ -342,7 +339,7 @@ public abstract class GeoIndexSearcher {
       setEqualityFlag(start, ComponentEquality.GREATER_THAN_EQUAL);
     }
 
-    TreeSet<HColumn<ByteBuffer, ByteBuffer>> columns = IndexMultiBucketSetLoader.load(cass, ENTITY_INDEX, appId, keys,
+    TreeSet<HColumn<ByteBuffer, ByteBuffer>> columns = IndexMultiBucketSetLoader.loadParallel(cass, ENTITY_INDEX, appId, keys,
         start, null, count, false);
 
     return columns;
@@ -106,6 +106,50 @@ public class UUIDUtils {
     return newTimeUUID(ts, MICROS[pointer]);
   }
 
+  /**
+   * Return the "next" <code>count</code> UUIDs in micro second resolution,
+   * in order. The same as calling {@link #newTimeUUID()} <code>count</code>
+   * times, but the lock is taken once for each millisecond worth of UUIDs
+   * rather than once per UUID, which matters to bulk loads generating them
+   * from many threads.
+   *
+   * @param count
+   * @return
+   */
+  public static UUID[] newTimeUUIDs(int count) {
+    UUID[] uuids = new UUID[count];
+    int i = 0;
+    while ( i < count ) {
+      long ts;
+      int first;
+      int taken;
+      tsLock.lock();
+      try {
+        ts = System.currentTimeMillis();
+        if ( ts > timestampMillisNow ) {
+          timestampMillisNow = ts;
+          currentMicrosPoint.set(0);
+        }
+        first = currentMicrosPoint.get();
+        taken = Math.min(count - i, 991 - first);
+        if ( taken <= 0 ) {
+          // this millisecond is used up, wait for the next one
+          TimeUnit.MILLISECONDS.sleep(1L);
+          continue;
+        }
+        currentMicrosPoint.addAndGet(taken);
+      } catch (InterruptedException ex) {
+        throw new RuntimeException(ex);
+      } finally {
+        tsLock.unlock();
+      }
+      for ( int j = 0; j < taken; j++ ) {
+        uuids[i++] = newTimeUUID(ts, MICROS[first + j]);
+      }
+    }
+    return uuids;
+  }
+
   private final static long kClockOffset = 0x01b21dd213814000L;
   private final static long kClockMultiplierL = 10000L;
 
@@ -8,6 +8,8 @@ import org.usergrid.cassandra.ConcurrentSuite;
 import org.usergrid.locking.zookeeper.ZookeeperLockManagerTest;
 import org.usergrid.mq.QueuePathsTest;
 import org.usergrid.persistence.*;
+import org.usergrid.persistence.cassandra.AggregateCounterCacheTest;
+import org.usergrid.persistence.cassandra.CounterUtilsTest;
 import org.usergrid.persistence.cassandra.QueryProcessorTest;
 import org.usergrid.persistence.cassandra.SimpleIndexBucketLocatorImplTest;
 import org.usergrid.persistence.query.ir.result.IntersectionIteratorTest;
@@ -25,7 +27,10 @@ import org.usergrid.persistence.query.tree.StringLiteralTest;
             QueuePathsTest.class,
             QueryProcessorTest.class,
             SimpleIndexBucketLocatorImplTest.class,
+            CounterUtilsTest.class,
+            AggregateCounterCacheTest.class,
             EntityTest.class,
+            AggregateCounterSeriesTest.class,
             QueryTest.class,
             QueryUtilsTest.class,
             SchemaTest.class,
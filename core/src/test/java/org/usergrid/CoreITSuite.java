@@ -9,6 +9,7 @@ import org.usergrid.cassandra.Concurrent;
 import org.usergrid.locking.cassandra.HectorLockManagerIT;
 import org.usergrid.mq.MessagesIT;
 import org.usergrid.persistence.*;
+import org.usergrid.persistence.cassandra.AggregateCounterRollupIT;
 import org.usergrid.persistence.cassandra.EntityManagerFactoryImplIT;
 import org.usergrid.system.UsergridSystemMonitorIT;
 
@@ -28,7 +29,8 @@ import org.usergrid.system.UsergridSystemMonitorIT;
         MessagesIT.class,
         PermissionsIT.class,
         PathQueryIT.class,
-        EntityManagerFactoryImplIT.class
+        EntityManagerFactoryImplIT.class,
+        AggregateCounterRollupIT.class
     } )
 @Concurrent()
 public class CoreITSuite
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.clustering;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class LocalChangeBusTest {
+
+  @Test
+  public void failingListenerDoesNotStopDelivery() {
+    LocalChangeBus bus = new LocalChangeBus();
+    final List<ChangeEvent> received = new ArrayList<ChangeEvent>();
+
+    bus.addListener(new ChangeListener() {
+      @Override
+      public void onChange(ChangeEvent event) {
+        throw new IllegalStateException("boom");
+      }
+    });
+    ChangeListener recorder = new ChangeListener() {
+      @Override
+      public void onChange(ChangeEvent event) {
+        received.add(event);
+      }
+    };
+    bus.addListener(recorder);
+
+    UUID applicationId = UUID.randomUUID();
+    bus.publish(new ChangeEvent(ChangeEvent.Type.ROLE, applicationId, "admin"));
+
+    assertEquals(1, received.size());
+    assertEquals(ChangeEvent.Type.ROLE, received.get(0).getType());
+    assertEquals(applicationId, received.get(0).getApplicationId());
+    assertEquals("admin", received.get(0).getKey());
+
+    bus.removeListener(recorder);
+    bus.publish(new ChangeEvent(ChangeEvent.Type.ROLE, applicationId, "admin"));
+    assertEquals(1, received.size());
+  }
+}
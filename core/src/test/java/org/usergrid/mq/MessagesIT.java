@@ -15,16 +15,36 @@
  ******************************************************************************/
 package org.usergrid.mq;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+import me.prettyprint.hector.api.beans.HColumn;
+
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.usergrid.AbstractCoreIT;
+import org.usergrid.CoreITSuite;
 import org.usergrid.cassandra.Concurrent;
+import org.usergrid.locking.LockManager;
+import org.usergrid.locking.singlenode.SingleNodeLockManagerImpl;
+import org.usergrid.mq.cassandra.QueueBookkeeping;
+import org.usergrid.mq.cassandra.QueueManagerFactoryImpl;
+import org.usergrid.mq.cassandra.QueueManagerImpl;
+import org.usergrid.mq.cassandra.QueueRetention;
+import org.usergrid.mq.cassandra.QueueWakeups;
+import org.usergrid.mq.cassandra.QueuesCF;
+import org.usergrid.mq.cassandra.io.ConsumerLeases;
+import org.usergrid.mq.cassandra.io.ConsumerTransaction;
+import org.usergrid.persistence.cassandra.CassandraService;
+import org.usergrid.persistence.cassandra.CounterUtils;
 import org.usergrid.utils.JsonUtils;
+import org.usergrid.utils.UUIDUtils;
 
 import static org.junit.Assert.*;
 
@@ -275,4 +295,210 @@ public class MessagesIT extends AbstractCoreIT
     assertFalse("Both transactions have been removed", qm.hasOutstandingTransactions(queuePath, null));
     assertFalse("Both messages and transactions have been returned", qm.hasPendingReads(queuePath, null));
   }
+
+  @Test
+  public void testLeasedTransactions() throws Exception {
+    QueueManager qm = app.getQm();
+
+    String queuePath = "/foo/leased";
+
+    List<UUID> posted = new ArrayList<UUID>();
+    for (int i = 0; i < 5; i++) {
+      Message message = new Message();
+      message.setStringProperty("foo", "bar" + i);
+      posted.add(qm.postToQueue(queuePath, message).getUuid());
+    }
+
+    ConsumerLeases leases = new ConsumerLeases(10);
+    CassandraService cass = setup.getCassSvc();
+    ConsumerTransaction search = new ConsumerTransaction(app.getId(), cass.getApplicationKeyspace(app.getId()),
+        new SingleNodeLockManagerImpl(), leases, cass);
+
+    QueueQuery qq = new QueueQuery();
+    qq.setTimeout(60000);
+    qq.setLimit(1);
+
+    // the first read claims every message, the rest come from the buffer
+    for (int i = 0; i < 5; i++) {
+      QueueResults results = search.getResults(queuePath, qq);
+      assertEquals(1, results.size());
+      assertEquals(posted.get(i), results.getMessages().get(0).getUuid());
+      assertNotNull(results.getMessages().get(0).getTransaction());
+      assertEquals(4 - i, leases.getBuffer(app.getId(), results.getQueue(), results.getConsumer()).size());
+
+      qm.deleteTransaction(queuePath, results.getMessages().get(0).getTransaction(), qq);
+    }
+
+    assertEquals(0, search.getResults(queuePath, qq).size());
+
+    // wait for the renewals to land before checking nothing is outstanding
+    while (leases.getPendingWrites() > 0) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    TimeUnit.MILLISECONDS.sleep(100);
+
+    assertFalse(qm.hasOutstandingTransactions(queuePath, null));
+    leases.shutdown();
+  }
+
+  @Test
+  public void testWaitForMessage() throws Exception {
+    final QueueManager qm = app.getQm();
+    final String queuePath = "/foo/wait";
+
+    // an empty queue returns once the wait is up
+    long start = System.currentTimeMillis();
+    QueueResults results = qm.getFromQueue(queuePath, new QueueQuery().withConsumer("waiter").withWait(500));
+    assertEquals(0, results.size());
+    assertTrue(System.currentTimeMillis() - start >= 500);
+
+    final Message message = new Message();
+    message.setStringProperty("foo", "bar");
+
+    Thread poster = new Thread() {
+      @Override
+      public void run() {
+        try {
+          TimeUnit.MILLISECONDS.sleep(500);
+        } catch (InterruptedException e) {
+          return;
+        }
+        qm.postToQueue(queuePath, message);
+      }
+    };
+    poster.start();
+
+    // a post wakes the waiting read long before the wait is up
+    start = System.currentTimeMillis();
+    results = qm.getFromQueue(queuePath, new QueueQuery().withConsumer("waiter").withWait(20000));
+    assertEquals(1, results.size());
+    assertEquals(message.getUuid(), results.getMessages().get(0).getUuid());
+    assertTrue(System.currentTimeMillis() - start < 20000);
+
+    poster.join();
+  }
+
+  @Test
+  public void testFanOut() throws Exception {
+    QueueManager qm = app.getQm();
+
+    int count = QueueManagerImpl.FANOUT_BATCH_SIZE + 5;
+    for (int i = 0; i < count; i++) {
+      qm.subscribeToQueue("/fanout/", "/fanout/sub" + i + "/");
+    }
+
+    Message message = new Message();
+    message.setStringProperty("foo", "bar");
+    qm.postToQueue("/fanout/", message);
+
+    for (int i = 0; i < count; i++) {
+      QueueResults results = qm.getFromQueue("/fanout/sub" + i + "/", new QueueQuery().withConsumer("fanout"));
+      assertEquals(1, results.size());
+      assertEquals(message.getUuid(), results.getMessages().get(0).getUuid());
+      assertEquals("bar", results.getMessages().get(0).getStringProperty("foo"));
+    }
+
+    // every subscriber counts the message, as the publisher does
+    Map<String, Long> counters = qm.getQueueCounters("/");
+    assertEquals(new Long(1), counters.get("/fanout/"));
+    for (int i = 0; i < count; i++) {
+      assertEquals(new Long(1), counters.get("/fanout/sub" + i + "/"));
+    }
+  }
+
+  @Test
+  public void testFanOutRetention() throws Exception {
+    QueueManager qm = app.getQm();
+
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(Queue.QUEUE_RETENTION, TimeUnit.DAYS.toSeconds(1));
+    qm.updateQueue("/fanoutretention/", properties);
+
+    // the subscriber keeps its messages forever
+    qm.subscribeToQueue("/fanoutretention/", "/fanoutretention/sub/");
+
+    Message message = new Message();
+    qm.postToQueue("/fanoutretention/", message);
+
+    CassandraService cass = setup.getCassSvc();
+    HColumn<String, ByteBuffer> body = cass.getColumn(cass.getApplicationKeyspace(app.getId()),
+        QueuesCF.MESSAGE_PROPERTIES, message.getUuid(), Message.MESSAGE_ID);
+
+    // the body outlives the publisher's retention, so the subscriber can read it
+    assertEquals(0, body.getTtl());
+  }
+
+  @Test
+  public void testRetention() throws Exception {
+    QueueManager qm = app.getQm();
+    String queuePath = "/retention/";
+
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(Queue.QUEUE_RETENTION, TimeUnit.DAYS.toSeconds(1));
+    qm.updateQueue(queuePath, properties);
+
+    // nothing has expired yet
+    assertEquals(0, qm.expireMessages(queuePath));
+
+    Message expired = new Message();
+    expired.setUuid(UUIDUtils.newTimeUUID(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(3)));
+    qm.postToQueue(queuePath, expired);
+
+    Message live = new Message();
+    qm.postToQueue(queuePath, live);
+
+    assertTrue(qm.expireMessages(queuePath) > 0);
+
+    QueueQuery query = new QueueQuery().withConsumer("retention");
+    query.setLimit(10);
+
+    QueueResults results = qm.getFromQueue(queuePath, query);
+    assertEquals(1, results.size());
+    assertEquals(live.getUuid(), results.getMessages().get(0).getUuid());
+
+    // the dropped shards are only dropped once
+    assertEquals(0, qm.expireMessages(queuePath));
+  }
+
+  @Test
+  public void testDeferredNewest() throws Exception {
+    // bookkeeping of our own that only flushes when told to, so a scheduled
+    // flush can't land between the posts and the checks
+    QueueBookkeeping bookkeeping = new QueueBookkeeping(setup.getCassSvc(), QueueBookkeeping.MAX_FLUSH_INTERVAL, false);
+
+    QueueManagerFactoryImpl factory = new QueueManagerFactoryImpl(setup.getCassSvc(),
+        CoreITSuite.cassandraResource.getBean(CounterUtils.class),
+        CoreITSuite.cassandraResource.getBean(LockManager.class));
+    factory.setConsumerLeases(CoreITSuite.cassandraResource.getBean(ConsumerLeases.class));
+    factory.setWakeups(CoreITSuite.cassandraResource.getBean(QueueWakeups.class));
+    factory.setRetention(CoreITSuite.cassandraResource.getBean(QueueRetention.class));
+    factory.setBookkeeping(bookkeeping);
+
+    QueueManager qm = factory.getQueueManager(app.getId());
+    String queuePath = "/deferred/";
+
+    Message first = new Message();
+    qm.postToQueue(queuePath, first);
+
+    Message second = new Message();
+    qm.postToQueue(queuePath, second);
+
+    // the second post left the newest property to the next flush
+    assertEquals(first.getUuid(), qm.getQueue(queuePath).getProperties().get(Queue.QUEUE_NEWEST));
+
+    // but readers still see it
+    QueueQuery query = new QueueQuery().withConsumer("deferred");
+    query.setLimit(10);
+    QueueResults results = qm.getFromQueue(queuePath, query);
+    assertEquals(2, results.size());
+    assertEquals(second.getUuid(), results.getMessages().get(1).getUuid());
+
+    Message third = new Message();
+    qm.postToQueue(queuePath, third);
+    assertTrue(qm.hasMessagesInQueue(queuePath, results.getConsumer()));
+
+    bookkeeping.flush();
+
+    assertEquals(third.getUuid(), qm.getQueue(queuePath).getProperties().get(Queue.QUEUE_NEWEST));
+  }
 }
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.mq.cassandra;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class QueueWakeupsTest {
+
+  private final UUID applicationId = UUID.randomUUID();
+
+  @Test
+  public void heldSignalSeesPost() throws Exception {
+    QueueWakeups wakeups = new QueueWakeups();
+
+    QueueWakeups.Signal signal = wakeups.getSignal(applicationId, "/test/");
+    long version = signal.getVersion();
+
+    // only the reader's reference keeps the signal alive
+    System.gc();
+
+    wakeups.signal(applicationId, "/test/");
+
+    assertTrue(signal.await(version, 5000));
+  }
+
+  @Test
+  public void readersShareSignal() {
+    QueueWakeups wakeups = new QueueWakeups();
+
+    QueueWakeups.Signal signal = wakeups.getSignal(applicationId, "/test/");
+
+    assertSame(signal, wakeups.getSignal(applicationId, "/test/"));
+  }
+
+  @Test
+  public void otherQueueDoesNotWake() throws Exception {
+    QueueWakeups wakeups = new QueueWakeups();
+
+    QueueWakeups.Signal signal = wakeups.getSignal(applicationId, "/test/");
+    long version = signal.getVersion();
+
+    wakeups.signal(applicationId, "/other/");
+
+    assertFalse(signal.await(version, 50));
+  }
+
+  @Test
+  public void waitersAreLimited() {
+    QueueWakeups wakeups = new QueueWakeups();
+    wakeups.setMaxWaiters(2);
+
+    assertTrue(wakeups.startWait());
+    assertTrue(wakeups.startWait());
+    assertFalse(wakeups.startWait());
+
+    wakeups.endWait();
+
+    assertTrue(wakeups.startWait());
+  }
+}
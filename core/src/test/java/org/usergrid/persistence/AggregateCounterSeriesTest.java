@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.usergrid.cassandra.Concurrent;
+
+@Concurrent()
+public class AggregateCounterSeriesTest {
+
+  private static final long HOUR = CounterResolution.HOUR.interval();
+
+  @Test
+  public void pad() {
+    AggregateCounterSeries series = new AggregateCounterSeries(new long[] { HOUR, 3 * HOUR }, new long[] { 5, 7 });
+
+    AggregateCounterSeries padded = series.pad(CounterResolution.HOUR, 0, 4 * HOUR);
+
+    assertEquals(5, padded.size());
+    assertEquals(0, padded.get(0).getValue());
+    assertEquals(5, padded.get(1).getValue());
+    assertEquals(HOUR, padded.get(1).getTimestamp());
+    assertEquals(0, padded.get(2).getValue());
+    assertEquals(7, padded.get(3).getValue());
+    assertEquals(4 * HOUR, padded.get(4).getTimestamp());
+  }
+
+  @Test
+  public void rangeAndAppend() {
+    AggregateCounterSeries series = new AggregateCounterSeries(new long[] { 0, HOUR, 2 * HOUR }, new long[] { 1, 2,
+        3 });
+
+    AggregateCounterSeries head = series.range(0, 2 * HOUR);
+    assertEquals(2, head.size());
+    assertEquals(HOUR, head.getTimestamp(1));
+
+    AggregateCounterSeries all = head.append(series.range(2 * HOUR, 3 * HOUR));
+    assertEquals(3, all.size());
+    assertEquals(3, all.getValue(2));
+
+    assertEquals(0, series.range(3 * HOUR, 4 * HOUR).size());
+
+    AggregateCounterSeries padded = series.pad(CounterResolution.HOUR, 0, 2 * HOUR);
+    assertEquals(2, padded.range(HOUR, 3 * HOUR).size());
+  }
+}
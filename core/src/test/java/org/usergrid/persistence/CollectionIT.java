@@ -185,6 +185,84 @@ public class CollectionIT extends AbstractCoreIT
     }
 
 
+  @Test
+  public void collectionSize() throws Exception {
+    UUID applicationId = setup.createApplication("testOrganization", "testCollectionSize");
+    assertNotNull(applicationId);
+
+    EntityManager em = setup.getEmf().getEntityManager(applicationId);
+    assertNotNull(em);
+
+    Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    properties.put("username", "edanuff");
+    properties.put("email", "ed@anuff.com");
+
+    Entity user = em.create("user", properties);
+    assertNotNull(user);
+
+    List<Entity> activities = new ArrayList<Entity>();
+    for (int i = 0; i < 3; i++) {
+      properties = new LinkedHashMap<String, Object>();
+      properties.put("verb", "tweet");
+      properties.put("content", "tweet " + i);
+      properties.put("ordinal", i);
+      Entity activity = em.create("activity", properties);
+      em.addToCollection(user, "activities", activity);
+      activities.add(activity);
+    }
+
+    RelationManager rm = em.getRelationManager(user);
+    assertEquals(3, rm.getCollectionSize("activities"));
+
+    // adding a member again counts it twice until reconciled
+    em.addToCollection(user, "activities", activities.get(0));
+    assertEquals(4, rm.getCollectionSize("activities"));
+
+    assertEquals(3, rm.reconcileCollectionSize("activities"));
+    assertEquals(3, rm.getCollectionSize("activities"));
+
+    em.removeFromCollection(user, "activities", activities.get(1));
+    assertEquals(2, rm.getCollectionSize("activities"));
+
+    // and so does removing a non member
+    em.removeFromCollection(user, "activities", activities.get(1));
+    assertEquals(1, rm.getCollectionSize("activities"));
+
+    // the first read queued the collection for the reconcile job
+    assertEquals(1, em.reconcileCollectionSizes());
+    assertEquals(2, rm.getCollectionSize("activities"));
+    assertEquals(0, em.reconcileCollectionSizes());
+  }
+
+  @Test
+  public void applicationCollectionSize() throws Exception {
+    UUID applicationId = setup.createApplication("testOrganization", "testApplicationCollectionSize");
+    assertNotNull(applicationId);
+
+    EntityManager em = setup.getEmf().getEntityManager(applicationId);
+    assertNotNull(em);
+
+    RelationManager rm = em.getRelationManager(em.getApplicationRef());
+
+    // reads the counter and queues the collection to be reconciled
+    assertEquals(0, rm.getCollectionSize("cats"));
+
+    List<Entity> cats = new ArrayList<Entity>();
+    for (int i = 0; i < 3; i++) {
+      Map<String, Object> properties = new LinkedHashMap<String, Object>();
+      properties.put("name", "cat" + i);
+      cats.add(em.create("cat", properties));
+    }
+
+    assertEquals(3, rm.getCollectionSize("cats"));
+
+    em.delete(cats.get(1));
+    assertEquals(2, rm.getCollectionSize("cats"));
+
+    assertEquals(1, em.reconcileCollectionSizes());
+    assertEquals(2, rm.getCollectionSize("cats"));
+  }
+
   @Test
   public void userFirstNameSearch() throws Exception {
     UUID applicationId = setup.createApplication("testOrganization", "testFirstName");
@@ -20,9 +20,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.junit.Test;
@@ -83,6 +85,54 @@ public class EntityConnectionsIT extends AbstractCoreIT
 
   }
 
+  @Test
+  public void testConnectingEntityIdPages() throws Exception {
+    UUID applicationId = setup.createApplication("EntityConnectionsIT", "testConnectingEntityIdPages");
+    assertNotNull(applicationId);
+
+    EntityManager em = setup.getEmf().getEntityManager(applicationId);
+    assertNotNull(em);
+
+    Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    properties.put("username", "followed");
+    Entity followed = em.create("user", properties);
+
+    Set<UUID> followers = new HashSet<UUID>();
+    for (int i = 0; i < 5; i++) {
+      properties = new LinkedHashMap<String, Object>();
+      properties.put("username", "follower" + i);
+      Entity follower = em.create("user", properties);
+      em.createConnection(follower, "following", followed);
+      followers.add(follower.getUuid());
+    }
+
+    // a connection from another type is filtered out
+    properties = new LinkedHashMap<String, Object>();
+    properties.put("name", "Dylan");
+    Entity cat = em.create("cat", properties);
+    em.createConnection(cat, "following", followed);
+
+    Set<UUID> found = new HashSet<UUID>();
+    String cursor = null;
+    int pages = 0;
+    do {
+      EntityIdPage page = em.getConnectingEntityIds(followed.getUuid(), "following", "user", cursor, 2);
+      assertTrue(page.size() <= 2);
+      for (UUID id : page.getIds()) {
+        assertTrue(found.add(id));
+      }
+      cursor = page.getCursor();
+      pages++;
+    } while (cursor != null);
+
+    assertEquals(followers, found);
+    assertTrue(pages >= 3);
+
+    EntityIdPage all = em.getConnectingEntityIds(followed.getUuid(), "following", null, null, 10);
+    assertEquals(6, all.size());
+    assertFalse(all.hasCursor());
+  }
+
   @Test
   public void testEntityConnections() throws Exception {
     LOG.info("\n\nEntityConnectionsIT.testEntityConnections\n");
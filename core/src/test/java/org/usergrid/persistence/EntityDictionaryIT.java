@@ -18,9 +18,13 @@ package org.usergrid.persistence;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.junit.Test;
@@ -28,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.usergrid.AbstractCoreIT;
 import org.usergrid.cassandra.Concurrent;
+import org.usergrid.persistence.cassandra.CassandraService;
 import org.usergrid.persistence.entities.Application;
 import org.usergrid.utils.JsonUtils;
 
@@ -140,4 +145,39 @@ public class EntityDictionaryIT extends AbstractCoreIT
 
 	}
 
+
+	@Test
+	public void testWideDictionary() throws Exception
+    {
+		LOG.info("EntityDictionaryIT.testWideDictionary");
+
+		UUID applicationId = setup.createApplication("testOrganization","testWideDictionary");
+		assertNotNull(applicationId);
+
+		EntityManager em = setup.getEmf().getEntityManager(applicationId);
+		assertNotNull(em);
+
+		Map<String, Object> properties = new LinkedHashMap<String, Object>();
+		properties.put("username", "wide");
+		properties.put("email", "wide@anuff.com");
+
+		Entity user = em.create("user", properties);
+		assertNotNull(user);
+
+		// wider than a page, so it's read over several
+		int count = CassandraService.DEFAULT_COLUMN_PAGE_SIZE * 2 + 7;
+		Set<Object> elements = new LinkedHashSet<Object>();
+		for (int i = 0; i < count; i++) {
+			elements.add("element" + i);
+		}
+		em.addSetToDictionary(user, "wide", elements);
+
+		Set<Object> returned = em.getDictionaryAsSet(user, "wide");
+		assertEquals(count, returned.size());
+		assertEquals(elements, new HashSet<Object>(returned));
+
+		em.delete(user);
+		assertNull(em.get(user.getUuid()));
+	}
+
 }
@@ -17,11 +17,16 @@ package org.usergrid.persistence;
 
 
 import static org.junit.Assert.*;
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static org.usergrid.persistence.cassandra.CassandraPersistenceUtils.batchExecute;
 import static org.usergrid.persistence.cassandra.CassandraService.MANAGEMENT_APPLICATION_ID;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.Map.Entry;
 
+import me.prettyprint.hector.api.mutation.Mutator;
+
 import org.junit.Ignore;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -29,6 +34,8 @@ import org.slf4j.LoggerFactory;
 import org.usergrid.AbstractCoreIT;
 import org.usergrid.cassandra.Concurrent;
 import org.usergrid.persistence.Results.Level;
+import org.usergrid.persistence.cassandra.CassandraService;
+import org.usergrid.persistence.cassandra.EntityManagerImpl;
 import org.usergrid.persistence.entities.Group;
 import org.usergrid.persistence.entities.User;
 import org.usergrid.utils.UUIDUtils;
@@ -588,5 +595,44 @@ public class EntityManagerIT extends AbstractCoreIT
         
         
 
+    }
+
+    @Test
+    public void testBatchLoad() throws Exception {
+        LOG.info("EntityManagerIT.testBatchLoad");
+
+        UUID applicationId = setup.createApplication("testOrganization",
+                "testBatchLoad");
+
+        EntityManagerImpl em = (EntityManagerImpl) setup.getEmf().getEntityManager(applicationId);
+
+        UUID[] ids = UUIDUtils.newTimeUUIDs(2);
+        UUID[] timestamps = UUIDUtils.newTimeUUIDs(2);
+
+        Mutator<ByteBuffer> m = createMutator(
+                setup.getCassSvc().getApplicationKeyspace(applicationId), EntityManagerImpl.be);
+
+        for (int i = 0; i < 2; i++) {
+            Map<String, Object> properties = new LinkedHashMap<String, Object>();
+            properties.put("username", "loaded" + i);
+            properties.put("email", "loaded" + i + "@foo.bar");
+            em.batchLoad(m, "user", properties, ids[i], timestamps[i]);
+        }
+
+        batchExecute(m, CassandraService.RETRY_COUNT);
+
+        Entity user = em.get(ids[1]);
+        assertNotNull(user);
+        assertEquals("loaded1", user.getProperty("username"));
+
+        // indexed, aliased and unique like a created user
+        Results r = em.searchCollection(em.getApplicationRef(), "users",
+                new Query().addEqualityFilter("email", "loaded0@foo.bar"));
+        assertEquals(1, r.size());
+        assertEquals(ids[0], r.getEntity().getUuid());
+
+        assertEquals(ids[1], em.getAlias(applicationId, "user", "loaded1").getUuid());
+
+        assertFalse(em.isPropertyValueUniqueForEntity("user", "username", "loaded0"));
     }
 }
@@ -17,12 +17,14 @@ package org.usergrid.persistence;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
 
 import org.junit.Test;
@@ -33,6 +35,7 @@ import org.usergrid.cassandra.Concurrent;
 import org.usergrid.persistence.cassandra.GeoIndexManager;
 import org.usergrid.persistence.geo.CollectionGeoSearch;
 import org.usergrid.persistence.geo.EntityLocationRef;
+import org.usergrid.persistence.geo.GeocellUtils;
 import org.usergrid.persistence.geo.model.Point;
 import org.usergrid.utils.MapUtils;
 
@@ -398,6 +401,68 @@ public class GeoIT extends AbstractCoreIT
   
  
 
+  /**
+   * Nearest 50 within 10km at a few point densities. Asserts the results come
+   * back closest first and logs how long each search took so changes to the
+   * geocell expansion can be compared run to run.
+   */
+  @Test
+  public void testNearestByDensity() throws Exception {
+
+    UUID applicationId = setup.createApplication("testOrganization", "testNearestByDensity");
+    assertNotNull(applicationId);
+
+    EntityManager em = setup.getEmf().getEntityManager(applicationId);
+    assertNotNull(em);
+
+    Point center = new Point(37.774277, -122.404744);
+
+    int[] densities = { 100, 500, 1000 };
+    int created = 0;
+
+    Random random = new Random(1);
+
+    for (int density : densities) {
+
+      // spread points over roughly a 20km square around the center
+      for (; created < density; created++) {
+        Map<String, Object> data = new HashMap<String, Object>(2);
+        data.put("name", String.valueOf(created));
+        setPos(data, center.getLat() + (random.nextDouble() - 0.5) * 0.18,
+            center.getLon() + (random.nextDouble() - 0.5) * 0.22);
+        em.create("store", data);
+      }
+
+      Query query = Query.fromQL(String.format("location within 10000 of %s, %s", center.getLat(), center.getLon()));
+      query.setLimit(50);
+
+      long start = System.currentTimeMillis();
+
+      Results results = em.searchCollection(em.getApplicationRef(), "stores", query);
+
+      long elapsed = System.currentTimeMillis() - start;
+
+      LOG.info("nearest 50 within 10km of {} points took {} ms", density, elapsed);
+
+      assertEquals(50, results.size());
+
+      double last = 0;
+
+      for (Entity entity : results.getEntities()) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> location = (Map<String, Object>) entity.getProperty("location");
+        Point point = new Point(((Number) location.get("latitude")).doubleValue(),
+            ((Number) location.get("longitude")).doubleValue());
+
+        double distance = GeocellUtils.distance(center, point);
+
+        assertTrue(distance <= 10000);
+        assertTrue(distance >= last);
+        last = distance;
+      }
+    }
+  }
+
   public Map<String, Object> getLocation(double latitude, double longitude) throws Exception {
     Map<String, Object> latlong = new LinkedHashMap<String, Object>();
     latlong.put("latitude", latitude);
@@ -19,7 +19,10 @@ package org.usergrid.persistence;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -170,6 +173,17 @@ public class PermissionsIT extends AbstractCoreIT
                 permissions.size());
         dump("permissions", permissions);
 
+        em.grantRolePermission("manager", "devices:access:*");
+
+        Map<String, Set<String>> rolesPermissions = em
+                .getRolesPermissions(new HashSet<String>(Arrays.asList(
+                        "admin", "Manager", "nobody")));
+        assertEquals("proper number of roles read", 3, rolesPermissions.size());
+        assertEquals(permissions, rolesPermissions.get("admin"));
+        assertEquals(Collections.singleton("devices:access:*"),
+                rolesPermissions.get("manager"));
+        assertTrue(rolesPermissions.get("nobody").isEmpty());
+
         em.grantGroupRolePermission(group.getUuid(), "admin", "users:access:*");
         em.grantGroupRolePermission(group.getUuid(), "admin", "groups:access:*");
 
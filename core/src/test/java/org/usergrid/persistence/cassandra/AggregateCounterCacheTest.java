@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createCounterColumn;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.serializers.LongSerializer;
+import me.prettyprint.hector.api.beans.HCounterColumn;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.usergrid.cassandra.Concurrent;
+import org.usergrid.persistence.AggregateCounterSeries;
+import org.usergrid.persistence.CounterResolution;
+
+@Concurrent()
+public class AggregateCounterCacheTest {
+
+  private static final LongSerializer le = new LongSerializer();
+
+  private static final CounterResolution resolution = CounterResolution.HOUR;
+  private static final long interval = resolution.interval();
+  private static final String row = "visits";
+
+  private final UUID applicationId = UUID.randomUUID();
+
+  private CounterUtils counterUtils;
+  private RecordingLoader loader;
+
+  // ten hours long since complete
+  private long start;
+  private long finish;
+
+  @Before
+  public void setup() {
+    counterUtils = new CounterUtils();
+    counterUtils.setRollupDelay(60 * 1000);
+
+    start = resolution.round(System.currentTimeMillis()) - (20 * interval);
+    finish = start + (9 * interval);
+
+    loader = new RecordingLoader();
+    for (long time = start; time <= finish; time += interval) {
+      loader.set(row, time, time / interval);
+    }
+  }
+
+  @Test
+  public void completedBucketsAreCached() throws Exception {
+    AggregateCounterCache cache = new AggregateCounterCache(counterUtils);
+
+    AggregateCounterSeries first = get(cache, start, finish);
+    assertEquals(1, loader.reads.size());
+    assertEquals(10, first.size());
+
+    AggregateCounterSeries second = get(cache, start, finish);
+    assertEquals(1, loader.reads.size());
+    assertSameCounters(first, second);
+
+    // a range within the cached one is a hit too
+    AggregateCounterSeries inner = get(cache, start + interval, finish - interval);
+    assertEquals(1, loader.reads.size());
+    assertEquals(8, inner.size());
+    assertEquals(start + interval, inner.getTimestamp(0));
+  }
+
+  @Test
+  public void partialRangeReadsOnlyLaterBuckets() throws Exception {
+    AggregateCounterCache cache = new AggregateCounterCache(counterUtils);
+
+    long middle = start + (4 * interval);
+    get(cache, start, middle);
+    assertEquals(1, loader.reads.size());
+
+    AggregateCounterSeries series = get(cache, start, finish);
+    assertEquals(2, loader.reads.size());
+    assertEquals(middle + 1, loader.reads.get(1).start);
+    assertEquals(finish, loader.reads.get(1).finish);
+
+    assertEquals(10, series.size());
+    for (int i = 0; i < series.size(); i++) {
+      long time = start + (i * interval);
+      assertEquals(time, series.getTimestamp(i));
+      assertEquals(time / interval, series.getValue(i));
+    }
+
+    // the whole range is cached now
+    get(cache, start, finish);
+    assertEquals(2, loader.reads.size());
+  }
+
+  @Test
+  public void currentBucketIsReadAgain() throws Exception {
+    AggregateCounterCache cache = new AggregateCounterCache(counterUtils);
+
+    long current = resolution.round(System.currentTimeMillis());
+    loader.set(row, current, 1);
+
+    AggregateCounterSeries first = get(cache, start, current);
+    assertEquals(1, first.getValue(first.size() - 1));
+
+    loader.set(row, current, 2);
+
+    AggregateCounterSeries second = get(cache, start, current);
+    assertEquals(2, loader.reads.size());
+    assertTrue(loader.reads.get(1).start > start);
+    assertTrue(loader.reads.get(1).start <= current);
+    assertEquals(first.size(), second.size());
+    assertEquals(2, second.getValue(second.size() - 1));
+  }
+
+  @Test
+  public void expiredRowsAreReadAgain() throws Exception {
+    AggregateCounterCache cache = new AggregateCounterCache(counterUtils, AggregateCounterCache.DEFAULT_MAX_SIZE, 1);
+
+    get(cache, start, finish);
+    Thread.sleep(10);
+
+    // a late event for a completed bucket
+    loader.set(row, start, 100);
+
+    AggregateCounterSeries series = get(cache, start, finish);
+    assertEquals(2, loader.reads.size());
+    assertEquals(start, loader.reads.get(1).start);
+    assertEquals(100, series.getValue(0));
+  }
+
+  @Test
+  public void incompleteLoadIsNotCached() throws Exception {
+    AggregateCounterCache cache = new AggregateCounterCache(counterUtils);
+
+    loader.incomplete = true;
+    AggregateCounterSeries first = get(cache, start, finish);
+    assertEquals(1, loader.reads.size());
+    assertEquals(10, first.size());
+
+    // the counts read are returned but the next query reads them again
+    loader.incomplete = false;
+    AggregateCounterSeries second = get(cache, start, finish);
+    assertEquals(2, loader.reads.size());
+    assertEquals(start, loader.reads.get(1).start);
+    assertSameCounters(first, second);
+
+    get(cache, start, finish);
+    assertEquals(2, loader.reads.size());
+  }
+
+  @Test
+  public void resolutionAllIsNotCached() throws Exception {
+    AggregateCounterCache cache = new AggregateCounterCache(counterUtils);
+
+    loader.set(row, 1, 42);
+
+    cache.get(applicationId, CounterResolution.ALL, Collections.singletonList(row), 1, 1, loader);
+    cache.get(applicationId, CounterResolution.ALL, Collections.singletonList(row), 1, 1, loader);
+    assertEquals(2, loader.reads.size());
+  }
+
+  private AggregateCounterSeries get(AggregateCounterCache cache, long from, long to) throws Exception {
+    return cache.get(applicationId, resolution, Collections.singletonList(row), from, to, loader).get(row);
+  }
+
+  private static void assertSameCounters(AggregateCounterSeries expected, AggregateCounterSeries actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.getTimestamp(i), actual.getTimestamp(i));
+      assertEquals(expected.getValue(i), actual.getValue(i));
+    }
+  }
+
+  /**
+   * Serves counters from memory and records every read
+   */
+  private static class RecordingLoader implements AggregateCounterCache.Loader {
+
+    private final Map<String, TreeMap<Long, Long>> rows = new HashMap<String, TreeMap<Long, Long>>();
+    private final List<Read> reads = new ArrayList<Read>();
+
+    // fail the way a loader that can't merge the unrolled counts does
+    private boolean incomplete;
+
+    void set(String row, long time, long value) {
+      TreeMap<Long, Long> columns = rows.get(row);
+      if (columns == null) {
+        columns = new TreeMap<Long, Long>();
+        rows.put(row, columns);
+      }
+      columns.put(time, value);
+    }
+
+    @Override
+    public Map<String, List<HCounterColumn<Long>>> load(Collection<String> keys, long start, long finish)
+        throws Exception {
+      reads.add(new Read(start, finish));
+
+      Map<String, List<HCounterColumn<Long>>> results = new LinkedHashMap<String, List<HCounterColumn<Long>>>();
+      for (String key : keys) {
+        List<HCounterColumn<Long>> columns = new ArrayList<HCounterColumn<Long>>();
+        TreeMap<Long, Long> row = rows.get(key);
+        if (row != null) {
+          for (Map.Entry<Long, Long> column : row.subMap(start, true, finish, true).entrySet()) {
+            columns.add(createCounterColumn(column.getKey(), column.getValue(), le));
+          }
+        }
+        results.put(key, columns);
+      }
+      if (incomplete) {
+        throw new AggregateCounterCache.IncompleteLoadException(results, new RuntimeException("merge failed"));
+      }
+      return results;
+    }
+  }
+
+  private static class Read {
+    private final long start;
+    private final long finish;
+
+    private Read(long start, long finish) {
+      this.start = start;
+      this.finish = finish;
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createCounterColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createCounterSliceQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static org.junit.Assert.assertEquals;
+import static org.usergrid.persistence.cassandra.ApplicationCF.APPLICATION_AGGREGATE_COUNTERS;
+import static org.usergrid.persistence.cassandra.CassandraService.ALL_COUNT;
+import static org.usergrid.utils.ConversionUtils.bytebuffer;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
+import me.prettyprint.cassandra.serializers.LongSerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HCounterColumn;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.SliceCounterQuery;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.usergrid.AbstractCoreIT;
+import org.usergrid.cassandra.Concurrent;
+import org.usergrid.persistence.CounterResolution;
+import org.usergrid.persistence.cassandra.CounterUtils.AggregateCounterSelection;
+
+@Concurrent()
+public class AggregateCounterRollupIT extends AbstractCoreIT {
+
+  private static final StringSerializer se = new StringSerializer();
+  private static final ByteBufferSerializer be = new ByteBufferSerializer();
+  private static final LongSerializer le = new LongSerializer();
+
+  private CassandraService cass;
+  private CounterUtils counterUtils;
+  private AggregateCounterRollup rollup;
+
+  // an hour long closed for writes
+  private final long hour = CounterResolution.HOUR.round(System.currentTimeMillis()) - (3 * CounterResolution.HOUR
+      .interval());
+
+  @Before
+  public void setupRollup() {
+    cass = setup.getCassSvc();
+
+    counterUtils = new CounterUtils();
+    counterUtils.setCounterType("o");
+    counterUtils.setRollup(true);
+    counterUtils.setRollupDelay(0);
+
+    rollup = new AggregateCounterRollup(cass, counterUtils);
+  }
+
+  @Test
+  public void rollupIsIncremental() throws Exception {
+    UUID applicationId = setup.createApplication("testOrganization", "testRollupIsIncremental");
+
+    for (int i = 0; i < 10; i++) {
+      increment(applicationId, hour + (i * 60 * 1000));
+    }
+
+    assertEquals(1, rollup.rollup(applicationId));
+    assertEquals(10, getCount(applicationId, CounterResolution.HOUR, hour));
+    assertEquals(10, getCount(applicationId, CounterResolution.DAY, CounterResolution.DAY.round(hour)));
+
+    // nothing marked, nothing rolled up again
+    assertEquals(0, rollup.rollup(applicationId));
+    assertEquals(10, getCount(applicationId, CounterResolution.HOUR, hour));
+
+    // a late event marks the hour again, only it is added
+    increment(applicationId, hour + (30 * 60 * 1000));
+
+    assertEquals(1, rollup.rollup(applicationId));
+    assertEquals(11, getCount(applicationId, CounterResolution.HOUR, hour));
+    assertEquals(11, getCount(applicationId, CounterResolution.DAY, CounterResolution.DAY.round(hour)));
+
+    // and the minutes still hold every event
+    assertEquals(11, sum(getColumns(applicationId, CounterUtils.ROLLUP_SOURCE)));
+  }
+
+  @Test
+  public void watermarkStopsAtWaitingMarker() throws Exception {
+    UUID applicationId = setup.createApplication("testOrganization", "testWatermarkStopsAtWaitingMarker");
+
+    counterUtils.setRollupDelay(10 * 60 * 1000);
+
+    // written an hour ago, settled
+    long earlier = hour - CounterResolution.HOUR.interval();
+    increment(applicationId, earlier, (System.currentTimeMillis() - CounterResolution.HOUR.interval()) * 1000);
+
+    // written just now, left for the next pass
+    increment(applicationId, hour);
+
+    assertEquals(1, rollup.rollup(applicationId));
+    assertEquals(1, getCount(applicationId, CounterResolution.HOUR, earlier));
+    assertEquals(0, getCount(applicationId, CounterResolution.HOUR, hour));
+    assertEquals(hour, rollup.getWatermark(applicationId));
+
+    // the waiting hour still reads from the minutes
+    long finish = CounterResolution.HOUR.round(System.currentTimeMillis());
+    assertEquals(2, sum(merge(applicationId, CounterResolution.HOUR, earlier, finish)));
+
+    counterUtils.setRollupDelay(0);
+
+    assertEquals(1, rollup.rollup(applicationId));
+    assertEquals(1, getCount(applicationId, CounterResolution.HOUR, hour));
+    assertEquals(2, sum(merge(applicationId, CounterResolution.HOUR, earlier, finish)));
+  }
+
+  @Test
+  public void mergeAddsRawAfterWatermark() throws Exception {
+    UUID applicationId = setup.createApplication("testOrganization", "testMergeAddsRawAfterWatermark");
+
+    for (int i = 0; i < 5; i++) {
+      increment(applicationId, hour + (i * 60 * 1000));
+    }
+
+    long finish = CounterResolution.HOUR.round(System.currentTimeMillis());
+
+    // nothing rolled up, all of it comes from the minutes
+    assertEquals(5, sum(merge(applicationId, CounterResolution.HOUR, hour, finish)));
+
+    rollup.rollup(applicationId);
+
+    // rolled up, the minutes before the watermark aren't added a second time
+    assertEquals(5, sum(merge(applicationId, CounterResolution.HOUR, hour, finish)));
+  }
+
+  @Test
+  public void mergeReadsEveryPage() throws Exception {
+    UUID applicationId = setup.createApplication("testOrganization", "testMergeReadsEveryPage");
+
+    Keyspace ko = cass.getApplicationKeyspace(applicationId);
+    ByteBuffer key = bytebuffer(row(CounterUtils.ROLLUP_SOURCE));
+
+    int minutes = AggregateCounterRollup.SOURCE_PAGE_SIZE + 10;
+    long first = hour - (minutes * 60 * 1000L);
+
+    Mutator<ByteBuffer> m = createMutator(ko, be);
+    for (int i = 0; i < minutes; i++) {
+      m.addCounter(key, APPLICATION_AGGREGATE_COUNTERS.toString(),
+          createCounterColumn(first + (i * 60 * 1000L), 1L, le));
+
+      if (i % 1000 == 999) {
+        m.execute();
+        m = createMutator(ko, be);
+      }
+    }
+    m.execute();
+
+    assertEquals(minutes, sum(merge(applicationId, CounterResolution.DAY, CounterResolution.DAY.round(first),
+        CounterResolution.DAY.round(hour))));
+  }
+
+  private void increment(UUID applicationId, long counterTimestamp) {
+    increment(applicationId, counterTimestamp, cass.createTimestamp());
+  }
+
+  private void increment(UUID applicationId, long counterTimestamp, long timestamp) {
+    Mutator<ByteBuffer> m = createMutator(cass.getApplicationKeyspace(applicationId), be);
+    counterUtils.batchIncrementAggregateCounters(m, applicationId, null, null, null, null, "visits", 1,
+        counterTimestamp, timestamp);
+    m.execute();
+  }
+
+  private List<HCounterColumn<Long>> merge(UUID applicationId, CounterResolution resolution, long start, long finish)
+      throws Exception {
+    Map<String, List<HCounterColumn<Long>>> rows = new HashMap<String, List<HCounterColumn<Long>>>();
+    rows.put(row(resolution), getColumns(applicationId, resolution));
+
+    return rollup.merge(applicationId, resolution, start, finish, rows).get(row(resolution));
+  }
+
+  private long getCount(UUID applicationId, CounterResolution resolution, long bucket) {
+    for (HCounterColumn<Long> column : getColumns(applicationId, resolution)) {
+      if (column.getName() == bucket) {
+        return column.getValue();
+      }
+    }
+    return 0;
+  }
+
+  private List<HCounterColumn<Long>> getColumns(UUID applicationId, CounterResolution resolution) {
+    SliceCounterQuery<String, Long> q = createCounterSliceQuery(cass.getApplicationKeyspace(applicationId), se, le);
+    q.setColumnFamily(APPLICATION_AGGREGATE_COUNTERS.toString());
+    q.setKey(row(resolution));
+    q.setRange(null, null, false, ALL_COUNT);
+    return q.execute().get().getColumns();
+  }
+
+  private static String row(CounterResolution resolution) {
+    return AggregateCounterSelection.rowBuilder("visits", null, null, null, null, resolution);
+  }
+
+  private static long sum(List<HCounterColumn<Long>> columns) {
+    long sum = 0;
+    for (HCounterColumn<Long> column : columns) {
+      sum += column.getValue();
+    }
+    return sum;
+  }
+}
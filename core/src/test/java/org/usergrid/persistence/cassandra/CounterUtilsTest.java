@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.Test;
+import org.usergrid.cassandra.Concurrent;
+import org.usergrid.persistence.CounterResolution;
+
+@Concurrent()
+public class CounterUtilsTest {
+
+  @Test
+  public void rolledUpResolutions() {
+    CounterUtils utils = new CounterUtils();
+
+    for (CounterResolution resolution : CounterResolution.values()) {
+      assertFalse(utils.isRolledUp(resolution));
+    }
+
+    utils.setRollup(true);
+
+    assertFalse(utils.isRolledUp(CounterResolution.ALL));
+    assertFalse(utils.isRolledUp(CounterResolution.MINUTE));
+    assertTrue(utils.isRolledUp(CounterResolution.FIVE_MINUTES));
+    assertTrue(utils.isRolledUp(CounterResolution.HOUR));
+    assertTrue(utils.isRolledUp(CounterResolution.MONTH));
+  }
+
+  @Test
+  public void rolledUpRow() {
+    UUID userId = UUID.randomUUID();
+
+    String source = CounterUtils.AggregateCounterSelection.rowBuilder("visits", userId, null, null, "web",
+        CounterUtils.ROLLUP_SOURCE);
+
+    String day = CounterUtils.AggregateCounterSelection.rowBuilder("visits", userId, null, null, "web",
+        CounterResolution.DAY);
+
+    assertEquals(day, CounterUtils.getRolledUpRow(source, CounterResolution.DAY));
+  }
+
+  @Test
+  public void lateEvents() {
+    CounterUtils utils = new CounterUtils();
+    utils.setLateAfter(60 * 1000);
+
+    long now = System.currentTimeMillis();
+
+    assertFalse(utils.isLate(now));
+    assertTrue(utils.isLate(now - (2 * CounterResolution.HOUR.interval())));
+  }
+}
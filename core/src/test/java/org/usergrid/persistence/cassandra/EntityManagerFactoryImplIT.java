@@ -20,13 +20,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.usergrid.persistence.Schema.PROPERTY_UUID;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
+import me.prettyprint.hector.api.beans.Row;
+
 import org.junit.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -173,4 +178,38 @@ public class EntityManagerFactoryImplIT extends AbstractCoreIT
         traceTagReporter.report(traceTagManager.detach());
 	}
 
+	@Test
+	public void testPagedApplicationScan() throws Exception {
+		logger.info("EntityDaoTest.testPagedApplicationScan");
+
+		emf.createApplication("testOrganization", "testPagedScan1");
+		emf.createApplication("testOrganization", "testPagedScan2");
+		emf.createApplication("testOrganization", "testPagedScan3");
+
+		Map<String, UUID> applications = emf.getApplications();
+		assertTrue(applications.containsKey("testOrganization/testPagedScan1"));
+		assertTrue(applications.containsKey("testOrganization/testPagedScan2"));
+		assertTrue(applications.containsKey("testOrganization/testPagedScan3"));
+
+		// a tiny page size has to walk every page to see the same rows
+		CassandraService cass = CoreITSuite.cassandraResource
+				.getBean(CassandraService.class);
+		RowIterator<String, String, UUID> rows = new RowIterator<String, String, UUID>(
+				cass.getSystemKeyspace(), CassandraService.APPLICATIONS_CF,
+				CassandraService.se, CassandraService.se, CassandraService.ue,
+				new String[] { PROPERTY_UUID }, 2, null);
+
+		Set<String> names = new HashSet<String>();
+		for (Row<String, String, UUID> row : rows) {
+			if (row.getColumnSlice().getColumnByName(PROPERTY_UUID) != null) {
+				assertTrue("row returned twice " + row.getKey(),
+						names.add(row.getKey()));
+			}
+		}
+
+		for (String name : applications.keySet()) {
+			assertTrue(name, names.contains(name));
+		}
+	}
+
 }
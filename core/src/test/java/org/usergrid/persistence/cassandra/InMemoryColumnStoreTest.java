@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.persistence.cassandra;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_DICTIONARIES;
+import static org.usergrid.persistence.cassandra.ApplicationCF.ENTITY_INDEX;
+import static org.usergrid.persistence.cassandra.CassandraService.be;
+import static org.usergrid.persistence.cassandra.CassandraService.se;
+import static org.usergrid.utils.ConversionUtils.bytebuffer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+
+import org.junit.Test;
+import org.usergrid.cassandra.Concurrent;
+
+@Concurrent()
+public class InMemoryColumnStoreTest {
+
+  private static final ByteBuffer KEY = bytebuffer("row");
+
+  @Test
+  public void compositeOrder() throws Exception {
+    InMemoryColumnStore store = new InMemoryColumnStore();
+    Keyspace ko = keyspace(store, null);
+
+    List<HColumn<ByteBuffer, ByteBuffer>> columns = new ArrayList<HColumn<ByteBuffer, ByteBuffer>>();
+    for (long i : new long[] { 10, 2, 30, 1 }) {
+      columns.add(createColumn(new DynamicComposite("name", i).serialize(), bytebuffer(i), be, be));
+    }
+    store.insert(ko, ENTITY_INDEX.toString(), KEY, columns);
+
+    // longs sort numerically inside the composite, not as bytes of the
+    // insertion order
+    assertEquals(Arrays.asList(1L, 2L, 10L, 30L), components(store.getSlice(ko, ENTITY_INDEX.toString(), KEY, null,
+        null, 10, false, be, be)));
+
+    assertEquals(Arrays.asList(30L, 10L),
+        components(store.getSlice(ko, ENTITY_INDEX.toString(), KEY, null, null, 2, true, be, be)));
+
+    ByteBuffer start = new DynamicComposite("name", 2L).serialize();
+    ByteBuffer finish = new DynamicComposite("name", 10L).serialize();
+    assertEquals(Arrays.asList(2L, 10L),
+        components(store.getSlice(ko, ENTITY_INDEX.toString(), KEY, start, finish, 10, false, be, be)));
+    assertEquals(Arrays.asList(10L, 2L),
+        components(store.getSlice(ko, ENTITY_INDEX.toString(), KEY, finish, start, 10, true, be, be)));
+  }
+
+  @Test
+  public void timestamps() throws Exception {
+    InMemoryColumnStore store = new InMemoryColumnStore();
+    Keyspace ko = keyspace(store, null);
+    String cf = ENTITY_DICTIONARIES.toString();
+
+    store.insert(ko, cf, KEY, list(createColumn("a", "new", 20, se, se)));
+    store.insert(ko, cf, KEY, list(createColumn("a", "old", 10, se, se)));
+    assertEquals("new", store.getColumns(ko, cf, KEY, Arrays.asList("a"), se, se).get(0).getValue());
+
+    store.deleteRow(ko, cf, KEY, 30);
+    assertEquals(0, store.countColumns(ko, cf, KEY));
+
+    // writes older than the row deletion stay deleted
+    store.insert(ko, cf, KEY, list(createColumn("b", "late", 25, se, se)));
+    assertEquals(0, store.countColumns(ko, cf, KEY));
+
+    store.insert(ko, cf, KEY, list(createColumn("b", "later", 40, se, se)));
+    assertEquals(1, store.countColumns(ko, cf, KEY));
+
+    store.deleteColumn(ko, cf, KEY, se.toByteBuffer("b"), 40);
+    assertTrue(store.getColumns(ko, cf, KEY, Arrays.asList("b"), se, se).isEmpty());
+    List<ByteBuffer> keys = new ArrayList<ByteBuffer>();
+    store.getRowKeys(ko, cf, be, 10, null, keys);
+    assertTrue(keys.isEmpty());
+  }
+
+  @Test
+  public void virtualKeyspaces() throws Exception {
+    InMemoryColumnStore store = new InMemoryColumnStore();
+    Keyspace first = keyspace(store, UUID.randomUUID());
+    Keyspace second = keyspace(store, UUID.randomUUID());
+    String cf = ENTITY_DICTIONARIES.toString();
+
+    store.insert(first, cf, KEY, list(createColumn("a", "first", 10, se, se)));
+
+    assertEquals(1, store.countColumns(first, cf, KEY));
+    assertEquals(0, store.countColumns(second, cf, KEY));
+    assertTrue(store.multigetSlice(second, cf, Arrays.asList(KEY), null, null, 10, false, be, se, se).get(KEY)
+        .isEmpty());
+  }
+
+  private static List<HColumn<String, String>> list(HColumn<String, String> column) {
+    List<HColumn<String, String>> columns = new ArrayList<HColumn<String, String>>();
+    columns.add(column);
+    return columns;
+  }
+
+  private static List<Object> components(List<HColumn<ByteBuffer, ByteBuffer>> columns) {
+    List<Object> values = new ArrayList<Object>();
+    for (HColumn<ByteBuffer, ByteBuffer> column : columns) {
+      values.add(DynamicComposite.fromByteBuffer(column.getName()).get(1));
+    }
+    return values;
+  }
+
+  private static Keyspace keyspace(InMemoryColumnStore store, UUID prefix) {
+    Keyspace ko = (Keyspace) Proxy.newProxyInstance(Keyspace.class.getClassLoader(), new Class<?>[] { Keyspace.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("getKeyspaceName".equals(method.getName())) {
+              return "Usergrid_Applications";
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    store.register(ko, "Usergrid_Applications", prefix);
+    return ko;
+  }
+}
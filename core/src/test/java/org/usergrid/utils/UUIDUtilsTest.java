@@ -339,6 +339,22 @@ public class UUIDUtilsTest {
   
 
   
+  @Test
+  public void timeUUIDBlocks() {
+    Set<UUID> uuids = new HashSet<UUID>();
+
+    UUID previous = UUIDUtils.newTimeUUID();
+    for (int i = 0; i < 10; i++) {
+      for (UUID uuid : UUIDUtils.newTimeUUIDs(2500)) {
+        assertTrue("UUID already generated", uuids.add(uuid));
+        assertTrue("UUIDs out of order", uuid.timestamp() > previous.timestamp());
+        previous = uuid;
+      }
+    }
+
+    assertTrue(UUIDUtils.newTimeUUID().timestamp() > previous.timestamp());
+  }
+
   @Test(expected=IllegalArgumentException.class)
   public void testDecrementMin(){
     UUIDUtils.decrement(UUIDUtils.MIN_TIME_UUID);
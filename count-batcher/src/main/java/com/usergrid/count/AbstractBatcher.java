@@ -23,6 +23,9 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.usergrid.count.common.Count;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Timer;
@@ -35,6 +38,8 @@ import com.yammer.metrics.core.TimerContext;
  * @author zznate
  */
 public abstract class AbstractBatcher implements Batcher {
+    private static final Logger log = LoggerFactory.getLogger(AbstractBatcher.class);
+
     protected BatchSubmitter batchSubmitter;
 
     private volatile Batch batch;
@@ -60,6 +65,15 @@ public abstract class AbstractBatcher implements Batcher {
         this.batchSubmitter = batchSubmitter;
     }
 
+    /**
+     * Whether serial adds wait for the submitter to write the {@link Count}.
+     * Callers only block when they need to read their writes back right away.
+     * @return false, so serial adds return as soon as the count is queued
+     */
+    protected boolean isBlockingSubmit() {
+        return false;
+    }
+
     /**
      * Individual {@link Count} for the same counter get rolled up, so
      * we track the individual number of operations.
@@ -141,16 +155,18 @@ public abstract class AbstractBatcher implements Batcher {
         try {
           counts.offer(count, 500, TimeUnit.MILLISECONDS);
         } catch (Exception ex){
-          ex.printStackTrace();
+          log.error("Unable to add count {}", count.getCounterName(), ex);
         }
       }
 
       void addSerial(Count count) {
-        Future f = batchSubmitter.submit(Arrays.asList(count));
-        try {
-          f.get();
-        }catch (Exception ex ) {
-          ex.printStackTrace();
+        Future<?> f = batchSubmitter.submit(Arrays.asList(count));
+        if ( isBlockingSubmit() ) {
+          try {
+            f.get();
+          }catch (Exception ex ) {
+            log.error("Unable to submit count {}", count.getCounterName(), ex);
+          }
         }
         batchSubmissionCount.incrementAndGet();
         opCount.incrementAndGet();
@@ -15,23 +15,50 @@
  ******************************************************************************/
 package com.usergrid.count;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.usergrid.count.common.Count;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Timer;
 import com.yammer.metrics.core.TimerContext;
 
 /**
- * Submits directly to Cassandra for insertion
+ * Submits directly to Cassandra for insertion. Batches are queued on a
+ * bounded queue and written by a pool of workers, so several mutations are
+ * in flight at once. The number of workers follows the save latency and the
+ * queue depth. Callers never block: when the queue is full the batch is
+ * spilled to disk if a spill directory is set, or dropped otherwise. Spilled
+ * batches, and batches Cassandra failed to write, are replayed while the queue
+ * is less than half full. A batch that keeps failing is set aside in a ".failed" file once it
+ * has been replayed the most times allowed.
  * 
  * @author zznate
  */
@@ -39,36 +66,418 @@ public class CassandraSubmitter implements BatchSubmitter {
 	private final Logger log = LoggerFactory
 			.getLogger(CassandraSubmitter.class);
 
-	private final int threadCount = 3;
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+	public static final int DEFAULT_MIN_THREADS = 3;
+	public static final int DEFAULT_MAX_THREADS = 16;
+	public static final long DEFAULT_TARGET_LATENCY = 50;
+	public static final int DEFAULT_MAX_REPLAYS = 10;
+
+	private static final long ADJUST_INTERVAL = 1000;
+	private static final String SPILL_SUFFIX = ".spill";
+	private static final String FAILED_SUFFIX = ".failed";
+	private static final String FAILURES_PREFIX = "-f";
+
+	private static final byte COLUMN_STRING = 's';
+	private static final byte COLUMN_LONG = 'l';
+	private static final byte COLUMN_BYTES = 'b';
+
 	private final CassandraCounterStore cassandraCounterStore;
 
-	private final ExecutorService executor = Executors
-			.newFixedThreadPool(threadCount);
+	private final int minThreads;
+	private final int maxThreads;
+	private final BlockingQueue<Runnable> queue;
+	private final ThreadPoolExecutor executor;
+	private final ScheduledExecutorService adjuster;
+
+	private long targetLatency = DEFAULT_TARGET_LATENCY;
+	private int maxReplays = DEFAULT_MAX_REPLAYS;
+	private File spillDirectory;
+
+	/** average save time in microseconds, decayed on every save */
+	private final AtomicLong latency = new AtomicLong();
+	private final AtomicLong spillSequence = new AtomicLong();
+	private final AtomicLong saveFailures = new AtomicLong();
+	/** save failures seen by the last replay, only read by the adjuster */
+	private long replayedFailures;
+
 	private final Timer addTimer = Metrics.newTimer(CassandraSubmitter.class,
 			"submit_invocation", TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+	private final Counter droppedCounter = Metrics.newCounter(
+			CassandraSubmitter.class, "submit_dropped");
+	private final Counter failedCounter = Metrics.newCounter(
+			CassandraSubmitter.class, "submit_failed");
+	private final Counter spilledCounter = Metrics.newCounter(
+			CassandraSubmitter.class, "submit_spilled");
+	private final Counter quarantinedCounter = Metrics.newCounter(
+			CassandraSubmitter.class, "submit_quarantined");
 
 	public CassandraSubmitter(CassandraCounterStore cassandraCounterStore) {
+		this(cassandraCounterStore, DEFAULT_QUEUE_SIZE, DEFAULT_MIN_THREADS,
+				DEFAULT_MAX_THREADS);
+	}
+
+	/**
+	 * @param cassandraCounterStore
+	 * @param queueSize
+	 *            the most batches waiting to be written
+	 * @param minThreads
+	 *            workers always kept
+	 * @param maxThreads
+	 *            the most workers started when Cassandra falls behind
+	 */
+	public CassandraSubmitter(CassandraCounterStore cassandraCounterStore,
+			int queueSize, int minThreads, int maxThreads) {
+		if (minThreads < 1 || maxThreads < minThreads) {
+			throw new IllegalArgumentException(
+					"Threads must be at least 1 and max must not be less than min");
+		}
 		this.cassandraCounterStore = cassandraCounterStore;
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+		this.queue = new ArrayBlockingQueue<Runnable>(queueSize);
+		this.executor = new ThreadPoolExecutor(minThreads, maxThreads, 60,
+				TimeUnit.SECONDS, queue, new DaemonThreadFactory("submitter"),
+				new SpillPolicy());
+		this.adjuster = Executors
+				.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+						"submitter-adjuster"));
+		this.adjuster.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					adjust();
+					replay();
+				} catch (Exception e) {
+					log.error("Unable to adjust counter submission", e);
+				}
+			}
+		}, ADJUST_INTERVAL, ADJUST_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param targetLatency
+	 *            milliseconds a save may take before more workers are started
+	 */
+	public void setTargetLatency(long targetLatency) {
+		this.targetLatency = targetLatency;
+	}
+
+	/**
+	 * @param maxReplays
+	 *            times a batch Cassandra failed to write is replayed before it
+	 *            is set aside
+	 */
+	public void setMaxReplays(int maxReplays) {
+		this.maxReplays = maxReplays;
+	}
+
+	/**
+	 * @param spillDirectory
+	 *            where batches which can't be queued or written are kept until
+	 *            they can be replayed, empty to drop them instead
+	 */
+	public void setSpillDirectory(String spillDirectory) {
+		if (spillDirectory == null || spillDirectory.trim().length() == 0) {
+			this.spillDirectory = null;
+			return;
+		}
+		File dir = new File(spillDirectory);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("Unable to create spill directory "
+					+ spillDirectory);
+		}
+		this.spillDirectory = dir;
 	}
 
 	@Override
 	public Future submit(final Collection<Count> counts) {
-		return executor.submit(new Callable<Object>() {
-			final TimerContext timer = addTimer.time();
-
-			@Override
-			public Object call() throws Exception {
-				cassandraCounterStore.save(counts);
-				timer.stop();
-				return true;
-			}
-		});
+		return submit(counts, 0);
+	}
 
+	private Future submit(Collection<Count> counts, int failures) {
+		SaveFuture future = new SaveFuture(counts, failures);
+		executor.execute(future);
+		return future;
 	}
 
 	@Override
 	public void shutdown() {
 		log.warn("Shutting down CassandraSubmitter");
+		adjuster.shutdown();
 		executor.shutdown();
 	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public int getThreadCount() {
+		return executor.getCorePoolSize();
+	}
+
+	/**
+	 * Start a worker while saves are slow or batches back up, retire one once
+	 * the queue is empty and workers sit idle
+	 */
+	void adjust() {
+		int threads = executor.getCorePoolSize();
+		long averageMillis = latency.get() / 1000;
+		int depth = queue.size();
+
+		if ((averageMillis > targetLatency && depth > 0)
+				|| depth > queue.remainingCapacity()) {
+			if (threads < maxThreads) {
+				executor.setCorePoolSize(threads + 1);
+			}
+		} else if (depth == 0 && executor.getActiveCount() < threads
+				&& threads > minThreads) {
+			executor.setCorePoolSize(threads - 1);
+		}
+	}
+
+	/**
+	 * Re-submit spilled batches while the queue is less than half full, the
+	 * rest is left for new batches. Only one is re-submitted while Cassandra
+	 * keeps failing, so the others aren't replayed towards being set aside
+	 */
+	void replay() {
+		File dir = spillDirectory;
+		if (dir == null) {
+			return;
+		}
+		long failures = saveFailures.get();
+		boolean failing = failures != replayedFailures;
+		replayedFailures = failures;
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (queue.size() > queue.remainingCapacity()) {
+				return;
+			}
+			if (!file.getName().endsWith(SPILL_SUFFIX)) {
+				continue;
+			}
+			List<Count> counts;
+			try {
+				counts = readSpill(file);
+			} catch (IOException e) {
+				log.error("Unable to read spilled counts from {}", file, e);
+				continue;
+			}
+			// delete first so a failure spills the batch again rather than
+			// writing it twice
+			if (!file.delete()) {
+				log.error("Unable to delete spilled counts {}", file);
+				continue;
+			}
+			// a rejected batch was spilled again, the queue is full
+			if (submit(counts, failures(file)).isCancelled() || failing) {
+				return;
+			}
+		}
+	}
+
+	private void record(long micros) {
+		long average = latency.get();
+		latency.set(average == 0 ? micros : (average * 7 + micros) / 8);
+	}
+
+	/**
+	 * @param counts
+	 * @param failures
+	 *            the number of times Cassandra failed to write the batch
+	 */
+	private void spill(Collection<Count> counts, int failures) {
+		File dir = spillDirectory;
+		if (dir == null) {
+			droppedCounter.inc(counts.size());
+			return;
+		}
+		String name = "counts-" + System.currentTimeMillis() + "-"
+				+ spillSequence.incrementAndGet();
+		// set aside rather than replayed forever
+		boolean quarantine = failures > maxReplays;
+		File file = new File(dir, quarantine ? name + FAILED_SUFFIX : name
+				+ FAILURES_PREFIX + failures + SPILL_SUFFIX);
+		try {
+			writeSpill(file, counts);
+			if (quarantine) {
+				log.error("Unable to write {} counts after {} attempts, set aside in {}",
+						new Object[] { counts.size(), failures, file });
+				quarantinedCounter.inc(counts.size());
+			} else {
+				spilledCounter.inc(counts.size());
+			}
+		} catch (IOException e) {
+			log.error("Unable to spill counts to {}", file, e);
+			file.delete();
+			droppedCounter.inc(counts.size());
+		}
+	}
+
+	/**
+	 * @return the number of failed writes recorded in the spill file's name
+	 */
+	static int failures(File file) {
+		String name = file.getName();
+		name = name.substring(0, name.length() - SPILL_SUFFIX.length());
+		int index = name.lastIndexOf(FAILURES_PREFIX);
+		if (index < 0) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(name.substring(index
+					+ FAILURES_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	static void writeSpill(File file, Collection<Count> counts)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			for (Count count : counts) {
+				out.writeUTF(count.getTableName());
+				writeBytes(out, count.getKeyNameBytes());
+				Object column = count.getColumnName();
+				if (column instanceof String) {
+					out.writeByte(COLUMN_STRING);
+					out.writeUTF((String) column);
+				} else if (column instanceof Long) {
+					out.writeByte(COLUMN_LONG);
+					out.writeLong((Long) column);
+				} else {
+					out.writeByte(COLUMN_BYTES);
+					writeBytes(out, count.getColumnNameBytes());
+				}
+				out.writeLong(count.getValue());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	static List<Count> readSpill(File file) throws IOException {
+		List<Count> counts = new ArrayList<Count>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			while (true) {
+				String tableName;
+				try {
+					tableName = in.readUTF();
+				} catch (EOFException e) {
+					break;
+				}
+				ByteBuffer key = readBytes(in);
+				Object column;
+				byte type = in.readByte();
+				if (type == COLUMN_STRING) {
+					column = in.readUTF();
+				} else if (type == COLUMN_LONG) {
+					column = in.readLong();
+				} else {
+					column = readBytes(in);
+				}
+				counts.add(new Count(tableName, key, column, in.readLong()));
+			}
+		} finally {
+			in.close();
+		}
+		return counts;
+	}
+
+	private static void writeBytes(DataOutputStream out, ByteBuffer bytes)
+			throws IOException {
+		byte[] b = new byte[bytes.remaining()];
+		bytes.duplicate().get(b);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static ByteBuffer readBytes(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return ByteBuffer.wrap(b);
+	}
+
+	/**
+	 * Writes one batch, spilling it if Cassandra fails
+	 */
+	private class SaveTask implements Callable<Object> {
+		private final Collection<Count> counts;
+		private final int failures;
+
+		private SaveTask(Collection<Count> counts, int failures) {
+			this.counts = counts;
+			this.failures = failures;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			TimerContext timer = addTimer.time();
+			long start = System.nanoTime();
+			try {
+				cassandraCounterStore.save(counts);
+			} catch (RuntimeException e) {
+				failedCounter.inc();
+				saveFailures.incrementAndGet();
+				spill(counts, failures + 1);
+				throw e;
+			} finally {
+				record((System.nanoTime() - start) / 1000);
+				timer.stop();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Keeps the batch at hand so a rejected submission can still be spilled
+	 */
+	private class SaveFuture extends FutureTask<Object> {
+		private final Collection<Count> counts;
+		private final int failures;
+
+		private SaveFuture(Collection<Count> counts, int failures) {
+			super(new SaveTask(counts, failures));
+			this.counts = counts;
+			this.failures = failures;
+		}
+	}
+
+	/**
+	 * Spills or drops batches instead of blocking the caller when the queue is
+	 * full
+	 */
+	private class SpillPolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			SaveFuture future = (SaveFuture) r;
+			// cancel so anyone waiting on the submission is released
+			future.cancel(false);
+			spill(future.counts, future.failures);
+		}
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicLong count = new AtomicLong();
+
+		private DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "counter-" + name + "-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
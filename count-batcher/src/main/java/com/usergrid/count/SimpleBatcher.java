@@ -41,4 +41,9 @@ public class SimpleBatcher extends AbstractBatcher {
     public void setBlockingSubmit(boolean blockingSubmit) {
       this.blockingSubmit = blockingSubmit;
     }
+
+    @Override
+    protected boolean isBlockingSubmit() {
+      return blockingSubmit;
+    }
 }
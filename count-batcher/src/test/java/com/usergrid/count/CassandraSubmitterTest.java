@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.usergrid.count;
+
+import com.usergrid.count.common.Count;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Unit test for CassandraSubmitter queueing and spilling.
+ */
+public class CassandraSubmitterTest {
+
+    @Test
+    public void testSpillRoundTrip() throws Exception {
+        File file = File.createTempFile("counts", ".spill");
+        file.deleteOnExit();
+
+        List<Count> counts = new ArrayList<Count>();
+        counts.add(new Count("Counter", ByteBuffer.wrap(new byte[]{1, 2, 3}), "c1", 2));
+        counts.add(new Count("Counter", ByteBuffer.wrap(new byte[]{4}), 1000L, 5));
+        CassandraSubmitter.writeSpill(file, counts);
+
+        List<Count> read = CassandraSubmitter.readSpill(file);
+        assertEquals(2, read.size());
+        for ( int i = 0; i < counts.size(); i++ ) {
+            assertEquals(counts.get(i).getCounterName(), read.get(i).getCounterName());
+            assertEquals(counts.get(i).getValue(), read.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void testFullQueueDoesNotBlock() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        CassandraSubmitter submitter = new CassandraSubmitter(new CassandraCounterStore(null) {
+            @Override
+            public void save(Collection<Count> counts) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 1, 1, 1);
+
+        long start = System.currentTimeMillis();
+        for ( int i = 0; i < 10; i++ ) {
+            submitter.submit(Arrays.asList(new Count("Counter", "k1", "c" + i, 1)));
+        }
+        assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(1));
+        assertEquals(1, submitter.getQueueDepth());
+
+        release.countDown();
+        submitter.shutdown();
+    }
+
+    @Test
+    public void testFailingBatchIsSetAside() throws Exception {
+        File dir = File.createTempFile("spill", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+
+        final AtomicInteger saves = new AtomicInteger();
+        CassandraSubmitter submitter = new CassandraSubmitter(new CassandraCounterStore(null) {
+            @Override
+            public void save(Collection<Count> counts) {
+                saves.incrementAndGet();
+                throw new RuntimeException("Cassandra is down");
+            }
+        }, 10, 1, 1);
+        submitter.setSpillDirectory(dir.getPath());
+        submitter.setMaxReplays(2);
+
+        submitter.submit(Arrays.asList(new Count("Counter", "k1", "c1", 1)));
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while ( files(dir, ".failed").length == 0 && System.currentTimeMillis() < deadline ) {
+            submitter.replay();
+            Thread.sleep(10);
+        }
+        submitter.shutdown();
+
+        // the first write and two replays
+        assertEquals(3, saves.get());
+        assertEquals(1, files(dir, ".failed").length);
+        assertEquals(0, files(dir, ".spill").length);
+
+        for ( File file : dir.listFiles() ) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReplayDrainsSpills() throws Exception {
+        File dir = File.createTempFile("spill", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+
+        final CountDownLatch saved = new CountDownLatch(3);
+        CassandraSubmitter submitter = new CassandraSubmitter(new CassandraCounterStore(null) {
+            @Override
+            public void save(Collection<Count> counts) {
+                saved.countDown();
+            }
+        }, 10, 1, 1);
+        submitter.setSpillDirectory(dir.getPath());
+
+        for ( int i = 0; i < 3; i++ ) {
+            CassandraSubmitter.writeSpill(new File(dir, "counts-" + i + ".spill"),
+                    Arrays.asList(new Count("Counter", "k1", "c" + i, 1)));
+        }
+
+        // all three in one pass rather than one per tick
+        submitter.replay();
+        assertTrue(saved.await(5, TimeUnit.SECONDS));
+        assertEquals(0, files(dir, ".spill").length);
+        submitter.shutdown();
+    }
+
+    @Test
+    public void testFailuresFromSpillName() {
+        assertEquals(0, CassandraSubmitter.failures(new File("counts-1-2.spill")));
+        assertEquals(3, CassandraSubmitter.failures(new File("counts-1-2-f3.spill")));
+    }
+
+    private static File[] files(File dir, final String suffix) {
+        return dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+    }
+}
@@ -69,6 +69,7 @@ public class CassandraCounterStore implements CounterStore {
           mutator.execute();
         } catch (HectorException he) {
           log.error("Insert failed. Reason: ", he);
+          throw he;
         }
     }
 }
@@ -19,14 +19,28 @@ import org.usergrid.rest.applications.ServiceResource;
 import org.usergrid.rest.security.annotations.RequireApplicationAccess;
 import org.usergrid.services.assets.data.AssetUtils;
 import org.usergrid.services.assets.data.BinaryStore;
+import org.usergrid.services.assets.data.ByteRange;
+import org.usergrid.services.assets.data.LocalFileBinaryStore;
 import org.usergrid.utils.StringUtils;
 
+import org.apache.commons.io.IOUtils;
+
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @author zznate
@@ -38,6 +52,14 @@ public class AssetsResource extends ServiceResource {
 
   private Logger logger = LoggerFactory.getLogger(AssetsResource.class);
 
+  private static final int PARTIAL_CONTENT = 206;
+  private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+  private static final String CONTENT_RANGE = "Content-Range";
+  private static final String ACCEPT_RANGES = "Accept-Ranges";
+  private static final int RESUME_INCOMPLETE = 308;
+  private static final int NOT_IMPLEMENTED = 501;
+  private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (?:(\\d+)-(\\d+)|\\*)/(\\d+)");
+
   @Autowired
   private BinaryStore binaryStore;
 
@@ -97,8 +119,53 @@ public class AssetsResource extends ServiceResource {
   @Consumes(MediaType.APPLICATION_OCTET_STREAM)
   @Path("{entityId: [A-Fa-f0-9]{8}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{12}}/data")
   public Response uploadDataStreamPut( @PathParam("entityId") PathSegment entityId,
+                                    @HeaderParam("content-range") String contentRange,
                                     InputStream uploadedInputStream) throws Exception {
-    return uploadDataStream(entityId, uploadedInputStream);
+    if ( StringUtils.isBlank(contentRange) ) {
+      return uploadDataStream(entityId, uploadedInputStream);
+    }
+    return uploadDataChunk(entityId, contentRange, uploadedInputStream);
+  }
+
+  /**
+   * One chunk of a resumable upload, "Content-Range: bytes 0-999/5000". An
+   * empty body with "bytes *&#47;5000" asks how much has arrived. Until the
+   * last byte is in the answer is 308 with a Range header of what we have,
+   * so an interrupted client knows where to pick up.
+   */
+  private Response uploadDataChunk(PathSegment entityId, String contentRange, InputStream uploadedInputStream)
+          throws Exception {
+    Matcher m = CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+    if ( !m.matches() ) {
+      return Response.status(Response.Status.BAD_REQUEST).build();
+    }
+    if ( !(binaryStore instanceof LocalFileBinaryStore) ) {
+      return Response.status(NOT_IMPLEMENTED).build();
+    }
+
+    UUID assetId = UUID.fromString(entityId.getPath());
+    long total = Long.parseLong(m.group(3));
+    long offset = m.group(1) != null ? Long.parseLong(m.group(1)) : -1;
+    logger.info("In AssetsResource.uploadDataChunk with id: {}, range: {}", assetId, contentRange);
+
+    EntityManager em = emf.getEntityManager(getApplicationId());
+    Asset asset = em.get(assetId, Asset.class);
+    if ( asset == null ) {
+      return Response.status(Response.Status.NOT_FOUND).build();
+    }
+
+    long received = ((LocalFileBinaryStore) binaryStore).writeChunk(getApplicationId(), asset,
+            offset, total, uploadedInputStream);
+    if ( received < total ) {
+      Response.ResponseBuilder responseBuilder = Response.status(RESUME_INCOMPLETE);
+      if ( received > 0 ) {
+        responseBuilder.header("Range", "bytes=0-" + (received - 1));
+      }
+      return responseBuilder.build();
+    }
+
+    em.update(asset);
+    return Response.status(200).build();
   }
 
   @POST
@@ -125,47 +192,210 @@ public class AssetsResource extends ServiceResource {
                                    @QueryParam("callback") @DefaultValue("callback") String callback,
                                    @PathParam("entityId") PathSegment entityId,
                                    @HeaderParam("range") String range,
-                                   @HeaderParam("if-modified-since") String modifiedSince)
+                                   @HeaderParam("if-modified-since") String modifiedSince,
+                                   @HeaderParam("if-none-match") String noneMatch)
           throws Exception {
     UUID assetId = UUID.fromString(entityId.getPath());
     logger.info("In AssetsResource.findAsset with id: {}, range: {}, modifiedSince: {}",
             new Object[]{assetId, range, modifiedSince});
-    EntityManager em = emf.getEntityManager(getApplicationId());
+    Date moded = AssetUtils.fromIfModifiedSince(modifiedSince);
+
+    // a local file's modification time is its Last-Modified, a request
+    // conditional on that alone can be answered without reading the entity
+    File file = null;
+    if ( binaryStore instanceof LocalFileBinaryStore ) {
+      file = ((LocalFileBinaryStore) binaryStore).getFile(getApplicationId(), assetId);
+      if ( file.isFile() ) {
+        if ( StringUtils.isBlank(noneMatch) && notModified(null, file.lastModified(), null, moded) ) {
+          return Response.status(Response.Status.NOT_MODIFIED).build();
+        }
+      } else {
+        file = null;
+      }
+    }
 
+    EntityManager em = emf.getEntityManager(getApplicationId());
     Asset asset = em.get(assetId, Asset.class);
+    if ( asset == null ) {
+      return Response.status(Response.Status.NOT_FOUND).build();
+    }
 
-    // return a 302 if not modified
-    Date moded = AssetUtils.fromIfModifiedSince(modifiedSince);
-    if ( moded != null ) {
-      if ( asset.getModified() - moded.getTime() < 0 ) {
-        return Response.status(Response.Status.NOT_MODIFIED).build();
+    String eTag = eTag(asset);
+    if ( notModified(eTag, file != null ? file.lastModified() : asset.getModified(), noneMatch, moded) ) {
+      if ( eTag != null ) {
+        return Response.notModified(new EntityTag(eTag)).build();
       }
+      return Response.status(Response.Status.NOT_MODIFIED).build();
+    }
+
+    String contentType = asset.getProperty(AssetUtils.CONTENT_TYPE) != null
+            ? asset.getProperty(AssetUtils.CONTENT_TYPE).toString() : MediaType.APPLICATION_OCTET_STREAM;
+
+    long length = -1;
+    if ( file != null ) {
+      length = file.length();
+    } else if ( asset.getProperty(AssetUtils.CONTENT_LENGTH) instanceof Number ) {
+      length = ((Number) asset.getProperty(AssetUtils.CONTENT_LENGTH)).longValue();
     }
 
-    InputStream is;
-    if ( StringUtils.isBlank(range) ) {
-      is = binaryStore.read(getApplicationId(), asset);
+    List<ByteRange> ranges = length >= 0 ? ByteRange.parse(range, length) : null;
+
+    Response.ResponseBuilder responseBuilder;
+    if ( ranges == null ) {
+      Object body;
+      if ( file != null ) {
+        body = fileOutput(file, 0, length);
+      } else {
+        InputStream is = binaryStore.read(getApplicationId(), asset);
+        if ( is == null ) {
+          return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        body = is;
+      }
+      logger.info("AssetResource.findAsset read inputStream, composing response");
+      responseBuilder = Response.ok(body).type(contentType);
+      if ( length >= 0 ) {
+        responseBuilder.header(HttpHeaders.CONTENT_LENGTH, length);
+      }
+    } else if ( ranges.isEmpty() ) {
+      return Response.status(REQUESTED_RANGE_NOT_SATISFIABLE)
+              .header(CONTENT_RANGE, "bytes */" + length).build();
+    } else if ( ranges.size() == 1 ) {
+      ByteRange byteRange = ranges.get(0);
+      logger.info("Sending range {} of {}", byteRange, length);
+      responseBuilder = Response.status(PARTIAL_CONTENT)
+              .entity(rangeOutput(file, asset, byteRange))
+              .type(contentType)
+              .header(CONTENT_RANGE, byteRange.toContentRange(length))
+              .header(HttpHeaders.CONTENT_LENGTH, byteRange.getLength());
     } else {
-      // TODO range parser
-      is = binaryStore.read(getApplicationId(), asset);
+      String boundary = UUID.randomUUID().toString();
+      responseBuilder = Response.status(PARTIAL_CONTENT)
+              .entity(multipartOutput(file, asset, ranges, length, contentType, boundary))
+              .type("multipart/byteranges; boundary=" + boundary);
     }
-    if ( is == null ) {
-      return Response.status(Response.Status.NOT_FOUND).build();
+
+    responseBuilder.lastModified(new Date(file != null ? file.lastModified() : asset.getModified()))
+            .header(ACCEPT_RANGES, "bytes");
+    if ( eTag != null ) {
+      responseBuilder.tag(new EntityTag(eTag));
     }
+    return responseBuilder.build();
+  }
 
-    logger.info("AssetResource.findAsset read inputStream, composing response");
-    Response.ResponseBuilder responseBuilder = Response.ok(is)
-            .type(asset.getProperty("content-type").toString())
-            .lastModified(new Date(asset.getModified()));
-    if ( asset.getProperty(AssetUtils.E_TAG) != null ) {
-      responseBuilder.tag((String)asset.getProperty(AssetUtils.E_TAG));
+  /**
+   * The asset's entity tag, whichever store holds its data. The one the store
+   * returned if it has one, otherwise the checksum of the data.
+   */
+  private static String eTag(Asset asset) {
+    Object eTag = asset.getProperty(AssetUtils.E_TAG);
+    if ( eTag == null ) {
+      eTag = asset.getProperty(AssetUtils.CHECKSUM);
     }
-    if ( StringUtils.isNotBlank(range)) {
-      logger.info("Range header was not blank, sending back Content-Range");
-      // TODO build content range header if needed
-      //responseBuilder.header("Content-Range", );
+    return eTag != null ? eTag.toString() : null;
+  }
+
+  /**
+   * If-None-Match takes precedence, If-Modified-Since is only checked without
+   * it. Dates in headers have second resolution.
+   */
+  private static boolean notModified(String eTag, long modified, String noneMatch, Date modifiedSince) {
+    if ( StringUtils.isNotBlank(noneMatch) ) {
+      if ( eTag == null ) {
+        return false;
+      }
+      for ( String candidate : noneMatch.split(",") ) {
+        candidate = candidate.trim();
+        if ( candidate.startsWith("W/") ) {
+          candidate = candidate.substring(2);
+        }
+        candidate = StringUtils.strip(candidate, "\"");
+        if ( candidate.equals("*") || candidate.equals(eTag) ) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return modifiedSince != null && modified / 1000 <= modifiedSince.getTime() / 1000;
+  }
+
+  private StreamingOutput rangeOutput(final File file, final Asset asset, final ByteRange range) {
+    final UUID applicationId = getApplicationId();
+    return new StreamingOutput() {
+      @Override
+      public void write(OutputStream output) throws IOException {
+        writeRange(file, applicationId, asset, range, output);
+      }
+    };
+  }
+
+  private StreamingOutput multipartOutput(final File file, final Asset asset, final List<ByteRange> ranges,
+                                          final long length, final String contentType, final String boundary) {
+    final UUID applicationId = getApplicationId();
+    return new StreamingOutput() {
+      @Override
+      public void write(OutputStream output) throws IOException {
+        for ( ByteRange range : ranges ) {
+          String header = "\r\n--" + boundary + "\r\n"
+                  + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                  + CONTENT_RANGE + ": " + range.toContentRange(length) + "\r\n\r\n";
+          output.write(header.getBytes("US-ASCII"));
+          writeRange(file, applicationId, asset, range, output);
+        }
+        output.write(("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII"));
+      }
+    };
+  }
+
+  private void writeRange(File file, UUID applicationId, Asset asset, ByteRange range, OutputStream output)
+          throws IOException {
+    if ( file != null ) {
+      transfer(file, range.getStart(), range.getLength(), output);
+      return;
+    }
+    InputStream is = binaryStore.read(applicationId, asset, range.getStart(), range.getLength());
+    if ( is == null ) {
+      throw new IOException("Unable to read range " + range + " of asset " + asset.getUuid());
+    }
+    try {
+      IOUtils.copyLarge(is, output);
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+  }
+
+  private static StreamingOutput fileOutput(final File file, final long offset, final long length) {
+    return new StreamingOutput() {
+      @Override
+      public void write(OutputStream output) throws IOException {
+        transfer(file, offset, length, output);
+      }
+    };
+  }
+
+  /**
+   * Hand the file to the channel so the JVM can move the bytes without
+   * staging them in a heap array per read
+   */
+  private static void transfer(File file, long offset, long length, OutputStream output) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      WritableByteChannel target = Channels.newChannel(output);
+      long position = offset;
+      long remaining = length;
+      while ( remaining > 0 ) {
+        long sent = channel.transferTo(position, remaining, target);
+        // the file was truncated under us
+        if ( sent <= 0 ) {
+          break;
+        }
+        position += sent;
+        remaining -= sent;
+      }
+    } finally {
+      IOUtils.closeQuietly(in);
     }
-    return responseBuilder.build();
   }
 
 }
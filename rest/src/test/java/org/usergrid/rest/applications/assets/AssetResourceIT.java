@@ -10,9 +10,12 @@ import java.util.UUID;
 
 import javax.ws.rs.core.MediaType;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.codehaus.jackson.JsonNode;
 import org.junit.Test;
+
+import com.sun.jersey.api.client.ClientResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.usergrid.cassandra.Concurrent;
@@ -60,6 +63,32 @@ public class AssetResourceIT extends AbstractRestIT {
     byte[] foundData = IOUtils.toByteArray(is);
     assertEquals(7979, foundData.length);
 
+    ClientResponse partial = resource().path("/test-organization/test-app/assets/" + id.toString() + "/data")
+                    .queryParam("access_token", access_token)
+                    .header("Range", "bytes=100-199")
+                    .get(ClientResponse.class);
+    assertEquals(206, partial.getStatus());
+    assertEquals("bytes 100-199/7979", partial.getHeaders().getFirst("Content-Range"));
+    byte[] partialData = IOUtils.toByteArray(partial.getEntityInputStream());
+    assertEquals(100, partialData.length);
+    assertEquals(foundData[100], partialData[0]);
+    assertEquals(foundData[199], partialData[99]);
+
+    ClientResponse unsatisfiable = resource().path("/test-organization/test-app/assets/" + id.toString() + "/data")
+                    .queryParam("access_token", access_token)
+                    .header("Range", "bytes=8000-")
+                    .get(ClientResponse.class);
+    assertEquals(416, unsatisfiable.getStatus());
+
+    // the same validator whichever store holds the data
+    String eTag = partial.getHeaders().getFirst("ETag");
+    assertEquals("\"" + DigestUtils.md5Hex(data) + "\"", eTag);
+    ClientResponse notModified = resource().path("/test-organization/test-app/assets/" + id.toString() + "/data")
+                    .queryParam("access_token", access_token)
+                    .header("If-None-Match", eTag)
+                    .get(ClientResponse.class);
+    assertEquals(304, notModified.getStatus());
+
     node = resource().path("/test-organization/test-app/assets/my/clean/path")
                         .queryParam("access_token", access_token)
                         .accept(MediaType.APPLICATION_JSON_TYPE)
@@ -21,4 +21,12 @@ public interface JobFactory {
    */
   List<Job> jobsFrom(JobDescriptor descriptor) throws JobNotFoundException;
 
+  /**
+   * Return the name of the worker pool the job runs in
+   *
+   * @param descriptor
+   * @return the pool name, null for the default pool
+   */
+  String poolFor(JobDescriptor descriptor);
+
 }
@@ -2,12 +2,14 @@ package org.usergrid.batch;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.usergrid.batch.repository.JobDescriptor;
+import org.usergrid.batch.service.JobPool;
 
 /**
  * @author tnine
@@ -19,6 +21,8 @@ public class UsergridJobFactory implements JobFactory {
 
   private Logger logger = LoggerFactory.getLogger(UsergridJobFactory.class);
 
+  private Map<String, String> pools = Collections.emptyMap();
+
   @Override
   public List<Job> jobsFrom(JobDescriptor descriptor) throws JobNotFoundException {
 
@@ -34,4 +38,19 @@ public class UsergridJobFactory implements JobFactory {
 
   }
 
+  @Override
+  public String poolFor(JobDescriptor descriptor) {
+    String pool = pools.get(descriptor.getJobName());
+    return pool != null ? pool : JobPool.DEFAULT;
+  }
+
+  /**
+   * @param pools
+   *          the pool each job runs in by job name, jobs that aren't listed
+   *          run in the default pool
+   */
+  public void setPools(Map<String, String> pools) {
+    this.pools = pools;
+  }
+
 }
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.batch.job;
+
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.usergrid.batch.JobExecution;
+import org.usergrid.persistence.EntityManagerFactory;
+import org.usergrid.persistence.cassandra.AggregateCounterRollup;
+import org.usergrid.persistence.cassandra.CounterUtils;
+
+/**
+ * Recurring job that rolls up the aggregate counters of every application.
+ * Created when the scheduler starts if it's listed in
+ * usergrid.scheduler.job.recurring, it re-schedules itself every
+ * usergrid.counter.rollup.interval milliseconds
+ *
+ */
+@Component("aggregateCounterRollupJob")
+public class AggregateCounterRollupJob extends OnlyOnceJob {
+
+  private static final Logger logger = LoggerFactory.getLogger(AggregateCounterRollupJob.class);
+
+  @Autowired
+  private EntityManagerFactory emf;
+
+  @Autowired
+  private CounterUtils counterUtils;
+
+  @Autowired
+  private AggregateCounterRollup aggregateCounterRollup;
+
+  @Value("${usergrid.counter.rollup.interval}")
+  private long interval;
+
+  /**
+   *
+   */
+  public AggregateCounterRollupJob() {
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.usergrid.batch.job.OnlyOnceJob#doJob(org.usergrid.batch.JobExecution)
+   */
+  @Override
+  protected void doJob(JobExecution execution) throws Exception {
+
+    if (counterUtils.isRollup()) {
+      for (UUID applicationId : emf.getApplications().values()) {
+        try {
+          aggregateCounterRollup.rollup(applicationId);
+        } catch (Exception e) {
+          // the markers stay in place, so the next pass picks the app up again
+          logger.error("Unable to roll up counters for application {}", applicationId, e);
+        }
+        execution.heartbeat();
+      }
+    }
+
+    execution.delay(interval);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.usergrid.batch.job.OnlyOnceJob#getDelay(org.usergrid.batch.JobExecution)
+   */
+  @Override
+  protected long getDelay(JobExecution execution) throws Exception {
+    return interval;
+  }
+
+}
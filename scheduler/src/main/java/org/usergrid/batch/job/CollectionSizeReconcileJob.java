@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.batch.job;
+
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.usergrid.batch.JobExecution;
+import org.usergrid.persistence.EntityManager;
+import org.usergrid.persistence.EntityManagerFactory;
+import org.usergrid.persistence.RelationManager;
+
+/**
+ * Recurring job that recounts the root collections of every application, and
+ * any other collection whose size was read before it was reconciled, and
+ * corrects their size counters when writes let them drift. Once
+ * started with {@link org.usergrid.batch.service.SchedulerService#createJob}
+ * it re-schedules itself every usergrid.collection.size.reconcile.interval
+ * milliseconds
+ *
+ */
+@Component("collectionSizeReconcileJob")
+public class CollectionSizeReconcileJob extends OnlyOnceJob {
+
+  private static final Logger logger = LoggerFactory.getLogger(CollectionSizeReconcileJob.class);
+
+  @Autowired
+  private EntityManagerFactory emf;
+
+  @Value("${usergrid.collection.size.reconcile.interval}")
+  private long interval;
+
+  /**
+   *
+   */
+  public CollectionSizeReconcileJob() {
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.usergrid.batch.job.OnlyOnceJob#doJob(org.usergrid.batch.JobExecution)
+   */
+  @Override
+  protected void doJob(JobExecution execution) throws Exception {
+
+    for (UUID applicationId : emf.getApplications().values()) {
+      EntityManager em = emf.getEntityManager(applicationId);
+      RelationManager rm = em.getRelationManager(em.getApplicationRef());
+
+      for (String collectionName : em.getApplicationCollections()) {
+        try {
+          rm.reconcileCollectionSize(collectionName);
+        } catch (Exception e) {
+          logger.error("Unable to reconcile size of collection {} in application {}", new Object[] {
+              collectionName, applicationId, e });
+        }
+        execution.heartbeat();
+      }
+
+      try {
+        em.reconcileCollectionSizes();
+      } catch (Exception e) {
+        logger.error("Unable to reconcile collection sizes in application {}", new Object[] { applicationId, e });
+      }
+      execution.heartbeat();
+    }
+
+    execution.delay(interval);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.usergrid.batch.job.OnlyOnceJob#getDelay(org.usergrid.batch.JobExecution)
+   */
+  @Override
+  protected long getDelay(JobExecution execution) throws Exception {
+    return interval;
+  }
+
+}
@@ -0,0 +1,441 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.batch.job;
+
+import static org.usergrid.persistence.cassandra.CassandraService.MANAGEMENT_APPLICATION_ID;
+import static org.usergrid.utils.ConversionUtils.getInt;
+import static org.usergrid.utils.ConversionUtils.getLong;
+import static org.usergrid.utils.ConversionUtils.uuid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.usergrid.batch.JobExecution;
+import org.usergrid.persistence.Entity;
+import org.usergrid.persistence.EntityManager;
+import org.usergrid.persistence.EntityManagerFactory;
+import org.usergrid.persistence.Results;
+import org.usergrid.persistence.Results.Level;
+import org.usergrid.persistence.entities.JobData;
+import org.usergrid.persistence.entities.JobStat;
+import org.usergrid.persistence.exceptions.DuplicateUniquePropertyExistsException;
+import org.usergrid.utils.UUIDUtils;
+
+/**
+ * Rebuilds the indexes of an application collection while the application
+ * stays in use.
+ * <p>
+ * The collection is split into ranges of entity ids by creation time, and the
+ * ranges are re-saved in parallel, all of them together held to a budget of
+ * operations per second so the rebuild doesn't crowd out regular traffic.
+ * How far each range has got is written to the job's {@link JobStat}, so if
+ * the node running the job goes away, the job picks up where it stopped when
+ * it runs again.
+ * <p>
+ * Given a property, only that property is re-saved. Each entity's old index
+ * entries for it are replaced together with the new ones, so the index
+ * covers every entity throughout and queries move onto the new entries one
+ * entity at a time.
+ * <p>
+ * Job data:
+ * <ul>
+ * <li>applicationId - the application</li>
+ * <li>collectionName - the collection</li>
+ * <li>property - optional, the only property to index</li>
+ * <li>ranges - optional, number of ranges to process in parallel</li>
+ * <li>opsPerSecond - optional, entities to re-save per second</li>
+ * </ul>
+ */
+@Component("indexRebuildJob")
+public class IndexRebuildJob extends OnlyOnceJob {
+
+  private static final Logger logger = LoggerFactory.getLogger(IndexRebuildJob.class);
+
+  public static final String APPLICATION_ID = "applicationId";
+  public static final String COLLECTION_NAME = "collectionName";
+  public static final String PROPERTY = "property";
+  public static final String RANGES = "ranges";
+  public static final String OPS_PER_SECOND = "opsPerSecond";
+
+  /** JobStat properties holding the time span split into ranges */
+  static final String CHECKPOINT_START = "rebuildStart";
+  static final String CHECKPOINT_END = "rebuildEnd";
+
+  /** JobStat property holding the number of ranges the span was split into */
+  static final String CHECKPOINT_RANGES = "rebuildRanges";
+
+  /** JobStat property prefix holding the last entity re-saved in each range */
+  static final String CHECKPOINT_RANGE = "rebuildRange";
+
+  static final String RANGE_DONE = "done";
+
+  static final int PAGE_SIZE = 100;
+
+  /** How often progress is saved, well inside the scheduler's job timeout */
+  private static final long CHECKPOINT_INTERVAL = 30000;
+
+  @Autowired
+  private EntityManagerFactory emf;
+
+  @Value("${usergrid.index.rebuild.ranges}")
+  private int defaultRanges;
+
+  @Value("${usergrid.index.rebuild.ops}")
+  private int defaultOpsPerSecond;
+
+  @Value("${usergrid.scheduler.job.timeout}")
+  private long jobTimeout;
+
+  /**
+   *
+   */
+  public IndexRebuildJob() {
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.usergrid.batch.job.OnlyOnceJob#doJob(org.usergrid.batch.JobExecution)
+   */
+  @Override
+  protected void doJob(JobExecution execution) throws Exception {
+
+    JobData data = execution.getJobData();
+    JobStat stat = execution.getJobStats();
+
+    UUID applicationId = uuid(data.getProperty(APPLICATION_ID));
+    String collectionName = (String) data.getProperty(COLLECTION_NAME);
+    String property = (String) data.getProperty(PROPERTY);
+
+    int rangeCount = Math.max(data.getProperty(RANGES) != null ? getInt(data.getProperty(RANGES)) : defaultRanges, 1);
+    int opsPerSecond = data.getProperty(OPS_PER_SECOND) != null ? getInt(data.getProperty(OPS_PER_SECOND))
+        : defaultOpsPerSecond;
+
+    EntityManager em = emf.getEntityManager(applicationId);
+
+    // split the collection on the first run, later runs carry on with the
+    // same ranges
+    if (stat.getProperty(CHECKPOINT_START) == null) {
+      Results first = em.getCollection(em.getApplicationRef(), collectionName, null, 1, Level.IDS, false);
+
+      long start = System.currentTimeMillis();
+      if (first.getId() != null && UUIDUtils.isTimeBased(first.getId())) {
+        start = UUIDUtils.getTimestampInMillis(first.getId());
+      }
+
+      stat.setProperty(CHECKPOINT_START, start);
+      stat.setProperty(CHECKPOINT_END, System.currentTimeMillis());
+    }
+
+    // the range checkpoints are only meaningful with the ranges they were
+    // taken for, a change to the job data doesn't apply until the next rebuild
+    if (stat.getProperty(CHECKPOINT_RANGES) == null) {
+      stat.setProperty(CHECKPOINT_RANGES, rangeCount);
+    }
+    rangeCount = getInt(stat.getProperty(CHECKPOINT_RANGES));
+
+    logger.info("Rebuilding {} indexes of collection {} in application {} in {} ranges at {} entities/sec",
+        new Object[] { property != null ? property : "all", collectionName, applicationId, rangeCount,
+            opsPerSecond });
+
+    Throttle throttle = new Throttle(opsPerSecond);
+    AtomicLong count = new AtomicLong();
+
+    List<RangeRebuild> ranges = ranges(stat, em, collectionName, property, throttle, count);
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(ranges.size(), 1));
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(ranges.size());
+
+    long started = System.currentTimeMillis();
+
+    try {
+      for (RangeRebuild range : ranges) {
+        futures.add(executor.submit(range));
+      }
+
+      executor.shutdown();
+
+      while (!executor.awaitTermination(Math.min(CHECKPOINT_INTERVAL, jobTimeout / 2), TimeUnit.MILLISECONDS)) {
+        checkpoint(stat, ranges);
+        execution.heartbeat();
+
+        long elapsed = System.currentTimeMillis() - started;
+        logger.info("Re-saved {} entities of collection {} in application {}, {} entities/sec", new Object[] {
+            count.get(), collectionName, applicationId, elapsed > 0 ? count.get() * 1000 / elapsed : 0 });
+      }
+    } finally {
+      executor.shutdownNow();
+      checkpoint(stat, ranges);
+    }
+
+    // a failed range is picked up from its checkpoint when the job is retried
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    logger.info("Finished rebuilding indexes of collection {} in application {}, re-saved {} entities",
+        new Object[] { collectionName, applicationId, count.get() });
+  }
+
+  /**
+   * The ranges still to re-save, each carrying on from its checkpoint
+   *
+   * @param stat
+   *          holding the span, the number of ranges and their checkpoints
+   * @return the unfinished ranges
+   */
+  static List<RangeRebuild> ranges(JobStat stat, EntityManager em, String collectionName, String property,
+      Throttle throttle, AtomicLong count) {
+    int rangeCount = getInt(stat.getProperty(CHECKPOINT_RANGES));
+    long[] bounds = split(getLong(stat.getProperty(CHECKPOINT_START)), getLong(stat.getProperty(CHECKPOINT_END)),
+        rangeCount);
+
+    List<RangeRebuild> ranges = new ArrayList<RangeRebuild>(rangeCount);
+    for (int i = 0; i < rangeCount; i++) {
+      String checkpoint = (String) stat.getProperty(CHECKPOINT_RANGE + i);
+
+      if (RANGE_DONE.equals(checkpoint)) {
+        continue;
+      }
+
+      UUID start = checkpoint != null ? UUID.fromString(checkpoint) : (i == 0 ? null : UUIDUtils
+          .minTimeUUID(bounds[i]));
+      // the last range is open ended, it takes anything created since the
+      // split as well as any ids that aren't time based, which sort last
+      long end = i == rangeCount - 1 ? -1 : bounds[i + 1];
+
+      ranges.add(new RangeRebuild(i, em, collectionName, property, start, end, throttle, count));
+    }
+    return ranges;
+  }
+
+  /**
+   * Save how far every range has got
+   */
+  private void checkpoint(JobStat stat, List<RangeRebuild> ranges) throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(CHECKPOINT_START, stat.getProperty(CHECKPOINT_START));
+    properties.put(CHECKPOINT_END, stat.getProperty(CHECKPOINT_END));
+    properties.put(CHECKPOINT_RANGES, stat.getProperty(CHECKPOINT_RANGES));
+
+    for (RangeRebuild range : ranges) {
+      String checkpoint = range.getCheckpoint();
+      if (checkpoint != null) {
+        properties.put(CHECKPOINT_RANGE + range.index, checkpoint);
+      }
+    }
+
+    for (Map.Entry<String, Object> property : properties.entrySet()) {
+      stat.setProperty(property.getKey(), property.getValue());
+    }
+
+    emf.getEntityManager(MANAGEMENT_APPLICATION_ID).updateProperties(stat, properties);
+  }
+
+  /**
+   * Split the time span into <code>count</code> ranges of equal length
+   *
+   * @param start
+   *          the start of the span in milliseconds
+   * @param end
+   *          the end of the span in milliseconds
+   * @param count
+   * @return the start of each range
+   */
+  static long[] split(long start, long end, int count) {
+    long[] bounds = new long[count];
+    long span = Math.max(end - start, 0);
+    for (int i = 0; i < count; i++) {
+      bounds[i] = start + span * i / count;
+    }
+    return bounds;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.usergrid.batch.job.OnlyOnceJob#getDelay(org.usergrid.batch.JobExecution)
+   */
+  @Override
+  protected long getDelay(JobExecution execution) throws Exception {
+    return jobTimeout;
+  }
+
+  /**
+   * Re-saves the entities of a collection from an entity id up to the start of
+   * the next range
+   */
+  static class RangeRebuild implements Callable<Void> {
+
+    final int index;
+    private final EntityManager em;
+    private final String collectionName;
+    private final String property;
+    final long end;
+    private final Throttle throttle;
+    private final AtomicLong count;
+
+    private volatile UUID last;
+    private volatile boolean done;
+
+    private RangeRebuild(int index, EntityManager em, String collectionName, String property, UUID start, long end,
+        Throttle throttle, AtomicLong count) {
+      this.index = index;
+      this.em = em;
+      this.collectionName = collectionName;
+      this.property = property;
+      this.last = start;
+      this.end = end;
+      this.throttle = throttle;
+      this.count = count;
+    }
+
+    /**
+     * @return the last entity re-saved, done once the range is finished, or
+     *         null if nothing has been re-saved yet
+     */
+    String getCheckpoint() {
+      if (done) {
+        return RANGE_DONE;
+      }
+      UUID uuid = last;
+      return uuid != null ? uuid.toString() : null;
+    }
+
+    @Override
+    public Void call() throws Exception {
+
+      while (!Thread.currentThread().isInterrupted()) {
+
+        UUID start = last;
+        Results r = em.getCollection(em.getApplicationRef(), collectionName, start, PAGE_SIZE,
+            Level.ALL_PROPERTIES, false);
+
+        List<Entity> entities = r.getEntities();
+        boolean progressed = false;
+
+        for (Entity entity : entities) {
+          UUID id = entity.getUuid();
+
+          // the start of the page is the entity we finished with
+          if (id.equals(start)) {
+            continue;
+          }
+
+          if (pastEnd(id)) {
+            done = true;
+            return null;
+          }
+
+          throttle.acquire();
+          rebuild(entity);
+
+          last = id;
+          progressed = true;
+          count.incrementAndGet();
+        }
+
+        if (!progressed || entities.size() < PAGE_SIZE) {
+          done = true;
+          return null;
+        }
+      }
+
+      return null;
+    }
+
+    private boolean pastEnd(UUID id) {
+      if (end < 0) {
+        return false;
+      }
+      // ids that aren't time based sort after all the time based ones
+      return !UUIDUtils.isTimeBased(id) || UUIDUtils.getTimestampInMillis(id) >= end;
+    }
+
+    private void rebuild(Entity entity) throws Exception {
+      try {
+        if (property == null) {
+          em.update(entity);
+        } else {
+          Object value = entity.getProperty(property);
+          if (value != null) {
+            em.setProperty(entity, property, value, true);
+          }
+        }
+      } catch (DuplicateUniquePropertyExistsException dupee) {
+        logger.error("duplicate property for type: {} with id: {}.  Property name: {} , value: {}", new Object[] {
+            entity.getType(), entity.getUuid(), dupee.getPropertyName(), dupee.getPropertyValue() });
+      }
+    }
+  }
+
+  /**
+   * Spaces out operations shared by several threads so that together they
+   * run no more than the given number per second
+   */
+  static class Throttle {
+
+    private final long interval;
+    private long next = System.nanoTime();
+
+    Throttle(int opsPerSecond) {
+      interval = opsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / opsPerSecond : 0;
+    }
+
+    void acquire() throws InterruptedException {
+      if (interval == 0) {
+        return;
+      }
+
+      long wait;
+      synchronized (this) {
+        long now = System.nanoTime();
+        if (next < now) {
+          next = now;
+        }
+        wait = next - now;
+        next += interval;
+      }
+
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.batch.job;
+
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.usergrid.batch.JobExecution;
+import org.usergrid.mq.QueueManager;
+import org.usergrid.mq.QueueManagerFactory;
+import org.usergrid.mq.QueueSet;
+import org.usergrid.mq.QueueSet.QueueInfo;
+import org.usergrid.persistence.EntityManagerFactory;
+
+/**
+ * Recurring job that drops the shards of every queue with a retention once
+ * all of their messages have expired. Created when the scheduler starts if
+ * it's listed in usergrid.scheduler.job.recurring, it re-schedules itself
+ * every usergrid.queue.retention.reap.interval milliseconds
+ *
+ */
+@Component("queueRetentionJob")
+public class QueueRetentionJob extends OnlyOnceJob {
+
+  private static final Logger logger = LoggerFactory.getLogger(QueueRetentionJob.class);
+
+  private static final int PAGE_SIZE = 1000;
+
+  @Autowired
+  private EntityManagerFactory emf;
+
+  @Autowired
+  private QueueManagerFactory qmf;
+
+  @Value("${usergrid.queue.retention.reap.interval}")
+  private long interval;
+
+  /**
+   *
+   */
+  public QueueRetentionJob() {
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.usergrid.batch.job.OnlyOnceJob#doJob(org.usergrid.batch.JobExecution)
+   */
+  @Override
+  protected void doJob(JobExecution execution) throws Exception {
+
+    for (UUID applicationId : emf.getApplications().values()) {
+      QueueManager qm = qmf.getQueueManager(applicationId);
+
+      String first = null;
+      while (true) {
+        QueueSet queues = qm.getQueues(first, PAGE_SIZE);
+
+        for (QueueInfo queue : queues.getQueues()) {
+          try {
+            qm.expireMessages(queue.getPath());
+          } catch (Exception e) {
+            logger.error("Unable to expire messages of queue {} in application {}", new Object[] {
+                queue.getPath(), applicationId, e });
+          }
+          first = queue.getPath();
+        }
+
+        execution.heartbeat();
+
+        if (!queues.hasMore()) {
+          break;
+        }
+      }
+    }
+
+    execution.delay(interval);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.usergrid.batch.job.OnlyOnceJob#getDelay(org.usergrid.batch.JobExecution)
+   */
+  @Override
+  protected long getDelay(JobExecution execution) throws Exception {
+    return interval;
+  }
+
+}
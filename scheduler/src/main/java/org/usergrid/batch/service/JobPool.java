@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.batch.service;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.usergrid.batch.repository.JobDescriptor;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * A named share of the scheduler's workers. Jobs are sent to a pool by the
+ * {@link org.usergrid.batch.JobFactory}, a pool runs at most its number of
+ * workers at once, and when several pools have jobs waiting the free workers
+ * go to the pool with the fewest running for its weight. Long running jobs
+ * kept in a small pool of their own can't hold up everything else.
+ * <p>
+ * The dispatch state is guarded by the {@link JobSchedulerService} the pool
+ * belongs to.
+ */
+public class JobPool {
+
+  /** The pool of jobs the factory doesn't send anywhere else */
+  public static final String DEFAULT = "default";
+
+  private String name = DEFAULT;
+  private int workers = 1;
+  private int weight = 1;
+
+  int running;
+  final LinkedList<Pending> pending = new LinkedList<Pending>();
+
+  private Timer queueWait;
+
+  public JobPool() {
+  }
+
+  public JobPool(String name, int workers, int weight) {
+    this.name = name;
+    this.workers = workers;
+    this.weight = weight;
+  }
+
+  /**
+   * @return the name jobs are sent to the pool by
+   */
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return the most jobs the pool runs at once
+   */
+  public int getWorkers() {
+    return workers;
+  }
+
+  public void setWorkers(int workers) {
+    this.workers = workers;
+  }
+
+  /**
+   * @return the pool's share of the workers when other pools have jobs
+   *         waiting too
+   */
+  public int getWeight() {
+    return weight;
+  }
+
+  public void setWeight(int weight) {
+    this.weight = weight;
+  }
+
+  /**
+   * Publish the pool's utilization and how long its jobs wait for a worker
+   */
+  void register() {
+    Metrics.newGauge(JobSchedulerService.class, "pool_" + name + "_utilization", new Gauge<Double>() {
+      @Override
+      public Double value() {
+        return workers > 0 ? (double) running / workers : 0;
+      }
+    });
+
+    Metrics.newGauge(JobSchedulerService.class, "pool_" + name + "_pending", new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return pending.size();
+      }
+    });
+
+    queueWait = Metrics.newTimer(JobSchedulerService.class, "pool_" + name + "_queueWait", TimeUnit.MILLISECONDS,
+        TimeUnit.SECONDS);
+  }
+
+  /**
+   * Record how long a job waited in the pool before it started
+   */
+  void waited(long millis) {
+    if (queueWait != null) {
+      queueWait.update(millis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  boolean hasCapacity() {
+    return running < workers;
+  }
+
+  /**
+   * @return the room left for jobs that aren't waiting yet
+   */
+  int room() {
+    return Math.max(workers - running - pending.size(), 0);
+  }
+
+  /**
+   * Choose the pool to start a job from next. Of the pools with a job waiting
+   * and a worker free, the one running the fewest jobs for its weight.
+   *
+   * @param pools
+   * @return the pool, null if none can start a job
+   */
+  static JobPool select(Collection<JobPool> pools) {
+    JobPool selected = null;
+
+    for (JobPool pool : pools) {
+      if (pool.pending.isEmpty() || !pool.hasCapacity() || pool.weight <= 0) {
+        continue;
+      }
+
+      // running / weight, compared without dividing
+      if (selected == null || (long) pool.running * selected.weight < (long) selected.running * pool.weight) {
+        selected = pool;
+      }
+    }
+
+    return selected;
+  }
+
+  @Override
+  public String toString() {
+    return "JobPool [name=" + name + ", workers=" + workers + ", weight=" + weight + ", running=" + running
+        + ", pending=" + pending.size() + "]";
+  }
+
+  /**
+   * A job waiting in the pool for a worker
+   */
+  static class Pending {
+    final JobDescriptor descriptor;
+    final long queued = System.currentTimeMillis();
+
+    Pending(JobDescriptor descriptor) {
+      this.descriptor = descriptor;
+    }
+  }
+}
@@ -2,10 +2,15 @@ package org.usergrid.batch.service;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -18,8 +23,10 @@ import org.usergrid.batch.JobFactory;
 import org.usergrid.batch.JobNotFoundException;
 import org.usergrid.batch.repository.JobAccessor;
 import org.usergrid.batch.repository.JobDescriptor;
+import org.usergrid.batch.service.JobPool.Pending;
+import org.usergrid.persistence.entities.JobData;
 
-import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -29,12 +36,14 @@ import com.yammer.metrics.annotation.ExceptionMetered;
 import com.yammer.metrics.annotation.Timed;
 
 /**
- * Service that schedules itself, then schedules jobs in the same pool
+ * Service that runs the jobs that are due, then sleeps until the next job we
+ * know of comes due, falling back to checking the queue every interval for
+ * jobs scheduled where we didn't hear about them
  * 
  * @author zznate
  * @author tnine
  */
-public class JobSchedulerService extends AbstractScheduledService {
+public class JobSchedulerService extends AbstractExecutionThreadService {
 
   protected static final long DEFAULT_DELAY = 1000;
   protected static final long ERROR_DELAY = 10000;
@@ -48,41 +57,82 @@ public class JobSchedulerService extends AbstractScheduledService {
 
   private JobAccessor jobAccessor;
   private JobFactory jobFactory;
+  private SchedulerService schedulerService;
+  private String[] recurringJobs = new String[0];
+  private JobWakeups wakeups = new JobWakeups();
 
-  private Semaphore capacitySemaphore;
+  // named shares of the workers, guarded by the map
+  private final Map<String, JobPool> pools = new LinkedHashMap<String, JobPool>();
+  private int running;
 
   private ListeningScheduledExecutorService service;
 
+  private long jobTimeout = 30000;
+
+  // loads the descriptors of the next jobs while the current ones run
+  private ExecutorService prefetcher;
+  private Future<Prefetch> prefetched;
+  private Prefetch leftover;
+
+  private volatile Thread runner;
+
   public JobSchedulerService() {
   }
 
-  @Timed(name = "BulkJobScheduledService_runOneIteration", group = "scheduler", durationUnit = TimeUnit.MILLISECONDS, rateUnit = TimeUnit.MINUTES)
+  /*
+   * (non-Javadoc)
+   * 
+   * @see com.google.common.util.concurrent.AbstractExecutionThreadService#run()
+   */
   @Override
-  protected void runOneIteration() throws Exception {
+  protected void run() throws Exception {
+    runner = Thread.currentThread();
+
+    while (isRunning()) {
+      runOneIteration();
+
+      try {
+        wakeups.await(interval);
+      } catch (InterruptedException e) {
+        logger.info("Scheduler interrupted, stopping");
+        return;
+      }
+    }
+  }
+
+  @Timed(name = "BulkJobScheduledService_runOneIteration", group = "scheduler", durationUnit = TimeUnit.MILLISECONDS, rateUnit = TimeUnit.MINUTES)
+  protected void runOneIteration() {
 
     try {
       logger.info("running iteration...");
       List<JobDescriptor> activeJobs = null;
 
       // run until there are no more active jobs
-      while (true) {
+      while (isRunning()) {
 
-        // get the semaphore if we can. This means we have space for at least 1
-        // job
-        if (logger.isDebugEnabled()) {
-          logger.debug("About to acquire semaphore.  Capacity is {}", capacitySemaphore.availablePermits());
-        }
+        int capacity = capacity();
 
-        capacitySemaphore.acquire();
-        // release the sempaphore we only need to acquire as a way to stop the
-        // loop if there's no capacity
-        capacitySemaphore.release();
+        logger.debug("Capacity is {}", capacity);
 
-        int capacity = capacitySemaphore.availablePermits();
+        // no room for more jobs, one finishing wakes us up again
+        if (capacity <= 0) {
+          logger.debug("No capacity. Exiting run loop");
+          return;
+        }
 
-        logger.debug("Capacity is {}", capacity);
+        activeJobs = takePrefetched(capacity);
 
-        activeJobs = jobAccessor.getJobs(capacity);
+        // fetch whatever the prefetch didn't cover
+        if (activeJobs.size() < capacity) {
+          List<JobDescriptor> fetched = jobAccessor.getJobs(capacity - activeJobs.size());
+
+          if (activeJobs.isEmpty()) {
+            activeJobs = fetched;
+          } else {
+            activeJobs = new ArrayList<JobDescriptor>(activeJobs);
+            activeJobs.addAll(fetched);
+          }
+        }
 
         // nothing to do, we don't have any jobs to run
         if (activeJobs.size() == 0) {
@@ -90,11 +140,17 @@ public class JobSchedulerService extends AbstractScheduledService {
           return;
         }
 
-        for (JobDescriptor jd : activeJobs) {
-          logger.info("Submitting work for {}", jd);
-          submitWork(jd);
-          logger.info("Work submitted for {}", jd);
+        int started = enqueue(activeJobs);
+
+        // the jobs all went to pools that are busy
+        if (started == 0) {
+          logger.debug("No jobs started. Exiting run loop");
+          return;
         }
+
+        // load the next jobs while these run, they free up as many workers as
+        // were started
+        prefetch(started);
       }
     } catch (Throwable t) {
       logger.error("Something really bad happened!  Scheduler run failed", t);
@@ -102,14 +158,223 @@ public class JobSchedulerService extends AbstractScheduledService {
 
   }
 
-  /*
-   * (non-Javadoc)
+  /**
+   * The number of jobs to fetch, no more than there are workers free and no
+   * more than the pools have room for. Jobs waiting in a busy pool count
+   * against the workers, so a busy pool can't have the whole queue read into
+   * it.
    * 
-   * @see com.google.common.util.concurrent.AbstractScheduledService#scheduler()
+   * @return
    */
-  @Override
-  protected Scheduler scheduler() {
-    return Scheduler.newFixedDelaySchedule(0, interval, TimeUnit.MILLISECONDS);
+  private int capacity() {
+    synchronized (pools) {
+      int pending = 0;
+      int room = 0;
+
+      for (JobPool pool : pools.values()) {
+        expire(pool);
+        pending += pool.pending.size();
+        room += pool.room();
+      }
+
+      return Math.min(Math.min(workerSize - running, workerSize - pending), room);
+    }
+  }
+
+  /**
+   * Drop the jobs that have waited in the pool for too long. Their queue
+   * transactions expire and they are handed out again, rather than run after
+   * another node may have picked them up.
+   * 
+   * @param pool
+   */
+  private void expire(JobPool pool) {
+    long now = System.currentTimeMillis();
+
+    for (Iterator<Pending> it = pool.pending.iterator(); it.hasNext();) {
+      Pending pending = it.next();
+      long waited = now - pending.queued;
+
+      if (waited > jobTimeout / 2) {
+        logger.info("Dropping job {} that waited {} ms in pool {}",
+            new Object[] { pending.descriptor, waited, pool.getName() });
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Add the jobs to their pools and start as many as there are workers for
+   * 
+   * @param descriptors
+   * @return the number of jobs started
+   */
+  private int enqueue(List<JobDescriptor> descriptors) {
+    synchronized (pools) {
+      for (JobDescriptor jd : descriptors) {
+        pool(jd).pending.add(new Pending(jd));
+      }
+
+      return dispatch();
+    }
+  }
+
+  /**
+   * @param descriptor
+   * @return the pool the job factory sends the job to
+   */
+  private JobPool pool(JobDescriptor descriptor) {
+    String name = jobFactory.poolFor(descriptor);
+    JobPool pool = name != null ? pools.get(name) : null;
+
+    if (pool == null) {
+      if (name != null) {
+        logger.warn("No pool {} for job {}, running it in the default pool", name, descriptor.getJobName());
+      }
+      pool = pools.get(JobPool.DEFAULT);
+    }
+
+    return pool;
+  }
+
+  /**
+   * Start waiting jobs while there are workers free, taking each from the
+   * pool furthest below its share. Must hold the pools lock.
+   * 
+   * @return the number of jobs started
+   */
+  private int dispatch() {
+    int started = 0;
+
+    while (running < workerSize) {
+      JobPool pool = JobPool.select(pools.values());
+
+      if (pool == null) {
+        break;
+      }
+
+      Pending next = pool.pending.removeFirst();
+      long waited = System.currentTimeMillis() - next.queued;
+
+      if (waited > jobTimeout / 2) {
+        logger.info("Dropping job {} that waited {} ms in pool {}",
+            new Object[] { next.descriptor, waited, pool.getName() });
+        continue;
+      }
+
+      pool.waited(waited);
+
+      logger.info("Submitting work for {} in pool {}", next.descriptor, pool.getName());
+      started += submitWork(next.descriptor, pool);
+      logger.info("Work submitted for {}", next.descriptor);
+    }
+
+    return started;
+  }
+
+  /**
+   * A job is done, give its worker to the next job waiting and have the run
+   * loop fetch more
+   * 
+   * @param pool
+   */
+  private void finished(JobPool pool) {
+    synchronized (pools) {
+      running--;
+      pool.running--;
+      dispatch();
+    }
+
+    wakeups.wake();
+  }
+
+  /**
+   * Start loading the descriptors of the next jobs to run in the background,
+   * less the jobs left over from the last prefetch. Nothing is loaded while a
+   * prefetch is still outstanding.
+   * 
+   * @param started
+   *          the number of jobs just started
+   */
+  private void prefetch(int started) {
+    final int size = started - (leftover != null ? leftover.jobs.size() : 0);
+
+    if (size <= 0 || prefetched != null) {
+      return;
+    }
+
+    prefetched = prefetcher.submit(new Callable<Prefetch>() {
+      @Override
+      public Prefetch call() throws Exception {
+        return new Prefetch(jobAccessor.getJobs(size), System.currentTimeMillis());
+      }
+    });
+  }
+
+  /**
+   * Take up to capacity of the jobs loaded ahead, the ones left over from the
+   * last iteration first, waiting for the last prefetch to finish if they
+   * aren't enough. Jobs beyond the capacity are kept for the next iteration
+   * rather than crowding the pools. Jobs that have waited too long are left
+   * for their queue transaction to expire, so they are handed out again rather
+   * than run after another node may have picked them up.
+   * 
+   * @param capacity
+   * @return the prefetched jobs, empty if there are none
+   */
+  private List<JobDescriptor> takePrefetched(int capacity) {
+    List<JobDescriptor> jobs = new ArrayList<JobDescriptor>();
+    long fetched = Long.MAX_VALUE;
+
+    Prefetch prefetch = leftover;
+    leftover = null;
+
+    if (prefetch != null && fresh(prefetch)) {
+      jobs.addAll(prefetch.jobs);
+      fetched = prefetch.fetched;
+    }
+
+    if (jobs.size() < capacity && prefetched != null) {
+      Future<Prefetch> future = prefetched;
+      prefetched = null;
+
+      prefetch = null;
+
+      try {
+        prefetch = future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        logger.error("Unable to prefetch jobs", e.getCause());
+      }
+
+      if (prefetch != null && fresh(prefetch)) {
+        jobs.addAll(prefetch.jobs);
+        fetched = Math.min(fetched, prefetch.fetched);
+      }
+    }
+
+    if (jobs.size() > capacity) {
+      leftover = new Prefetch(new ArrayList<JobDescriptor>(jobs.subList(capacity, jobs.size())), fetched);
+      jobs = new ArrayList<JobDescriptor>(jobs.subList(0, capacity));
+    }
+
+    return jobs;
+  }
+
+  /**
+   * @param prefetch
+   * @return true if the prefetched jobs can still be run
+   */
+  private boolean fresh(Prefetch prefetch) {
+    long age = System.currentTimeMillis() - prefetch.fetched;
+
+    if (age > jobTimeout / 2) {
+      logger.info("Dropping {} prefetched jobs that waited {} ms for a worker", prefetch.jobs.size(), age);
+      return false;
+    }
+
+    return true;
   }
 
   /**
@@ -117,20 +382,26 @@ public class JobSchedulerService extends AbstractScheduledService {
    * ListenableFuture objects
    * 
    * @param jobDescriptor
+   * @param pool
+   *          the pool the jobs run in
+   * @return the number of jobs submitted
    */
   @ExceptionMetered(name = "BulkJobScheduledService_submitWork_exceptions", group = "scheduler")
-  private void submitWork(final JobDescriptor jobDescriptor) {
+  private int submitWork(final JobDescriptor jobDescriptor, final JobPool pool) {
     List<Job> jobs;
 
     try {
       jobs = jobFactory.jobsFrom(jobDescriptor);
     } catch (JobNotFoundException e) {
       logger.error("Could not create jobs", e);
-      return;
+      return 0;
     }
 
     for (final Job job : jobs) {
 
+      running++;
+      pool.running++;
+
       // job execution needs to be external to both the callback and the task.
       // This way regardless of any error we can
       // mark a job as failed if required
@@ -139,8 +410,6 @@ public class JobSchedulerService extends AbstractScheduledService {
       ListenableFuture<Void> future = service.submit(new Callable<Void>() {
         @Override
         public Void call() throws Exception {
-          capacitySemaphore.acquire();
-
           execution.start(maxFailCount);
           
           jobAccessor.save(execution);
@@ -169,7 +438,7 @@ public class JobSchedulerService extends AbstractScheduledService {
           }
           
           jobAccessor.save(execution);
-          capacitySemaphore.release();
+          finished(pool);
         }
 
         @Override
@@ -181,16 +450,19 @@ public class JobSchedulerService extends AbstractScheduledService {
           }
 
           jobAccessor.save(execution);
-          capacitySemaphore.release();
+          finished(pool);
 
         }
       });
     }
+
+    return jobs.size();
   }
 
   /**
    * @param milliseconds
-   *          the milliseconds to set to wait if we didn't receive a job to run
+   *          the longest to wait before checking the queue again if no job we
+   *          know of comes due
    */
   public void setInterval(long milliseconds) {
     this.interval = milliseconds;
@@ -204,6 +476,54 @@ public class JobSchedulerService extends AbstractScheduledService {
     this.workerSize = listeners;
   }
 
+  /**
+   * @param pools
+   *          the pools jobs are sent to by the job factory. A default pool
+   *          with all the workers is added if there isn't one
+   */
+  public void setPools(List<JobPool> pools) {
+    synchronized (this.pools) {
+      this.pools.clear();
+      for (JobPool pool : pools) {
+        this.pools.put(pool.getName(), pool);
+      }
+    }
+  }
+
+  /**
+   * @param jobTimeout
+   *          the time a job's queue transaction is held for, prefetched jobs
+   *          not started within half of it are dropped
+   */
+  public void setJobTimeout(long jobTimeout) {
+    this.jobTimeout = jobTimeout;
+  }
+
+  /**
+   * @param wakeups
+   *          the fire times of the jobs scheduled through the job accessor
+   */
+  public void setWakeups(JobWakeups wakeups) {
+    this.wakeups = wakeups;
+  }
+
+  /**
+   * @param schedulerService
+   *          the service the recurring jobs are created with
+   */
+  public void setSchedulerService(SchedulerService schedulerService) {
+    this.schedulerService = schedulerService;
+  }
+
+  /**
+   * @param recurringJobs
+   *          the names of the jobs that re-schedule themselves, created on
+   *          startup unless they already exist
+   */
+  public void setRecurringJobs(String[] recurringJobs) {
+    this.recurringJobs = recurringJobs;
+  }
+
   /**
    * @param jobAccessor
    *          the jobAccessor to set
@@ -231,23 +551,85 @@ public class JobSchedulerService extends AbstractScheduledService {
   /*
    * (non-Javadoc)
    * 
-   * @see com.google.common.util.concurrent.AbstractScheduledService#startUp()
+   * @see com.google.common.util.concurrent.AbstractExecutionThreadService#startUp()
    */
   @Override
   protected void startUp() throws Exception {
     service = MoreExecutors.listeningDecorator(Executors.newScheduledThreadPool(workerSize));
-    capacitySemaphore = new Semaphore(workerSize);
+    prefetcher = Executors.newSingleThreadExecutor();
+
+    synchronized (pools) {
+      if (!pools.containsKey(JobPool.DEFAULT)) {
+        pools.put(JobPool.DEFAULT, new JobPool(JobPool.DEFAULT, workerSize, 1));
+      }
+
+      for (JobPool pool : pools.values()) {
+        logger.info("Starting {}", pool);
+        pool.register();
+      }
+    }
+
+    startRecurringJobs();
+
     super.startUp();
   }
 
+  /**
+   * Create the recurring jobs that don't exist yet. Once created they
+   * re-schedule themselves, so this only does anything on the first start of
+   * the cluster
+   */
+  private void startRecurringJobs() {
+    if (schedulerService == null) {
+      return;
+    }
+
+    for (String jobName : recurringJobs) {
+      try {
+        schedulerService.createJobIfAbsent(jobName, System.currentTimeMillis(), new JobData());
+      } catch (RuntimeException e) {
+        // the next node to start, or this one on restart, tries again
+        logger.error("Unable to create recurring job {}", jobName, e);
+      }
+    }
+  }
+
   /*
    * (non-Javadoc)
    * 
-   * @see com.google.common.util.concurrent.AbstractScheduledService#shutDown()
+   * @see com.google.common.util.concurrent.AbstractExecutionThreadService#shutDown()
    */
   @Override
   protected void shutDown() throws Exception {
     service.shutdown();
+    prefetcher.shutdown();
     super.shutDown();
   }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see com.google.common.util.concurrent.AbstractExecutionThreadService#triggerShutdown()
+   */
+  @Override
+  protected void triggerShutdown() {
+    // the run loop may be waiting on a job or a free worker
+    Thread thread = runner;
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  /**
+   * Jobs loaded ahead of the iteration that runs them
+   */
+  private static class Prefetch {
+    private final List<JobDescriptor> jobs;
+    private final long fetched;
+
+    private Prefetch(List<JobDescriptor> jobs, long fetched) {
+      this.jobs = jobs;
+      this.fetched = fetched;
+    }
+  }
 }
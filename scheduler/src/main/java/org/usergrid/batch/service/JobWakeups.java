@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.batch.service;
+
+import java.util.TreeSet;
+
+import org.usergrid.clustering.ChangeBus;
+import org.usergrid.clustering.ChangeEvent;
+import org.usergrid.clustering.ChangeListener;
+
+/**
+ * Keeps the fire times of the jobs scheduled so far, so the scheduler can
+ * sleep until the next one comes due instead of polling the job queue.
+ * <p>
+ * Scheduling a job publishes its fire time on the change bus, so the
+ * schedulers on every node the bus reaches wake for it. Without a bus it's
+ * only kept on this node. A fire time stays until the scheduler has woken for
+ * it, so a job scheduled while the scheduler is reading the queue isn't
+ * missed. Only the earliest fire times are kept, later jobs are found when the
+ * scheduler next reads the queue. A job that finishes wakes the scheduler to
+ * fetch more.
+ */
+public class JobWakeups implements ChangeListener {
+
+  /**
+   * The most fire times kept at once
+   */
+  public static final int DEFAULT_MAX_FIRE_TIMES = 1000;
+
+  private ChangeBus changeBus;
+
+  private int maxFireTimes = DEFAULT_MAX_FIRE_TIMES;
+
+  // upcoming fire times, jobs firing in the same millisecond share one
+  private final TreeSet<Long> fireTimes = new TreeSet<Long>();
+
+  private boolean woken;
+
+  public JobWakeups() {
+  }
+
+  /**
+   * @param changeBus
+   *          carries fire times to the schedulers on every node
+   */
+  public void setChangeBus(ChangeBus changeBus) {
+    if (this.changeBus != null) {
+      this.changeBus.removeListener(this);
+    }
+    this.changeBus = changeBus;
+    if (changeBus != null) {
+      changeBus.addListener(this);
+    }
+  }
+
+  /**
+   * @param maxFireTimes
+   *          the most fire times kept at once, the latest are dropped beyond
+   *          it
+   */
+  public void setMaxFireTimes(int maxFireTimes) {
+    this.maxFireTimes = maxFireTimes;
+  }
+
+  /**
+   * Wake the schedulers on every node when the job comes due
+   *
+   * @param fireTime
+   *          the time the job fires at in milliseconds
+   */
+  public void schedule(long fireTime) {
+    if (changeBus == null) {
+      scheduleLocal(fireTime);
+      return;
+    }
+
+    // the bus hands it back to this node's listener too
+    changeBus.publish(new ChangeEvent(ChangeEvent.Type.JOB, null, fireTime));
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see
+   * org.usergrid.clustering.ChangeListener#onChange(org.usergrid.clustering
+   * .ChangeEvent)
+   */
+  @Override
+  public void onChange(ChangeEvent event) {
+    if (event.getType() == ChangeEvent.Type.JOB) {
+      scheduleLocal(Long.parseLong(event.getKey()));
+    }
+  }
+
+  /**
+   * Wake the scheduler on this node now, a worker has freed up
+   */
+  public synchronized void wake() {
+    woken = true;
+    notifyAll();
+  }
+
+  /**
+   * Wait until a job comes due, the scheduler is woken, or the timeout passes
+   *
+   * @param timeout
+   *          milliseconds to wait at most
+   * @return true if woken rather than timed out
+   * @throws InterruptedException
+   */
+  public synchronized boolean await(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+
+    while (true) {
+      long now = System.currentTimeMillis();
+
+      if (woken) {
+        woken = false;
+        return true;
+      }
+
+      if (takeDue(now)) {
+        return true;
+      }
+
+      long remaining = deadline - now;
+      if (remaining <= 0) {
+        return false;
+      }
+
+      Long next = nextFireTime();
+      if (next != null) {
+        remaining = Math.min(remaining, Math.max(next - now, 1));
+      }
+
+      wait(remaining);
+    }
+  }
+
+  /**
+   * @return the earliest fire time we know of, null if there are none
+   */
+  synchronized Long nextFireTime() {
+    return fireTimes.isEmpty() ? null : fireTimes.first();
+  }
+
+  private synchronized void scheduleLocal(long fireTime) {
+    fireTimes.add(fireTime);
+
+    // the scheduler reads the queue at least every interval, so a job whose
+    // fire time is dropped still runs, just not as promptly
+    while (fireTimes.size() > maxFireTimes) {
+      fireTimes.pollLast();
+    }
+
+    // the scheduler may be asleep until a later time
+    notifyAll();
+  }
+
+  /**
+   * Drop the fire times that have come due
+   *
+   * @return true if any were
+   */
+  private boolean takeDue(long now) {
+    boolean due = false;
+
+    while (!fireTimes.isEmpty() && fireTimes.first() <= now) {
+      fireTimes.pollFirst();
+      due = true;
+    }
+
+    return due;
+  }
+}
@@ -43,6 +43,19 @@ public interface SchedulerService {
    */
   public JobData createJob(String jobName, long fireTime, JobData jobData);
 
+  /**
+   * Create a new job unless a job of the same name already exists. Recurring
+   * jobs keep their job data between runs, so this starts them once however
+   * many times it's called.
+   * 
+   * @param jobName The name of the job
+   * @param fireTime The time to fire in milliseconds since epoch
+   * @param jobData The data to pass to the job
+   * 
+   * @return The newly created job data, null if the job already existed
+   */
+  public JobData createJobIfAbsent(String jobName, long fireTime, JobData jobData);
+
   /**
    * Delete the job.
    * 
@@ -18,8 +18,11 @@ package org.usergrid.batch.service;
 import static org.usergrid.persistence.cassandra.CassandraService.MANAGEMENT_APPLICATION_ID;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 
@@ -33,15 +36,19 @@ import org.usergrid.batch.JobRuntime;
 import org.usergrid.batch.JobRuntimeException;
 import org.usergrid.batch.repository.JobAccessor;
 import org.usergrid.batch.repository.JobDescriptor;
+import org.usergrid.locking.Lock;
+import org.usergrid.locking.LockManager;
 import org.usergrid.mq.Message;
 import org.usergrid.mq.QueueManager;
 import org.usergrid.mq.QueueManagerFactory;
 import org.usergrid.mq.QueueQuery;
 import org.usergrid.mq.QueueResults;
+import org.usergrid.persistence.Entity;
 import org.usergrid.persistence.EntityManager;
 import org.usergrid.persistence.EntityManagerFactory;
 import org.usergrid.persistence.Query;
 import org.usergrid.persistence.Results;
+import org.usergrid.persistence.Results.Level;
 import org.usergrid.persistence.SimpleEntityRef;
 import org.usergrid.persistence.cassandra.CassandraService;
 import org.usergrid.persistence.entities.JobData;
@@ -78,12 +85,15 @@ public class SchedulerServiceImpl implements SchedulerService, JobAccessor, JobR
 
   private QueueManagerFactory qmf;
   private EntityManagerFactory emf;
+  private LockManager lockManager;
 
   private String jobQueueName = DEFAULT_QUEUE_NAME;
 
   private QueueManager qm;
   private EntityManager em;
 
+  private JobWakeups wakeups;
+
   /**
    * Timeout for how long to set the transaction timeout from the queue. Default
    * is 30000
@@ -123,6 +133,51 @@ public class SchedulerServiceImpl implements SchedulerService, JobAccessor, JobR
 
   }
 
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * org.usergrid.batch.service.SchedulerService#createJobIfAbsent(java.lang
+   * .String, long, org.usergrid.persistence.entities.JobData)
+   */
+  @Override
+  public JobData createJobIfAbsent(String jobName, long fireTime, JobData jobData) {
+    Assert.notNull(jobName, "jobName is required");
+    Assert.notNull(jobData, "jobData is required");
+
+    // every node checks on startup, only one may create the job
+    Lock lock = lockManager.createLock(MANAGEMENT_APPLICATION_ID, String.format("/jobs/create/%s", jobName));
+
+    try {
+      if (!lock.tryLock(jobTimeout, TimeUnit.MILLISECONDS)) {
+        logger.warn("Unable to lock job {} to create it, another node is", jobName);
+        return null;
+      }
+
+      try {
+        Query query = new Query();
+        query.addEqualityFilter(JOB_NAME, jobName);
+
+        if (queryJobData(query).size() > 0) {
+          logger.debug("Job {} already exists", jobName);
+          return null;
+        }
+
+        logger.info("Creating job {}", jobName);
+
+        return createJob(jobName, fireTime, jobData);
+
+      } finally {
+        lock.unlock();
+      }
+
+    } catch (JobRuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new JobRuntimeException(e);
+    }
+  }
+
   /**
    * Schedule the job internally
    * 
@@ -144,6 +199,11 @@ public class SchedulerServiceImpl implements SchedulerService, JobAccessor, JobR
 
     qm.postToQueue(jobQueueName, message);
 
+    // wake the schedulers when it comes due rather than wait for them to poll
+    if (wakeups != null) {
+      wakeups.schedule(fireTime);
+    }
+
   }
 
   /*
@@ -179,18 +239,50 @@ public class SchedulerServiceImpl implements SchedulerService, JobAccessor, JobR
 
     QueueResults jobs = qm.getFromQueue(jobQueueName, query);
 
-    List<JobDescriptor> results = new ArrayList<JobDescriptor>(jobs.size());
+    List<Message> messages = jobs.getMessages();
+    List<JobDescriptor> results = new ArrayList<JobDescriptor>(messages.size());
 
-    for (Message job : jobs.getMessages()) {
+    if (messages.isEmpty()) {
+      return results;
+    }
+
+    // load the data and stats of every job in one read instead of two per job
+    List<UUID> ids = new ArrayList<UUID>(messages.size() * 2);
+
+    for (Message job : messages) {
+      ids.add(UUID.fromString(job.getStringProperty(JOB_ID)));
+      ids.add(UUID.fromString(job.getStringProperty(STATS_ID)));
+    }
+
+    Map<UUID, Entity> entities;
+
+    try {
+      entities = em.get(ids, Level.ALL_PROPERTIES).getEntitiesMap();
+    } catch (Exception e) {
+      // log and skip. This is a catastrophic runtime error if we see an
+      // exception here. We don't want to cause job loss, so leave the jobs in
+      // the Q.
+      logger.error("Unable to retrieve job data for {} jobs.  Skipping to avoid job loss", messages.size(), e);
+      return results;
+    }
+
+    if (entities == null) {
+      entities = Collections.emptyMap();
+    }
+
+    for (Message job : messages) {
 
       UUID jobUuid = UUID.fromString(job.getStringProperty(JOB_ID));
       UUID statsUuid = UUID.fromString(job.getStringProperty(STATS_ID));
       String jobName = job.getStringProperty(JOB_NAME);
 
       try {
-        JobData data = em.get(jobUuid, JobData.class);
+        Entity dataEntity = entities.get(jobUuid);
+        Entity statsEntity = entities.get(statsUuid);
+
+        JobData data = dataEntity instanceof JobData ? (JobData) dataEntity : null;
 
-        JobStat stats = em.get(statsUuid, JobStat.class);
+        JobStat stats = statsEntity instanceof JobStat ? (JobStat) statsEntity : null;
 
         /**
          * no job data, which is required even if empty to signal the job should
@@ -414,6 +506,23 @@ public class SchedulerServiceImpl implements SchedulerService, JobAccessor, JobR
     this.emf = emf;
   }
 
+  /**
+   * @param lockManager
+   *          the lockManager to set
+   */
+  @Autowired
+  public void setLockManager(LockManager lockManager) {
+    this.lockManager = lockManager;
+  }
+
+  /**
+   * @param wakeups
+   *          the fire times the schedulers wait on
+   */
+  public void setWakeups(JobWakeups wakeups) {
+    this.wakeups = wakeups;
+  }
+
   /**
    * @param jobQueueName
    *          the jobQueueName to set
@@ -6,6 +6,9 @@ import org.junit.runners.Suite;
 import org.usergrid.batch.AppArgsTest;
 import org.usergrid.batch.BulkJobExecutionUnitTest;
 import org.usergrid.batch.UsergridJobFactoryTest;
+import org.usergrid.batch.job.IndexRebuildJobTest;
+import org.usergrid.batch.service.JobPoolTest;
+import org.usergrid.batch.service.JobWakeupsTest;
 import org.usergrid.cassandra.Concurrent;
 import org.usergrid.cassandra.ConcurrentSuite;
 
@@ -16,6 +19,9 @@ import org.usergrid.cassandra.ConcurrentSuite;
             AppArgsTest.class,
             UsergridJobFactoryTest.class,
             BulkJobExecutionUnitTest.class,
+            IndexRebuildJobTest.class,
+            JobWakeupsTest.class,
+            JobPoolTest.class,
 
     } )
 @Concurrent()
@@ -26,6 +26,14 @@ public class BulkTestUtils {
     public List<Job> jobsFrom(JobDescriptor descriptor) {
       return Arrays.asList(new Job[]{new MyBulkJob()});
     }
+
+    /* (non-Javadoc)
+     * @see org.usergrid.batch.JobFactory#poolFor(org.usergrid.batch.repository.JobDescriptor)
+     */
+    @Override
+    public String poolFor(JobDescriptor descriptor) {
+      return null;
+    }
   }
 
   private static class MyBulkJob implements Job {
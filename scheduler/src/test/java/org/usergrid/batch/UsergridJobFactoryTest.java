@@ -3,11 +3,13 @@ package org.usergrid.batch;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
 import org.junit.Test;
 import org.usergrid.batch.repository.JobDescriptor;
+import org.usergrid.batch.service.JobPool;
 import org.usergrid.cassandra.Concurrent;
 
 /**
@@ -30,6 +32,17 @@ public class UsergridJobFactoryTest {
     assertEquals(1, bulkJobs.size());
   }
 
+  @Test
+  public void poolByJobName() {
+    UsergridJobFactory factory = new UsergridJobFactory();
+    factory.setPools(Collections.singletonMap("indexRebuildJob", "bulk"));
+
+    assertEquals("bulk", factory.poolFor(new JobDescriptor("indexRebuildJob", jobId, UUID.randomUUID(), null, null,
+        null)));
+    assertEquals(JobPool.DEFAULT, factory.poolFor(new JobDescriptor("queueRetentionJob", jobId, UUID.randomUUID(),
+        null, null, null)));
+  }
+
 
 
 
@@ -0,0 +1,201 @@
+package org.usergrid.batch.job;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.usergrid.cassandra.Concurrent;
+import org.usergrid.persistence.DynamicEntity;
+import org.usergrid.persistence.Entity;
+import org.usergrid.persistence.EntityManager;
+import org.usergrid.persistence.Results;
+import org.usergrid.persistence.entities.JobStat;
+import org.usergrid.utils.UUIDUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@Concurrent()
+public class IndexRebuildJobTest {
+
+  @Test
+  public void splitRanges() {
+    assertArrayEquals(new long[] { 1000, 1250, 1500, 1750 }, IndexRebuildJob.split(1000, 2000, 4));
+    assertArrayEquals(new long[] { 1000 }, IndexRebuildJob.split(1000, 2000, 1));
+
+    // nothing to split, every range starts at the same time
+    assertArrayEquals(new long[] { 1000, 1000, 1000 }, IndexRebuildJob.split(1000, 1000, 3));
+    assertArrayEquals(new long[] { 1000, 1000 }, IndexRebuildJob.split(1000, 500, 2));
+  }
+
+  @Test
+  public void throttleSpacing() throws Exception {
+    IndexRebuildJob.Throttle throttle = new IndexRebuildJob.Throttle(100);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      throttle.acquire();
+    }
+    long elapsed = (System.nanoTime() - start) / 1000000;
+
+    // the first goes straight through, the other 9 are 10ms apart
+    assertTrue("took " + elapsed + "ms", elapsed >= 85);
+  }
+
+  @Test
+  public void throttleUnlimited() throws Exception {
+    IndexRebuildJob.Throttle throttle = new IndexRebuildJob.Throttle(0);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 1000; i++) {
+      throttle.acquire();
+    }
+    long elapsed = (System.nanoTime() - start) / 1000000;
+
+    assertTrue("took " + elapsed + "ms", elapsed < 1000);
+  }
+
+  @Test
+  public void resumeWithStoredRanges() {
+    UUID checkpoint = UUIDUtils.newTimeUUID(1600);
+
+    JobStat stat = new JobStat();
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_START, 1000L);
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_END, 2000L);
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_RANGES, 4);
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_RANGE + 0, IndexRebuildJob.RANGE_DONE);
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_RANGE + 2, checkpoint.toString());
+
+    List<IndexRebuildJob.RangeRebuild> ranges = IndexRebuildJob.ranges(stat, null, "things", null,
+        new IndexRebuildJob.Throttle(0), new AtomicLong());
+
+    // the finished range is skipped, the others start where they left off
+    assertEquals(3, ranges.size());
+
+    assertEquals(1, ranges.get(0).index);
+    assertEquals(UUIDUtils.minTimeUUID(1250).toString(), ranges.get(0).getCheckpoint());
+    assertEquals(1500, ranges.get(0).end);
+
+    assertEquals(2, ranges.get(1).index);
+    assertEquals(checkpoint.toString(), ranges.get(1).getCheckpoint());
+    assertEquals(1750, ranges.get(1).end);
+
+    assertEquals(3, ranges.get(2).index);
+    assertEquals(UUIDUtils.minTimeUUID(1750).toString(), ranges.get(2).getCheckpoint());
+    assertEquals(-1, ranges.get(2).end);
+  }
+
+  @Test
+  public void firstRangeStartsAtTheBeginning() {
+    JobStat stat = new JobStat();
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_START, 1000L);
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_END, 2000L);
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_RANGES, 1);
+
+    List<IndexRebuildJob.RangeRebuild> ranges = IndexRebuildJob.ranges(stat, null, "things", null,
+        new IndexRebuildJob.Throttle(0), new AtomicLong());
+
+    assertEquals(1, ranges.size());
+    assertNull(ranges.get(0).getCheckpoint());
+    assertEquals(-1, ranges.get(0).end);
+  }
+
+  @Test
+  public void rangeStopsAtItsEnd() throws Exception {
+    // more than a couple of pages, one entity a millisecond
+    List<Entity> entities = new ArrayList<Entity>();
+    for (int i = 0; i < IndexRebuildJob.PAGE_SIZE * 3; i++) {
+      entities.add(new DynamicEntity("thing", UUIDUtils.newTimeUUID(1000 + i)));
+    }
+    List<UUID> updated = new ArrayList<UUID>();
+
+    JobStat stat = new JobStat();
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_START, 1000L);
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_END, 1000L + entities.size());
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_RANGES, 2);
+
+    AtomicLong count = new AtomicLong();
+    List<IndexRebuildJob.RangeRebuild> ranges = IndexRebuildJob.ranges(stat, entityManager(entities, updated),
+        "things", null, new IndexRebuildJob.Throttle(0), count);
+
+    // the first range stops short of the second
+    IndexRebuildJob.RangeRebuild first = ranges.get(0);
+    first.call();
+    assertEquals(IndexRebuildJob.RANGE_DONE, first.getCheckpoint());
+    assertEquals(entities.size() / 2, updated.size());
+    assertEquals(entities.get(0).getUuid(), updated.get(0));
+    assertEquals(entities.get(entities.size() / 2 - 1).getUuid(), updated.get(updated.size() - 1));
+
+    // the second takes the rest
+    ranges.get(1).call();
+    assertEquals(IndexRebuildJob.RANGE_DONE, ranges.get(1).getCheckpoint());
+    assertEquals(entities.size(), updated.size());
+    assertEquals(entities.size(), count.get());
+  }
+
+  @Test
+  public void rangeResumesAfterCheckpoint() throws Exception {
+    List<Entity> entities = new ArrayList<Entity>();
+    for (int i = 0; i < 10; i++) {
+      entities.add(new DynamicEntity("thing", UUIDUtils.newTimeUUID(1000 + i)));
+    }
+    List<UUID> updated = new ArrayList<UUID>();
+
+    JobStat stat = new JobStat();
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_START, 1000L);
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_END, 1010L);
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_RANGES, 1);
+    stat.setProperty(IndexRebuildJob.CHECKPOINT_RANGE + 0, entities.get(4).getUuid().toString());
+
+    IndexRebuildJob.RangeRebuild range = IndexRebuildJob.ranges(stat, entityManager(entities, updated), "things",
+        null, new IndexRebuildJob.Throttle(0), new AtomicLong()).get(0);
+    range.call();
+
+    // the checkpointed entity was already re-saved
+    assertEquals(5, updated.size());
+    assertEquals(entities.get(5).getUuid(), updated.get(0));
+    assertEquals(IndexRebuildJob.RANGE_DONE, range.getCheckpoint());
+  }
+
+  /**
+   * An entity manager holding a single collection, sorted by id, which
+   * records the entities updated
+   */
+  private static EntityManager entityManager(final List<Entity> entities, final List<UUID> updated) {
+    return (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+        new Class<?>[] { EntityManager.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("getCollection")) {
+              UUID start = (UUID) args[2];
+              int limit = (Integer) args[3];
+
+              List<Entity> page = new ArrayList<Entity>();
+              for (Entity entity : entities) {
+                if (page.size() == limit) {
+                  break;
+                }
+                if (start == null || UUIDUtils.compare(entity.getUuid(), start) >= 0) {
+                  page.add(entity);
+                }
+              }
+              return Results.fromEntities(page);
+            }
+            if (method.getName().equals("update")) {
+              updated.add(((Entity) args[0]).getUuid());
+              return null;
+            }
+            return null;
+          }
+        });
+  }
+}
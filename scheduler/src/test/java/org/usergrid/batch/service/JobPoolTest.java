@@ -0,0 +1,77 @@
+package org.usergrid.batch.service;
+
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.usergrid.batch.repository.JobDescriptor;
+import org.usergrid.batch.service.JobPool.Pending;
+import org.usergrid.cassandra.Concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+@Concurrent()
+public class JobPoolTest {
+
+  @Test
+  public void selectByWeight() {
+    JobPool fast = new JobPool("default", 4, 3);
+    JobPool bulk = new JobPool("bulk", 4, 1);
+    List<JobPool> pools = Arrays.asList(fast, bulk);
+
+    fill(fast, 10);
+    fill(bulk, 10);
+
+    // start jobs until the pools have 4 workers between them, the default
+    // pool takes 3 of them for its weight
+    for (int i = 0; i < 4; i++) {
+      JobPool pool = JobPool.select(pools);
+      pool.pending.removeFirst();
+      pool.running++;
+    }
+
+    assertEquals(3, fast.running);
+    assertEquals(1, bulk.running);
+  }
+
+  @Test
+  public void selectSkipsFullPools() {
+    JobPool fast = new JobPool("default", 4, 1);
+    JobPool bulk = new JobPool("bulk", 1, 10);
+    List<JobPool> pools = Arrays.asList(fast, bulk);
+
+    fill(fast, 1);
+    fill(bulk, 5);
+
+    bulk.running = 1;
+
+    // the bulk pool outweighs the default but has no worker free
+    assertSame(fast, JobPool.select(pools));
+
+    fast.pending.clear();
+    assertNull(JobPool.select(pools));
+  }
+
+  @Test
+  public void room() {
+    JobPool pool = new JobPool("bulk", 2, 1);
+    assertEquals(2, pool.room());
+
+    fill(pool, 1);
+    assertEquals(1, pool.room());
+
+    pool.running = 2;
+    assertEquals(0, pool.room());
+  }
+
+  private static void fill(JobPool pool, int count) {
+    for (int i = 0; i < count; i++) {
+      pool.pending.add(new Pending(new JobDescriptor("job", UUID.randomUUID(), UUID.randomUUID(), null, null, null)));
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package org.usergrid.batch.service;
+
+
+import org.junit.Test;
+import org.usergrid.cassandra.Concurrent;
+import org.usergrid.clustering.LocalChangeBus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@Concurrent()
+public class JobWakeupsTest {
+
+  @Test
+  public void wakesWhenDue() throws Exception {
+    JobWakeups wakeups = new JobWakeups();
+
+    long fireTime = System.currentTimeMillis() + 100;
+    wakeups.schedule(fireTime + 10000);
+    wakeups.schedule(fireTime);
+
+    assertEquals(Long.valueOf(fireTime), wakeups.nextFireTime());
+
+    long start = System.currentTimeMillis();
+    assertTrue(wakeups.await(5000));
+    long elapsed = System.currentTimeMillis() - start;
+
+    assertTrue("woke after " + elapsed + "ms", System.currentTimeMillis() >= fireTime);
+    assertTrue("woke after " + elapsed + "ms", elapsed < 5000);
+
+    // only the one that came due is taken
+    assertEquals(Long.valueOf(fireTime + 10000), wakeups.nextFireTime());
+  }
+
+  @Test
+  public void timesOut() throws Exception {
+    JobWakeups wakeups = new JobWakeups();
+
+    assertNull(wakeups.nextFireTime());
+    assertFalse(wakeups.await(50));
+  }
+
+  @Test
+  public void scheduledWhileWaiting() throws Exception {
+    final JobWakeups wakeups = new JobWakeups();
+
+    Thread scheduler = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        wakeups.schedule(System.currentTimeMillis());
+      }
+    };
+    scheduler.start();
+
+    long start = System.currentTimeMillis();
+    assertTrue(wakeups.await(5000));
+    assertTrue(System.currentTimeMillis() - start < 5000);
+
+    scheduler.join();
+  }
+
+  @Test
+  public void scheduledOverChangeBus() throws Exception {
+    LocalChangeBus bus = new LocalChangeBus();
+
+    JobWakeups wakeups = new JobWakeups();
+    wakeups.setChangeBus(bus);
+
+    // another node's scheduler on the same bus
+    JobWakeups other = new JobWakeups();
+    other.setChangeBus(bus);
+
+    long fireTime = System.currentTimeMillis() + 10000;
+    wakeups.schedule(fireTime);
+
+    assertEquals(Long.valueOf(fireTime), wakeups.nextFireTime());
+    assertEquals(Long.valueOf(fireTime), other.nextFireTime());
+  }
+
+  @Test
+  public void keepsEarliestFireTimes() throws Exception {
+    JobWakeups wakeups = new JobWakeups();
+    wakeups.setMaxFireTimes(2);
+
+    long now = System.currentTimeMillis();
+    wakeups.schedule(now + 30000);
+    wakeups.schedule(now + 20000);
+    wakeups.schedule(now + 10000);
+
+    assertEquals(Long.valueOf(now + 10000), wakeups.nextFireTime());
+
+    wakeups.schedule(now - 1000);
+
+    // the due one and the earliest left after it
+    assertTrue(wakeups.await(5000));
+    assertEquals(Long.valueOf(now + 10000), wakeups.nextFireTime());
+  }
+
+  @Test
+  public void alreadyDue() throws Exception {
+    JobWakeups wakeups = new JobWakeups();
+
+    // scheduled while the scheduler was reading the queue
+    wakeups.schedule(System.currentTimeMillis() - 1000);
+
+    assertTrue(wakeups.await(5000));
+    assertNull(wakeups.nextFireTime());
+  }
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.security.shiro;
+
+import static org.apache.shiro.authz.permission.WildcardPermission.WILDCARD_TOKEN;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.shiro.authz.Permission;
+import org.springframework.util.StringUtils;
+
+/**
+ * A principal's permissions indexed once so that a check only runs
+ * {@link CustomPermission#implies(Permission)} against the few permissions
+ * that could possibly match, instead of every permission the principal holds.
+ * 
+ * The index is a trie over the first three parts of a permission (resource
+ * type, verbs and, for applications, the application id) followed by the
+ * first segment of the path. Literal values get their own branch, anything
+ * with a wildcard, pattern or substitution goes down the wildcard branch that
+ * every lookup also visits. The candidates found are then checked with the
+ * unchanged implies, so matching behaves exactly as a linear scan would.
+ */
+public class CompiledPermissions {
+
+	// parts of a permission indexed by value, the path is the part after them
+	private static final int INDEXED_PARTS = 3;
+
+	private final List<Permission> all = new ArrayList<Permission>();
+
+	private final Node root = new Node();
+
+	public CompiledPermissions(Collection<Permission> permissions) {
+		for (Permission permission : permissions) {
+			all.add(permission);
+			if (permission instanceof CustomPermission) {
+				root.add((CustomPermission) permission, 0);
+			} else {
+				root.unindexed.add(permission);
+			}
+		}
+	}
+
+	public int size() {
+		return all.size();
+	}
+
+	/**
+	 * @return true if any of the permissions implies the given one
+	 */
+	public boolean implies(Permission permission) {
+		if (!(permission instanceof CustomPermission)) {
+			return impliesAny(all, permission);
+		}
+
+		List<Set<String>> parts = ((CustomPermission) permission).getParts();
+
+		// only single valued lookups can be narrowed, a permission has to
+		// cover every value of a part on its own
+		for (int i = 0; i < parts.size() && i <= INDEXED_PARTS; i++) {
+			if (parts.get(i).size() != 1) {
+				return impliesAny(all, permission);
+			}
+		}
+
+		return root.implies((CustomPermission) permission, parts, 0);
+	}
+
+	private static boolean impliesAny(Collection<Permission> permissions,
+			Permission permission) {
+		for (Permission p : permissions) {
+			if (p.implies(permission)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The key a single value is indexed under, or null if it is a wildcard,
+	 * pattern or substitution that could match other values
+	 */
+	static String literalKey(String value, boolean path) {
+		if (path) {
+			String[] segments = StringUtils.tokenizeToStringArray(value, "/");
+			if (segments.length == 0) {
+				return null;
+			}
+			value = segments[0];
+			// /me/ is replaced with the current user's name or id
+			if ("me".equalsIgnoreCase(value)) {
+				return null;
+			}
+		} else if (value.indexOf('/') != -1) {
+			return null;
+		}
+		if (value.indexOf('*') != -1 || value.indexOf('?') != -1
+				|| value.indexOf('{') != -1 || value.indexOf('$') != -1) {
+			return null;
+		}
+		return value.toLowerCase();
+	}
+
+	private static class Node {
+
+		final Map<String, Node> children = new HashMap<String, Node>();
+
+		// permissions that can match any value at this level
+		Node wildcard;
+
+		// permissions that end before this level or can't be indexed at it
+		final List<Permission> unindexed = new ArrayList<Permission>();
+
+		void add(CustomPermission permission, int depth) {
+			List<Set<String>> parts = permission.getParts();
+
+			// a permission with fewer parts implies everything after them
+			if (depth >= parts.size()) {
+				unindexed.add(permission);
+				return;
+			}
+
+			Set<String> part = parts.get(depth);
+			boolean path = depth >= INDEXED_PARTS;
+
+			List<String> keys = new ArrayList<String>(part.size());
+			for (String value : part) {
+				String key = part.contains(WILDCARD_TOKEN) ? null : literalKey(
+						value, path);
+				if (key == null) {
+					keys = null;
+					break;
+				}
+				keys.add(key);
+			}
+
+			if (path) {
+				// the path is the last level, everything after it is left to
+				// implies
+				if (keys == null) {
+					unindexed.add(permission);
+					return;
+				}
+				for (String key : keys) {
+					child(key).unindexed.add(permission);
+				}
+				return;
+			}
+
+			if (keys == null) {
+				if (wildcard == null) {
+					wildcard = new Node();
+				}
+				wildcard.add(permission, depth + 1);
+				return;
+			}
+			for (String key : keys) {
+				child(key).add(permission, depth + 1);
+			}
+		}
+
+		Node child(String key) {
+			Node child = children.get(key);
+			if (child == null) {
+				child = new Node();
+				children.put(key, child);
+			}
+			return child;
+		}
+
+		boolean implies(CustomPermission permission, List<Set<String>> parts,
+				int depth) {
+			if (impliesAny(unindexed, permission)) {
+				return true;
+			}
+
+			// the challenger ends here, whatever remains has more parts
+			// and only implies it if they're all wildcards
+			if (depth >= parts.size()) {
+				return impliesAll(permission);
+			}
+
+			if (wildcard != null
+					&& wildcard.implies(permission, parts, depth + 1)) {
+				return true;
+			}
+
+			Iterator<String> values = parts.get(depth).iterator();
+			String key = literalKey(values.next(), depth >= INDEXED_PARTS);
+			if (key == null) {
+				// a pattern in the challenger could match any branch
+				for (Node child : children.values()) {
+					if (child.implies(permission, parts, depth + 1)) {
+						return true;
+					}
+				}
+				return false;
+			}
+
+			Node child = children.get(key);
+			return (child != null) && child.implies(permission, parts, depth + 1);
+		}
+
+		private boolean impliesAll(CustomPermission permission) {
+			if (wildcard != null && wildcard.impliesSubtree(permission)) {
+				return true;
+			}
+			for (Node child : children.values()) {
+				if (child.impliesSubtree(permission)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean impliesSubtree(CustomPermission permission) {
+			return impliesAny(unindexed, permission) || impliesAll(permission);
+		}
+	}
+}
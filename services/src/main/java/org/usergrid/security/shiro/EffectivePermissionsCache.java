@@ -0,0 +1,424 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.security.shiro;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.usergrid.clustering.ChangeBus;
+import org.usergrid.clustering.ChangeEvent;
+import org.usergrid.clustering.ChangeListener;
+import org.usergrid.persistence.Entity;
+import org.usergrid.persistence.EntityManager;
+import org.usergrid.persistence.EntityManagerFactory;
+import org.usergrid.persistence.Results;
+import org.usergrid.persistence.Results.Level;
+import org.usergrid.persistence.SimpleEntityRef;
+import org.usergrid.persistence.entities.Group;
+import org.usergrid.persistence.entities.Role;
+import org.usergrid.persistence.entities.User;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches everything the realm needs to authorize an application user: the
+ * default role, the user's own permissions and the permissions of every role
+ * the user holds directly or through a group. A cold entry is read with
+ * parallel reads and a single multiget for all role permissions, a warm one is
+ * a single map lookup no matter how many roles or groups the user has.
+ * 
+ * Entries are versioned per application. Any role, permission, membership or
+ * entity change published on the change bus bumps the version, and entries
+ * built against an older version are rebuilt on their next use.
+ */
+public class EffectivePermissionsCache {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(EffectivePermissionsCache.class);
+
+    public static final String DEFAULT_ROLE = "default";
+
+    private static final int MAX_GROUPS = 1000;
+
+    private static final int LOADER_THREADS = 16;
+
+    private static final int LOADER_QUEUE = 256;
+
+    private final EntityManagerFactory emf;
+
+    private final Cache<String, EffectivePermissions> cache;
+
+    private final ConcurrentMap<UUID, AtomicLong> versions = new ConcurrentHashMap<UUID, AtomicLong>();
+
+    // bumped for changes that aren't scoped to an application
+    private final AtomicLong systemVersion = new AtomicLong();
+
+    // loads share a few threads, a load that finds them busy reads on the
+    // calling thread
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            LOADER_THREADS, LOADER_THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(LOADER_QUEUE),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "permission-loader");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    /**
+     * @param emf
+     * @param changeBus
+     *            may be null, entries then only go stale through expiration
+     * @param maximumSize
+     *            the number of users to keep
+     * @param expiration
+     *            milliseconds before an entry is read again even without a
+     *            change event
+     */
+    public EffectivePermissionsCache(EntityManagerFactory emf,
+            ChangeBus changeBus, long maximumSize, long expiration) {
+        this.emf = emf;
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(expiration, TimeUnit.MILLISECONDS).build();
+        executor.allowCoreThreadTimeOut(true);
+
+        if (changeBus != null) {
+            changeBus.addListener(new ChangeListener() {
+                @Override
+                public void onChange(ChangeEvent event) {
+                    invalidate(event);
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the effective permissions of the user, reading them if they aren't
+     * cached or were changed since they were.
+     */
+    public EffectivePermissions get(UUID applicationId, UUID userId)
+            throws Exception {
+        String key = applicationId + "/" + userId;
+        long version = version(applicationId);
+
+        EffectivePermissions permissions = cache.getIfPresent(key);
+        if ((permissions == null) || (permissions.getVersion() != version)) {
+            permissions = load(applicationId, userId, version);
+            // a partial read is used once and read again next time
+            if (permissions.isComplete()) {
+                cache.put(key, permissions);
+            }
+        }
+        return permissions;
+    }
+
+    void invalidate(ChangeEvent event) {
+        // token revocation doesn't change what a user may do
+        if ((event.getType() == ChangeEvent.Type.TOKEN)
+                || (event.getType() == ChangeEvent.Type.JOB)) {
+            return;
+        }
+        if (event.getApplicationId() == null) {
+            systemVersion.incrementAndGet();
+        } else {
+            counter(event.getApplicationId()).incrementAndGet();
+        }
+    }
+
+    private long version(UUID applicationId) {
+        return counter(applicationId).get() + systemVersion.get();
+    }
+
+    private AtomicLong counter(UUID applicationId) {
+        AtomicLong counter = versions.get(applicationId);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong existing = versions.putIfAbsent(applicationId, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    /*
+     * Each source is read on its own, one that can't be read is logged and
+     * left out so the user still gets what the others grant
+     */
+    private EffectivePermissions load(UUID applicationId, final UUID userId,
+            long version) throws Exception {
+        final EntityManager em = emf.getEntityManager(applicationId);
+        boolean complete = true;
+
+        Future<Object> applicationName = executor
+                .submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return em.getProperty(em.getApplicationRef(), "name");
+                    }
+                });
+
+        Future<Set<String>> userPermissions = executor
+                .submit(new Callable<Set<String>>() {
+                    @Override
+                    public Set<String> call() throws Exception {
+                        return em.getUserPermissions(userId);
+                    }
+                });
+
+        Future<Set<String>> userRoles = executor
+                .submit(new Callable<Set<String>>() {
+                    @Override
+                    public Set<String> call() throws Exception {
+                        return em.getUserRoles(userId);
+                    }
+                });
+
+        // every group's roles are read at once
+        List<Future<Results>> groupRoles = new ArrayList<Future<Results>>();
+        try {
+            Results groups = em.getCollection(new SimpleEntityRef(
+                    User.ENTITY_TYPE, userId), "groups", null, MAX_GROUPS,
+                    Level.IDS, false);
+            if (groups != null) {
+                for (final UUID groupId : groups.getIds()) {
+                    groupRoles.add(executor.submit(new Callable<Results>() {
+                        @Override
+                        public Results call() throws Exception {
+                            return em.getCollection(new SimpleEntityRef(
+                                    Group.ENTITY_TYPE, groupId), "roles",
+                                    null, MAX_GROUPS, Level.CORE_PROPERTIES,
+                                    false);
+                        }
+                    }));
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Unable to read groups of user {}", userId, e);
+            complete = false;
+        }
+
+        final Set<String> roleNames = new HashSet<String>();
+
+        try {
+            Set<String> names = get(userRoles);
+            if (names != null) {
+                for (String name : names) {
+                    roleNames.add(name.toLowerCase());
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Unable to read roles of user {}", userId, e);
+            complete = false;
+        }
+
+        for (Future<Results> future : groupRoles) {
+            try {
+                Results roleResults = get(future);
+                if (roleResults != null) {
+                    for (Entity entity : roleResults.getEntities()) {
+                        if (entity.getName() != null) {
+                            roleNames.add(entity.getName().toLowerCase());
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("Unable to read group roles of user {}", userId,
+                        e);
+                complete = false;
+            }
+        }
+
+        Future<Map<String, Role>> roles = executor
+                .submit(new Callable<Map<String, Role>>() {
+                    @Override
+                    public Map<String, Role> call() throws Exception {
+                        if (roleNames.isEmpty()) {
+                            return Collections.emptyMap();
+                        }
+                        return em.getRolesWithTitles(roleNames);
+                    }
+                });
+
+        Set<String> readRoles = new HashSet<String>(roleNames);
+        readRoles.add(DEFAULT_ROLE);
+        Map<String, Set<String>> rolePermissions;
+        try {
+            rolePermissions = em.getRolesPermissions(readRoles);
+        } catch (Exception e) {
+            logger.error("Unable to read role permissions of user {}", userId,
+                    e);
+            complete = false;
+
+            // fall back to reading the roles one at a time
+            rolePermissions = new HashMap<String, Set<String>>();
+            for (String roleName : readRoles) {
+                try {
+                    rolePermissions.put(roleName,
+                            em.getRolePermissions(roleName));
+                } catch (Exception re) {
+                    logger.error("Unable to read permissions of role {}",
+                            roleName, re);
+                }
+            }
+        }
+
+        Set<String> defaultPermissions = rolePermissions.remove(DEFAULT_ROLE);
+        if (roleNames.contains(DEFAULT_ROLE)) {
+            rolePermissions.put(DEFAULT_ROLE, defaultPermissions);
+        }
+
+        Map<String, Long> roleInactivity = new HashMap<String, Long>();
+        try {
+            Map<String, Role> roleInfo = get(roles);
+            if (roleInfo != null) {
+                for (Map.Entry<String, Role> role : roleInfo.entrySet()) {
+                    if (role.getValue() != null) {
+                        roleInactivity.put(role.getKey().toLowerCase(), role
+                                .getValue().getInactivity());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // without their inactivity limits the roles can't be granted
+            logger.error("Unable to read roles of user {}", userId, e);
+            complete = false;
+            rolePermissions.clear();
+        }
+
+        Set<String> permissions = null;
+        try {
+            permissions = get(userPermissions);
+        } catch (Exception e) {
+            logger.error("Unable to read permissions of user {}", userId, e);
+            complete = false;
+        }
+
+        String name = null;
+        try {
+            name = (String) get(applicationName);
+        } catch (Exception e) {
+            logger.debug("Unable to read name of application {}",
+                    applicationId, e);
+        }
+
+        return new EffectivePermissions(version, complete, name,
+                defaultPermissions, permissions, rolePermissions,
+                roleInactivity);
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * What an application user may do, as of a version of the application's
+     * roles and permissions. Inactivity limits are kept rather than applied
+     * because they depend on the token the user presents.
+     */
+    public static class EffectivePermissions {
+
+        private final long version;
+        private final boolean complete;
+        private final String applicationName;
+        private final Set<String> defaultPermissions;
+        private final Set<String> userPermissions;
+        private final Map<String, Set<String>> rolePermissions;
+        private final Map<String, Long> roleInactivity;
+
+        EffectivePermissions(long version, boolean complete,
+                String applicationName, Set<String> defaultPermissions,
+                Set<String> userPermissions,
+                Map<String, Set<String>> rolePermissions,
+                Map<String, Long> roleInactivity) {
+            this.version = version;
+            this.complete = complete;
+            this.applicationName = applicationName;
+            this.defaultPermissions = defaultPermissions;
+            this.userPermissions = userPermissions;
+            this.rolePermissions = rolePermissions;
+            this.roleInactivity = roleInactivity;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return false if any of the permissions couldn't be read
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public String getApplicationName() {
+            return applicationName;
+        }
+
+        public Set<String> getDefaultPermissions() {
+            return defaultPermissions;
+        }
+
+        public Set<String> getUserPermissions() {
+            return userPermissions;
+        }
+
+        /**
+         * Permissions of each role the user holds, directly or through a
+         * group, keyed by role name
+         */
+        public Map<String, Set<String>> getRolePermissions() {
+            return rolePermissions;
+        }
+
+        /**
+         * @return the inactivity limit of the role, 0 if it has none
+         */
+        public long getRoleInactivity(String roleName) {
+            Long inactivity = roleInactivity.get(roleName);
+            return inactivity != null ? inactivity : 0;
+        }
+    }
+}
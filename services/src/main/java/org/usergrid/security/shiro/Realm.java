@@ -23,7 +23,8 @@ import static org.usergrid.security.shiro.utils.SubjectUtils.getPermissionFromPa
 import static org.usergrid.utils.StringUtils.stringOrSubstringAfterFirst;
 import static org.usergrid.utils.StringUtils.stringOrSubstringBeforeFirst;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -38,8 +39,11 @@ import org.apache.shiro.authc.SimpleAuthenticationInfo;
 import org.apache.shiro.authc.credential.AllowAllCredentialsMatcher;
 import org.apache.shiro.authc.credential.CredentialsMatcher;
 import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Permission;
 import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.authz.UnauthorizedException;
 import org.apache.shiro.authz.permission.PermissionResolver;
+import org.apache.shiro.cache.Cache;
 import org.apache.shiro.cache.CacheManager;
 import org.apache.shiro.realm.AuthorizingRealm;
 import org.apache.shiro.session.Session;
@@ -49,20 +53,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.usergrid.clustering.ChangeBus;
+import org.usergrid.clustering.ChangeEvent;
+import org.usergrid.clustering.ChangeListener;
 import org.usergrid.management.AccountCreationProps;
 import org.usergrid.management.ApplicationInfo;
 import org.usergrid.management.ManagementService;
 import org.usergrid.management.OrganizationInfo;
 import org.usergrid.management.UserInfo;
-import org.usergrid.persistence.Entity;
 import org.usergrid.persistence.EntityManager;
 import org.usergrid.persistence.EntityManagerFactory;
-import org.usergrid.persistence.Results;
-import org.usergrid.persistence.Results.Level;
-import org.usergrid.persistence.SimpleEntityRef;
-import org.usergrid.persistence.entities.Group;
-import org.usergrid.persistence.entities.Role;
-import org.usergrid.persistence.entities.User;
+import org.usergrid.security.shiro.EffectivePermissionsCache.EffectivePermissions;
 import org.usergrid.security.shiro.credentials.AccessTokenCredentials;
 import org.usergrid.security.shiro.credentials.AdminUserAccessToken;
 import org.usergrid.security.shiro.credentials.AdminUserPassword;
@@ -77,6 +78,7 @@ import org.usergrid.security.shiro.principals.ApplicationPrincipal;
 import org.usergrid.security.shiro.principals.ApplicationUserPrincipal;
 import org.usergrid.security.shiro.principals.OrganizationPrincipal;
 import org.usergrid.security.shiro.principals.PrincipalIdentifier;
+import org.usergrid.security.shiro.principals.UserPrincipal;
 import org.usergrid.security.tokens.TokenInfo;
 import org.usergrid.security.tokens.TokenService;
 
@@ -91,9 +93,14 @@ public class Realm extends AuthorizingRealm {
     public final static String ROLE_APPLICATION_ADMIN = "application-admin";
     public final static String ROLE_APPLICATION_USER = "application-user";
 
+    private static final long DEFAULT_PERMISSIONS_CACHE_SIZE = 10000;
+    private static final long DEFAULT_PERMISSIONS_CACHE_EXPIRATION = 300000;
+
     private EntityManagerFactory emf;
     private ManagementService management;
     private TokenService tokens;
+    private EffectivePermissionsCache permissionsCache;
+    private ChangeBus changeBus;
 
     
     @Value("${"+PROPERTIES_SYSADMIN_LOGIN_ALLOWED+"}")
@@ -155,6 +162,107 @@ public class Realm extends AuthorizingRealm {
         this.tokens = tokens;
     }
 
+    @Autowired(required = false)
+    public void setPermissionsCache(EffectivePermissionsCache permissionsCache) {
+        this.permissionsCache = permissionsCache;
+    }
+
+    private synchronized EffectivePermissionsCache getPermissionsCache() {
+        if (permissionsCache == null) {
+            if (changeBus == null) {
+                logger.warn("No change bus set, cached permissions only go stale through expiration");
+            }
+            permissionsCache = new EffectivePermissionsCache(emf, changeBus,
+                    DEFAULT_PERMISSIONS_CACHE_SIZE,
+                    DEFAULT_PERMISSIONS_CACHE_EXPIRATION);
+        }
+        return permissionsCache;
+    }
+
+    /**
+     * Permission and role changes made on any node drop the cached
+     * authorization info of the principals in the application they were made
+     * in. Role, group and permission changes are keyed by name, so who holds
+     * them isn't known without reading, and every principal of the
+     * application is dropped. Revoking a principal's tokens drops just that
+     * principal.
+     */
+    @Autowired(required = false)
+    public synchronized void setChangeBus(ChangeBus changeBus) {
+        this.changeBus = changeBus;
+        changeBus.addListener(new ChangeListener() {
+            @Override
+            public void onChange(ChangeEvent event) {
+                if ((event.getType() == ChangeEvent.Type.APPLICATION)
+                        || (event.getType() == ChangeEvent.Type.JOB)) {
+                    return;
+                }
+                evictAuthorization(event);
+            }
+        });
+    }
+
+    /**
+     * Drop the cached authorization info of the principals the change may
+     * affect
+     */
+    void evictAuthorization(ChangeEvent event) {
+        Cache<Object, AuthorizationInfo> cache = getAuthorizationCache();
+        if (cache == null) {
+            return;
+        }
+
+        // system wide changes may affect anyone
+        if ((event.getApplicationId() == null)
+                && (event.getType() != ChangeEvent.Type.TOKEN)) {
+            cache.clear();
+            return;
+        }
+
+        for (Object key : new ArrayList<Object>(cache.keys())) {
+            if (!(key instanceof PrincipalCollection)
+                    || isAffected((PrincipalCollection) key, event)) {
+                cache.remove(key);
+            }
+        }
+    }
+
+    private static boolean isAffected(PrincipalCollection principals,
+            ChangeEvent event) {
+        Object principal = principals.getPrimaryPrincipal();
+
+        UUID applicationId;
+        UUID id;
+        if (principal instanceof UserPrincipal) {
+            UserInfo user = ((UserPrincipal) principal).getUser();
+            applicationId = ((UserPrincipal) principal).getApplicationId();
+            id = user != null ? user.getUuid() : null;
+        } else if (principal instanceof ApplicationPrincipal) {
+            applicationId = ((ApplicationPrincipal) principal)
+                    .getApplicationId();
+            id = applicationId;
+        } else if (principal instanceof ApplicationGuestPrincipal) {
+            applicationId = ((ApplicationGuestPrincipal) principal)
+                    .getApplicationId();
+            id = applicationId;
+        } else if (principal instanceof OrganizationPrincipal) {
+            applicationId = MANAGEMENT_APPLICATION_ID;
+            id = ((OrganizationPrincipal) principal).getOrganizationId();
+        } else {
+            // not one of ours, don't keep it around
+            return true;
+        }
+
+        // token events name the principal whose tokens were revoked, or a
+        // single token, which matches nobody
+        if (event.getType() == ChangeEvent.Type.TOKEN) {
+            return (id != null) && id.toString().equals(event.getKey());
+        }
+
+        return (applicationId == null)
+                || applicationId.equals(event.getApplicationId());
+    }
+
     @Override
     protected AuthenticationInfo doGetAuthenticationInfo(
             AuthenticationToken token) throws AuthenticationException {
@@ -208,10 +316,64 @@ public class Realm extends AuthorizingRealm {
         return info;
     }
 
+    /**
+     * Checks the permission against the principal's permissions compiled into
+     * an index, rather than resolving and scanning every granted permission on
+     * each call the way AuthorizingRealm does.
+     */
+    @Override
+    public boolean isPermitted(PrincipalCollection principals,
+            Permission permission) {
+        AuthorizationInfo info = getAuthorizationInfo(principals);
+        if (info == null) {
+            return false;
+        }
+        if (!(info instanceof CompiledAuthorizationInfo)) {
+            return compile(info).implies(permission);
+        }
+        CompiledAuthorizationInfo compiledInfo = (CompiledAuthorizationInfo) info;
+        CompiledPermissions compiled = compiledInfo.compiled;
+        if (compiled == null) {
+            compiled = compile(info);
+            compiledInfo.compiled = compiled;
+        }
+        return compiled.implies(permission);
+    }
+
+    @Override
+    public void checkPermission(PrincipalCollection principals,
+            String permission) {
+        checkPermission(principals, getPermissionResolver()
+                .resolvePermission(permission));
+    }
+
+    @Override
+    public void checkPermission(PrincipalCollection principals,
+            Permission permission) {
+        if (!isPermitted(principals, permission)) {
+            throw new UnauthorizedException("User is not permitted ["
+                    + permission + "]");
+        }
+    }
+
+    private CompiledPermissions compile(AuthorizationInfo info) {
+        List<Permission> permissions = new ArrayList<Permission>();
+        if (info.getObjectPermissions() != null) {
+            permissions.addAll(info.getObjectPermissions());
+        }
+        if (info.getStringPermissions() != null) {
+            for (String permission : info.getStringPermissions()) {
+                permissions.add(getPermissionResolver().resolvePermission(
+                        permission));
+            }
+        }
+        return new CompiledPermissions(permissions);
+    }
+
     @Override
     protected AuthorizationInfo doGetAuthorizationInfo(
             PrincipalCollection principals) {
-        SimpleAuthorizationInfo info = new SimpleAuthorizationInfo();
+        SimpleAuthorizationInfo info = new CompiledAuthorizationInfo();
 
         Map<UUID, String> organizationSet = HashBiMap.create();
         Map<UUID, String> applicationSet = HashBiMap.create();
@@ -394,68 +556,27 @@ public class Realm extends AuthorizingRealm {
                  * "/users/${user}/following/user/*"));
                  */
 
-                EntityManager em = emf.getEntityManager(applicationId);
-                try {
-                    String appName = (String) em.getProperty(
-                            em.getApplicationRef(), "name");
-                    applicationSet.put(applicationId, appName);
-                    application = new ApplicationInfo(applicationId, appName);
-                } catch (Exception e) {
-                }
-
-                try {
-                    Set<String> permissions = em.getRolePermissions("default");
-                    grant(info, principal, applicationId, permissions);
-                } catch (Exception e) {
-                    logger.error("Unable to get user default role permissions",
-                            e);
-                }
-
                 UserInfo user = ((ApplicationUserPrincipal) principal)
                         .getUser();
                 try {
-                    Set<String> permissions = em.getUserPermissions(user
-                            .getUuid());
-                    grant(info, principal, applicationId, permissions);
-                } catch (Exception e) {
-                    logger.error("Unable to get user permissions", e);
-                }
-
-                try {
-                    Set<String> rolenames = em.getUserRoles(user.getUuid());
-                    grantAppRoles(info, em, applicationId, token, principal, rolenames);
-                } catch (Exception e) {
-                    logger.error("Unable to get user role permissions", e);
-                }
-
-                try {
-                    //TODO TN.  This is woefully inefficient, but temporary.  Introduce cassandra backed shiro caching so this only ever happens once.
-                    //See USERGRID-779 for details
-                    Results r = em.getCollection(new SimpleEntityRef(
-                            User.ENTITY_TYPE, user.getUuid()), "groups", null,
-                            1000, Level.IDS, false);
-                    if (r != null) {
-                        
-                        Set<String> rolenames = new HashSet<String>();
-                        
-                        for (UUID groupId : r.getIds()) {
-                          
-                            Results roleResults = em.getCollection(new SimpleEntityRef(
-                                    Group.ENTITY_TYPE, groupId), "roles", null,
-                                    1000, Level.CORE_PROPERTIES, false);
-                            
-                            for(Entity entity : roleResults.getEntities()){
-                                rolenames.add(entity.getName());
-                            }
-
-                        }
-                        
-                        
-                        grantAppRoles(info, em, applicationId, token, principal, rolenames);
+                    EffectivePermissions permissions = getPermissionsCache()
+                            .get(applicationId, user.getUuid());
+
+                    String appName = permissions.getApplicationName();
+                    if (appName != null) {
+                        applicationSet.put(applicationId, appName);
+                        application = new ApplicationInfo(applicationId,
+                                appName);
                     }
 
+                    grant(info, principal, applicationId,
+                            permissions.getDefaultPermissions());
+                    grant(info, principal, applicationId,
+                            permissions.getUserPermissions());
+                    grantAppRoles(info, applicationId, token, principal,
+                            permissions);
                 } catch (Exception e) {
-                    logger.error("Unable to get user group role permissions", e);
+                    logger.error("Unable to get user permissions", e);
                 }
 
             } else if (principal instanceof ApplicationGuestPrincipal) {
@@ -504,32 +625,24 @@ public class Realm extends AuthorizingRealm {
     }
 
     /**
-     * Grant all permissions for the role names on this application
+     * Grant all permissions for the user's roles on this application, skipping
+     * roles whose inactivity limit the token has exceeded
      * @param info
-     * @param em
      * @param applicationId
      * @param token
      * @param principal
-     * @param rolenames
-     * @throws Exception
+     * @param permissions
      */
-    private void grantAppRoles( SimpleAuthorizationInfo info, EntityManager em, UUID applicationId,  TokenInfo token, PrincipalIdentifier principal, Set<String> rolenames) throws Exception{
-        Map<String, Role> app_roles = em
-                .getRolesWithTitles(rolenames);
-
-        for (String rolename : rolenames) {
-            if ((app_roles != null) && (token != null)) {
-                Role role = app_roles.get(rolename);
-                if ((role != null)
-                        && (role.getInactivity() > 0)
-                        && (token.getInactive() > role
-                                .getInactivity())) {
-                    continue;
-                }
+    private void grantAppRoles(SimpleAuthorizationInfo info, UUID applicationId, TokenInfo token, PrincipalIdentifier principal, EffectivePermissions permissions) {
+        for (Map.Entry<String, Set<String>> role : permissions
+                .getRolePermissions().entrySet()) {
+            String rolename = role.getKey();
+            long inactivity = permissions.getRoleInactivity(rolename);
+            if ((token != null) && (inactivity > 0)
+                    && (token.getInactive() > inactivity)) {
+                continue;
             }
-            Set<String> permissions = em
-                    .getRolePermissions(rolename);
-            grant(info, principal, applicationId, permissions);
+            grant(info, principal, applicationId, role.getValue());
             role(info,
                     principal,
                     "application-role:"
@@ -537,6 +650,7 @@ public class Realm extends AuthorizingRealm {
                             .concat(":").concat(rolename));
         }
     }
+
     public static void grant(SimpleAuthorizationInfo info,
             PrincipalIdentifier principal, String permission) {
         logger.debug("Principal {} granted permission: {}",
@@ -577,4 +691,16 @@ public class Realm extends AuthorizingRealm {
     public boolean supports(AuthenticationToken token) {
         return token instanceof PrincipalCredentialsToken;
     }
+
+    /**
+     * Keeps the compiled permissions in the authorization info Shiro caches,
+     * so they are dropped and rebuilt whenever the info is. Not serialized,
+     * a cache that copies the info compiles it again on first use.
+     */
+    private static class CompiledAuthorizationInfo extends
+            SimpleAuthorizationInfo {
+        private static final long serialVersionUID = 1L;
+
+        private transient volatile CompiledPermissions compiled;
+    }
 }
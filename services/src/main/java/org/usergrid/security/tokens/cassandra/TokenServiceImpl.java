@@ -44,6 +44,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.util.Assert;
+import org.usergrid.clustering.ChangeBus;
+import org.usergrid.clustering.ChangeEvent;
 import org.usergrid.persistence.EntityManagerFactory;
 import org.usergrid.persistence.cassandra.CassandraService;
 import org.usergrid.persistence.entities.Application;
@@ -134,6 +136,8 @@ public class TokenServiceImpl implements TokenService {
 
   protected EntityManagerFactory emf;
 
+  protected ChangeBus changeBus;
+
   public TokenServiceImpl() {
 
   }
@@ -327,6 +331,8 @@ public class TokenServiceImpl implements TokenService {
 
     batch.execute();
 
+    publishChange(principal.getApplicationId(), principal.getUuid());
+
   }
 
   /*
@@ -362,6 +368,8 @@ public class TokenServiceImpl implements TokenService {
 
     batch.execute();
 
+    publishChange(info.getPrincipal() != null ? info.getPrincipal().getApplicationId() : null, tokenId);
+
   }
 
   private TokenInfo getTokenInfo(UUID uuid) throws Exception {
@@ -565,6 +573,21 @@ public class TokenServiceImpl implements TokenService {
     this.emf = emf;
   }
 
+  @Autowired(required = false)
+  public void setChangeBus(ChangeBus changeBus) {
+    this.changeBus = changeBus;
+  }
+
+  /**
+   * Tell every node a token is gone, the key is the token or principal id so
+   * token values never go over the wire
+   */
+  private void publishChange(UUID applicationId, UUID key) {
+    if (changeBus != null) {
+      changeBus.publish(new ChangeEvent(ChangeEvent.Type.TOKEN, applicationId, key));
+    }
+  }
+
   private String getTokenForUUID(TokenInfo tokenInfo, TokenCategory tokenCategory, UUID uuid) {
     int l = 36;
     if (tokenCategory.getExpires()) {
@@ -1115,8 +1115,9 @@ public abstract class AbstractService implements Service {
     }
     String permission = getPermissionFromPath(em.getApplicationRef().getUuid(), context.getAction().toString()
         .toLowerCase(), path);
-    boolean permitted = currentUser.isPermitted(permission);
+    // only evaluate twice when the outcome is being logged
     if (logger.isDebugEnabled()) {
+      boolean permitted = currentUser.isPermitted(permission);
       logger.debug(PATH_MSG, new Object[] { path, context.getAction(), permission, permitted });
     }
     SubjectUtils.checkPermission(permission);
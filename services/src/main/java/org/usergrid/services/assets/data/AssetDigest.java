@@ -0,0 +1,143 @@
+package org.usergrid.services.assets.data;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+import org.usergrid.persistence.entities.Asset;
+
+/**
+ * Everything the binary stores need to know about an upload, gathered while
+ * the bytes stream past on their way to storage: the length, the MD5 of the
+ * content and the first bytes for MIME sniffing. Nothing has to be read back
+ * once the upload is written.
+ */
+public class AssetDigest {
+
+  // enough for the magic numbers of every type mimeutil knows about
+  static final int HEAD_SIZE = 8192;
+
+  private final MessageDigest md5;
+  private final byte[] head = new byte[HEAD_SIZE];
+  private int headLength;
+  private long length;
+  private byte[] checksum;
+
+  public AssetDigest() {
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM is required to have it
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void update(byte[] b, int off, int len) {
+    if (len <= 0) {
+      return;
+    }
+    md5.update(b, off, len);
+    if (headLength < HEAD_SIZE) {
+      int n = Math.min(len, HEAD_SIZE - headLength);
+      System.arraycopy(b, off, head, headLength, n);
+      headLength += n;
+    }
+    length += len;
+  }
+
+  /**
+   * Wrap the upload so everything read from it is digested
+   */
+  public InputStream wrap(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          update(new byte[] { (byte) b }, 0, 1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        update(b, off, n);
+        return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        // skipped bytes still have to be digested
+        byte[] buffer = new byte[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+          int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+          if (r < 0) {
+            break;
+          }
+          skipped += r;
+        }
+        return skipped;
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+    };
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * @return the first bytes of the upload
+   */
+  public byte[] getHead() {
+    byte[] copy = new byte[headLength];
+    System.arraycopy(head, 0, copy, 0, headLength);
+    return copy;
+  }
+
+  /**
+   * @return the MD5 of everything digested, no more data may be added after
+   */
+  public byte[] getMd5() {
+    if (checksum == null) {
+      checksum = md5.digest();
+    }
+    return checksum;
+  }
+
+  public String getChecksum() {
+    return Hex.encodeHexString(getMd5());
+  }
+
+  /**
+   * @return true if the asset already holds exactly this content, so storing
+   *         it again can be skipped
+   */
+  public boolean matches(Asset asset) {
+    Object existing = asset.getProperty(AssetUtils.CHECKSUM);
+    Object existingLength = asset.getProperty(AssetUtils.CONTENT_LENGTH);
+    return existing != null && existing.toString().equals(getChecksum())
+        && existingLength instanceof Number && ((Number) existingLength).longValue() == length;
+  }
+
+  /**
+   * Record length, checksum and, unless the asset already has one, the
+   * sniffed content type on the asset
+   */
+  public void apply(Asset asset) {
+    asset.setProperty(AssetUtils.CONTENT_LENGTH, length);
+    asset.setProperty(AssetUtils.CHECKSUM, getChecksum());
+    if (headLength > 0) {
+      AssetMimeHandler.get().getMimeType(asset, getHead());
+    }
+  }
+}
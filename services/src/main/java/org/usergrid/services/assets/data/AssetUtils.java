@@ -33,8 +33,19 @@ public class AssetUtils {
    */
   public static String buildAssetKey(UUID appId, Asset asset) {
     Preconditions.checkArgument(asset.getUuid() != null, "The asset provided to buildAssetKey had a null UUID");
+    return buildAssetKey(appId, asset.getUuid());
+  }
+
+  /**
+   * Same as {@link #buildAssetKey(java.util.UUID, org.usergrid.persistence.entities.Asset)}
+   * for when only the id of the asset is at hand
+   * @param appId
+   * @param assetId
+   * @return
+   */
+  public static String buildAssetKey(UUID appId, UUID assetId) {
     Preconditions.checkArgument(appId !=null, "The appId provided to buildAssetKey was null");
-    return appId.toString().concat("/").concat(asset.getUuid().toString());
+    return appId.toString().concat("/").concat(assetId.toString());
   }
 
   /**
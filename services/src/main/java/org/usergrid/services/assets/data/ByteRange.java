@@ -0,0 +1,111 @@
+package org.usergrid.services.assets.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.usergrid.utils.StringUtils;
+
+/**
+ * A satisfiable byte range of an asset, as requested with an HTTP Range
+ * header. Both ends are inclusive, like the header itself.
+ */
+public class ByteRange {
+
+  private static final String BYTES_UNIT = "bytes=";
+
+  // more ranges than this is a client being clever, just send the whole thing
+  private static final int MAX_RANGES = 16;
+
+  private final long start;
+  private final long end;
+
+  public ByteRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  public long getLength() {
+    return end - start + 1;
+  }
+
+  /**
+   * @return the value of a Content-Range header for this range
+   */
+  public String toContentRange(long totalLength) {
+    return "bytes " + start + "-" + end + "/" + totalLength;
+  }
+
+  /**
+   * Parse a Range header against the length of the asset.
+   *
+   * @param header the Range header
+   * @param totalLength the length of the asset in bytes
+   * @return null if the header is missing or can't be honoured and the whole
+   *         asset should be sent, an empty list if no range is satisfiable, or
+   *         the satisfiable ranges in the order they were asked for
+   */
+  public static List<ByteRange> parse(String header, long totalLength) {
+    if (StringUtils.isBlank(header) || totalLength < 0) {
+      return null;
+    }
+    header = header.trim();
+    if (!header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+      return null;
+    }
+
+    String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+
+    List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+
+      try {
+        if (first.length() == 0) {
+          // suffix range, the last n bytes
+          long suffix = Long.parseLong(last);
+          if (suffix < 0) {
+            return null;
+          }
+          if (suffix > 0 && totalLength > 0) {
+            ranges.add(new ByteRange(Math.max(0, totalLength - suffix), totalLength - 1));
+          }
+          continue;
+        }
+
+        long start = Long.parseLong(first);
+        long end = last.length() == 0 ? totalLength - 1 : Long.parseLong(last);
+        if (start < 0 || end < start) {
+          return null;
+        }
+        if (start < totalLength) {
+          ranges.add(new ByteRange(start, Math.min(end, totalLength - 1)));
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return ranges;
+  }
+
+  @Override
+  public String toString() {
+    return start + "-" + end;
+  }
+}
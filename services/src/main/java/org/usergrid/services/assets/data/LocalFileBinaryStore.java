@@ -2,11 +2,20 @@ package org.usergrid.services.assets.data;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.usergrid.persistence.entities.Asset;
 
 /**
@@ -16,8 +25,13 @@ import org.usergrid.persistence.entities.Asset;
  */
 public class LocalFileBinaryStore implements BinaryStore {
 
+  private static final Logger logger = LoggerFactory.getLogger(LocalFileBinaryStore.class);
+
   private String reposLocation = FileUtils.getTempDirectoryPath();
 
+  // resumable uploads in progress, by the path of their partial file
+  private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+
   /**
    * Control where to store the file repository. In the system's temp dir
    * by default.
@@ -41,41 +55,166 @@ public class LocalFileBinaryStore implements BinaryStore {
     return new File(reposLocation, AssetUtils.buildAssetKey(appId, asset));
   }
 
+  /**
+   * The file holding the data of an asset, so it can be sent straight from
+   * disk without reading the entity first
+   * @param appId
+   * @param assetId
+   * @return
+   */
+  public File getFile(UUID appId, UUID assetId) {
+    return new File(reposLocation, AssetUtils.buildAssetKey(appId, assetId));
+  }
+
   @Override
   public void write(UUID appId, Asset asset, InputStream inputStream) {
 
     File file = path(appId, asset);
+    // written beside the asset and renamed over it, readers never see half a file
+    File temp = new File(file.getParentFile(), file.getName() + "." + UUID.randomUUID() + ".tmp");
+    AssetDigest digest = new AssetDigest();
     try {
 
-      FileUtils.copyInputStreamToFile(inputStream, file);
+      FileUtils.copyInputStreamToFile(digest.wrap(inputStream), temp);
 
-      long size = FileUtils.sizeOf(file);
+      // the same bytes again, keep the file we have
+      if ( file.exists() && digest.matches(asset) ) {
+        FileUtils.deleteQuietly(temp);
+      } else {
+        replace(temp, file);
+      }
 
-      asset.setProperty("content-length",size);
+      digest.apply(asset);
 
     } catch (IOException e) {
-      e.printStackTrace();
+      FileUtils.deleteQuietly(temp);
+      logger.error("Unable to write asset {} to {}", asset.getUuid(), file, e);
+    }
+  }
+
+  /**
+   * Append a chunk of a resumable upload. A chunk is only taken if it starts
+   * where the data received so far ends, otherwise nothing is written and the
+   * caller learns where to resume from. Once all the data is in, the upload
+   * replaces the asset's file and the asset's length, checksum and type are set.
+   *
+   * @param appId
+   * @param asset
+   * @param offset where this chunk starts in the upload
+   * @param total the length of the complete upload
+   * @param inputStream the chunk, may be empty to just ask for progress
+   * @return the number of bytes of the upload received so far
+   */
+  public long writeChunk(UUID appId, Asset asset, long offset, long total, InputStream inputStream)
+      throws IOException {
+    File file = path(appId, asset);
+    File part = new File(file.getParentFile(), file.getName() + ".part");
+    String key = part.getPath();
+
+    Upload upload = uploads.get(key);
+    if ( upload == null ) {
+      upload = new Upload();
+      Upload existing = uploads.putIfAbsent(key, upload);
+      if ( existing != null ) {
+        upload = existing;
+      }
+    }
+
+    synchronized ( upload ) {
+      if ( upload.digest == null ) {
+        // first chunk, or we restarted mid upload and have to catch up on
+        // what is already on disk
+        upload.digest = new AssetDigest();
+        if ( part.exists() ) {
+          digest(part, upload.digest);
+        }
+      }
+
+      // starting over
+      if ( offset == 0 && upload.digest.getLength() > 0 ) {
+        FileUtils.deleteQuietly(part);
+        upload.digest = new AssetDigest();
+      }
+
+      long received = upload.digest.getLength();
+      if ( offset != received || received >= total ) {
+        return received;
+      }
+
+      FileUtils.forceMkdir(part.getParentFile());
+      OutputStream out = new FileOutputStream(part, true);
+      try {
+        IOUtils.copyLarge(upload.digest.wrap(inputStream), out, 0, total - received);
+      } finally {
+        IOUtils.closeQuietly(out);
+      }
+      received = upload.digest.getLength();
+
+      if ( received == total ) {
+        replace(part, file);
+        upload.digest.apply(asset);
+        uploads.remove(key);
+      }
+      return received;
     }
-    // if we were successful, write the mime type
-    if ( file.exists() ) {
-      AssetMimeHandler.get().getMimeType(asset, file);
+  }
+
+  private static void digest(File file, AssetDigest digest) throws IOException {
+    InputStream in = digest.wrap(FileUtils.openInputStream(file));
+    try {
+      byte[] buffer = new byte[8192];
+      while ( in.read(buffer) >= 0 ) {
+        // just digesting
+      }
+    } finally {
+      IOUtils.closeQuietly(in);
     }
   }
 
+  private static void replace(File source, File target) throws IOException {
+    if ( !source.renameTo(target) ) {
+      // some platforms won't rename over an existing file
+      FileUtils.deleteQuietly(target);
+      FileUtils.moveFile(source, target);
+    }
+  }
+
+  private static class Upload {
+    AssetDigest digest;
+  }
+
+  /**
+   * @return the asset's data, null if it can't be read
+   */
   @Override
   public InputStream read(UUID appId, Asset asset) {
-    return read(appId, asset, 0, FileUtils.ONE_MB * 5);
+    File file = path(appId, asset);
+    try {
+      return new BufferedInputStream(FileUtils.openInputStream(file));
+    } catch (IOException ioe) {
+      logger.error("Unable to read asset {} from {}", asset.getUuid(), file, ioe);
+      return null;
+    }
   }
 
+  /**
+   * @return the range of the asset's data, null if it can't be read
+   */
   @Override
   public InputStream read(UUID appId, Asset asset, long offset, long length) {
+    File file = path(appId, asset);
+    FileInputStream in = null;
     try {
-      return new BufferedInputStream(FileUtils.openInputStream(path(appId, asset)));
+      in = FileUtils.openInputStream(file);
+      // seek rather than skip so the bytes before the range are never read
+      in.getChannel().position(offset);
+      return new BoundedInputStream(new BufferedInputStream(in), length);
     } catch (IOException ioe) {
-      ioe.printStackTrace();
+      IOUtils.closeQuietly(in);
+      logger.error("Unable to read {} bytes at {} of asset {} from {}",
+          new Object[] { length, offset, asset.getUuid(), file, ioe });
+      return null;
     }
-    // TODO throw typed exception
-    return null;
   }
 
   /**
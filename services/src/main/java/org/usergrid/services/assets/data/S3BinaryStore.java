@@ -9,7 +9,6 @@ import java.io.OutputStream;
 import java.util.Properties;
 import java.util.UUID;
 
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.jclouds.blobstore.AsyncBlobStore;
@@ -28,6 +27,7 @@ import org.usergrid.persistence.entities.Asset;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Module;
 
 /**
@@ -86,59 +86,68 @@ public class S3BinaryStore implements BinaryStore {
       AsyncBlobStore blobStore = context.getAsyncBlobStore();
       // Add a Blob
       // objectname will be in the form of org/app/UUID
-      // #payload can take an input stream
-      // TODO toggle to largeAsset ~ > 5mb: IOUtils#copyLarge to a tmp file
-      // TODO do this via ListenableFuture on dedicated thread pool
+      // length, MD5 and the bytes for mime sniffing are all taken as the
+      // upload streams in, the payload is never read back for them
+      AssetDigest digest = new AssetDigest();
+      InputStream in = digest.wrap(inputStream);
 
-      //byte[] data = IOUtils.toByteArray(inputStream);
       ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      long copied = IOUtils.copyLarge(inputStream, baos, 0, FIVE_MB);
-      BlobBuilder.PayloadBlobBuilder bb = null;
+      long copied = IOUtils.copyLarge(in, baos, 0, FIVE_MB);
 
       // If we are bigger than 5mb, dump to a tmp file and upload from there
+      File f = null;
+      byte[] data = null;
       if ( copied == FIVE_MB ) {
-        File f;
         f = File.createTempFile(asset.getUuid().toString(), "tmp");
         f.deleteOnExit();
         OutputStream os = null;
         try {
           os = new BufferedOutputStream(new FileOutputStream(f.getAbsolutePath()));
-
-          copied = IOUtils.copyLarge(inputStream, os, 0, (FileUtils.ONE_GB * 5));
-
-          bb = blobStore.blobBuilder(AssetUtils.buildAssetKey(appId, asset))
-                  .payload(f)
-                  .calculateMD5()
-                  .contentType(AssetMimeHandler.get().getMimeType(asset, f));
-        } catch (Exception ex) {
-          ex.printStackTrace();
+          baos.writeTo(os);
+          baos = null;
+          IOUtils.copyLarge(in, os, 0, (FileUtils.ONE_GB * 5));
         } finally {
           IOUtils.closeQuietly(os);
-          if ( f != null && f.exists() ) {
-            f.delete();
-          }
         }
       } else {
-        byte[] data = baos.toByteArray();
-        copied = data.length;
-        bb = blobStore.blobBuilder(AssetUtils.buildAssetKey(appId, asset))
-                .payload(data)
-                .calculateMD5()
-                .contentType(AssetMimeHandler.get().getMimeType(asset, data));
+        data = baos.toByteArray();
       }
+      copied = digest.getLength();
+
+      // identical to what is stored already, nothing to upload
+      if ( digest.matches(asset) ) {
+        logger.info("Asset {} is unchanged, skipping upload", asset.getUuid());
+        deleteQuietly(f);
+        digest.apply(asset);
+        return;
+      }
+
+      digest.apply(asset);
 
-      asset.setProperty(AssetUtils.CONTENT_LENGTH,copied);
+      BlobBuilder.PayloadBlobBuilder bb = f != null
+              ? blobStore.blobBuilder(AssetUtils.buildAssetKey(appId, asset)).payload(f)
+              : blobStore.blobBuilder(AssetUtils.buildAssetKey(appId, asset)).payload(data);
+      bb.contentMD5(digest.getMd5())
+        .contentType(AssetMimeHandler.get().getMimeType(asset, digest.getHead()));
 
       if ( asset.getProperty(AssetUtils.CONTENT_DISPOSITION) != null ) {
         bb.contentDisposition(asset.getProperty(AssetUtils.CONTENT_DISPOSITION).toString());
       }
       Blob blob = bb.build();
 
-      String md5sum = Hex.encodeHexString(blob.getMetadata().getContentMetadata().getContentMD5());
-      asset.setProperty(AssetUtils.CHECKSUM,md5sum);
       // containername?
       ListenableFuture<String> futureETag = blobStore.putBlob(bucketName, blob, PutOptions.Builder.multipart());
-      // move update of properties into: futureETag.addListener();
+
+      // the spooled file has to outlive the upload
+      if ( f != null ) {
+        final File spooled = f;
+        futureETag.addListener(new Runnable() {
+          @Override
+          public void run() {
+            deleteQuietly(spooled);
+          }
+        }, MoreExecutors.sameThreadExecutor());
+      }
 
       // asynchronously wait for the upload if we are not doing a large file
       if ( copied < FIVE_MB ) {
@@ -151,6 +160,12 @@ public class S3BinaryStore implements BinaryStore {
     }
   }
 
+  private static void deleteQuietly(File f) {
+    if ( f != null && f.exists() ) {
+      f.delete();
+    }
+  }
+
 
 
   @Override
@@ -162,7 +177,8 @@ public class S3BinaryStore implements BinaryStore {
         // missing file will throw: org.jclouds.aws.AWSResponseException:
         blobFuture = blobStore.getBlob(bucketName,AssetUtils.buildAssetKey(appId, asset));
       } else {
-        GetOptions options = GetOptions.Builder.range(offset, length);
+        // the range end is inclusive
+        GetOptions options = GetOptions.Builder.range(offset, offset + length - 1);
         blobFuture = blobStore.getBlob(bucketName,AssetUtils.buildAssetKey(appId, asset), options);
       }
       return blobFuture.get().getPayload().getInput();
@@ -15,14 +15,19 @@
  ******************************************************************************/
 package org.usergrid.services.groups.users.activities;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.usergrid.persistence.Entity;
+import org.usergrid.persistence.EntityIdPage;
 import org.usergrid.persistence.EntityRef;
 import org.usergrid.persistence.Results;
+import org.usergrid.persistence.SimpleEntityRef;
 import org.usergrid.persistence.entities.User;
 import org.usergrid.services.ServiceContext;
 import org.usergrid.services.ServiceResults;
@@ -33,6 +38,8 @@ public class ActivitiesService extends GenericCollectionService {
 	private static final Logger logger = LoggerFactory
 			.getLogger(ActivitiesService.class);
 
+	private static final int DISTRIBUTE_PAGE_SIZE = 1000;
+
 	public ActivitiesService() {
 		super();
 		logger.info("/groups/*/users/*/activities");
@@ -71,17 +78,24 @@ public class ActivitiesService extends GenericCollectionService {
 		if ((r1 == null) || (r1.isEmpty())) {
 			return;
 		}
-		Results r2 = em.getConnectingEntities(user.getUuid(), "following",
-				User.ENTITY_TYPE, Results.Level.IDS);
+		Set<UUID> members = new HashSet<UUID>(r1.getIds());
 
-		if ((r2 == null) || (r2.isEmpty())) {
-			return;
-		}
-		r1.and(r2);
-		List<EntityRef> refs = Results
-				.fromIdList(r1.getIds(), User.ENTITY_TYPE).getRefs();
-		if (refs != null) {
-			em.addToCollections(refs, "feed", activity);
-		}
+		// walk the followers a page at a time, keeping the group members
+		String cursor = null;
+		do {
+			EntityIdPage followers = em.getConnectingEntityIds(user.getUuid(),
+					"following", User.ENTITY_TYPE, cursor, DISTRIBUTE_PAGE_SIZE);
+			List<EntityRef> refs = new ArrayList<EntityRef>();
+			for (int i = 0; i < followers.size(); i++) {
+				UUID id = followers.getId(i);
+				if (members.contains(id)) {
+					refs.add(new SimpleEntityRef(User.ENTITY_TYPE, id));
+				}
+			}
+			if (!refs.isEmpty()) {
+				em.addToCollections(refs, "feed", activity);
+			}
+			cursor = followers.getCursor();
+		} while (cursor != null);
 	}
 }
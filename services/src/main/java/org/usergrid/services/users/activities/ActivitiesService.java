@@ -16,15 +16,14 @@
 package org.usergrid.services.users.activities;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.usergrid.persistence.Entity;
+import org.usergrid.persistence.EntityIdPage;
 import org.usergrid.persistence.EntityRef;
-import org.usergrid.persistence.Results;
 import org.usergrid.persistence.entities.Activity;
 import org.usergrid.persistence.entities.Activity.ActivityObject;
 import org.usergrid.persistence.entities.User;
@@ -38,6 +37,8 @@ public class ActivitiesService extends GenericCollectionService {
 	private static final Logger logger = LoggerFactory
 			.getLogger(ActivitiesService.class);
 
+	private static final int DISTRIBUTE_PAGE_SIZE = 1000;
+
 	public ActivitiesService() {
 		super();
 		logger.info("/users/*/activities");
@@ -143,12 +144,16 @@ public class ActivitiesService extends GenericCollectionService {
 			return;
 		}
 		em.addToCollection(user, "feed", activity);
-		Results r = em.getConnectingEntities(user.getUuid(), "following",
-				User.ENTITY_TYPE, Results.Level.REFS);
-		List<EntityRef> refs = r.getRefs();
-		if (refs != null) {
-			em.addToCollections(refs, "feed", activity);
-		}
+		String cursor = null;
+		do {
+			EntityIdPage followers = em.getConnectingEntityIds(user.getUuid(),
+					"following", User.ENTITY_TYPE, cursor, DISTRIBUTE_PAGE_SIZE);
+			if (!followers.isEmpty()) {
+				em.addToCollections(followers.getRefs(User.ENTITY_TYPE),
+						"feed", activity);
+			}
+			cursor = followers.getCursor();
+		} while (cursor != null);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.shiro.authz.Permission;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.usergrid.security.shiro.CompiledPermissions;
+import org.usergrid.security.shiro.CustomPermission;
+
+public class CompiledPermissionsTest {
+
+    public static final Logger logger = LoggerFactory
+            .getLogger(CompiledPermissionsTest.class);
+
+    private static final String[] VERBS = { "get", "put", "post", "delete" };
+
+    private static final String[] COLLECTIONS = { "users", "groups",
+            "devices", "activities", "assets", "notifications" };
+
+    @Test
+    public void testSinglePermissions() {
+        testImplies(true, "applications:get:00000000-0000-0000-0000-000000000001:/foo",
+                "applications:get:00000000-0000-0000-0000-000000000001:/foo");
+        testImplies(true, "applications:get:00000000-0000-0000-0000-000000000001:/foo/bar/*",
+                "applications:get:00000000-0000-0000-0000-000000000001:/foo/bar");
+        testImplies(false, "applications:get:00000000-0000-0000-0000-000000000001:/foo/bar/*",
+                "applications:get:00000000-0000-0000-0000-000000000001:/foo/bar/baz/boz");
+        testImplies(true, "applications:get:00000000-0000-0000-0000-000000000001:/foo/bar/**",
+                "applications:get:00000000-0000-0000-0000-000000000001:/foo/bar/baz/boz");
+        testImplies(false, "applications:get:00000000-0000-0000-0000-000000000001:/foo/**",
+                "applications:put:00000000-0000-0000-0000-000000000001:/foo/bar");
+        testImplies(false, "applications:get:00000000-0000-0000-0000-000000000001:/foo/**",
+                "applications:get:00000000-0000-0000-0000-000000000002:/foo/bar");
+        testImplies(true, "applications:get,put:00000000-0000-0000-0000-000000000001:/foo/**",
+                "applications:put:00000000-0000-0000-0000-000000000001:/FOO/bar");
+        testImplies(true, "applications:*:00000000-0000-0000-0000-000000000001:*",
+                "applications:delete:00000000-0000-0000-0000-000000000001:/foo/bar");
+        testImplies(true, "applications:get:00000000-0000-0000-0000-000000000001",
+                "applications:get:00000000-0000-0000-0000-000000000001:/foo/bar");
+        testImplies(true, "applications:access:00000000-0000-0000-0000-000000000001",
+                "applications:access:00000000-0000-0000-0000-000000000001");
+        testImplies(false, "applications:get:00000000-0000-0000-0000-000000000001:/foo/*",
+                "applications:get:00000000-0000-0000-0000-000000000001");
+        testImplies(true, "organizations:access:00000000-0000-0000-0000-000000000001",
+                "organizations:access:00000000-0000-0000-0000-000000000001");
+        testImplies(true, "*", "applications:get:00000000-0000-0000-0000-000000000001:/foo");
+    }
+
+    /**
+     * Compares the compiled matcher with a linear scan over realistic
+     * permission sets, checking they agree and logging how long each takes.
+     */
+    @Test
+    public void testAgainstLinearScan() {
+        Random random = new Random(7);
+
+        List<UUID> applications = new ArrayList<UUID>();
+        for (int i = 0; i < 5; i++) {
+            applications.add(UUID.randomUUID());
+        }
+
+        for (int size : new int[] { 10, 100, 500 }) {
+            List<Permission> permissions = new ArrayList<Permission>(size);
+            for (int i = 0; i < size; i++) {
+                permissions.add(new CustomPermission(randomPermission(random,
+                        applications, true)));
+            }
+
+            List<Permission> checks = new ArrayList<Permission>();
+            for (int i = 0; i < 1000; i++) {
+                checks.add(new CustomPermission(randomPermission(random,
+                        applications, false)));
+            }
+
+            CompiledPermissions compiled = new CompiledPermissions(permissions);
+
+            int permitted = 0;
+            for (Permission check : checks) {
+                boolean expected = linear(permissions, check);
+                assertEquals(check.toString(), expected, compiled.implies(check));
+                if (expected) {
+                    permitted++;
+                }
+            }
+
+            long start = System.nanoTime();
+            for (Permission check : checks) {
+                linear(permissions, check);
+            }
+            long linearTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Permission check : checks) {
+                compiled.implies(check);
+            }
+            long compiledTime = System.nanoTime() - start;
+
+            logger.info("{} permissions, {} of {} checks permitted: linear {} us, compiled {} us",
+                    new Object[] { size, permitted, checks.size(),
+                            linearTime / 1000, compiledTime / 1000 });
+        }
+    }
+
+    private static String randomPermission(Random random,
+            List<UUID> applications, boolean grant) {
+        UUID application = applications.get(random.nextInt(applications.size()));
+        String collection = COLLECTIONS[random.nextInt(COLLECTIONS.length)];
+        String verbs = VERBS[random.nextInt(VERBS.length)];
+        if (grant && random.nextBoolean()) {
+            verbs = verbs + "," + VERBS[random.nextInt(VERBS.length)];
+        }
+
+        String path;
+        int shape = random.nextInt(grant ? 6 : 4);
+        switch (shape) {
+        case 0:
+            path = "/" + collection;
+            break;
+        case 1:
+            path = "/" + collection + "/" + collection.charAt(0)
+                    + random.nextInt(50);
+            break;
+        case 2:
+            path = "/" + collection + "/" + collection.charAt(0)
+                    + random.nextInt(50) + "/"
+                    + COLLECTIONS[random.nextInt(COLLECTIONS.length)];
+            break;
+        case 3:
+            path = "/" + collection + "/*";
+            break;
+        case 4:
+            path = "/" + collection + "/" + collection.charAt(0)
+                    + random.nextInt(50) + "/**";
+            break;
+        default:
+            path = "/**";
+            break;
+        }
+
+        return "applications:" + verbs + ":" + application + ":" + path;
+    }
+
+    private static boolean linear(List<Permission> permissions,
+            Permission check) {
+        for (Permission permission : permissions) {
+            if (permission.implies(check)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void testImplies(boolean expected, String s1, String s2) {
+        Permission p1 = new CustomPermission(s1);
+        Permission p2 = new CustomPermission(s2);
+        CompiledPermissions compiled = new CompiledPermissions(
+                Arrays.asList(p1));
+        assertEquals(expected, p1.implies(p2));
+        if (expected) {
+            assertTrue(compiled.implies(p2));
+        } else {
+            assertFalse(compiled.implies(p2));
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.security.shiro;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.cache.Cache;
+import org.apache.shiro.cache.MapCache;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.junit.Before;
+import org.junit.Test;
+import org.usergrid.clustering.ChangeEvent;
+import org.usergrid.management.ApplicationInfo;
+import org.usergrid.management.UserInfo;
+import org.usergrid.security.shiro.principals.ApplicationPrincipal;
+import org.usergrid.security.shiro.principals.ApplicationUserPrincipal;
+
+public class RealmTest {
+
+    private final UUID app1 = UUID.randomUUID();
+    private final UUID app2 = UUID.randomUUID();
+
+    private UserInfo user1;
+    private UserInfo user2;
+    private UserInfo user3;
+
+    private PrincipalCollection principals1;
+    private PrincipalCollection principals2;
+    private PrincipalCollection principals3;
+
+    private Realm realm;
+    private Cache<Object, AuthorizationInfo> cache;
+
+    @Before
+    public void setup() {
+        user1 = new UserInfo(app1, UUID.randomUUID(), "user1", "user1",
+                "user1@test.com", true, false, null);
+        user2 = new UserInfo(app1, UUID.randomUUID(), "user2", "user2",
+                "user2@test.com", true, false, null);
+        user3 = new UserInfo(app2, UUID.randomUUID(), "user3", "user3",
+                "user3@test.com", true, false, null);
+
+        cache = new MapCache<Object, AuthorizationInfo>("test",
+                new HashMap<Object, AuthorizationInfo>());
+        realm = new Realm();
+        realm.setAuthorizationCache(cache);
+
+        principals1 = principals(new ApplicationUserPrincipal(app1, user1));
+        principals2 = principals(new ApplicationUserPrincipal(app1, user2));
+        principals3 = principals(new ApplicationUserPrincipal(app2, user3));
+
+        cache.put(principals1, new SimpleAuthorizationInfo());
+        cache.put(principals2, new SimpleAuthorizationInfo());
+        cache.put(principals3, new SimpleAuthorizationInfo());
+        cache.put(principals(new ApplicationPrincipal(new ApplicationInfo(
+                app2, "test/app2"))), new SimpleAuthorizationInfo());
+    }
+
+    @Test
+    public void roleChangeEvictsItsApplication() {
+        realm.evictAuthorization(new ChangeEvent(ChangeEvent.Type.ROLE, app1,
+                "admin"));
+
+        assertNull(cache.get(principals1));
+        assertNull(cache.get(principals2));
+        assertNotNull(cache.get(principals3));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void tokenRevokeEvictsItsPrincipal() {
+        realm.evictAuthorization(new ChangeEvent(ChangeEvent.Type.TOKEN, app1,
+                user1.getUuid().toString()));
+
+        assertNull(cache.get(principals1));
+        assertNotNull(cache.get(principals2));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void systemChangeClears() {
+        realm.evictAuthorization(new ChangeEvent(ChangeEvent.Type.PERMISSION,
+                null, "system"));
+
+        assertEquals(0, cache.size());
+    }
+
+    private static PrincipalCollection principals(Object principal) {
+        return new SimplePrincipalCollection(principal, "test");
+    }
+}
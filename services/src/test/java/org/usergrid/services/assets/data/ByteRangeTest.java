@@ -0,0 +1,64 @@
+package org.usergrid.services.assets.data;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+  @Test
+  public void singleRanges() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=0-499", 1000);
+    assertEquals(1, ranges.size());
+    assertEquals(0, ranges.get(0).getStart());
+    assertEquals(499, ranges.get(0).getEnd());
+    assertEquals(500, ranges.get(0).getLength());
+    assertEquals("bytes 0-499/1000", ranges.get(0).toContentRange(1000));
+
+    // open ended and past the end are clamped
+    ranges = ByteRange.parse("bytes=900-", 1000);
+    assertEquals(999, ranges.get(0).getEnd());
+    ranges = ByteRange.parse("bytes=900-5000", 1000);
+    assertEquals(999, ranges.get(0).getEnd());
+
+    // suffix
+    ranges = ByteRange.parse("bytes=-100", 1000);
+    assertEquals(900, ranges.get(0).getStart());
+    assertEquals(999, ranges.get(0).getEnd());
+    ranges = ByteRange.parse("bytes=-5000", 1000);
+    assertEquals(0, ranges.get(0).getStart());
+  }
+
+  @Test
+  public void multipleRanges() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=0-9, 20-29,-5", 100);
+    assertEquals(3, ranges.size());
+    assertEquals(20, ranges.get(1).getStart());
+    assertEquals(95, ranges.get(2).getStart());
+
+    // unsatisfiable ones are dropped
+    ranges = ByteRange.parse("bytes=0-9,200-300", 100);
+    assertEquals(1, ranges.size());
+  }
+
+  @Test
+  public void unsatisfiable() {
+    assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+    assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+    assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+  }
+
+  @Test
+  public void ignored() {
+    assertNull(ByteRange.parse(null, 1000));
+    assertNull(ByteRange.parse("", 1000));
+    assertNull(ByteRange.parse("items=0-9", 1000));
+    assertNull(ByteRange.parse("bytes=9-0", 1000));
+    assertNull(ByteRange.parse("bytes=a-b", 1000));
+    assertNull(ByteRange.parse("bytes=5", 1000));
+  }
+}
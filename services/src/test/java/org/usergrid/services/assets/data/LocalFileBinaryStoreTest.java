@@ -0,0 +1,88 @@
+package org.usergrid.services.assets.data;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.usergrid.persistence.entities.Asset;
+
+public class LocalFileBinaryStoreTest {
+
+  private static UUID appId = new UUID(0,1);
+
+  private File repos;
+  private LocalFileBinaryStore store;
+  private byte[] data;
+
+  @Before
+  public void setup() throws Exception {
+    repos = new File(FileUtils.getTempDirectory(), "assets-" + UUID.randomUUID());
+    store = new LocalFileBinaryStore();
+    store.setReposLocation(repos.getPath());
+    data = new byte[100000];
+    new Random(3).nextBytes(data);
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(repos);
+  }
+
+  private Asset asset() {
+    Asset asset = new Asset();
+    asset.setUuid(UUID.randomUUID());
+    return asset;
+  }
+
+  @Test
+  public void writeRecordsDigest() throws Exception {
+    Asset asset = asset();
+    store.write(appId, asset, new ByteArrayInputStream(data));
+
+    File file = store.getFile(appId, asset.getUuid());
+    assertTrue(Arrays.equals(data, FileUtils.readFileToByteArray(file)));
+    assertEquals(100000L, asset.getProperty(AssetUtils.CONTENT_LENGTH));
+    assertEquals(DigestUtils.md5Hex(data), asset.getProperty(AssetUtils.CHECKSUM));
+
+    // identical content leaves the stored file alone
+    long modified = file.lastModified();
+    store.write(appId, asset, new ByteArrayInputStream(data));
+    assertEquals(modified, file.lastModified());
+  }
+
+  @Test
+  public void resumableChunks() throws Exception {
+    Asset asset = asset();
+    long total = data.length;
+
+    assertEquals(40000, store.writeChunk(appId, asset, 0, total, new ByteArrayInputStream(data, 0, 40000)));
+    assertFalse(store.getFile(appId, asset.getUuid()).exists());
+
+    // a chunk that doesn't start where we are is ignored
+    assertEquals(40000, store.writeChunk(appId, asset, 50000, total, new ByteArrayInputStream(data, 50000, 50000)));
+
+    // asking for progress
+    assertEquals(40000, store.writeChunk(appId, asset, -1, total, new ByteArrayInputStream(new byte[0])));
+
+    // a restarted node picks up from what's on disk
+    store = new LocalFileBinaryStore();
+    store.setReposLocation(repos.getPath());
+    assertEquals(total, store.writeChunk(appId, asset, 40000, total, new ByteArrayInputStream(data, 40000, 60000)));
+
+    File file = store.getFile(appId, asset.getUuid());
+    assertTrue(Arrays.equals(data, FileUtils.readFileToByteArray(file)));
+    assertEquals(total, asset.getProperty(AssetUtils.CONTENT_LENGTH));
+    assertEquals(DigestUtils.md5Hex(data), asset.getProperty(AssetUtils.CHECKSUM));
+  }
+}
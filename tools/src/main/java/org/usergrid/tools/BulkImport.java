@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.tools;
+
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static org.usergrid.persistence.Schema.TYPE_APPLICATION;
+import static org.usergrid.persistence.cassandra.CassandraPersistenceUtils.batchExecute;
+import static org.usergrid.persistence.cassandra.EntityManagerImpl.APPLICATION_COLLECTION;
+import static org.usergrid.persistence.cassandra.EntityManagerImpl.APPLICATION_ENTITIES;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.usergrid.persistence.EntityManager;
+import org.usergrid.persistence.Schema;
+import org.usergrid.persistence.cassandra.CassandraService;
+import org.usergrid.persistence.cassandra.CounterUtils;
+import org.usergrid.persistence.cassandra.EntityManagerImpl;
+import org.usergrid.utils.UUIDUtils;
+
+/**
+ * Loads an export into a cluster that doesn't hold any of its entities yet.
+ * <p>
+ * Works like {@link Import}, but the entities are written in batches of
+ * -batchSize to a single mutator by a pool of -threads workers, without any
+ * of the reads a regular create makes to check uniqueness or clean up the
+ * indexes of a previous value. The collection counters aren't touched while
+ * loading, they are incremented once per collection when the load is done,
+ * written straight to Cassandra rather than through the counter batcher so
+ * they are stored before the tool exits.
+ * Unique values aren't checked, so the export must not hold duplicates.
+ */
+public class BulkImport extends Import {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkImport.class);
+
+    public static final ByteBufferSerializer be = new ByteBufferSerializer();
+
+    /** Threads writing batches: -threads */
+    static final String THREADS = "threads";
+
+    /** Entities per mutator: -batchSize */
+    static final String BATCH_SIZE = "batchSize";
+
+    static final int DEFAULT_THREADS = 10;
+
+    static final int DEFAULT_BATCH_SIZE = 250;
+
+    ThreadPoolExecutor workers;
+
+    int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** Entities loaded by application and collection, for the counters */
+    final ConcurrentMap<UUID, ConcurrentMap<String, AtomicLong>> loaded = new ConcurrentHashMap<UUID, ConcurrentMap<String, AtomicLong>>();
+
+    final AtomicLong total = new AtomicLong();
+
+    long loadStart;
+
+    CounterUtils counterUtils;
+
+    @Autowired
+    public void setCounterUtils(CounterUtils counterUtils) {
+        this.counterUtils = counterUtils;
+    }
+
+    @Override
+    @SuppressWarnings("static-access")
+    public Options createOptions() {
+
+        Options options = super.createOptions();
+
+        Option threads = OptionBuilder.hasArg()
+                .withDescription("threads writing batches -threads").create(THREADS);
+
+        Option batchSize = OptionBuilder.hasArg()
+                .withDescription("entities written per batch -batchSize").create(BATCH_SIZE);
+
+        options.addOption(threads);
+        options.addOption(batchSize);
+
+        return options;
+    }
+
+    @Override
+    public void runTool(CommandLine line) throws Exception {
+
+        int threads = DEFAULT_THREADS;
+        if (line.hasOption(THREADS)) {
+            threads = Integer.parseInt(line.getOptionValue(THREADS));
+        }
+        if (line.hasOption(BATCH_SIZE)) {
+            batchSize = Integer.parseInt(line.getOptionValue(BATCH_SIZE));
+        }
+
+        // a full queue has the reader write the batch itself, which keeps it
+        // from parsing more of the file than the workers can take
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        loadStart = System.currentTimeMillis();
+
+        try {
+            super.runTool(line);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Read the entities a batch at a time and hand them to the workers,
+     * returning once they have all been written
+     */
+    @Override
+    protected void importEntities(JsonParser jp, EntityManager em) throws Exception {
+
+        List<Future<Integer>> batches = new ArrayList<Future<Integer>>();
+        List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(batchSize);
+
+        while (jp.nextValue() != JsonToken.END_ARRAY) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> entityProps = jp.readValueAs(HashMap.class);
+            batch.add(entityProps);
+            echo(entityProps);
+
+            if (batch.size() == batchSize) {
+                batches.add(workers.submit(new LoadBatch((EntityManagerImpl) em, batch)));
+                batch = new ArrayList<Map<String, Object>>(batchSize);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            batches.add(workers.submit(new LoadBatch((EntityManagerImpl) em, batch)));
+        }
+
+        int count = 0;
+        for (Future<Integer> future : batches) {
+            try {
+                count += future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        long elapsed = System.currentTimeMillis() - loadStart;
+        logger.info("Loaded {} entities, {} in all at {} entities/sec", new Object[] { count, total.get(),
+                elapsed > 0 ? total.get() * 1000 / elapsed : 0 });
+    }
+
+    /**
+     * Set the collection counters of everything that was loaded, in place of
+     * the increment a regular create makes for every entity. The counts are
+     * written with a mutator of their own instead of being queued on the
+     * batcher, which only flushes once a batch fills.
+     */
+    @Override
+    protected void finishImport() throws Exception {
+
+        CounterUtils direct = new CounterUtils();
+        direct.setCounterType("o");
+        direct.setRollup(counterUtils.isRollup());
+        direct.setRollupDelay(counterUtils.getRollupDelay());
+        direct.setLateAfter(counterUtils.getLateAfter());
+
+        for (Entry<UUID, ConcurrentMap<String, AtomicLong>> application : loaded.entrySet()) {
+
+            UUID applicationId = application.getKey();
+            Mutator<ByteBuffer> m = createMutator(cass.getApplicationKeyspace(applicationId), be);
+            long timestamp = cass.createTimestamp();
+
+            long entities = 0;
+            for (Entry<String, AtomicLong> collection : application.getValue().entrySet()) {
+                direct.batchIncrementAggregateCounters(m, applicationId, null, null, null, null,
+                        APPLICATION_COLLECTION + collection.getKey(), collection.getValue().get(), timestamp);
+                entities += collection.getValue().get();
+            }
+
+            direct.batchIncrementAggregateCounters(m, applicationId, null, null, null, null, APPLICATION_ENTITIES,
+                    entities, timestamp);
+
+            batchExecute(m, CassandraService.RETRY_COUNT);
+
+            logger.info("Counted {} entities in application {}", entities, applicationId);
+        }
+    }
+
+    private void count(UUID applicationId, String collectionName, long count) {
+        ConcurrentMap<String, AtomicLong> collections = loaded.get(applicationId);
+        if (collections == null) {
+            collections = new ConcurrentHashMap<String, AtomicLong>();
+            ConcurrentMap<String, AtomicLong> existing = loaded.putIfAbsent(applicationId, collections);
+            if (existing != null) {
+                collections = existing;
+            }
+        }
+
+        AtomicLong counter = collections.get(collectionName);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong existing = collections.putIfAbsent(collectionName, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+
+        counter.addAndGet(count);
+    }
+
+    /**
+     * Writes a batch of entities with a single mutator
+     */
+    private class LoadBatch implements Callable<Integer> {
+
+        private final EntityManagerImpl em;
+        private final List<Map<String, Object>> entities;
+
+        private LoadBatch(EntityManagerImpl em, List<Map<String, Object>> entities) {
+            this.em = em;
+            this.entities = entities;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+
+            UUID applicationId = em.getApplicationId();
+            Keyspace ko = cass.getApplicationKeyspace(applicationId);
+            Mutator<ByteBuffer> m = createMutator(ko, be);
+
+            UUID[] timestamps = UUIDUtils.newTimeUUIDs(entities.size());
+
+            Map<String, Long> collections = new HashMap<String, Long>();
+
+            for (int i = 0; i < entities.size(); i++) {
+                Map<String, Object> entityProps = entities.get(i);
+                String type = getType(entityProps);
+
+                em.batchLoad(m, type, entityProps, getId(entityProps), timestamps[i]);
+
+                // a regular create doesn't count the application entity
+                if (TYPE_APPLICATION.equals(type)) {
+                    continue;
+                }
+
+                String collectionName = Schema.defaultCollectionName(type);
+                Long count = collections.get(collectionName);
+                collections.put(collectionName, count == null ? 1 : count + 1);
+            }
+
+            batchExecute(m, CassandraService.RETRY_COUNT);
+
+            for (Entry<String, Long> collection : collections.entrySet()) {
+                count(applicationId, collection.getKey(), collection.getValue());
+            }
+            total.addAndGet(entities.size());
+
+            return entities.size();
+        }
+    }
+}
@@ -16,18 +16,32 @@
 package org.usergrid.tools;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.io.FileUtils;
 import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.usergrid.management.OrganizationInfo;
@@ -39,17 +53,76 @@ import org.usergrid.persistence.Query;
 import org.usergrid.persistence.Results;
 import org.usergrid.persistence.Results.Level;
 import org.usergrid.persistence.cassandra.CassandraService;
+import org.usergrid.tools.bean.ExportCheckpoint;
 import org.usergrid.tools.bean.ExportOrg;
 import org.usergrid.utils.JsonUtils;
 
 import com.google.common.collect.BiMap;
 
+/**
+ * Exports organizations and their applications to json files.
+ * <p>
+ * Entities are read a page at a time by cursor and the collections,
+ * connections and dictionaries of each page are loaded in parallel. Every
+ * collection is written as one or more shards, each a pair of
+ * entities.&lt;app&gt;.&lt;collection&gt;.&lt;part&gt; and
+ * collections.&lt;app&gt;.&lt;collection&gt;.&lt;part&gt; files. After each shard
+ * the export records where it got to, so an interrupted export run again
+ * with -resume against the same output directory only redoes the shard it
+ * was in the middle of.
+ */
 public class Export extends ExportingToolBase {
 
   static final Logger logger = LoggerFactory.getLogger(Export.class);
 
+  /** Threads loading entity relations: -threads */
+  static final String THREADS = "threads";
+
+  /** Entities per shard file: -shardSize */
+  static final String SHARD_SIZE = "shardSize";
+
+  /** Carry on with the export in the output directory: -resume */
+  static final String RESUME = "resume";
+
+  static final String CHECKPOINT_FILE = "export.checkpoint.json";
+
+  static final int DEFAULT_THREADS = 10;
+
+  static final int DEFAULT_SHARD_SIZE = 100000;
+
   JsonFactory jsonFactory = new JsonFactory();
 
+  ObjectMapper mapper = new ObjectMapper();
+
+  ExecutorService workers;
+
+  int shardSize = DEFAULT_SHARD_SIZE;
+
+  ExportCheckpoint checkpoint;
+
+  File checkpointFile;
+
+  final AtomicLong exported = new AtomicLong();
+
+  long exportStart;
+
+  @Override
+  @SuppressWarnings("static-access")
+  public Options createOptions() {
+
+    Options options = super.createOptions();
+
+    Option threads = OptionBuilder.hasArg().withDescription("threads loading entity relations -threads").create(THREADS);
+    Option shardSize = OptionBuilder.hasArg().withDescription("entities per shard file -shardSize").create(SHARD_SIZE);
+    Option resume = OptionBuilder.withDescription("resume the export in the output directory -resume").create(RESUME);
+
+    options.addOption(threads);
+    options.addOption(shardSize);
+    options.addOption(resume);
+
+    return options;
+  }
+
   @Override
   public void runTool(CommandLine line) throws Exception {
     startSpring();
@@ -65,20 +138,39 @@ public class Export extends ExportingToolBase {
     outputDir = createOutputParentDir();
     logger.info("Export directory: " + outputDir.getAbsolutePath());
 
-    // Export organizations separately.
-    exportOrganizations();
+    int threads = DEFAULT_THREADS;
+    if (line.hasOption(THREADS)) {
+      threads = Integer.parseInt(line.getOptionValue(THREADS));
+    }
+    if (line.hasOption(SHARD_SIZE)) {
+      shardSize = Integer.parseInt(line.getOptionValue(SHARD_SIZE));
+    }
 
-    // Loop through the organizations
-    Map<UUID, String> organizations = getOrgs();
-    for (Entry<UUID, String> organization : organizations.entrySet()) {
+    loadCheckpoint(line.hasOption(RESUME));
 
-      if (organization.equals(properties.getProperty("usergrid.test-account.organization"))) {
-        // Skip test data from being exported.
-        continue;
-      }
+    workers = Executors.newFixedThreadPool(threads);
+    exportStart = System.currentTimeMillis();
+
+    try {
+      // Export organizations separately.
+      exportOrganizations();
 
-      exportApplicationsForOrg(organization);
+      // Loop through the organizations
+      Map<UUID, String> organizations = getOrgs();
+      for (Entry<UUID, String> organization : organizations.entrySet()) {
+
+        if (organization.equals(properties.getProperty("usergrid.test-account.organization"))) {
+          // Skip test data from being exported.
+          continue;
+        }
+
+        exportApplicationsForOrg(organization);
+      }
+    } finally {
+      workers.shutdownNow();
     }
+
+    logger.info("Export complete: " + exported.get() + " entities, " + rate() + " entities/sec");
   }
 
   
@@ -152,12 +244,11 @@ public class Export extends ExportingToolBase {
       nsEntity.setMetadata("counters", entityCounters);
       nsEntity.setMetadata("collections", collections);
 
+      // The entities themselves go in the shards of each collection
       jg.writeStartArray();
       jg.writeObject(nsEntity);
-
-      // Create a generator for the application collections.
-      JsonGenerator collectionsJg = getJsonGenerator(createOutputFile("collections", application.getValue()));
-      collectionsJg.writeStartObject();
+      jg.writeEndArray();
+      jg.close();
 
       Map<String, Object> metadata = em.getApplicationCollectionMetadata();
       echo(JsonUtils.mapToFormattedJsonString(metadata));
@@ -165,113 +256,218 @@ public class Export extends ExportingToolBase {
       // Loop through the collections. This is the only way to loop
       // through the entities in the application (former namespace).
       for (String collectionName : metadata.keySet()) {
+        exportCollection(em, application.getValue(), collectionName);
+      }
+    }
+
+  }
+
+  /**
+   * Export the entities of an application collection, and their collection
+   * members, connections and dictionaries, shard by shard from wherever the
+   * checkpoint says the collection got to.
+   */
+  private void exportCollection(EntityManager em, String application, String collectionName) throws Exception {
+
+    ExportCheckpoint.Shard shard = checkpoint.getShard(application, collectionName);
+    if (shard.isDone()) {
+      logger.info("Already exported " + application + "/" + collectionName);
+      return;
+    }
+
+    Query query = new Query();
+    query.setLimit(Query.MAX_LIMIT);
+    query.setResultsLevel(Results.Level.ALL_PROPERTIES);
+    query.setCursor(shard.getCursor());
+
+    boolean finished = false;
+
+    while (!finished) {
+
+      String name = application + "." + collectionName + "." + shard.getPart();
+      JsonGenerator jg = getJsonGenerator(createOutputFile("entities", name));
+      JsonGenerator collectionsJg = getJsonGenerator(createOutputFile("collections", name));
+      jg.writeStartArray();
+      collectionsJg.writeStartObject();
+
+      int count = 0;
 
-        Query query = new Query();
-        query.setLimit(MAX_ENTITY_FETCH);
-        query.setResultsLevel(Results.Level.ALL_PROPERTIES);
+      while (count < shardSize) {
 
         Results entities = em.searchCollection(em.getApplicationRef(), collectionName, query);
 
-        while (entities.size() > 0) {
+        if (entities.size() == 0) {
+          finished = true;
+          break;
+        }
+
+        List<Entity> page = entities.getEntities();
 
-          for (Entity entity : entities) {
-            // Export the entity first and later the collections for
-            // this entity.
-            jg.writeObject(entity);
-            echo(entity);
+        List<Future<Map<String, Object>>> relations = new ArrayList<Future<Map<String, Object>>>(page.size());
+        for (Entity entity : page) {
+          relations.add(workers.submit(new RelationsLoader(em, entity)));
+        }
 
-            saveCollectionMembers(collectionsJg, em, application.getValue(), entity);
+        for (int i = 0; i < page.size(); i++) {
+          Entity entity = page.get(i);
 
+          // Export the entity first and later the collections for
+          // this entity.
+          jg.writeObject(entity);
+          echo(entity);
+
+          Map<String, Object> members = get(relations.get(i));
+          if (members != null) {
+            collectionsJg.writeFieldName(entity.getUuid().toString());
+            collectionsJg.writeObject(members);
           }
-          
-          //we're done
-          if(entities.getCursor() == null){
-            break;
-          }
-          
-          
-          query.setCursor(entities.getCursor());
-          
-          entities = em.searchCollection(em.getApplicationRef(), collectionName, query);
+        }
+
+        count += page.size();
+        exported.addAndGet(page.size());
 
+        // we're done
+        if (entities.getCursor() == null) {
+          finished = true;
+          break;
         }
+
+        query.setCursor(entities.getCursor());
       }
 
-      // Close writer for the collections for this application.
       collectionsJg.writeEndObject();
       collectionsJg.close();
-
-      // Close writer and file for this application.
       jg.writeEndArray();
       jg.close();
+
+      shard.setPart(shard.getPart() + 1);
+      shard.setCursor(query.getCursor());
+      shard.setDone(finished);
+      saveCheckpoint();
+
+      logger.info("Exported " + count + " entities of " + application + "/" + collectionName + ", " + exported.get()
+          + " entities in all at " + rate() + " entities/sec");
     }
+  }
 
+  private static Map<String, Object> get(Future<Map<String, Object>> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private long rate() {
+    long elapsed = System.currentTimeMillis() - exportStart;
+    return elapsed > 0 ? exported.get() * 1000 / elapsed : 0;
+  }
+
+  private void loadCheckpoint(boolean resume) throws IOException {
+    checkpointFile = new File(outputDir, CHECKPOINT_FILE);
+
+    if (resume && checkpointFile.exists()) {
+      checkpoint = mapper.readValue(checkpointFile, ExportCheckpoint.class);
+      // carry on writing files with the same names
+      startTime = checkpoint.getStartTime();
+      logger.info("Resuming export started at " + startTime);
+      return;
+    }
+
+    checkpoint = new ExportCheckpoint(startTime);
+  }
+
+  private void saveCheckpoint() throws IOException {
+    File temp = new File(outputDir, CHECKPOINT_FILE + ".tmp");
+    mapper.writeValue(temp, checkpoint);
+    if (!temp.renameTo(checkpointFile)) {
+      FileUtils.deleteQuietly(checkpointFile);
+      FileUtils.moveFile(temp, checkpointFile);
+    }
   }
 
   /**
-   * Serialize and save the collection members of this <code>entity</code>
-   * 
-   * @param em
-   *          Entity Manager
-   * @param application
-   *          Application name
-   * @param entity
-   *          entity
-   * @throws Exception
+   * Loads the collection members, connections and dictionaries of an entity
+   * in the form written to the collections file, or null if the entity has
+   * none of them.
    */
-  private void saveCollectionMembers(JsonGenerator jg, EntityManager em, String application, Entity entity)
-      throws Exception {
+  private class RelationsLoader implements Callable<Map<String, Object>> {
 
-    Set<String> collections = em.getCollections(entity);
+    private final EntityManager em;
+    private final Entity entity;
 
-    // Only create entry for Entities that have collections
-    if ((collections == null) || collections.isEmpty()) {
-      return;
+    RelationsLoader(EntityManager em, Entity entity) {
+      this.em = em;
+      this.entity = entity;
     }
 
-    jg.writeFieldName(entity.getUuid().toString());
-    jg.writeStartObject();
+    @Override
+    public Map<String, Object> call() throws Exception {
+      Map<String, Object> members = new LinkedHashMap<String, Object>();
 
-    for (String collectionName : collections) {
+      Set<String> collections = em.getCollections(entity);
+      if (collections != null) {
+        for (String collectionName : collections) {
+          members.put(collectionName, getCollectionMembers(em, entity, collectionName));
+        }
+      }
 
-      jg.writeFieldName(collectionName);
-      // Start collection array.
-      jg.writeStartArray();
+      Map<String, Object> connections = getConnections(em, entity);
+      Map<String, Object> dictionaries = getDictionaries(em, entity);
+
+      if (members.isEmpty() && connections.isEmpty() && dictionaries.isEmpty()) {
+        return null;
+      }
+
+      members.put("connections", connections);
+      members.put("dictionaries", dictionaries);
+
+      return members;
+    }
+  }
+
+  /**
+   * Page through the ids of the members of a collection of this
+   * <code>entity</code>
+   */
+  private List<String> getCollectionMembers(EntityManager em, Entity entity, String collectionName) throws Exception {
+
+    List<String> ids = new ArrayList<String>();
 
-      Results collectionMembers = em.getCollection(entity, collectionName, null, 100000, Level.IDS, false);
+    Query query = new Query();
+    query.setLimit(Query.MAX_LIMIT);
+    query.setResultsLevel(Level.IDS);
+
+    while (true) {
+      Results collectionMembers = em.searchCollection(entity, collectionName, query);
 
       List<UUID> entityIds = collectionMembers.getIds();
 
       if ((entityIds != null) && !entityIds.isEmpty()) {
         for (UUID childEntityUUID : entityIds) {
-          jg.writeObject(childEntityUUID.toString());
+          ids.add(childEntityUUID.toString());
         }
       }
 
-      // End collection array.
-      jg.writeEndArray();
-    }
-
-    // Write connections
-    saveConnections(entity, em, jg);
-
-    // Write dictionaries
-    saveDictionaries(entity, em, jg);
+      if (collectionMembers.getCursor() == null) {
+        return ids;
+      }
 
-    // End the object if it was Started
-    jg.writeEndObject();
+      query.setCursor(collectionMembers.getCursor());
+    }
   }
 
   /**
-   * Persists the connection for this entity.
+   * The non empty dictionaries of this entity.
    */
-  private void saveDictionaries(Entity entity, EntityManager em, JsonGenerator jg) throws Exception {
+  private Map<String, Object> getDictionaries(EntityManager em, Entity entity) throws Exception {
 
-    jg.writeFieldName("dictionaries");
-    jg.writeStartObject();
+    Map<String, Object> dictionaries = new LinkedHashMap<String, Object>();
 
-    Set<String> dictionaries = em.getDictionaries(entity);
-    for (String dictionary : dictionaries) {
+    for (String dictionary : em.getDictionaries(entity)) {
 
       Map<Object, Object> dict = em.getDictionaryAsMap(entity, dictionary);
 
@@ -280,45 +476,37 @@ public class Export extends ExportingToolBase {
         continue;
       }
 
-      jg.writeFieldName(dictionary);
-
-      jg.writeStartObject();
-
+      Map<String, Object> values = new LinkedHashMap<String, Object>();
       for (Entry<Object, Object> entry : dict.entrySet()) {
-        jg.writeFieldName(entry.getKey().toString());
-        jg.writeObject(entry.getValue());
+        values.put(entry.getKey().toString(), entry.getValue());
       }
 
-      jg.writeEndObject();
+      dictionaries.put(dictionary, values);
     }
-    jg.writeEndObject();
 
+    return dictionaries;
   }
 
   /**
-   * Persists the connection for this entity.
+   * The connections of this entity by connection type.
    */
-  private void saveConnections(Entity entity, EntityManager em, JsonGenerator jg) throws Exception {
-
-    jg.writeFieldName("connections");
-    jg.writeStartObject();
+  private Map<String, Object> getConnections(EntityManager em, Entity entity) throws Exception {
 
-    Set<String> connectionTypes = em.getConnectionTypes(entity);
-    for (String connectionType : connectionTypes) {
+    Map<String, Object> connections = new LinkedHashMap<String, Object>();
 
-      jg.writeFieldName(connectionType);
-      jg.writeStartArray();
+    for (String connectionType : em.getConnectionTypes(entity)) {
 
       Results results = em.getConnectedEntities(entity.getUuid(), connectionType, null, Level.IDS);
-      List<ConnectionRef> connections = results.getConnections();
 
-      for (ConnectionRef connectionRef : connections) {
-        jg.writeObject(connectionRef.getConnectedEntity().getUuid());
+      List<UUID> connected = new ArrayList<UUID>();
+      for (ConnectionRef connectionRef : results.getConnections()) {
+        connected.add(connectionRef.getConnectedEntity().getUuid());
       }
 
-      jg.writeEndArray();
+      connections.put(connectionType, connected);
     }
-    jg.writeEndObject();
+
+    return connections;
   }
 
   /*-
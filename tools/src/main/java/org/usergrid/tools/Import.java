@@ -100,13 +100,21 @@ public class Import extends ToolBase {
 
         importApplications();
 
+        importEntityShards();
+
         importCollections();
-        
+
+        finishImport();
+    }
+
+    /**
+     * Called once everything has been imported
+     */
+    protected void finishImport() throws Exception {
         //forces the counters to flush
         logger.info("Sleeping 30 seconds for batcher");
         
         Thread.sleep(35000);
-        
     }
 
     /**
@@ -232,6 +240,17 @@ public class Import extends ToolBase {
         }
         
 
+        importEntities(jp, em);
+
+        logger.info("----- End of application:" + application.getName());
+        jp.close();
+    }
+
+    /**
+     * Create the entities in an array, the parser positioned inside it
+     */
+    protected void importEntities(JsonParser jp, EntityManager em)
+            throws Exception {
         while (jp.nextValue() != JsonToken.END_ARRAY) {
             @SuppressWarnings("unchecked")
             Map<String, Object> entityProps = jp.readValueAs(HashMap.class);
@@ -257,17 +276,57 @@ public class Import extends ToolBase {
             
             echo(entityProps);
         }
+    }
+
+    /**
+     * Import the entity shards of the application collections. Shards are
+     * named: entities.<application_name>.<collection>.<part>.Timestamp.json
+     */
+    private void importEntityShards() throws Exception {
+        String[] shardFileNames = importDir.list(new PrefixFileFilter(
+                "entities."));
+        logger.info("Entity shards to read: " + shardFileNames.length);
+
+        for (String shardFileName : shardFileNames) {
+            try {
+                importEntityShard(shardFileName);
+            } catch (Exception e) {
+                logger.warn("Unable to import entity shard: " + shardFileName, e);
+            }
+        }
+    }
+
+    private void importEntityShard(String shardFileName) throws Exception {
+        String applicationName = getApplicationFromColllection(shardFileName);
+
+        UUID appId = emf.lookupApplication(applicationName);
+
+        if(appId == null){
+            logger.error("Unable to find application with name {}.  Skipping entities", applicationName);
+            return;
+        }
+
+        File shardFile = new File(importDir, shardFileName);
+
+        logger.info("Loading entities file: "
+                + shardFile.getAbsolutePath());
+
+        JsonParser jp = getJsonParserForFile(shardFile);
+
+        JsonToken token = jp.nextToken();
+        validateStartArray(token);
+
+        importEntities(jp, emf.getEntityManager(appId));
 
-        logger.info("----- End of application:" + application.getName());
         jp.close();
     }
 
 
-    private String getType(Map<String, Object> entityProps) {
+    protected String getType(Map<String, Object> entityProps) {
         return (String) entityProps.get(PROPERTY_TYPE);
     }
 
-    private UUID getId(Map<String, Object> entityProps) {
+    protected UUID getId(Map<String, Object> entityProps) {
         return UUID.fromString((String) entityProps.get(PROPERTY_UUID));
     }
 
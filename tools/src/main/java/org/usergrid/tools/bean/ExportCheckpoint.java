@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright 2012 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.usergrid.tools.bean;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How far an export has got, so an interrupted export can carry on from the
+ * last shard it finished instead of starting over. Collections are keyed by
+ * application name and collection name.
+ */
+public class ExportCheckpoint {
+
+    private long startTime;
+
+    private Map<String, Shard> collections = new LinkedHashMap<String, Shard>();
+
+    public ExportCheckpoint() {
+    }
+
+    public ExportCheckpoint(long startTime) {
+        this.startTime = startTime;
+    }
+
+    /**
+     * @return the time stamp used in the names of the export files
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    public Map<String, Shard> getCollections() {
+        return collections;
+    }
+
+    public void setCollections(Map<String, Shard> collections) {
+        this.collections = collections;
+    }
+
+    /**
+     * Get the progress of a collection, starting it if it hasn't been seen yet
+     */
+    public Shard getShard(String application, String collectionName) {
+        String key = application + "/" + collectionName;
+        Shard shard = collections.get(key);
+        if (shard == null) {
+            shard = new Shard();
+            collections.put(key, shard);
+        }
+        return shard;
+    }
+
+    /**
+     * The next shard of a collection to write
+     */
+    public static class Shard {
+
+        private int part;
+
+        private String cursor;
+
+        private boolean done;
+
+        public int getPart() {
+            return part;
+        }
+
+        public void setPart(int part) {
+            this.part = part;
+        }
+
+        /**
+         * @return the cursor the next shard starts at, null for the start of
+         *         the collection
+         */
+        public String getCursor() {
+            return cursor;
+        }
+
+        public void setCursor(String cursor) {
+            this.cursor = cursor;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public void setDone(boolean done) {
+            this.done = done;
+        }
+    }
+}